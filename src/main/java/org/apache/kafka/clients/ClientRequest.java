@@ -74,6 +74,13 @@ public final class ClientRequest {
         return requestBuilder.apiKey();
     }
 
+    /**
+     * Whether this is a control request, which is not subject to the in-flight data window of its connection
+     */
+    public boolean isControlRequest() {
+        return InFlightRequests.isControlRequest(requestBuilder.apiKey().id);
+    }
+
     public RequestHeader makeHeader() {
         return new RequestHeader(requestBuilder.apiKey().id,
                 requestBuilder.version(), clientId, correlationId);
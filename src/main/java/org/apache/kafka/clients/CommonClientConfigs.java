@@ -82,6 +82,18 @@ public class CommonClientConfigs {
                                                          + "elapses the client will resend the request if necessary or fail the request if "
                                                          + "retries are exhausted.";
 
+    public static final String MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_CONFIG = "max.in.flight.control.requests.per.connection";
+    public static final String MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_DOC = "The maximum number of unanswered control requests "
+                                                                                  + "(metadata, group coordination and offset requests, i.e. anything but produce and fetch) the client "
+                                                                                  + "will send on a single connection before blocking. Control requests are counted separately from data "
+                                                                                  + "requests so that they are not held back while a connection is saturated with produce or fetch traffic.";
+
+    public static final String MAX_IN_FLIGHT_BYTES_PER_CONNECTION_CONFIG = "max.in.flight.bytes.per.connection";
+    public static final String MAX_IN_FLIGHT_BYTES_PER_CONNECTION_DOC = "The maximum total size of the produce and fetch requests the client "
+                                                                       + "will have unanswered on a single connection before blocking. Bounding the data queued ahead on a "
+                                                                       + "connection bounds how long a control request waits behind it. A single larger request is still sent "
+                                                                       + "when no other data request is in flight. If the value is -1, only the request count is limited.";
+
     private static List<String> nonTestingSecurityProtocolNames() {
         List<String> names = new ArrayList();
         for (SecurityProtocol protocol : SecurityProtocol.nonTestingValues())
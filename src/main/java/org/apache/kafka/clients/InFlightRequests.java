@@ -12,18 +12,51 @@
  */
 package org.apache.kafka.clients;
 
+import org.apache.kafka.common.protocol.ApiKeys;
+
 import java.util.*;
 
 /**
- * The set of requests which have been sent or are being sent but haven't yet received a response
+ * The set of requests which have been sent or are being sent but haven't yet received a response.
+ * <p>
+ * Requests are split into two priority classes. Data requests (produce and fetch) are limited per connection both by
+ * count and by the total size of their sends, while control requests (metadata, group coordination, offsets, ...)
+ * have a separate count limit. This lets a heartbeat or metadata request be sent while the data window of a
+ * connection is full instead of waiting for bulk responses to free up room. Responses are still matched in the
+ * order the requests were sent, since that is the order the broker answers them.
  */
 final class InFlightRequests {
 
     private final int maxInFlightRequestsPerConnection;
+    private final int maxInFlightControlRequestsPerConnection;
+    private final long maxInFlightBytesPerConnection;
     private final Map<String, org.apache.kafka.common.utils.Deque<NetworkClient.InFlightRequest>> requests = new HashMap();
+    private final Map<String, Window> windows = new HashMap();
 
     public InFlightRequests(int maxInFlightRequestsPerConnection) {
+        this(maxInFlightRequestsPerConnection, maxInFlightRequestsPerConnection, -1L);
+    }
+
+    /**
+     * @param maxInFlightRequestsPerConnection The maximum number of data requests in flight per connection
+     * @param maxInFlightControlRequestsPerConnection The maximum number of control requests in flight per connection
+     * @param maxInFlightBytesPerConnection The maximum size of the data requests in flight per connection, or -1 for
+     *                                      no limit. A single request larger than this can still be sent on an idle
+     *                                      connection.
+     */
+    public InFlightRequests(int maxInFlightRequestsPerConnection,
+                            int maxInFlightControlRequestsPerConnection,
+                            long maxInFlightBytesPerConnection) {
         this.maxInFlightRequestsPerConnection = maxInFlightRequestsPerConnection;
+        this.maxInFlightControlRequestsPerConnection = maxInFlightControlRequestsPerConnection;
+        this.maxInFlightBytesPerConnection = maxInFlightBytesPerConnection;
+    }
+
+    /**
+     * Is the given API a control request, i.e. one which is not subject to the data request window?
+     */
+    static boolean isControlRequest(short apiKey) {
+        return apiKey != ApiKeys.PRODUCE.id && apiKey != ApiKeys.FETCH.id;
     }
 
     /**
@@ -37,6 +70,13 @@ final class InFlightRequests {
             this.requests.put(destination, reqs);
         }
         reqs.addFirst(request);
+
+        Window window = this.windows.get(destination);
+        if (window == null) {
+            window = new Window();
+            this.windows.put(destination, window);
+        }
+        window.add(request);
     }
 
     /**
@@ -53,7 +93,7 @@ final class InFlightRequests {
      * Get the oldest request (the one that that will be completed next) for the given node
      */
     public NetworkClient.InFlightRequest completeNext(String node) {
-        return requestQueue(node).pollLast();
+        return release(requestQueue(node).pollLast());
     }
 
     /**
@@ -70,19 +110,46 @@ final class InFlightRequests {
      * @return The request
      */
     public NetworkClient.InFlightRequest completeLastSent(String node) {
-        return requestQueue(node).pollFirst();
+        return release(requestQueue(node).pollFirst());
+    }
+
+    private NetworkClient.InFlightRequest release(NetworkClient.InFlightRequest request) {
+        Window window = this.windows.get(request.destination);
+        if (window != null)
+            window.remove(request);
+        return request;
     }
 
     /**
-     * Can we send more requests to this node?
+     * Can we send more data requests to this node?
      *
      * @param node Node in question
-     * @return true iff we have no requests still being sent to the given node
+     * @return true iff we have no requests still being sent to the given node and the data window has room
      */
     public boolean canSendMore(String node) {
+        return canSendMore(node, false);
+    }
+
+    /**
+     * Can we send more requests of the given priority class to this node?
+     *
+     * @param node Node in question
+     * @param control Whether the request is a control request (see {@link #isControlRequest(short)})
+     * @return true iff we have no requests still being sent to the given node and the window of the class has room
+     */
+    public boolean canSendMore(String node, boolean control) {
         org.apache.kafka.common.utils.Deque<NetworkClient.InFlightRequest> queue = requests.get(node);
-        return queue == null || queue.isEmpty() ||
-               (queue.peekFirst().send.completed() && queue.size() < this.maxInFlightRequestsPerConnection);
+        if (queue == null || queue.isEmpty())
+            return true;
+        if (!queue.peekFirst().send.completed())
+            return false;
+
+        Window window = windows.get(node);
+        if (control)
+            return window.controlRequests < this.maxInFlightControlRequestsPerConnection;
+        return window.dataRequests == 0 ||
+               (window.dataRequests < this.maxInFlightRequestsPerConnection &&
+                (this.maxInFlightBytesPerConnection < 0 || window.dataBytes < this.maxInFlightBytesPerConnection));
     }
 
     /**
@@ -116,6 +183,7 @@ final class InFlightRequests {
         if (reqs == null) {
             return Collections.emptyList();
         } else {
+            windows.remove(node);
             return requests.remove(node);
         }
     }
@@ -143,5 +211,32 @@ final class InFlightRequests {
 
         return nodeIds;
     }
-    
+
+    /**
+     * The requests and bytes in flight to a node, per priority class
+     */
+    private static final class Window {
+        private int controlRequests;
+        private int dataRequests;
+        private long dataBytes;
+
+        private void add(NetworkClient.InFlightRequest request) {
+            if (isControlRequest(request.header.apiKey())) {
+                controlRequests++;
+            } else {
+                dataRequests++;
+                dataBytes += request.send.size();
+            }
+        }
+
+        private void remove(NetworkClient.InFlightRequest request) {
+            if (isControlRequest(request.header.apiKey())) {
+                controlRequests--;
+            } else {
+                dataRequests--;
+                dataBytes -= request.send.size();
+            }
+        }
+    }
+
 }
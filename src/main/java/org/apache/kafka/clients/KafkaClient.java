@@ -13,6 +13,7 @@
 package org.apache.kafka.clients;
 
 import org.apache.kafka.common.Node;
+import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.requests.AbstractRequest;
 
 import java.io.Closeable;
@@ -42,6 +43,31 @@ public interface KafkaClient extends Closeable {
      */
     boolean ready(Node node, long now);
 
+    /**
+     * Initiate a connection to the given node (if necessary), and return true if already connected and able to send a
+     * request of the given type. Control requests (anything but produce and fetch) have their own in-flight window, so
+     * they can be sent while the connection is saturated with data requests.
+     *
+     * @param node The node to connect to.
+     * @param apiKey The type of the request to send
+     * @param now The current time
+     * @return true iff we are ready to immediately initiate the sending of a request of the given type to the node.
+     */
+    boolean ready(Node node, ApiKeys apiKey, long now);
+
+    /**
+     * Initiate the given connection to the given node (if necessary), and return true if it is already connected and
+     * able to send a data request. Connection 0 is the connection used for requests which are not addressed to a
+     * specific connection. Requests over other connections must be created with the id returned by
+     * {@link NetworkClient#connectionId(Node, int)}.
+     *
+     * @param node The node to connect to.
+     * @param connection The index of the connection to the node
+     * @param now The current time
+     * @return true iff we are ready to immediately initiate the sending of a data request over the connection.
+     */
+    boolean ready(Node node, int connection, long now);
+
     /**
      * Returns the number of milliseconds to wait, based on the connection state, before attempting to send data. When
      * disconnected, this respects the reconnect backoff time. When connecting or connected, this handles slow/stalled
@@ -53,6 +79,17 @@ public interface KafkaClient extends Closeable {
      */
     long connectionDelay(Node node, long now);
 
+    /**
+     * Returns the number of milliseconds to wait, based on the state of the given connection to a node, before
+     * attempting to send data over it.
+     *
+     * @param node The node to check
+     * @param connection The index of the connection to the node
+     * @param now The current timestamp
+     * @return The number of milliseconds to wait.
+     */
+    long connectionDelay(Node node, int connection, long now);
+
     /**
      * Check if the connection of the node has failed, based on the connection state. Such connection failure are
      * usually transient and can be resumed in the next {@link #ready(org.apache.kafka.common.Node, long)} }
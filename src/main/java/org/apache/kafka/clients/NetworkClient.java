@@ -97,10 +97,27 @@ public class NetworkClient implements KafkaClient {
                          int requestTimeoutMs,
                          Time time,
                          boolean discoverBrokerVersions) {
-        this(null, metadata, selector, clientId, maxInFlightRequestsPerConnection,
+        this(null, metadata, selector, clientId, maxInFlightRequestsPerConnection, maxInFlightRequestsPerConnection, -1L,
                 reconnectBackoffMs, socketSendBuffer, socketReceiveBuffer, requestTimeoutMs, time, discoverBrokerVersions);
     }
 
+    public NetworkClient(Selectable selector,
+                         Metadata metadata,
+                         String clientId,
+                         int maxInFlightRequestsPerConnection,
+                         int maxInFlightControlRequestsPerConnection,
+                         long maxInFlightBytesPerConnection,
+                         long reconnectBackoffMs,
+                         int socketSendBuffer,
+                         int socketReceiveBuffer,
+                         int requestTimeoutMs,
+                         Time time,
+                         boolean discoverBrokerVersions) {
+        this(null, metadata, selector, clientId, maxInFlightRequestsPerConnection, maxInFlightControlRequestsPerConnection,
+                maxInFlightBytesPerConnection, reconnectBackoffMs, socketSendBuffer, socketReceiveBuffer, requestTimeoutMs,
+                time, discoverBrokerVersions);
+    }
+
     public NetworkClient(Selectable selector,
                          MetadataUpdater metadataUpdater,
                          String clientId,
@@ -111,8 +128,32 @@ public class NetworkClient implements KafkaClient {
                          int requestTimeoutMs,
                          Time time,
                          boolean discoverBrokerVersions) {
-        this(metadataUpdater, null, selector, clientId, maxInFlightRequestsPerConnection, reconnectBackoffMs,
-                socketSendBuffer, socketReceiveBuffer, requestTimeoutMs, time, discoverBrokerVersions);
+        this(metadataUpdater, null, selector, clientId, maxInFlightRequestsPerConnection, maxInFlightRequestsPerConnection,
+                -1L, reconnectBackoffMs, socketSendBuffer, socketReceiveBuffer, requestTimeoutMs, time, discoverBrokerVersions);
+    }
+
+    /**
+     * Create a client which shares the given metadata with another client.
+     * @param metadataOwner The client which sends the metadata requests, this one then only reads the metadata and
+     *                      wakes the owner up when it needs an update. If null, this client sends them.
+     */
+    public NetworkClient(Selectable selector,
+                         Metadata metadata,
+                         KafkaClient metadataOwner,
+                         String clientId,
+                         int maxInFlightRequestsPerConnection,
+                         int maxInFlightControlRequestsPerConnection,
+                         long maxInFlightBytesPerConnection,
+                         long reconnectBackoffMs,
+                         int socketSendBuffer,
+                         int socketReceiveBuffer,
+                         int requestTimeoutMs,
+                         Time time,
+                         boolean discoverBrokerVersions) {
+        this(metadataOwner == null ? null : new ReadOnlyMetadataUpdater(metadata, metadataOwner), metadata, selector,
+                clientId, maxInFlightRequestsPerConnection, maxInFlightControlRequestsPerConnection,
+                maxInFlightBytesPerConnection, reconnectBackoffMs, socketSendBuffer, socketReceiveBuffer,
+                requestTimeoutMs, time, discoverBrokerVersions);
     }
 
     private NetworkClient(MetadataUpdater metadataUpdater,
@@ -120,6 +161,8 @@ public class NetworkClient implements KafkaClient {
                           Selectable selector,
                           String clientId,
                           int maxInFlightRequestsPerConnection,
+                          int maxInFlightControlRequestsPerConnection,
+                          long maxInFlightBytesPerConnection,
                           long reconnectBackoffMs,
                           int socketSendBuffer,
                           int socketReceiveBuffer,
@@ -139,7 +182,8 @@ public class NetworkClient implements KafkaClient {
         }
         this.selector = selector;
         this.clientId = clientId;
-        this.inFlightRequests = new InFlightRequests(maxInFlightRequestsPerConnection);
+        this.inFlightRequests = new InFlightRequests(maxInFlightRequestsPerConnection,
+                maxInFlightControlRequestsPerConnection, maxInFlightBytesPerConnection);
         this.connectionStates = new ClusterConnectionStates(reconnectBackoffMs);
         this.socketSendBuffer = socketSendBuffer;
         this.socketReceiveBuffer = socketReceiveBuffer;
@@ -160,19 +204,62 @@ public class NetworkClient implements KafkaClient {
      */
     
     public boolean ready(Node node, long now) {
+        return ready(node, ApiKeys.PRODUCE, now);
+    }
+
+    /**
+     * Begin connecting to the given node, return true if we are already connected and ready to send a request of the
+     * given type to that node. Control requests have their own in-flight window, so they may be ready while the data
+     * window of the connection is full.
+     *
+     * @param node The node to check
+     * @param apiKey The type of request to send
+     * @param now The current timestamp
+     * @return True if we are ready to send a request of the given type to the given node
+     */
+    public boolean ready(Node node, ApiKeys apiKey, long now) {
+        return ready(node, node.idString(), apiKey.id, now);
+    }
+
+    /**
+     * Begin connecting to the given node over one of several connections, return true if that connection is
+     * established and ready to send a data request. Connection 0 is the connection used by all other requests.
+     *
+     * @param node The node to check
+     * @param connection The index of the connection to the node
+     * @param now The current timestamp
+     * @return True if we are ready to send to the given node over the given connection
+     */
+    public boolean ready(Node node, int connection, long now) {
+        return ready(node, connectionId(node, connection), ApiKeys.PRODUCE.id, now);
+    }
+
+    private boolean ready(Node node, String connectionId, short apiKey, long now) {
         if (node.isEmpty())
             throw new IllegalArgumentException("Cannot connect to empty node " + node);
 
-        if (isReady(node, now))
+        if (!metadataUpdater.isUpdateDue(now) && canSendRequest(connectionId, apiKey))
             return true;
 
-        if (connectionStates.canConnect(node.idString(), now))
+        if (connectionStates.canConnect(connectionId, now))
             // if we are interested in sending to a node and we don't have a connection to it, initiate one
-            initiateConnect(node, now);
+            initiateConnect(node, connectionId, now);
 
         return false;
     }
 
+    /**
+     * The id used to address the given connection to a node in requests and in the selector. The first connection
+     * uses the node id itself, so it is shared with all the requests which are not addressed to a specific connection.
+     *
+     * @param node The node
+     * @param connection The index of the connection to the node
+     * @return The connection id
+     */
+    public static String connectionId(Node node, int connection) {
+        return connection == 0 ? node.idString() : node.idString() + "#" + connection;
+    }
+
     /**
      * Closes the connection to a particular node (if there is one).
      *
@@ -200,6 +287,19 @@ public class NetworkClient implements KafkaClient {
         return connectionStates.connectionDelay(node.idString(), now);
     }
 
+    /**
+     * Returns the number of milliseconds to wait, based on the state of the given connection to a node, before
+     * attempting to send data over it.
+     *
+     * @param node The node to check
+     * @param connection The index of the connection to the node
+     * @param now The current timestamp
+     * @return The number of milliseconds to wait.
+     */
+    public long connectionDelay(Node node, int connection, long now) {
+        return connectionStates.connectionDelay(connectionId(node, connection), now);
+    }
+
     /**
      * Check if the connection of the node has failed, based on the connection state. Such connection failure are
      * usually transient and can be resumed in the next {@link #ready(org.apache.kafka.common.Node, long)} }
@@ -222,16 +322,18 @@ public class NetworkClient implements KafkaClient {
     public boolean isReady(Node node, long now) {
         // if we need to update our metadata now declare all requests unready to make metadata requests first
         // priority
-        return !metadataUpdater.isUpdateDue(now) && canSendRequest(node.idString());
+        return !metadataUpdater.isUpdateDue(now) && canSendRequest(node.idString(), ApiKeys.PRODUCE.id);
     }
 
     /**
-     * Are we connected and ready and able to send more requests to the given connection?
+     * Are we connected and ready and able to send more requests of the given type to the given connection?
      *
      * @param node The node
+     * @param apiKey The id of the request type
      */
-    private boolean canSendRequest(String node) {
-        return connectionStates.isReady(node) && selector.isChannelReady(node) && inFlightRequests.canSendMore(node);
+    private boolean canSendRequest(String node, short apiKey) {
+        return connectionStates.isReady(node) && selector.isChannelReady(node) &&
+                inFlightRequests.canSendMore(node, InFlightRequests.isControlRequest(apiKey));
     }
 
     /**
@@ -258,7 +360,7 @@ public class NetworkClient implements KafkaClient {
             // will be slightly different for some internal requests (for
             // example, ApiVersionsRequests can be sent prior to being in
             // READY state.)
-            if (!canSendRequest(nodeId))
+            if (!canSendRequest(nodeId, clientRequest.apiKey().id))
                 throw new IllegalStateException("Attempt to send a request to node " + nodeId + " which is not ready.");
         }
         AbstractRequest request = null;
@@ -578,7 +680,7 @@ public class NetworkClient implements KafkaClient {
         Iterator<String> iter = nodesNeedingApiVersionsFetch.iterator();
         while (iter.hasNext()) {
             String node = iter.next();
-            if (selector.isChannelReady(node) && inFlightRequests.canSendMore(node)) {
+            if (selector.isChannelReady(node) && inFlightRequests.canSendMore(node, true)) {
                 log.debug("Initiating API versions fetch from node {}.", node);
                 ApiVersionsRequest.Builder apiVersionRequest = new ApiVersionsRequest.Builder();
                 ClientRequest clientRequest = newClientRequest(node, apiVersionRequest, now, true);
@@ -601,7 +703,13 @@ public class NetworkClient implements KafkaClient {
      * Initiate a connection to the given node
      */
     private void initiateConnect(Node node, long now) {
-        String nodeConnectionId = node.idString();
+        initiateConnect(node, node.idString(), now);
+    }
+
+    /**
+     * Initiate the connection with the given id to the given node
+     */
+    private void initiateConnect(Node node, String nodeConnectionId, long now) {
         try {
             log.debug("Initiating connection to node {} at {}:{}.",
                     new Object[]{node.id(), node.host(), node.port()});
@@ -717,7 +825,7 @@ public class NetworkClient implements KafkaClient {
         private long maybeUpdate(long now, Node node) {
             String nodeConnectionId = node.idString();
 
-            if (canSendRequest(nodeConnectionId)) {
+            if (canSendRequest(nodeConnectionId, ApiKeys.METADATA.id)) {
                 this.metadataFetchInProgress = true;
                 MetadataRequest.Builder metadataRequest;
                 if (metadata.needMetadataForAllTopics())
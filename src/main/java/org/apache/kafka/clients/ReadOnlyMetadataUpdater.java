@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.apache.kafka.clients;
+
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.requests.MetadataResponse;
+import org.apache.kafka.common.requests.RequestHeader;
+
+import java.util.List;
+
+/**
+ * An implementation of `MetadataUpdater` for a client which shares its `Metadata` with another client that sends the
+ * metadata requests. This client never sends any: an update it requests is forwarded to the metadata, and the owning
+ * client is woken up so that it sends the request.
+ *
+ * This is used by the producer when its brokers are sharded over several network clients, so that one metadata
+ * refresh does not send a request from every client.
+ */
+final class ReadOnlyMetadataUpdater implements MetadataUpdater {
+
+    private final Metadata metadata;
+    private final KafkaClient owner;
+
+    /**
+     * @param metadata The metadata shared with the owning client
+     * @param owner The client which sends the metadata requests
+     */
+    ReadOnlyMetadataUpdater(Metadata metadata, KafkaClient owner) {
+        this.metadata = metadata;
+        this.owner = owner;
+    }
+
+    public List<Node> fetchNodes() {
+        return metadata.fetch().nodes();
+    }
+
+    public boolean isUpdateDue(long now) {
+        return false;
+    }
+
+    public long maybeUpdate(long now) {
+        return Long.MAX_VALUE;
+    }
+
+    public void handleDisconnection(String destination) {
+        // Do nothing
+    }
+
+    public void handleCompletedMetadataResponse(RequestHeader requestHeader, long now, MetadataResponse response) {
+        // Do nothing, metadata requests are only sent by the owner
+    }
+
+    public void requestUpdate() {
+        metadata.requestUpdate();
+        owner.wakeup();
+    }
+}
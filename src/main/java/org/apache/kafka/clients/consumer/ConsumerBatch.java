@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.LogEntry;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.TimestampType;
+
+/**
+ * A batch of records received from Kafka in the wire format, as returned by
+ * {@link KafkaConsumer#pollBatches(long)}. The records are a slice of the fetch response: a compressed batch is a
+ * single compressed wrapper which is not decompressed, an uncompressed batch is a run of consecutive records. A batch
+ * can be sent to another cluster as it is with
+ * {@link org.apache.kafka.clients.producer.KafkaProducer#sendBatch(TopicPartition, ConsumerBatch,
+ * org.apache.kafka.clients.producer.Callback)}.
+ * <p>
+ * The offsets and the record count of a batch are exact. Compressed wrappers only store the offset of their last
+ * record, so the base offset and the record count of a compressed batch are read from its records the first time they
+ * are asked for, which decompresses them once; a batch which is only forwarded is never decompressed.
+ */
+public final class ConsumerBatch {
+
+    private final String topic;
+    private final int partition;
+    private final long lastOffset;
+    // -1 until they are read from the records of a compressed batch
+    private volatile long baseOffset;
+    private volatile int recordCount;
+    private final long maxTimestamp;
+    private final TimestampType timestampType;
+    private final CompressionType compressionType;
+    private final MemoryRecords records;
+
+    /**
+     * Creates a batch received from a specified topic and partition
+     *
+     * @param topic The topic this batch is received from
+     * @param partition The partition of the topic this batch is received from
+     * @param baseOffset The offset of the first record of the batch
+     * @param lastOffset The offset of the last record of the batch
+     * @param recordCount The number of records of the batch
+     * @param maxTimestamp The largest timestamp of the records of the batch
+     * @param timestampType The timestamp type
+     * @param compressionType The compression type of the batch
+     * @param records The records of the batch
+     */
+    public ConsumerBatch(String topic,
+                         int partition,
+                         long baseOffset,
+                         long lastOffset,
+                         int recordCount,
+                         long maxTimestamp,
+                         TimestampType timestampType,
+                         CompressionType compressionType,
+                         MemoryRecords records) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic cannot be null");
+        this.topic = topic;
+        this.partition = partition;
+        this.baseOffset = baseOffset;
+        this.lastOffset = lastOffset;
+        this.recordCount = recordCount;
+        this.maxTimestamp = maxTimestamp;
+        this.timestampType = timestampType;
+        this.compressionType = compressionType;
+        this.records = records;
+    }
+
+    /**
+     * Creates a compressed batch whose base offset and record count are read from its records when they are first
+     * asked for
+     *
+     * @param topic The topic this batch is received from
+     * @param partition The partition of the topic this batch is received from
+     * @param lastOffset The offset of the last record of the batch
+     * @param maxTimestamp The largest timestamp of the records of the batch
+     * @param timestampType The timestamp type
+     * @param compressionType The compression type of the batch
+     * @param records The records of the batch, a single compressed wrapper
+     */
+    public ConsumerBatch(String topic,
+                         int partition,
+                         long lastOffset,
+                         long maxTimestamp,
+                         TimestampType timestampType,
+                         CompressionType compressionType,
+                         MemoryRecords records) {
+        this(topic, partition, -1L, lastOffset, -1, maxTimestamp, timestampType, compressionType, records);
+    }
+
+    /**
+     * The topic this batch is received from
+     */
+    public String topic() {
+        return this.topic;
+    }
+
+    /**
+     * The partition from which this batch is received
+     */
+    public int partition() {
+        return this.partition;
+    }
+
+    /**
+     * The offset of the first record of this batch
+     */
+    public long baseOffset() {
+        if (this.baseOffset < 0)
+            readOffsets();
+        return this.baseOffset;
+    }
+
+    /**
+     * The offset of the last record of this batch, the position of the consumer after this batch is this offset + 1
+     */
+    public long lastOffset() {
+        return this.lastOffset;
+    }
+
+    /**
+     * The number of records of this batch
+     */
+    public int recordCount() {
+        if (this.recordCount < 0)
+            readOffsets();
+        return this.recordCount;
+    }
+
+    private void readOffsets() {
+        long baseOffset = -1L;
+        int recordCount = 0;
+        for (LogEntry entry : this.records.deepEntries()) {
+            if (recordCount++ == 0)
+                baseOffset = entry.offset();
+        }
+        this.baseOffset = baseOffset;
+        this.recordCount = recordCount;
+    }
+
+    /**
+     * The largest timestamp of the records of this batch, or the log append time of a compressed batch whose
+     * timestamp type is {@link TimestampType#LOG_APPEND_TIME}
+     */
+    public long maxTimestamp() {
+        return this.maxTimestamp;
+    }
+
+    /**
+     * The timestamp type of the records of this batch
+     */
+    public TimestampType timestampType() {
+        return this.timestampType;
+    }
+
+    public CompressionType compressionType() {
+        return this.compressionType;
+    }
+
+    /**
+     * The records of this batch. They share their buffer with the fetch response and must not be modified.
+     */
+    public MemoryRecords records() {
+        return this.records;
+    }
+
+    public int sizeInBytes() {
+        return this.records.sizeInBytes();
+    }
+
+    /**
+     * Only prints what is known without reading the records, so that logging a batch never decompresses it
+     */
+    @Override
+    public String toString() {
+        return "ConsumerBatch(topic = " + topic + ", partition = " + partition + ", last offset = " + lastOffset
+               + ", " + timestampType + " = " + maxTimestamp + ", compression type = " + compressionType
+               + ", size = " + sizeInBytes() + ", decoded = " + (baseOffset >= 0) + ")";
+    }
+}
@@ -120,6 +120,34 @@ public class ConsumerConfig extends AbstractConfig {
             "<code>max.message.bytes</code> (topic config). Note that the consumer performs multiple fetches in parallel.";
     public static final int DEFAULT_FETCH_MAX_BYTES = 50 * 1024 * 1024;
 
+    /**
+     * <code>fetch.pipeline.depth</code>
+     */
+    public static final String FETCH_PIPELINE_DEPTH_CONFIG = "fetch.pipeline.depth";
+    private static final String FETCH_PIPELINE_DEPTH_DOC = "The maximum number of fetch requests the consumer will have in flight " +
+            "to a single broker. With the default of 1 a partition is only fetched again once its previous data has been " +
+            "returned by poll(). Larger values let the consumer prefetch the next offsets of a partition while its previous " +
+            "response is still being drained, which hides the round trip time on high latency links. Prefetching is bounded " +
+            "by <code>fetch.buffer.max.bytes</code>.";
+
+    /**
+     * <code>fetch.buffer.max.bytes</code>
+     */
+    public static final String FETCH_BUFFER_MAX_BYTES_CONFIG = "fetch.buffer.max.bytes";
+    private static final String FETCH_BUFFER_MAX_BYTES_DOC = "The amount of fetched data the consumer may buffer before it stops " +
+            "prefetching. This only has an effect when <code>fetch.pipeline.depth</code> is greater than 1. Note that this " +
+            "is not an absolute maximum since responses to fetches already in flight are always buffered.";
+    public static final long DEFAULT_FETCH_BUFFER_MAX_BYTES = 2L * DEFAULT_FETCH_MAX_BYTES;
+
+    /**
+     * <code>fetch.buffer.partition.max.bytes</code>
+     */
+    public static final String FETCH_BUFFER_PARTITION_MAX_BYTES_CONFIG = "fetch.buffer.partition.max.bytes";
+    private static final String FETCH_BUFFER_PARTITION_MAX_BYTES_DOC = "The amount of fetched data the consumer keeps for a " +
+            "paused partition. While a partition is paused, its fetched data is kept and the partition is still fetched " +
+            "until this much data is buffered, so that its records can be returned as soon as it is resumed. With the " +
+            "default of 0 the fetched data of paused partitions is discarded and fetched again after they are resumed.";
+
     /**
      * <code>fetch.max.wait.ms</code>
      */
@@ -198,6 +226,16 @@ public class ConsumerConfig extends AbstractConfig {
     /** <code>connections.max.idle.ms</code> */
     public static final String CONNECTIONS_MAX_IDLE_MS_CONFIG = CommonClientConfigs.CONNECTIONS_MAX_IDLE_MS_CONFIG;
 
+    /** <code>max.in.flight.control.requests.per.connection</code> */
+    public static final String MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_CONFIG = CommonClientConfigs.MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_CONFIG;
+    private static final String MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_DOC = CommonClientConfigs.MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_DOC
+                                                                                   + " The consumer allows up to 100 fetch requests in flight per connection in addition to these, "
+                                                                                   + "so with the default a connection may have up to 200 requests in flight in total, where it "
+                                                                                   + "allowed 100 requests of any kind before control requests were counted separately.";
+
+    /** <code>max.in.flight.bytes.per.connection</code> */
+    public static final String MAX_IN_FLIGHT_BYTES_PER_CONNECTION_CONFIG = CommonClientConfigs.MAX_IN_FLIGHT_BYTES_PER_CONNECTION_CONFIG;
+
     /** <code>request.timeout.ms</code> */
     public static final String REQUEST_TIMEOUT_MS_CONFIG = CommonClientConfigs.REQUEST_TIMEOUT_MS_CONFIG;
     private static final String REQUEST_TIMEOUT_MS_DOC = CommonClientConfigs.REQUEST_TIMEOUT_MS_DOC;
@@ -214,6 +252,26 @@ public class ConsumerConfig extends AbstractConfig {
     private static final String EXCLUDE_INTERNAL_TOPICS_DOC = "Whether records from internal topics (such as offsets) should be exposed to the consumer. "
                                                             + "If set to <code>true</code> the only way to receive records from an internal topic is subscribing to it.";
     public static final boolean DEFAULT_EXCLUDE_INTERNAL_TOPICS = true;
+
+    /** <code>rebalance.protocol</code> */
+    public static final String REBALANCE_PROTOCOL_CONFIG = "rebalance.protocol";
+    private static final String REBALANCE_PROTOCOL_DOC = "How the consumer gives up its partitions when the group rebalances: <ul><li>eager: revoke all the "
+                                                       + "assigned partitions before every rebalance</li><li>cooperative: keep consuming during the rebalance and only revoke the "
+                                                       + "partitions which the new assignment moves to another consumer; they are handed to their new owner by a follow-up "
+                                                       + "rebalance.</li></ul> All the members of a group should use the same setting.";
+    public static final String DEFAULT_REBALANCE_PROTOCOL = "eager";
+
+    /** <code>commit.async.coalesce</code> */
+    public static final String COMMIT_ASYNC_COALESCE_CONFIG = "commit.async.coalesce";
+    private static final String COMMIT_ASYNC_COALESCE_DOC = "Whether asynchronous offset commits (including auto-commits) are coalesced. If enabled the consumer keeps at "
+                                                          + "most one asynchronous commit in flight and merges the offsets of the commits made meanwhile into the next request, "
+                                                          + "keeping the latest offset of every partition. The callback of every commit is still invoked.";
+
+    /** <code>heartbeat.thread.shared</code> */
+    public static final String HEARTBEAT_THREAD_SHARED_CONFIG = "heartbeat.thread.shared";
+    private static final String HEARTBEAT_THREAD_SHARED_DOC = "Whether the heartbeats of this consumer are sent by a single scheduler thread shared by all the "
+                                                            + "consumers in the JVM which enable it, rather than by a heartbeat thread of its own. This saves a thread per "
+                                                            + "consumer when many consumers run in one process; the session and poll timeouts are unchanged.";
     
     static {
         CONFIG = new ConfigDef().define(BOOTSTRAP_SERVERS_CONFIG,
@@ -294,6 +352,24 @@ public class ConsumerConfig extends AbstractConfig {
                                         atLeast(0),
                                         Importance.LOW,
                                         FETCH_MAX_WAIT_MS_DOC)
+                                .define(FETCH_PIPELINE_DEPTH_CONFIG,
+                                        Type.INT,
+                                        1,
+                                        atLeast(1),
+                                        Importance.LOW,
+                                        FETCH_PIPELINE_DEPTH_DOC)
+                                .define(FETCH_BUFFER_MAX_BYTES_CONFIG,
+                                        Type.LONG,
+                                        DEFAULT_FETCH_BUFFER_MAX_BYTES,
+                                        atLeast(0L),
+                                        Importance.LOW,
+                                        FETCH_BUFFER_MAX_BYTES_DOC)
+                                .define(FETCH_BUFFER_PARTITION_MAX_BYTES_CONFIG,
+                                        Type.INT,
+                                        0,
+                                        atLeast(0),
+                                        Importance.LOW,
+                                        FETCH_BUFFER_PARTITION_MAX_BYTES_DOC)
                                 .define(RECONNECT_BACKOFF_MS_CONFIG,
                                         Type.LONG,
                                         50L,
@@ -360,6 +436,18 @@ public class ConsumerConfig extends AbstractConfig {
                                         9 * 60 * 1000,
                                         Importance.MEDIUM,
                                         CommonClientConfigs.CONNECTIONS_MAX_IDLE_MS_DOC)
+                                .define(MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_CONFIG,
+                                        Type.INT,
+                                        100,
+                                        atLeast(1),
+                                        Importance.LOW,
+                                        MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_DOC)
+                                .define(MAX_IN_FLIGHT_BYTES_PER_CONNECTION_CONFIG,
+                                        Type.LONG,
+                                        -1L,
+                                        atLeast(-1L),
+                                        Importance.LOW,
+                                        CommonClientConfigs.MAX_IN_FLIGHT_BYTES_PER_CONNECTION_DOC)
                                 .define(INTERCEPTOR_CLASSES_CONFIG,
                                         Type.LIST,
                                         null,
@@ -382,6 +470,22 @@ public class ConsumerConfig extends AbstractConfig {
                                         DEFAULT_EXCLUDE_INTERNAL_TOPICS,
                                         Importance.MEDIUM,
                                         EXCLUDE_INTERNAL_TOPICS_DOC)
+                                .define(REBALANCE_PROTOCOL_CONFIG,
+                                        Type.STRING,
+                                        DEFAULT_REBALANCE_PROTOCOL,
+                                        in("eager", "cooperative"),
+                                        Importance.LOW,
+                                        REBALANCE_PROTOCOL_DOC)
+                                .define(COMMIT_ASYNC_COALESCE_CONFIG,
+                                        Type.BOOLEAN,
+                                        false,
+                                        Importance.LOW,
+                                        COMMIT_ASYNC_COALESCE_DOC)
+                                .define(HEARTBEAT_THREAD_SHARED_CONFIG,
+                                        Type.BOOLEAN,
+                                        false,
+                                        Importance.LOW,
+                                        HEARTBEAT_THREAD_SHARED_DOC)
 
                                 // security support
                                 .define(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG,
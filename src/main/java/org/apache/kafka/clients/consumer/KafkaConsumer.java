@@ -639,6 +639,8 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
                     this.metadata,
                     clientId,
                     100, // a fixed large enough value will suffice
+                    config.getInt(ConsumerConfig.MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_CONFIG),
+                    config.getLong(ConsumerConfig.MAX_IN_FLIGHT_BYTES_PER_CONNECTION_CONFIG),
                     config.getLong(ConsumerConfig.RECONNECT_BACKOFF_MS_CONFIG),
                     config.getInt(ConsumerConfig.SEND_BUFFER_CONFIG),
                     config.getInt(ConsumerConfig.RECEIVE_BUFFER_CONFIG),
@@ -648,7 +650,7 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
             this.client = new ConsumerNetworkClient(netClient, metadata, time, retryBackoffMs,
                     config.getInt(ConsumerConfig.REQUEST_TIMEOUT_MS_CONFIG));
             OffsetResetStrategy offsetResetStrategy = OffsetResetStrategy.valueOf(config.getString(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG).toUpperCase());
-            this.subscriptions = new SubscriptionState(offsetResetStrategy);
+            this.subscriptions = new SubscriptionState(offsetResetStrategy, time);
             List<PartitionAssignor> assignors = config.getConfiguredInstances(
                     ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG,
                     PartitionAssignor.class);
@@ -667,12 +669,18 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
                     config.getBoolean(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG),
                     config.getInt(ConsumerConfig.AUTO_COMMIT_INTERVAL_MS_CONFIG),
                     this.interceptors,
-                    config.getBoolean(ConsumerConfig.EXCLUDE_INTERNAL_TOPICS_CONFIG));
+                    config.getBoolean(ConsumerConfig.EXCLUDE_INTERNAL_TOPICS_CONFIG),
+                    config.getString(ConsumerConfig.REBALANCE_PROTOCOL_CONFIG).equals("cooperative"),
+                    config.getBoolean(ConsumerConfig.HEARTBEAT_THREAD_SHARED_CONFIG),
+                    config.getBoolean(ConsumerConfig.COMMIT_ASYNC_COALESCE_CONFIG));
             this.fetcher = new Fetcher(this.client,
                     config.getInt(ConsumerConfig.FETCH_MIN_BYTES_CONFIG),
                     config.getInt(ConsumerConfig.FETCH_MAX_BYTES_CONFIG),
                     config.getInt(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG),
                     config.getInt(ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG),
+                    config.getInt(ConsumerConfig.FETCH_PIPELINE_DEPTH_CONFIG),
+                    config.getLong(ConsumerConfig.FETCH_BUFFER_MAX_BYTES_CONFIG),
+                    config.getInt(ConsumerConfig.FETCH_BUFFER_PARTITION_MAX_BYTES_CONFIG),
                     config.getInt(ConsumerConfig.MAX_POLL_RECORDS_CONFIG),
                     config.getBoolean(ConsumerConfig.CHECK_CRCS_CONFIG),
                     this.keyDeserializer,
@@ -994,6 +1002,70 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
         }
     }
 
+    /**
+     * Fetch data as {@link #poll(long)} does, but return the records as batches in the wire format instead of
+     * deserialized records. Compressed batches are not decompressed and no object is created per record, so that an
+     * application which copies the records to another cluster, for instance with
+     * {@link org.apache.kafka.clients.producer.KafkaProducer#sendBatch(TopicPartition, ConsumerBatch,
+     * org.apache.kafka.clients.producer.Callback)}, does not decompress and compress them again.
+     * <p>
+     * A compressed batch is returned as a whole and the position moves after its last record. The first compressed
+     * batch of a fetch is decompressed to find its first offset and, when the position is in the middle of it, it is
+     * compressed again without the records before the position. <code>max.poll.records</code> limits the number of
+     * records returned, but at least one batch is returned. Interceptors are not invoked. The records fetched by
+     * {@link #poll(long)} and not returned yet are fetched again from the position when this method is called, and
+     * the other way round, so a consumer should use only one of the two methods.
+     *
+     * @param timeout The time, in milliseconds, spent waiting in poll if data is not available in the buffer.
+     *            If 0, returns immediately with any batches that are available currently in the buffer, else returns
+     *            empty. Must not be negative.
+     * @return the fetched batches per partition
+     *
+     * @throws org.apache.kafka.clients.consumer.InvalidOffsetException if the offset for a partition or set of
+     *             partitions is undefined or out of range and no offset reset policy has been configured
+     * @throws org.apache.kafka.common.errors.WakeupException if {@link #wakeup()} is called before or while this
+     *             function is called
+     * @throws org.apache.kafka.common.errors.InterruptException if the calling thread is interrupted before or while
+     *             this function is called
+     * @throws org.apache.kafka.common.errors.AuthorizationException if caller lacks Read access to any of the subscribed
+     *             topics or to the configured groupId
+     * @throws org.apache.kafka.common.KafkaException for any other unrecoverable errors (e.g. invalid groupId or
+     *             session timeout, or corrupt records when <code>check.crcs</code> is enabled)
+     * @throws IllegalArgumentException if the timeout value is negative
+     * @throws IllegalStateException if the consumer is not subscribed to any topics or manually assigned any
+     *             partitions to consume from
+     */
+    public Map<TopicPartition, List<ConsumerBatch>> pollBatches(long timeout) {
+        acquire();
+        try {
+            if (timeout < 0)
+                throw new IllegalArgumentException("Timeout must not be negative");
+
+            if (this.subscriptions.hasNoSubscriptionOrUserAssignment())
+                throw new IllegalStateException("Consumer is not subscribed to any topics or assigned any partitions");
+
+            long start = time.milliseconds();
+            long remaining = timeout;
+            do {
+                Map<TopicPartition, List<ConsumerBatch>> batches = pollBatchesOnce(remaining);
+                if (!batches.isEmpty()) {
+                    // send the next round of fetches before returning, as poll() does
+                    if (fetcher.sendFetches() > 0) {
+                        client.pollNoWakeup();
+                    }
+                    return batches;
+                }
+
+                long elapsed = time.milliseconds() - start;
+                remaining = timeout - elapsed;
+            } while (remaining > 0);
+
+            return Collections.emptyMap();
+        } finally {
+            release();
+        }
+    }
+
     /**
      * Do one round of polling. In addition to checking for new data, this does any needed offset commits
      * (if auto-commit is enabled), and offset resets (if an offset reset policy is defined).
@@ -1001,18 +1073,52 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
      * @return The fetched records (may be empty)
      */
     private Map<TopicPartition, List<ConsumerRecord<K, V>>> pollOnce(long timeout) {
+        preparePoll();
+
+        // if data is available already, return it immediately
+        Map<TopicPartition, List<ConsumerRecord<K, V>>> records = fetcher.fetchedRecords();
+        if (!records.isEmpty())
+            return records;
+
+        if (!awaitFetches(timeout))
+            return Collections.emptyMap();
+
+        return fetcher.fetchedRecords();
+    }
+
+    /**
+     * Do one round of polling for {@link #pollBatches(long)}, as {@link #pollOnce(long)} does.
+     * @param timeout The maximum time to block in the underlying call to {@link ConsumerNetworkClient#poll(long)}.
+     * @return The fetched batches (may be empty)
+     */
+    private Map<TopicPartition, List<ConsumerBatch>> pollBatchesOnce(long timeout) {
+        preparePoll();
+
+        Map<TopicPartition, List<ConsumerBatch>> batches = fetcher.fetchedBatches();
+        if (!batches.isEmpty())
+            return batches;
+
+        if (!awaitFetches(timeout))
+            return Collections.emptyMap();
+
+        return fetcher.fetchedBatches();
+    }
+
+    private void preparePoll() {
         coordinator.poll(time.milliseconds());
 
         // fetch positions if we have partitions we're subscribed to that we
         // don't know the offset for
         if (!subscriptions.hasAllFetchPositions())
             updateFetchPositions(this.subscriptions.missingFetchPositions());
+    }
 
-        // if data is available already, return it immediately
-        Map<TopicPartition, List<ConsumerRecord<K, V>>> records = fetcher.fetchedRecords();
-        if (!records.isEmpty())
-            return records;
-
+    /**
+     * Send the new fetches and wait for fetched data until the timeout expires.
+     * @return false if the group needs to rebalance, in which case no data should be returned, unless a cooperative
+     *         rebalance is already in progress
+     */
+    private boolean awaitFetches(long timeout) {
         // send any new fetches (won't resend pending fetches)
         fetcher.sendFetches();
 
@@ -1028,11 +1134,9 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
         });
 
         // after the long poll, we should check whether the group needs to rebalance
-        // prior to returning data so that the group can stabilize faster
-        if (coordinator.needRejoin())
-            return Collections.emptyMap();
-
-        return fetcher.fetchedRecords();
+        // prior to returning data so that the group can stabilize faster. The partitions
+        // retained through a cooperative rebalance may still be returned while it is in progress
+        return !coordinator.needRejoin() || coordinator.joinInProgress();
     }
 
     /**
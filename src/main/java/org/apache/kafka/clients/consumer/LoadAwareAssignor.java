@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.consumer;
+
+import org.apache.kafka.clients.consumer.internals.AbstractPartitionAssignor;
+import org.apache.kafka.clients.consumer.internals.LoadAwarePartitionAssignor;
+import org.apache.kafka.clients.consumer.internals.MemberLoads;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.protocol.types.ArrayOf;
+import org.apache.kafka.common.protocol.types.Field;
+import org.apache.kafka.common.protocol.types.Schema;
+import org.apache.kafka.common.protocol.types.SchemaException;
+import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.protocol.types.Type;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The load aware assignor balances the load of the partitions over the consumers instead of their number, so that a
+ * consumer does not end up with all the busy partitions of a topic. The load of a partition is a rate in records per
+ * second: the rate at which its owner consumed records from it since it was assigned, plus the rate needed to catch
+ * up on its current lag within a minute. Every consumer reports it for the partitions it owns in the user data of its
+ * subscription. Partitions without a reported load (for example new
+ * partitions or those of a new topic) are given the average load of the known partitions of their topic, or of all
+ * known partitions if none of their topic are known.
+ *
+ * The partitions are then assigned in order of decreasing load, each one to the subscriber of its topic which has the
+ * least load so far, ties going to the first consumer in the order of the member ids. Every partition counts at
+ * least 1, so partitions without any traffic are still spread by number.
+ *
+ * For example, suppose there are two consumers C0 and C1 subscribed to topic t0 with 4 partitions, and the reported
+ * loads are t0p0: 1000, t0p1: 900, t0p2: 10, t0p3: 20. The assignment will be:
+ * C0: [t0p0]
+ * C1: [t0p1, t0p3, t0p2]
+ * with a load of 1000 for C0 and 930 for C1, whereas the range assignor would give C0 both t0p0 and t0p1, a load of
+ * 1900 against 30 for C1.
+ */
+public class LoadAwareAssignor extends AbstractPartitionAssignor implements LoadAwarePartitionAssignor {
+    private static final Logger log = LoggerFactory.getLogger(LoadAwareAssignor.class);
+
+    private static final String VERSION_KEY_NAME = "version";
+    private static final String TOPIC_LOADS_KEY_NAME = "topic_loads";
+    private static final String TOPIC_KEY_NAME = "topic";
+    private static final String PARTITION_LOADS_KEY_NAME = "partition_loads";
+    private static final String PARTITION_KEY_NAME = "partition";
+    private static final String LOAD_KEY_NAME = "load";
+
+    private static final short LOADS_V0 = 0;
+    private static final Schema PARTITION_LOAD_V0 = new Schema(
+            new Field(PARTITION_KEY_NAME, Type.INT32),
+            new Field(LOAD_KEY_NAME, Type.INT64));
+    private static final Schema TOPIC_LOAD_V0 = new Schema(
+            new Field(TOPIC_KEY_NAME, Type.STRING),
+            new Field(PARTITION_LOADS_KEY_NAME, new ArrayOf(PARTITION_LOAD_V0)));
+    private static final Schema USER_DATA_V0 = new Schema(
+            new Field(VERSION_KEY_NAME, Type.INT16),
+            new Field(TOPIC_LOADS_KEY_NAME, new ArrayOf(TOPIC_LOAD_V0)));
+
+    private Map<TopicPartition, Long> partitionLoads = Collections.emptyMap();
+
+    public void onPartitionLoads(Map<TopicPartition, Long> loads) {
+        this.partitionLoads = loads;
+    }
+
+    @Override
+    public Subscription subscription(Set<String> topics) {
+        return new Subscription(new ArrayList(topics), serializeLoads(partitionLoads));
+    }
+
+    @Override
+    public Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic,
+                                                    Map<String, List<String>> subscriptions) {
+        return assign(partitionsPerTopic, subscriptions, Collections.<String, Subscription>emptyMap());
+    }
+
+    @Override
+    protected Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic,
+                                                       Map<String, List<String>> topicSubscriptions,
+                                                       Map<String, Subscription> subscriptions) {
+        Map<TopicPartition, Long> reportedLoads = new HashMap();
+        for (Map.Entry<String, Subscription> subscriptionEntry : subscriptions.entrySet()) {
+            ByteBuffer userData = subscriptionEntry.getValue().userData();
+            if (userData == null || !userData.hasRemaining())
+                continue;
+            try {
+                // a partition reported twice (its owner changed during the generation) keeps the higher load
+                for (Map.Entry<TopicPartition, Long> loadEntry : deserializeLoads(userData.duplicate()).entrySet()) {
+                    Long load = reportedLoads.get(loadEntry.getKey());
+                    if (load == null || load < loadEntry.getValue())
+                        reportedLoads.put(loadEntry.getKey(), loadEntry.getValue());
+                }
+            } catch (SchemaException e) {
+                log.warn("Ignoring the partition loads of member {} since its user data could not be parsed",
+                         subscriptionEntry.getKey(), e);
+            }
+        }
+
+        List<String> members = Utils.sorted(topicSubscriptions.keySet());
+        List<Set<String>> memberTopics = new ArrayList(members.size());
+        Set<String> topics = new HashSet();
+        for (String member : members) {
+            Set<String> subscribed = new HashSet();
+            for (String topic : topicSubscriptions.get(member)) {
+                if (partitionsPerTopic.containsKey(topic))
+                    subscribed.add(topic);
+            }
+            memberTopics.add(subscribed);
+            topics.addAll(subscribed);
+        }
+
+        final Map<TopicPartition, Long> loads = partitionLoads(partitionsPerTopic, topics, reportedLoads);
+        List<TopicPartition> partitions = new ArrayList(loads.keySet());
+        Collections.sort(partitions, new Comparator<TopicPartition>() {
+            public int compare(TopicPartition a, TopicPartition b) {
+                long loadA = loads.get(a);
+                long loadB = loads.get(b);
+                if (loadA != loadB)
+                    return loadA > loadB ? -1 : 1;
+                int diff = a.topic().compareTo(b.topic());
+                return diff != 0 ? diff : a.partition() - b.partition();
+            }
+        });
+
+        MemberLoads memberLoads = new MemberLoads(memberTopics);
+        List<List<TopicPartition>> assignment = new ArrayList(members.size());
+        for (int i = 0; i < members.size(); i++)
+            assignment.add(new ArrayList<TopicPartition>());
+        for (TopicPartition tp : partitions) {
+            int target = memberLoads.leastLoaded(tp.topic());
+            memberLoads.add(target, loads.get(tp));
+            assignment.get(target).add(tp);
+        }
+
+        Map<String, List<TopicPartition>> result = new HashMap();
+        for (int i = 0; i < members.size(); i++)
+            result.put(members.get(i), assignment.get(i));
+        return result;
+    }
+
+    /**
+     * The load of every partition of the given topics, with the unknown ones estimated from the reported loads
+     */
+    private static Map<TopicPartition, Long> partitionLoads(Map<String, Integer> partitionsPerTopic,
+                                                            Set<String> topics,
+                                                            Map<TopicPartition, Long> reportedLoads) {
+        long totalLoad = 0;
+        int totalReported = 0;
+        Map<String, long[]> topicTotals = new HashMap();
+        for (Map.Entry<TopicPartition, Long> entry : reportedLoads.entrySet()) {
+            TopicPartition tp = entry.getKey();
+            if (!topics.contains(tp.topic()) || tp.partition() >= partitionsPerTopic.get(tp.topic()))
+                continue;
+            long[] topicTotal = topicTotals.get(tp.topic());
+            if (topicTotal == null) {
+                topicTotal = new long[2];
+                topicTotals.put(tp.topic(), topicTotal);
+            }
+            topicTotal[0] += entry.getValue();
+            topicTotal[1]++;
+            totalLoad += entry.getValue();
+            totalReported++;
+        }
+        long defaultLoad = totalReported == 0 ? 1 : totalLoad / totalReported;
+
+        Map<TopicPartition, Long> loads = new HashMap();
+        for (String topic : topics) {
+            long[] topicTotal = topicTotals.get(topic);
+            long topicDefaultLoad = topicTotal == null ? defaultLoad : topicTotal[0] / topicTotal[1];
+            for (TopicPartition tp : partitions(topic, partitionsPerTopic.get(topic))) {
+                Long load = reportedLoads.get(tp);
+                loads.put(tp, Math.max(1, load == null ? topicDefaultLoad : load));
+            }
+        }
+        return loads;
+    }
+
+    private static ByteBuffer serializeLoads(Map<TopicPartition, Long> loads) {
+        Map<String, List<Struct>> partitionLoadsPerTopic = new HashMap();
+        for (Map.Entry<TopicPartition, Long> entry : loads.entrySet()) {
+            Struct partitionLoad = new Struct(PARTITION_LOAD_V0);
+            partitionLoad.set(PARTITION_KEY_NAME, entry.getKey().partition());
+            partitionLoad.set(LOAD_KEY_NAME, entry.getValue());
+            put(partitionLoadsPerTopic, entry.getKey().topic(), partitionLoad);
+        }
+        List<Struct> topicLoads = new ArrayList();
+        for (Map.Entry<String, List<Struct>> entry : partitionLoadsPerTopic.entrySet()) {
+            Struct topicLoad = new Struct(TOPIC_LOAD_V0);
+            topicLoad.set(TOPIC_KEY_NAME, entry.getKey());
+            topicLoad.set(PARTITION_LOADS_KEY_NAME, entry.getValue().toArray());
+            topicLoads.add(topicLoad);
+        }
+        Struct struct = new Struct(USER_DATA_V0);
+        struct.set(VERSION_KEY_NAME, LOADS_V0);
+        struct.set(TOPIC_LOADS_KEY_NAME, topicLoads.toArray());
+        ByteBuffer buffer = ByteBuffer.allocate(USER_DATA_V0.sizeOf(struct));
+        USER_DATA_V0.write(buffer, struct);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static Map<TopicPartition, Long> deserializeLoads(ByteBuffer buffer) {
+        // newer versions may only add fields at the end, so they are parsed as version 0
+        Struct struct = USER_DATA_V0.read(buffer);
+        Map<TopicPartition, Long> loads = new HashMap();
+        for (Object topicObj : struct.getArray(TOPIC_LOADS_KEY_NAME)) {
+            Struct topicLoad = (Struct) topicObj;
+            String topic = topicLoad.getString(TOPIC_KEY_NAME);
+            for (Object partitionObj : topicLoad.getArray(PARTITION_LOADS_KEY_NAME)) {
+                Struct partitionLoad = (Struct) partitionObj;
+                loads.put(new TopicPartition(topic, partitionLoad.getInt(PARTITION_KEY_NAME)),
+                          partitionLoad.getLong(LOAD_KEY_NAME));
+            }
+        }
+        return loads;
+    }
+
+    @Override
+    public String name() {
+        return "loadaware";
+    }
+
+}
@@ -34,6 +34,7 @@ public class MockConsumer<K, V> implements Consumer<K, V> {
     private final Map<String, List<PartitionInfo>> partitions;
     private final SubscriptionState subscriptions;
     private Map<TopicPartition, List<ConsumerRecord<K, V>>> records;
+    private Map<TopicPartition, List<ConsumerBatch>> batches;
     private Set<TopicPartition> paused;
     private boolean closed;
     private final Map<TopicPartition, Long> beginningOffsets;
@@ -48,6 +49,7 @@ public class MockConsumer<K, V> implements Consumer<K, V> {
         this.subscriptions = new SubscriptionState(offsetResetStrategy);
         this.partitions = new HashMap();
         this.records = new HashMap();
+        this.batches = new HashMap();
         this.paused = new HashSet();
         this.closed = false;
         this.beginningOffsets = new HashMap();
@@ -65,6 +67,7 @@ public class MockConsumer<K, V> implements Consumer<K, V> {
     public void rebalance(Collection<TopicPartition> newAssignment) {
         // TODO: Rebalance callbacks
         this.records.clear();
+        this.batches.clear();
         this.subscriptions.assignFromSubscribed(newAssignment);
     }
 
@@ -105,6 +108,46 @@ public class MockConsumer<K, V> implements Consumer<K, V> {
     }
 
     public ConsumerRecords<K, V> poll(long timeout) {
+        preparePoll();
+
+        // update the consumed offset
+        for (Map.Entry<TopicPartition, List<ConsumerRecord<K, V>>> entry : this.records.entrySet()) {
+            if (!subscriptions.isPaused(entry.getKey())) {
+                List<ConsumerRecord<K, V>> recs = entry.getValue();
+                if (!recs.isEmpty())
+                    this.subscriptions.position(entry.getKey(), recs.get(recs.size() - 1).offset() + 1);
+            }
+        }
+
+        ConsumerRecords<K, V> copy = new ConsumerRecords<K, V>(this.records);
+        this.records = new HashMap<TopicPartition, List<ConsumerRecord<K, V>>>();
+        return copy;
+    }
+
+    /**
+     * Return the batches added with {@link #addBatch(ConsumerBatch)} since the last call, like {@link #poll(long)}
+     * returns the records added with {@link #addRecord(ConsumerRecord)}.
+     */
+    public Map<TopicPartition, List<ConsumerBatch>> pollBatches(long timeout) {
+        preparePoll();
+
+        // update the consumed offset
+        Map<TopicPartition, List<ConsumerBatch>> polled = new HashMap();
+        for (Map.Entry<TopicPartition, List<ConsumerBatch>> entry : this.batches.entrySet()) {
+            if (!subscriptions.isPaused(entry.getKey())) {
+                List<ConsumerBatch> partitionBatches = entry.getValue();
+                if (!partitionBatches.isEmpty()) {
+                    this.subscriptions.position(entry.getKey(), partitionBatches.get(partitionBatches.size() - 1).lastOffset() + 1);
+                    polled.put(entry.getKey(), partitionBatches);
+                }
+            }
+        }
+
+        this.batches.keySet().removeAll(polled.keySet());
+        return polled;
+    }
+
+    private void preparePoll() {
         ensureNotClosed();
 
         // Synchronize around the entire execution so new tasks to be triggered on subsequent poll calls can be added in
@@ -129,19 +172,21 @@ public class MockConsumer<K, V> implements Consumer<K, V> {
         // Handle seeks that need to wait for a poll() call to be processed
         for (TopicPartition tp : subscriptions.missingFetchPositions())
             updateFetchPosition(tp);
+    }
 
-        // update the consumed offset
-        for (Map.Entry<TopicPartition, List<ConsumerRecord<K, V>>> entry : this.records.entrySet()) {
-            if (!subscriptions.isPaused(entry.getKey())) {
-                List<ConsumerRecord<K, V>> recs = entry.getValue();
-                if (!recs.isEmpty())
-                    this.subscriptions.position(entry.getKey(), recs.get(recs.size() - 1).offset() + 1);
-            }
+    public void addBatch(ConsumerBatch batch) {
+        ensureNotClosed();
+        TopicPartition tp = new TopicPartition(batch.topic(), batch.partition());
+        if (!this.subscriptions.assignedPartitions().contains(tp))
+            throw new IllegalStateException("Cannot add batches for a partition that is not assigned to the consumer");
+        if (this.subscriptions.isPaused(tp))
+            throw new IllegalStateException("Cannot add batches for a partition that is paused");
+        List<ConsumerBatch> partitionBatches = this.batches.get(tp);
+        if (partitionBatches == null) {
+            partitionBatches = new ArrayList();
+            this.batches.put(tp, partitionBatches);
         }
-
-        ConsumerRecords<K, V> copy = new ConsumerRecords<K, V>(this.records);
-        this.records = new HashMap<TopicPartition, List<ConsumerRecord<K, V>>>();
-        return copy;
+        partitionBatches.add(batch);
     }
 
     public void addRecord(ConsumerRecord<K, V> record) {
@@ -0,0 +1,385 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer;
+
+import org.apache.kafka.clients.consumer.internals.NoOpConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.internals.OffsetTracker;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.ArrayDeque;
+import org.apache.kafka.common.utils.KafkaThread;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Processes the records of a {@link Consumer} on a pool of worker threads while the consumer itself is only used by
+ * the thread calling {@link #poll(long)}.
+ * <p>
+ * Records are handed to the workers by partition or by key (see {@link Ordering}), so the records of a partition or of
+ * a key are still processed one at a time and in order, while different partitions or keys are processed in parallel.
+ * As records complete out of order, the offset of every partition is only committed up to its first record which is
+ * not done yet, so no record is skipped after a failure or a rebalance: records are processed at least once.
+ * <p>
+ * Every worker has a bounded queue. When the queue of a record's worker is full, the record waits in the polling
+ * thread and its partition is paused until the queue has room again, so slow processing holds back fetching instead of
+ * growing the memory used without limit. The consumer keeps calling poll meanwhile, so it stays in the group.
+ * <p>
+ * A typical usage:
+ * <pre>
+ *     ParallelConsumer&lt;String, String&gt; parallel = new ParallelConsumer&lt;String, String&gt;(consumer, processor,
+ *             8, 1000, ParallelConsumer.Ordering.KEY);
+ *     parallel.subscribe(Arrays.asList("foo", "bar"));
+ *     while (running)
+ *         parallel.poll(100);
+ *     parallel.close();
+ * </pre>
+ * Offsets are committed by this class, so the consumer should disable <code>enable.auto.commit</code>. This class is
+ * not thread safe, {@link #poll(long)} and {@link #close()} must be called by the same thread. The consumer is not
+ * closed by {@link #close()}.
+ */
+public class ParallelConsumer<K, V> implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelConsumer.class);
+
+    /**
+     * How records are spread over the workers.
+     */
+    public enum Ordering {
+        /** All the records of a partition are processed in order by the same worker */
+        PARTITION,
+        /** All the records of a partition with the same key are processed in order by the same worker */
+        KEY
+    }
+
+    /**
+     * The processing applied to every record, invoked on the worker threads.
+     */
+    public interface RecordProcessor<K, V> {
+        /**
+         * Process a record. A record whose processing throws is never committed and makes the next call to
+         * {@link ParallelConsumer#poll(long)} fail.
+         */
+        void process(ConsumerRecord<K, V> record) throws Exception;
+    }
+
+    private final Consumer<K, V> consumer;
+    private final RecordProcessor<K, V> processor;
+    private final Ordering ordering;
+    private final List<Worker> workers;
+    private final Map<TopicPartition, PartitionProgress> progress = new HashMap();
+    private final Map<TopicPartition, Long> committed = new HashMap();
+    private final Map<TopicPartition, ArrayDeque<Task<K, V>>> waiting = new HashMap();
+    private final Set<TopicPartition> paused = new HashSet();
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    private final OffsetCommitCallback commitCallback = new OffsetCommitCallback() {
+        public void onComplete(Map<TopicPartition, OffsetAndMetadata> offsets, Exception exception) {
+            if (exception != null)
+                log.warn("Commit of offsets {} failed: {}", offsets, exception.getMessage());
+        }
+    };
+    private boolean closed = false;
+
+    /**
+     * @param consumer The consumer to fetch the records with
+     * @param processor The processing of the records
+     * @param numWorkers The number of worker threads
+     * @param queueSize The maximum number of records waiting for every worker
+     * @param ordering How records are spread over the workers
+     */
+    public ParallelConsumer(Consumer<K, V> consumer, RecordProcessor<K, V> processor, int numWorkers, int queueSize,
+                            Ordering ordering) {
+        if (numWorkers < 1)
+            throw new IllegalArgumentException("The number of workers must be positive: " + numWorkers);
+        if (queueSize < 1)
+            throw new IllegalArgumentException("The worker queue size must be positive: " + queueSize);
+        this.consumer = consumer;
+        this.processor = processor;
+        this.ordering = ordering;
+        this.workers = new ArrayList(numWorkers);
+        for (int i = 0; i < numWorkers; i++)
+            this.workers.add(new Worker("kafka-parallel-consumer-worker-" + i, queueSize));
+        for (Worker worker : this.workers)
+            worker.start();
+    }
+
+    public void subscribe(Collection<String> topics) {
+        subscribe(topics, new NoOpConsumerRebalanceListener());
+    }
+
+    /**
+     * Subscribe the consumer to the given topics. The partitions revoked by a rebalance stop being processed and
+     * their completed offsets are committed before the listener is invoked.
+     */
+    public void subscribe(Collection<String> topics, ConsumerRebalanceListener listener) {
+        consumer.subscribe(topics, new RebalanceListener(listener));
+    }
+
+    /**
+     * Commit the offsets completed since the last call, fetch records and hand them to the workers.
+     * @param timeout The time in milliseconds to wait for records, see {@link Consumer#poll(long)}
+     * @return The number of records fetched
+     * @throws KafkaException if the processing of a record failed
+     */
+    public int poll(long timeout) {
+        if (closed)
+            throw new IllegalStateException("This parallel consumer has already been closed.");
+        Exception exception = failure.get();
+        if (exception != null)
+            throw new KafkaException("Processing of a record failed", exception);
+
+        dispatchWaiting();
+        commitCompleted(false);
+
+        ConsumerRecords<K, V> records = consumer.poll(timeout);
+        for (TopicPartition tp : records.partitions()) {
+            for (ConsumerRecord<K, V> record : records.records(tp))
+                dispatch(tp, record);
+        }
+        return records.count();
+    }
+
+    /**
+     * Wait until the workers have processed the records handed to them, commit the completed offsets and stop the
+     * workers. Records still waiting for a worker queue are not processed.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            for (Worker worker : workers)
+                worker.queue.put(Task.<K, V>shutdown());
+            for (Worker worker : workers)
+                worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KafkaException("Interrupted while waiting for the workers to finish", e);
+        }
+        waiting.clear();
+        commitCompleted(true);
+    }
+
+    private void dispatch(TopicPartition tp, ConsumerRecord<K, V> record) {
+        PartitionProgress partitionProgress = progress.get(tp);
+        if (partitionProgress == null) {
+            partitionProgress = new PartitionProgress(new OffsetTracker(record.offset(), 64));
+            progress.put(tp, partitionProgress);
+            committed.put(tp, record.offset());
+        }
+        Task<K, V> task = new Task<K, V>(record, partitionProgress, partitionProgress.tracker.add(record.offset()));
+
+        // once a record of the partition waits, the following ones wait behind it to keep their order
+        ArrayDeque<Task<K, V>> partitionWaiting = waiting.get(tp);
+        if (partitionWaiting == null && workerFor(tp, record).queue.offer(task))
+            return;
+        if (partitionWaiting == null) {
+            partitionWaiting = new ArrayDeque<Task<K, V>>();
+            waiting.put(tp, partitionWaiting);
+            if (!consumer.paused().contains(tp)) {
+                consumer.pause(Collections.singleton(tp));
+                paused.add(tp);
+            }
+        }
+        partitionWaiting.addLast(task);
+    }
+
+    private void dispatchWaiting() {
+        Iterator<Map.Entry<TopicPartition, ArrayDeque<Task<K, V>>>> iter = waiting.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<TopicPartition, ArrayDeque<Task<K, V>>> entry = iter.next();
+            ArrayDeque<Task<K, V>> partitionWaiting = entry.getValue();
+            while (!partitionWaiting.isEmpty()) {
+                Task<K, V> task = partitionWaiting.peekFirst();
+                if (!workerFor(entry.getKey(), task.record).queue.offer(task))
+                    break;
+                partitionWaiting.pollFirst();
+            }
+            if (partitionWaiting.isEmpty()) {
+                iter.remove();
+                if (paused.remove(entry.getKey()))
+                    consumer.resume(Collections.singleton(entry.getKey()));
+            }
+        }
+    }
+
+    private Worker workerFor(TopicPartition tp, ConsumerRecord<K, V> record) {
+        int hash = ordering == Ordering.KEY && record.key() != null ? record.key().hashCode() : tp.hashCode();
+        return workers.get(Utils.toPositive(hash) % workers.size());
+    }
+
+    private void commitCompleted(boolean sync) {
+        commitCompleted(progress.keySet(), sync);
+    }
+
+    private void commitCompleted(Collection<TopicPartition> partitions, boolean sync) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap();
+        for (TopicPartition tp : partitions) {
+            PartitionProgress partitionProgress = progress.get(tp);
+            if (partitionProgress == null)
+                continue;
+            long watermark = partitionProgress.tracker.watermark();
+            if (watermark > committed.get(tp)) {
+                offsets.put(tp, new OffsetAndMetadata(watermark));
+                committed.put(tp, watermark);
+            }
+        }
+        if (offsets.isEmpty())
+            return;
+        if (sync)
+            consumer.commitSync(offsets);
+        else
+            consumer.commitAsync(offsets, commitCallback);
+    }
+
+    private class RebalanceListener implements ConsumerRebalanceListener {
+        private final ConsumerRebalanceListener listener;
+
+        private RebalanceListener(ConsumerRebalanceListener listener) {
+            this.listener = listener;
+        }
+
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            // the records of revoked partitions which have not started are dropped, the ones in progress finish so
+            // that their offsets can be committed before another consumer takes over
+            for (TopicPartition tp : partitions) {
+                waiting.remove(tp);
+                paused.remove(tp);
+                PartitionProgress partitionProgress = progress.get(tp);
+                if (partitionProgress != null)
+                    partitionProgress.revoke();
+            }
+            try {
+                commitCompleted(partitions, true);
+            } catch (KafkaException e) {
+                log.warn("Failed to commit the offsets of the revoked partitions {}: {}", partitions, e.getMessage());
+            }
+            for (TopicPartition tp : partitions) {
+                progress.remove(tp);
+                committed.remove(tp);
+            }
+            listener.onPartitionsRevoked(partitions);
+        }
+
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            listener.onPartitionsAssigned(partitions);
+        }
+    }
+
+    /**
+     * The processing state of a partition shared between the polling thread and the workers.
+     */
+    private static final class PartitionProgress {
+        private final OffsetTracker tracker;
+        private boolean revoked = false;
+        private int processing = 0;
+
+        private PartitionProgress(OffsetTracker tracker) {
+            this.tracker = tracker;
+        }
+
+        private synchronized boolean startProcessing() {
+            if (revoked)
+                return false;
+            processing++;
+            return true;
+        }
+
+        private synchronized void doneProcessing() {
+            processing--;
+            notifyAll();
+        }
+
+        private synchronized void revoke() {
+            revoked = true;
+            boolean interrupted = false;
+            while (processing > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Task<K, V> {
+        private static final Task<?, ?> SHUTDOWN = new Task<Object, Object>(null, null, -1L);
+
+        private final ConsumerRecord<K, V> record;
+        private final PartitionProgress progress;
+        private final long sequence;
+
+        private Task(ConsumerRecord<K, V> record, PartitionProgress progress, long sequence) {
+            this.record = record;
+            this.progress = progress;
+            this.sequence = sequence;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <K, V> Task<K, V> shutdown() {
+            return (Task<K, V>) SHUTDOWN;
+        }
+    }
+
+    private final class Worker extends KafkaThread {
+        private final BlockingQueue<Task<K, V>> queue;
+
+        private Worker(String name, int queueSize) {
+            super(name, true);
+            this.queue = new LinkedBlockingQueue<Task<K, V>>(queueSize);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Task<K, V> task = queue.take();
+                    if (task == Task.SHUTDOWN)
+                        break;
+                    if (!task.progress.startProcessing())
+                        continue;
+                    try {
+                        processor.process(task.record);
+                        task.progress.tracker.complete(task.sequence);
+                    } catch (Exception e) {
+                        log.error("Failed to process record of partition {} at offset {}",
+                                new Object[]{task.record.topic() + "-" + task.record.partition(), task.record.offset(), e});
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        task.progress.doneProcessing();
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.warn("Worker {} was interrupted with {} records left", getName(), queue.size());
+            }
+        }
+    }
+
+}
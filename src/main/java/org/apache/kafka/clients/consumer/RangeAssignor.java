@@ -18,6 +18,7 @@ package org.apache.kafka.clients.consumer;
 
 import org.apache.kafka.clients.consumer.internals.AbstractPartitionAssignor;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Utils;
 
 import java.util.*;
 
@@ -40,42 +41,32 @@ public class RangeAssignor extends AbstractPartitionAssignor {
         return "range";
     }
 
-    private Map<String, List<String>> consumersPerTopic(Map<String, List<String>> consumerMetadata) {
-        Map<String, List<String>> res = new HashMap();
-        for (Map.Entry<String, List<String>> subscriptionEntry : consumerMetadata.entrySet()) {
-            String consumerId = subscriptionEntry.getKey();
-            for (String topic : subscriptionEntry.getValue())
-                put(res, topic, consumerId);
-        }
-        return res;
-    }
-
     @Override
     public Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic,
                                                     Map<String, List<String>> subscriptions) {
-        Map<String, List<String>> consumersPerTopic = consumersPerTopic(subscriptions);
+        // the consumers are sorted once, the index keeps the subscribers of every topic in that order
+        List<String> consumers = Utils.sorted(subscriptions.keySet());
+        Map<String, int[]> consumersPerTopic = subscribersPerTopic(consumers, subscriptions);
         Map<String, List<TopicPartition>> assignment = new HashMap();
-        for (String memberId : subscriptions.keySet())
+        for (String memberId : consumers)
             assignment.put(memberId, new ArrayList<TopicPartition>());
 
-        for (Map.Entry<String, List<String>> topicEntry : consumersPerTopic.entrySet()) {
+        for (Map.Entry<String, int[]> topicEntry : consumersPerTopic.entrySet()) {
             String topic = topicEntry.getKey();
-            List<String> consumersForTopic = topicEntry.getValue();
+            int[] consumersForTopic = topicEntry.getValue();
 
             Integer numPartitionsForTopic = partitionsPerTopic.get(topic);
             if (numPartitionsForTopic == null)
                 continue;
 
-            Collections.sort(consumersForTopic);
-
-            int numPartitionsPerConsumer = numPartitionsForTopic / consumersForTopic.size();
-            int consumersWithExtraPartition = numPartitionsForTopic % consumersForTopic.size();
+            int numPartitionsPerConsumer = numPartitionsForTopic / consumersForTopic.length;
+            int consumersWithExtraPartition = numPartitionsForTopic % consumersForTopic.length;
 
             List<TopicPartition> partitions = AbstractPartitionAssignor.partitions(topic, numPartitionsForTopic);
-            for (int i = 0, n = consumersForTopic.size(); i < n; i++) {
+            for (int i = 0, n = consumersForTopic.length; i < n; i++) {
                 int start = numPartitionsPerConsumer * i + Math.min(i, consumersWithExtraPartition);
                 int length = numPartitionsPerConsumer + (i + 1 > consumersWithExtraPartition ? 0 : 1);
-                assignment.get(consumersForTopic.get(i)).addAll(partitions.subList(start, start + length));
+                assignment.get(consumers.get(consumersForTopic[i])).addAll(partitions.subList(start, start + length));
             }
         }
         return assignment;
@@ -14,7 +14,6 @@ package org.apache.kafka.clients.consumer;
 
 import org.apache.kafka.clients.consumer.internals.AbstractPartitionAssignor;
 import org.apache.kafka.common.TopicPartition;
-import org.apache.kafka.common.utils.CircularIterator;
 import org.apache.kafka.common.utils.Utils;
 
 import java.util.*;
@@ -53,12 +52,21 @@ public class RoundRobinAssignor extends AbstractPartitionAssignor {
         for (String memberId : subscriptions.keySet())
             assignment.put(memberId, new ArrayList<TopicPartition>());
 
-        CircularIterator<String> assigner = new CircularIterator(Utils.sorted(subscriptions.keySet()));
+        List<String> members = Utils.sorted(subscriptions.keySet());
+        Map<String, int[]> subscribersPerTopic = subscribersPerTopic(members, subscriptions);
+        // the position of the next member in the round robin order; rather than stepping over the members that are
+        // not subscribed to the topic of a partition, its first subscriber at or after this position is looked up
+        int position = 0;
         for (TopicPartition partition : allPartitionsSorted(partitionsPerTopic, subscriptions)) {
-            final String topic = partition.topic();
-            while (!subscriptions.get(assigner.peek()).contains(topic))
-                assigner.next();
-            assignment.get(assigner.next()).add(partition);
+            int[] subscribers = subscribersPerTopic.get(partition.topic());
+            int next = Arrays.binarySearch(subscribers, position);
+            if (next < 0)
+                next = -next - 1;
+            if (next == subscribers.length)
+                next = 0;
+            int member = subscribers[next];
+            assignment.get(members.get(member)).add(partition);
+            position = (member + 1) % members.size();
         }
         return assignment;
     }
@@ -0,0 +1,234 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.consumer;
+
+import org.apache.kafka.clients.consumer.internals.AbstractPartitionAssignor;
+import org.apache.kafka.clients.consumer.internals.ConsumerProtocol;
+import org.apache.kafka.clients.consumer.internals.MemberLoads;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.protocol.types.SchemaException;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The sticky assignor balances the partitions over the consumers like the {@link RoundRobinAssignor}, but keeps as
+ * many partitions as possible with the consumer that owned them before the rebalance. When a consumer joins or leaves
+ * a large group only the partitions needed to restore the balance move, so the other consumers keep their caches,
+ * local state and buffered fetches.
+ *
+ * Every consumer reports the partitions it currently owns in the user data of its subscription, encoded as a
+ * {@link ConsumerProtocol} assignment, so the leader needs no state of its own. The assignment is then computed in
+ * three steps:
+ * <ol>
+ *     <li>every consumer keeps the partitions it owned and is still subscribed to, up to its share of the partitions
+ *     <li>the remaining partitions are given one at a time to the least loaded consumer subscribed to their topic,
+ *     starting with the topics that have the fewest subscribers
+ *     <li>if the subscriptions differ, partitions are moved from more to less loaded consumers as long as that
+ *     reduces the imbalance
+ * </ol>
+ *
+ * For example, suppose there are three consumers C0, C1 and C2 subscribed to one topic t0 with 6 partitions and
+ * the current assignment is C0: [t0p0, t0p1, t0p2], C1: [t0p3, t0p4, t0p5]. C2 joins and the assignment becomes
+ * C0: [t0p0, t0p1], C1: [t0p3, t0p4], C2: [t0p2, t0p5], which moves two partitions where the round robin assignor
+ * would move four.
+ */
+public class StickyAssignor extends AbstractPartitionAssignor {
+    private static final Logger log = LoggerFactory.getLogger(StickyAssignor.class);
+
+    private List<TopicPartition> memberAssignment = Collections.emptyList();
+
+    @Override
+    public Subscription subscription(Set<String> topics) {
+        return new Subscription(new ArrayList(topics),
+                                ConsumerProtocol.serializeAssignment(new Assignment(memberAssignment)));
+    }
+
+    @Override
+    public void onAssignment(Assignment assignment) {
+        this.memberAssignment = assignment.partitions();
+    }
+
+    @Override
+    public Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic,
+                                                    Map<String, List<String>> subscriptions) {
+        return stickyAssign(partitionsPerTopic, subscriptions, Collections.<String, List<TopicPartition>>emptyMap());
+    }
+
+    @Override
+    protected Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic,
+                                                       Map<String, List<String>> topicSubscriptions,
+                                                       Map<String, Subscription> subscriptions) {
+        Map<String, List<TopicPartition>> previousAssignment = new HashMap();
+        for (Map.Entry<String, Subscription> subscriptionEntry : subscriptions.entrySet()) {
+            ByteBuffer userData = subscriptionEntry.getValue().userData();
+            if (userData == null || !userData.hasRemaining())
+                continue;
+            try {
+                previousAssignment.put(subscriptionEntry.getKey(),
+                                       ConsumerProtocol.deserializeAssignment(userData.duplicate()).partitions());
+            } catch (SchemaException e) {
+                log.warn("Ignoring the previous assignment of member {} since its user data could not be parsed",
+                         subscriptionEntry.getKey(), e);
+            }
+        }
+        return stickyAssign(partitionsPerTopic, topicSubscriptions, previousAssignment);
+    }
+
+    /**
+     * Perform the group assignment given the partition counts, member subscriptions and the partitions every member
+     * owned before.
+     * @param partitionsPerTopic The number of partitions for each subscribed topic
+     * @param subscriptions Map from the memberId to their respective topic subscription
+     * @param previousAssignment Map from the memberId to the partitions it owned, members may be missing
+     * @return Map from each member to the list of partitions assigned to them.
+     */
+    public Map<String, List<TopicPartition>> stickyAssign(Map<String, Integer> partitionsPerTopic,
+                                                          Map<String, List<String>> subscriptions,
+                                                          Map<String, List<TopicPartition>> previousAssignment) {
+        List<String> members = Utils.sorted(subscriptions.keySet());
+        int numMembers = members.size();
+        List<Set<String>> memberTopics = new ArrayList(numMembers);
+        List<List<TopicPartition>> assignment = new ArrayList(numMembers);
+        final Map<String, Integer> subscribersPerTopic = new HashMap();
+        for (int i = 0; i < numMembers; i++) {
+            String member = members.get(i);
+            Set<String> topics = new HashSet();
+            for (String topic : subscriptions.get(member)) {
+                if (partitionsPerTopic.containsKey(topic) && topics.add(topic)) {
+                    Integer subscribers = subscribersPerTopic.get(topic);
+                    subscribersPerTopic.put(topic, subscribers == null ? 1 : subscribers + 1);
+                }
+            }
+            memberTopics.add(topics);
+            assignment.add(new ArrayList<TopicPartition>());
+        }
+
+        Map<String, List<TopicPartition>> result = new HashMap();
+        if (subscribersPerTopic.isEmpty()) {
+            for (String member : members)
+                result.put(member, new ArrayList<TopicPartition>());
+            return result;
+        }
+
+        int numPartitions = 0;
+        for (String topic : subscribersPerTopic.keySet())
+            numPartitions += partitionsPerTopic.get(topic);
+
+        // keep the previously owned partitions which are still valid, a partition claimed by two members stays with
+        // the first one in the order of the member ids, so that every leader resolves the conflict the same way; the
+        // assigned partitions of every topic are tracked in a bit set indexed by partition
+        Map<String, BitSet> assigned = new HashMap();
+        for (String topic : subscribersPerTopic.keySet())
+            assigned.put(topic, new BitSet(partitionsPerTopic.get(topic)));
+        for (int index = 0; index < numMembers; index++) {
+            List<TopicPartition> owned = previousAssignment.get(members.get(index));
+            if (owned == null)
+                continue;
+            Set<String> topics = memberTopics.get(index);
+            for (TopicPartition tp : owned) {
+                if (!topics.contains(tp.topic()) || tp.partition() >= partitionsPerTopic.get(tp.topic()))
+                    continue;
+                BitSet topicAssigned = assigned.get(tp.topic());
+                if (!topicAssigned.get(tp.partition())) {
+                    topicAssigned.set(tp.partition());
+                    assignment.get(index).add(tp);
+                }
+            }
+        }
+
+        // cap every member at its share, the members keeping the most get the extra partitions of an uneven split
+        List<Integer> byKept = new ArrayList(numMembers);
+        for (int i = 0; i < numMembers; i++)
+            byKept.add(i);
+        final List<List<TopicPartition>> kept = assignment;
+        Collections.sort(byKept, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int diff = kept.get(b).size() - kept.get(a).size();
+                return diff != 0 ? diff : a - b;
+            }
+        });
+        int minQuota = numPartitions / numMembers;
+        int numExtra = numPartitions % numMembers;
+        MemberLoads loads = new MemberLoads(memberTopics);
+        for (int i = 0; i < numMembers; i++) {
+            int index = byKept.get(i);
+            int quota = minQuota + (i < numExtra ? 1 : 0);
+            List<TopicPartition> partitions = assignment.get(index);
+            while (partitions.size() > quota) {
+                TopicPartition tp = partitions.remove(partitions.size() - 1);
+                assigned.get(tp.topic()).clear(tp.partition());
+            }
+            loads.add(index, partitions.size());
+        }
+
+        // hand out the remaining partitions, topics with the fewest candidates first
+        List<String> topics = new ArrayList(subscribersPerTopic.keySet());
+        Collections.sort(topics, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int diff = subscribersPerTopic.get(a) - subscribersPerTopic.get(b);
+                return diff != 0 ? diff : a.compareTo(b);
+            }
+        });
+        for (String topic : topics) {
+            BitSet topicAssigned = assigned.get(topic);
+            int numPartitionsForTopic = partitionsPerTopic.get(topic);
+            for (int p = topicAssigned.nextClearBit(0); p < numPartitionsForTopic; p = topicAssigned.nextClearBit(p + 1)) {
+                int target = loads.leastLoaded(topic);
+                loads.add(target, 1);
+                assignment.get(target).add(new TopicPartition(topic, p));
+            }
+        }
+
+        // with equal subscriptions the assignment is balanced by now, otherwise the candidates of a topic may be
+        // loaded unevenly; every move lowers the sum of squared loads so this terminates
+        if (loads.numGroups() > 1) {
+            boolean moved = true;
+            while (moved) {
+                moved = false;
+                for (int from : loads.mostLoadedFirst()) {
+                    Iterator<TopicPartition> iter = assignment.get(from).iterator();
+                    while (iter.hasNext()) {
+                        TopicPartition tp = iter.next();
+                        int target = loads.leastLoaded(tp.topic());
+                        if (loads.load(target) + 1 < loads.load(from)) {
+                            iter.remove();
+                            loads.add(from, -1);
+                            loads.add(target, 1);
+                            assignment.get(target).add(tp);
+                            moved = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < numMembers; i++)
+            result.put(members.get(i), assignment.get(i));
+        return result;
+    }
+
+    @Override
+    public String name() {
+        return "sticky";
+    }
+
+}
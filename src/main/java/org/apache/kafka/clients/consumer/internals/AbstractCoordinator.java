@@ -64,10 +64,13 @@ import java.util.concurrent.atomic.AtomicReference;
  * {@link #onJoinComplete(int, String, String, ByteBuffer)}.
  *
  * Note on locking: this class shares state between the caller and a background thread which is
- * used for sending heartbeats after the client has joined the group. All mutable state as well as
+ * used for sending heartbeats after the client has joined the group (either a thread of its own or
+ * the {@link HeartbeatScheduler} shared by all the members in the JVM). All mutable state as well as
  * state transitions are protected with the class's monitor. Generally this means acquiring the lock
  * before reading or writing the state of the group (e.g. generation, memberId) and holding the lock
- * when sending a request that affects the state of the group (e.g. JoinGroup, LeaveGroup).
+ * when sending a request that affects the state of the group (e.g. JoinGroup, LeaveGroup). The lock
+ * is never held while blocking on the network, so that the shared heartbeat scheduler, which runs
+ * the heartbeats of every member, only ever waits for short critical sections.
  */
 public abstract class AbstractCoordinator implements Closeable {
 
@@ -88,7 +91,8 @@ public abstract class AbstractCoordinator implements Closeable {
     protected final Time time;
     protected final long retryBackoffMs;
 
-    private HeartbeatThread heartbeatThread = null;
+    private final boolean sharedHeartbeat;
+    private HeartbeatDriver heartbeatThread = null;
     private boolean rejoinNeeded = true;
     private boolean needsJoinPrepare = true;
     private MemberState state = MemberState.UNJOINED;
@@ -110,6 +114,25 @@ public abstract class AbstractCoordinator implements Closeable {
                                String metricGrpPrefix,
                                Time time,
                                long retryBackoffMs) {
+        this(client, groupId, rebalanceTimeoutMs, sessionTimeoutMs, heartbeatIntervalMs, metrics, metricGrpPrefix,
+                time, retryBackoffMs, false);
+    }
+
+    /**
+     * Initialize the coordination manager.
+     * @param sharedHeartbeat Whether heartbeats are sent by the {@link HeartbeatScheduler} shared by the JVM rather
+     *                        than by a thread of this member
+     */
+    public AbstractCoordinator(ConsumerNetworkClient client,
+                               String groupId,
+                               int rebalanceTimeoutMs,
+                               int sessionTimeoutMs,
+                               int heartbeatIntervalMs,
+                               Metrics metrics,
+                               String metricGrpPrefix,
+                               Time time,
+                               long retryBackoffMs,
+                               boolean sharedHeartbeat) {
         this.client = client;
         this.time = time;
         this.groupId = groupId;
@@ -118,6 +141,7 @@ public abstract class AbstractCoordinator implements Closeable {
         this.heartbeat = new Heartbeat(sessionTimeoutMs, heartbeatIntervalMs, rebalanceTimeoutMs, retryBackoffMs);
         this.sensors = new GroupCoordinatorMetrics(metrics, metricGrpPrefix);
         this.retryBackoffMs = retryBackoffMs;
+        this.sharedHeartbeat = sharedHeartbeat;
     }
 
     /**
@@ -171,7 +195,7 @@ public abstract class AbstractCoordinator implements Closeable {
     /**
      * Block until the coordinator for this group is known and is ready to receive requests.
      */
-    public synchronized void ensureCoordinatorReady() {
+    public void ensureCoordinatorReady() {
         // Using zero as current time since timeout is effectively infinite
         ensureCoordinatorReady(0, Long.MAX_VALUE);
     }
@@ -182,7 +206,7 @@ public abstract class AbstractCoordinator implements Closeable {
      * @param timeoutMs Maximum time to wait to discover the coordinator
      * @return true If coordinator discovery and initial connection succeeded, false otherwise
      */
-    protected synchronized boolean ensureCoordinatorReady(long startTimeMs, long timeoutMs) {
+    protected boolean ensureCoordinatorReady(long startTimeMs, long timeoutMs) {
         long remainingMs = timeoutMs;
 
         while (coordinatorUnknown()) {
@@ -199,7 +223,7 @@ public abstract class AbstractCoordinator implements Closeable {
                     client.awaitMetadataUpdate(remainingMs);
                 } else
                     throw future.exception();
-            } else if (coordinator != null && client.connectionFailed(coordinator)) {
+            } else if (coordinator() != null && client.connectionFailed(coordinator())) {
                 // we found the coordinator, but the connection has failed, so mark
                 // it dead and backoff before retrying discovery
                 coordinatorDead();
@@ -241,7 +265,7 @@ public abstract class AbstractCoordinator implements Closeable {
         return rejoinNeeded;
     }
 
-    private synchronized boolean rejoinIncomplete() {
+    protected synchronized boolean rejoinIncomplete() {
         return joinFuture != null;
     }
 
@@ -260,6 +284,7 @@ public abstract class AbstractCoordinator implements Closeable {
                 // set the heartbeat thread to null and raise an exception. If the user catches it,
                 // the next call to ensureActiveGroup() will spawn a new heartbeat thread.
                 RuntimeException cause = heartbeatThread.failureCause();
+                heartbeatThread.close();
                 heartbeatThread = null;
                 throw cause;
             }
@@ -279,16 +304,27 @@ public abstract class AbstractCoordinator implements Closeable {
      * Ensure that the group is active (i.e. joined and synced)
      */
     public void ensureActiveGroup() {
+        ensureActiveGroup(true);
+    }
+
+    /**
+     * Ensure that the group is active (i.e. joined and synced). If block is false, this returns as soon as the
+     * JoinGroup or SyncGroup request is in flight instead of waiting for its response; the rebalance is completed
+     * by a later call once the response has been received by another poll of the network client.
+     * @param block Whether to wait for the rebalance to complete
+     * @return true if the group is active, false if the rebalance is still in progress
+     */
+    protected boolean ensureActiveGroup(boolean block) {
         // always ensure that the coordinator is ready because we may have been disconnected
         // when sending heartbeats and does not necessarily require us to rejoin the group.
         ensureCoordinatorReady();
         startHeartbeatThreadIfNeeded();
-        joinGroupIfNeeded();
+        return joinGroupIfNeeded(block);
     }
 
     private synchronized void startHeartbeatThreadIfNeeded() {
         if (heartbeatThread == null) {
-            heartbeatThread = new HeartbeatThread();
+            heartbeatThread = sharedHeartbeat ? new SharedHeartbeat() : new HeartbeatThread();
             heartbeatThread.start();
         }
     }
@@ -300,6 +336,10 @@ public abstract class AbstractCoordinator implements Closeable {
 
     // visible for testing. Joins the group without starting the heartbeat thread.
     void joinGroupIfNeeded() {
+        joinGroupIfNeeded(true);
+    }
+
+    private boolean joinGroupIfNeeded(boolean block) {
         while (needRejoin() || rejoinIncomplete()) {
             ensureCoordinatorReady();
 
@@ -314,7 +354,10 @@ public abstract class AbstractCoordinator implements Closeable {
             }
 
             RequestFuture<ByteBuffer> future = initiateJoinGroup();
-            client.poll(future);
+            if (block)
+                client.poll(future);
+            else if (!client.poll(future, 0))
+                return false;
             resetJoinGroupFuture();
 
             if (future.succeeded()) {
@@ -331,6 +374,7 @@ public abstract class AbstractCoordinator implements Closeable {
                 time.sleep(retryBackoffMs);
             }
         }
+        return true;
     }
 
     private synchronized void resetJoinGroupFuture() {
@@ -603,6 +647,21 @@ public abstract class AbstractCoordinator implements Closeable {
         }
     }
 
+    /**
+     * Mark the current coordinator as dead like {@link #coordinatorDead()}, unless another thread holds the
+     * client lock.
+     * @return true if the coordinator is no longer known
+     */
+    private synchronized boolean tryCoordinatorDead() {
+        if (this.coordinator != null) {
+            if (!client.tryFailUnsentRequests(this.coordinator, GroupCoordinatorNotAvailableException.INSTANCE))
+                return false;
+            log.info("Marking the coordinator {} dead for group {}", this.coordinator, groupId);
+            this.coordinator = null;
+        }
+        return true;
+    }
+
     /**
      * Get the current generation state if the group is stable.
      * @return the current generation or null if the group is unjoined/rebalancing
@@ -629,13 +688,15 @@ public abstract class AbstractCoordinator implements Closeable {
     /**
      * Close the coordinator, waiting if needed to send LeaveGroup.
      */
-    public synchronized void close() {
+    public void close() {
         close(0);
     }
 
-    protected synchronized void close(long timeoutMs) {
-        if (heartbeatThread != null)
-            heartbeatThread.close();
+    protected void close(long timeoutMs) {
+        synchronized (this) {
+            if (heartbeatThread != null)
+                heartbeatThread.close();
+        }
         maybeLeaveGroup();
 
         // At this point, there may be pending commits (async commits or sync commits that were
@@ -660,7 +721,8 @@ public abstract class AbstractCoordinator implements Closeable {
                     new LeaveGroupRequest.Builder(groupId, generation.memberId);
             client.send(coordinator, request)
                     .compose(new LeaveGroupResponseHandler());
-            client.pollNoWakeup();
+            // if another thread is polling, it transmits the request
+            client.tryPollNoWakeup();
         }
 
         resetGeneration();
@@ -804,7 +866,108 @@ public abstract class AbstractCoordinator implements Closeable {
         }
     }
 
-    private class HeartbeatThread extends KafkaThread {
+    /**
+     * Runs the heartbeat loop once the member has joined the group.
+     */
+    private interface HeartbeatDriver {
+        void start();
+
+        void enable();
+
+        void disable();
+
+        void close();
+
+        /**
+         * Run the loop again right away, e.g. after a failed heartbeat. Called with the coordinator lock held.
+         */
+        void wakeup();
+
+        boolean hasFailed();
+
+        RuntimeException failureCause();
+    }
+
+    /**
+     * Run one iteration of the heartbeat loop, which polls the network client and sends a heartbeat if one is
+     * due. Must be called with the coordinator lock held.
+     * @param shared Whether the loop is run by the shared scheduler, which must not wait for another thread's poll
+     * @return the time in milliseconds to wait before the next iteration, 0 to run it right away, or -1 if the group
+     *         is not stable and heartbeats should be disabled
+     */
+    private long heartbeatLoopIteration(boolean shared) {
+        if (state != MemberState.STABLE) {
+            // the group is not stable (perhaps because we left the group or because the coordinator
+            // kicked us out), so disable heartbeats and wait for the main thread to rejoin.
+            return -1;
+        }
+
+        // if another thread is polling, it transmits our requests and completes their futures
+        if (shared)
+            client.tryPollNoWakeup();
+        else
+            client.pollNoWakeup();
+        long now = time.milliseconds();
+
+        if (coordinatorUnknown()) {
+            // the shared thread leaves the discovery to the poll of the consumer, looking up the coordinator
+            // needs the client lock which the consumer may hold while it blocks in a poll
+            if (!shared && findCoordinatorFuture == null) {
+                lookupCoordinator();
+                return 0;
+            }
+            return retryBackoffMs;
+        } else if (heartbeat.sessionTimeoutExpired(now)) {
+            // the session timeout has expired without seeing a successful heartbeat, so we should
+            // probably make sure the coordinator is still healthy.
+            if (shared) {
+                // retry after the backoff if the consumer is polling rather than waiting for it
+                return tryCoordinatorDead() ? 0 : retryBackoffMs;
+            }
+            coordinatorDead();
+            return 0;
+        } else if (heartbeat.pollTimeoutExpired(now)) {
+            // the poll timeout has expired, which means that the foreground thread has stalled
+            // in between calls to poll(), so we explicitly leave the group.
+            maybeLeaveGroup();
+            return 0;
+        } else if (!heartbeat.shouldHeartbeat(now)) {
+            // poll again after waiting for the retry backoff in case the heartbeat failed or the
+            // coordinator disconnected
+            return retryBackoffMs;
+        }
+
+        heartbeat.sentHeartbeat(now);
+
+        sendHeartbeatRequest().addListener(new RequestFutureListener<Void>() {
+            public void onSuccess(Void value) {
+                synchronized (AbstractCoordinator.this) {
+                    heartbeat.receiveHeartbeat(time.milliseconds());
+                }
+            }
+
+            public void onFailure(RuntimeException e) {
+                synchronized (AbstractCoordinator.this) {
+                    if (e instanceof RebalanceInProgressException) {
+                        // it is valid to continue heartbeating while the group is rebalancing. This
+                        // ensures that the coordinator keeps the member in the group for as long
+                        // as the duration of the rebalance timeout. If we stop sending heartbeats,
+                        // however, then the session timeout may expire before we can rejoin.
+                        heartbeat.receiveHeartbeat(time.milliseconds());
+                    } else {
+                        heartbeat.failHeartbeat();
+
+                        // wake up the heartbeat loop if it's sleeping to reschedule the heartbeat
+                        if (heartbeatThread != null)
+                            heartbeatThread.wakeup();
+                    }
+                }
+            }
+        });
+        return 0;
+    }
+
+    private class HeartbeatThread extends KafkaThread implements HeartbeatDriver {
         private boolean enabled = false;
         private boolean closed = false;
         private AtomicReference<RuntimeException> failed = new AtomicReference(null);
@@ -836,11 +999,15 @@ public abstract class AbstractCoordinator implements Closeable {
             }
         }
 
-        private boolean hasFailed() {
+        public void wakeup() {
+            AbstractCoordinator.this.notify();
+        }
+
+        public boolean hasFailed() {
             return failed.get() != null;
         }
 
-        private RuntimeException failureCause() {
+        public RuntimeException failureCause() {
             return failed.get();
         }
 
@@ -858,61 +1025,11 @@ public abstract class AbstractCoordinator implements Closeable {
                             continue;
                         }
 
-                        if (state != MemberState.STABLE) {
-                            // the group is not stable (perhaps because we left the group or because the coordinator
-                            // kicked us out), so disable heartbeats and wait for the main thread to rejoin.
+                        long waitMs = heartbeatLoopIteration(false);
+                        if (waitMs < 0)
                             disable();
-                            continue;
-                        }
-
-                        client.pollNoWakeup();
-                        long now = time.milliseconds();
-
-                        if (coordinatorUnknown()) {
-                            if (findCoordinatorFuture == null)
-                                lookupCoordinator();
-                            else
-                                AbstractCoordinator.this.wait(retryBackoffMs);
-                        } else if (heartbeat.sessionTimeoutExpired(now)) {
-                            // the session timeout has expired without seeing a successful heartbeat, so we should
-                            // probably make sure the coordinator is still healthy.
-                            coordinatorDead();
-                        } else if (heartbeat.pollTimeoutExpired(now)) {
-                            // the poll timeout has expired, which means that the foreground thread has stalled
-                            // in between calls to poll(), so we explicitly leave the group.
-                            maybeLeaveGroup();
-                        } else if (!heartbeat.shouldHeartbeat(now)) {
-                            // poll again after waiting for the retry backoff in case the heartbeat failed or the
-                            // coordinator disconnected
-                            AbstractCoordinator.this.wait(retryBackoffMs);
-                        } else {
-                            heartbeat.sentHeartbeat(now);
-
-                            sendHeartbeatRequest().addListener(new RequestFutureListener<Void>() {
-                                public void onSuccess(Void value) {
-                                    synchronized (AbstractCoordinator.this) {
-                                        heartbeat.receiveHeartbeat(time.milliseconds());
-                                    }
-                                }
-
-                                public void onFailure(RuntimeException e) {
-                                    synchronized (AbstractCoordinator.this) {
-                                        if (e instanceof RebalanceInProgressException) {
-                                            // it is valid to continue heartbeating while the group is rebalancing. This
-                                            // ensures that the coordinator keeps the member in the group for as long
-                                            // as the duration of the rebalance timeout. If we stop sending heartbeats,
-                                            // however, then the session timeout may expire before we can rejoin.
-                                            heartbeat.receiveHeartbeat(time.milliseconds());
-                                        } else {
-                                            heartbeat.failHeartbeat();
-
-                                            // wake up the thread if it's sleeping to reschedule the heartbeat
-                                            AbstractCoordinator.this.notify();
-                                        }
-                                    }
-                                }
-                            });
-                        }
+                        else if (waitMs > 0)
+                            AbstractCoordinator.this.wait(waitMs);
                     }
                 }
             } catch (InterruptedException e) {
@@ -933,6 +1050,87 @@ public abstract class AbstractCoordinator implements Closeable {
 
     }
 
+    /**
+     * Runs the heartbeat loop on the {@link HeartbeatScheduler} shared by the JVM. The loop only tries to take the
+     * lock of the network client and skips the work which needs it while the consumer holds it, leaving coordinator
+     * discovery to the consumer's poll, so a busy or stuck member never holds up the heartbeats of the others.
+     */
+    private class SharedHeartbeat implements HeartbeatDriver, HeartbeatScheduler.Task {
+        private boolean enabled = false;
+        private boolean closed = false;
+        private AtomicReference<RuntimeException> failed = new AtomicReference(null);
+        private HeartbeatScheduler scheduler;
+
+        public void start() {
+            this.scheduler = HeartbeatScheduler.acquire(time);
+            log.debug("Heartbeats for group {} are sent by the shared heartbeat scheduler", groupId);
+        }
+
+        public void enable() {
+            synchronized (AbstractCoordinator.this) {
+                log.trace("Enabling heartbeats for group {}", groupId);
+                this.enabled = true;
+                heartbeat.resetTimeouts(time.milliseconds());
+                scheduler.schedule(this, time.milliseconds());
+            }
+        }
+
+        public void disable() {
+            synchronized (AbstractCoordinator.this) {
+                log.trace("Disabling heartbeats for group {}", groupId);
+                this.enabled = false;
+            }
+        }
+
+        public void close() {
+            synchronized (AbstractCoordinator.this) {
+                if (!closed) {
+                    this.closed = true;
+                    scheduler.cancel(this);
+                    HeartbeatScheduler.release();
+                }
+            }
+        }
+
+        public void wakeup() {
+            if (enabled && !closed)
+                scheduler.schedule(this, time.milliseconds());
+        }
+
+        public boolean hasFailed() {
+            return failed.get() != null;
+        }
+
+        public RuntimeException failureCause() {
+            return failed.get();
+        }
+
+        public long run(long now) {
+            synchronized (AbstractCoordinator.this) {
+                if (closed || !enabled)
+                    return -1;
+
+                try {
+                    long waitMs = heartbeatLoopIteration(true);
+                    if (waitMs < 0) {
+                        disable();
+                        return -1;
+                    }
+                    return now + waitMs;
+                } catch (RuntimeException e) {
+                    log.error("Heartbeat for group {} failed due to unexpected error", groupId, e);
+                    this.failed.set(e);
+                    return -1;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "SharedHeartbeat(groupId=" + groupId + ")";
+        }
+    }
+
     protected static class Generation {
         public static final Generation NO_GENERATION = new Generation(
                 OffsetCommitRequest.DEFAULT_GENERATION_ID,
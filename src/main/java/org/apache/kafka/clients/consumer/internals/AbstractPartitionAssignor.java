@@ -36,6 +36,21 @@ public abstract class AbstractPartitionAssignor implements PartitionAssignor {
     public abstract Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic,
                                                              Map<String, List<String>> subscriptions);
 
+    /**
+     * Perform the group assignment given the partition counts and the full member subscriptions. Assignors that make
+     * use of the subscription user data override this method, by default it is ignored.
+     * @param partitionsPerTopic The number of partitions for each subscribed topic. Topics not in metadata will be excluded
+     *                           from this map.
+     * @param topicSubscriptions Map from the memberId to their respective topic subscription
+     * @param subscriptions Map from the memberId to their respective subscription, including the user data
+     * @return Map from each member to the list of partitions assigned to them.
+     */
+    protected Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic,
+                                                       Map<String, List<String>> topicSubscriptions,
+                                                       Map<String, Subscription> subscriptions) {
+        return assign(partitionsPerTopic, topicSubscriptions);
+    }
+
     public Subscription subscription(Set<String> topics) {
         return new Subscription(new ArrayList(topics));
     }
@@ -58,7 +73,7 @@ public abstract class AbstractPartitionAssignor implements PartitionAssignor {
                 log.debug("Skipping assignment for topic {} since no metadata is available", topic);
         }
 
-        Map<String, List<TopicPartition>> rawAssignments = assign(partitionsPerTopic, topicSubscriptions);
+        Map<String, List<TopicPartition>> rawAssignments = assign(partitionsPerTopic, topicSubscriptions, subscriptions);
 
         // this class has maintains no user data, so just wrap the results
         Map<String, Assignment> assignments = new HashMap();
@@ -80,6 +95,39 @@ public abstract class AbstractPartitionAssignor implements PartitionAssignor {
         list.add(value);
     }
 
+    /**
+     * Index the subscriptions by topic, so that the subscribers of a topic need not be searched for by walking the
+     * subscription lists of all members.
+     * @param members The members, their position in this list is used to identify them
+     * @param subscriptions Map from the memberId to their respective topic subscription
+     * @return Map from each subscribed topic to the positions of its subscribers in ascending order
+     */
+    protected static Map<String, int[]> subscribersPerTopic(List<String> members, Map<String, List<String>> subscriptions) {
+        Map<String, List<Integer>> subscribers = new HashMap();
+        for (int i = 0; i < members.size(); i++) {
+            for (String topic : subscriptions.get(members.get(i))) {
+                List<Integer> indices = subscribers.get(topic);
+                if (indices == null) {
+                    indices = new ArrayList();
+                    subscribers.put(topic, indices);
+                }
+                // a topic listed twice by a member is only indexed once
+                if (indices.isEmpty() || indices.get(indices.size() - 1) != i)
+                    indices.add(i);
+            }
+        }
+
+        Map<String, int[]> res = new HashMap(subscribers.size());
+        for (Map.Entry<String, List<Integer>> entry : subscribers.entrySet()) {
+            List<Integer> indices = entry.getValue();
+            int[] array = new int[indices.size()];
+            for (int i = 0; i < array.length; i++)
+                array[i] = indices.get(i);
+            res.put(entry.getKey(), array);
+        }
+        return res;
+    }
+
     protected static List<TopicPartition> partitions(String topic, int numPartitions) {
         List<TopicPartition> partitions = new ArrayList(numPartitions);
         for (int i = 0; i < numPartitions; i++)
@@ -43,6 +43,7 @@ import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
  * This class manages the coordination process with the consumer coordinator.
@@ -61,11 +62,23 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
     private final ConsumerInterceptors<?, ?> interceptors;
     private final boolean excludeInternalTopics;
     private final AtomicInteger pendingAsyncCommits;
+    private final boolean cooperative;
+    private final boolean coalesceAsyncCommits;
 
     // this collection must be thread-safe because it is modified from the response handler
     // of offset commit requests, which may be invoked from the heartbeat thread
     private final ConcurrentLinkedQueue<OffsetCommitCompletion> completedOffsetCommits;
 
+    // when coalescing asynchronous commits, the offsets of the commits waiting for the one in flight are merged
+    // here per partition. Guarded by the map's monitor, which must not be held when taking the coordinator lock.
+    private final Map<TopicPartition, OffsetAndMetadata> coalescedOffsets = new HashMap();
+    private final List<CoalescedCommit> coalescedCommits = new ArrayList();
+    // the number of coalesced commits in flight, more than one only when the queued offsets were flushed
+    private int coalescedCommitsInFlight = 0;
+    // the result of the subscribed pattern for every topic of the cluster, cleared when the pattern changes
+    private final Map<String, Boolean> patternMatches = new HashMap();
+    private Pattern matchedPattern = null;
+
     private boolean isLeader = false;
     private Set<String> joinedSubscription;
     private MetadataSnapshot metadataSnapshot;
@@ -90,7 +103,10 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
                                boolean autoCommitEnabled,
                                int autoCommitIntervalMs,
                                ConsumerInterceptors<?, ?> interceptors,
-                               boolean excludeInternalTopics) {
+                               boolean excludeInternalTopics,
+                               boolean cooperative,
+                               boolean sharedHeartbeat,
+                               boolean coalesceAsyncCommits) {
         super(client,
                 groupId,
                 rebalanceTimeoutMs,
@@ -99,7 +115,8 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
                 metrics,
                 metricGrpPrefix,
                 time,
-                retryBackoffMs);
+                retryBackoffMs,
+                sharedHeartbeat);
         this.metadata = metadata;
         this.metadataSnapshot = new MetadataSnapshot(subscriptions, metadata.fetch());
         this.subscriptions = subscriptions;
@@ -112,6 +129,8 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
         this.interceptors = interceptors;
         this.excludeInternalTopics = excludeInternalTopics;
         this.pendingAsyncCommits = new AtomicInteger();
+        this.cooperative = cooperative;
+        this.coalesceAsyncCommits = coalesceAsyncCommits;
 
         if (autoCommitEnabled)
             this.nextAutoCommitDeadline = time.milliseconds() + autoCommitIntervalMs;
@@ -130,7 +149,13 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
         this.joinedSubscription = subscriptions.subscription();
         List<ProtocolMetadata> metadataList = new ArrayList();
         for (PartitionAssignor assignor : assignors) {
+            if (assignor instanceof LoadAwarePartitionAssignor)
+                ((LoadAwarePartitionAssignor) assignor).onPartitionLoads(subscriptions.partitionLoads());
             Subscription subscription = assignor.subscription(joinedSubscription);
+            // with the cooperative protocol the member keeps its partitions and tells the leader which they are
+            if (cooperative && !subscriptions.assignedPartitions().isEmpty())
+                subscription = new Subscription(subscription.topics(), subscription.userData(),
+                        new ArrayList(subscriptions.assignedPartitions()));
             ByteBuffer metadata = ConsumerProtocol.serializeSubscription(subscription);
             metadataList.add(new ProtocolMetadata(assignor.name(), metadata));
         }
@@ -140,10 +165,28 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
     public void updatePatternSubscription(Cluster cluster) {
         final Set<String> topicsToSubscribe = new HashSet();
 
-        for (String topic : cluster.topics())
-            if (subscriptions.subscribedPattern().matcher(topic).matches() &&
-                    !(excludeInternalTopics && cluster.internalTopics().contains(topic)))
+        // the pattern is only evaluated against topics which were not in the previous metadata
+        Pattern pattern = subscriptions.subscribedPattern();
+        if (pattern != matchedPattern) {
+            patternMatches.clear();
+            matchedPattern = pattern;
+        }
+        Set<String> topics = cluster.topics();
+        if (patternMatches.size() > topics.size())
+            patternMatches.keySet().retainAll(topics);
+        for (String topic : topics) {
+            Boolean matches = patternMatches.get(topic);
+            if (matches == null) {
+                matches = pattern.matcher(topic).matches() &&
+                        !(excludeInternalTopics && cluster.internalTopics().contains(topic));
+                patternMatches.put(topic, matches);
+            }
+            if (matches)
                 topicsToSubscribe.add(topic);
+        }
+
+        if (topicsToSubscribe.equals(subscriptions.subscription()))
+            return;
 
         subscriptions.subscribeFromPattern(topicsToSubscribe);
 
@@ -195,12 +238,39 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
 
         Assignment assignment = ConsumerProtocol.deserializeAssignment(assignmentBuffer);
 
+        // offsets queued during the rebalance for partitions we no longer own must not be committed in this generation
+        retainCoalescedOffsets(assignment.partitions());
+
+        if (cooperative) {
+            // give up the partitions which were moved to other members, the leader assigns them to their
+            // new owners in a follow-up rebalance once we have rejoined without them
+            Set<TopicPartition> revoked = new HashSet(subscriptions.assignedPartitions());
+            revoked.removeAll(assignment.partitions());
+            if (!revoked.isEmpty()) {
+                log.info("Revoking previously assigned partitions {} for group {}", revoked, groupId);
+                maybeAutoCommitOffsetsSync(consumedOffsets(revoked), rebalanceTimeoutMs);
+                invokePartitionsRevoked(revoked);
+            }
+            Set<TopicPartition> added = new HashSet(assignment.partitions());
+            added.removeAll(subscriptions.assignedPartitions());
+
+            // keep the positions of the partitions we retain, only the added ones need their committed offsets
+            subscriptions.retainFromSubscribed(assignment.partitions());
+            completeAssignment(assignor, assignment, added);
+            if (!revoked.isEmpty())
+                requestRejoin();
+            return;
+        }
+
         // set the flag to refresh last committed offsets
         subscriptions.needRefreshCommits();
 
         // update partition assignment
         subscriptions.assignFromSubscribed(assignment.partitions());
+        completeAssignment(assignor, assignment, new HashSet(subscriptions.assignedPartitions()));
+    }
 
+    private void completeAssignment(PartitionAssignor assignor, Assignment assignment, Set<TopicPartition> added) {
         // check if the assignment contains some topics that were not in the original
         // subscription, if yes we will obey what leader has decided and add these topics
         // into the subscriptions as long as they still match the subscribed pattern
@@ -235,10 +305,9 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
 
         // execute the user's callback after rebalance
         ConsumerRebalanceListener listener = subscriptions.listener();
-        log.info("Setting newly assigned partitions {} for group {}", subscriptions.assignedPartitions(), groupId);
+        log.info("Setting newly assigned partitions {} for group {}", added, groupId);
         try {
-            Set<TopicPartition> assigned = new HashSet(subscriptions.assignedPartitions());
-            listener.onPartitionsAssigned(assigned);
+            listener.onPartitionsAssigned(added);
         } catch (WakeupException e) {
             throw e;
         } catch (InterruptException e) {
@@ -264,19 +333,34 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
             now = time.milliseconds();
         }
 
-        if (needRejoin()) {
+        if (needRejoin() || joinInProgress()) {
             // due to a race condition between the initial metadata fetch and the initial rebalance,
             // we need to ensure that the metadata is fresh before joining initially. This ensures
             // that we have matched the pattern against the cluster's topics at least once before joining.
             if (subscriptions.hasPatternSubscription())
                 client.ensureFreshMetadata();
 
-            ensureActiveGroup();
+            // with the cooperative protocol the partitions we own stay assigned during the rebalance, so we
+            // do not wait for the JoinGroup and SyncGroup responses and keep fetching them in the meantime
+            ensureActiveGroup(!cooperative || subscriptions.assignedPartitions().isEmpty());
             now = time.milliseconds();
         }
 
         pollHeartbeat(now);
-        maybeAutoCommitOffsetsAsync(now);
+
+        // a commit would fail while we are not a member of a stable generation, the offsets are
+        // committed once the rebalance completes
+        if (!rejoinIncomplete())
+            maybeAutoCommitOffsetsAsync(now);
+    }
+
+    /**
+     * Check whether a cooperative rebalance is in progress. The consumer keeps fetching the partitions it
+     * owns until it completes.
+     * @return true if the JoinGroup or SyncGroup request of a cooperative rebalance is in flight
+     */
+    public boolean joinInProgress() {
+        return cooperative && rejoinIncomplete();
     }
 
     /**
@@ -325,6 +409,7 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
                 new Object[]{groupId, assignor.name(), subscriptions});
 
         Map<String, Assignment> assignment = assignor.assign(metadata.fetch(), subscriptions);
+        assignment = withholdOwnedPartitions(assignment, subscriptions);
 
         // user-customized assignor may have created some topics that are not in the subscription list
         // and assign their partitions to the members; in this case we would like to update the leader's
@@ -371,16 +456,85 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
         return groupAssignment;
     }
 
+    /**
+     * Under the cooperative protocol a partition must be revoked by its current owner before another member may
+     * fetch it. Partitions the assignor moved away from a member which still owns them are therefore left out of
+     * this generation; the owner revokes them when it sees they are no longer assigned to it and rejoins, and the
+     * next assignment hands them to their new owner.
+     */
+    private Map<String, Assignment> withholdOwnedPartitions(Map<String, Assignment> assignment,
+                                                           Map<String, Subscription> subscriptions) {
+        Map<TopicPartition, String> owners = new HashMap();
+        for (Map.Entry<String, Subscription> subscriptionEntry : subscriptions.entrySet()) {
+            for (TopicPartition tp : subscriptionEntry.getValue().ownedPartitions())
+                owners.put(tp, subscriptionEntry.getKey());
+        }
+        if (owners.isEmpty())
+            return assignment;
+
+        int withheld = 0;
+        Map<String, Assignment> result = new HashMap();
+        for (Map.Entry<String, Assignment> assignmentEntry : assignment.entrySet()) {
+            Assignment memberAssignment = assignmentEntry.getValue();
+            List<TopicPartition> partitions = new ArrayList(memberAssignment.partitions().size());
+            for (TopicPartition tp : memberAssignment.partitions()) {
+                String owner = owners.get(tp);
+                if (owner == null || owner.equals(assignmentEntry.getKey()))
+                    partitions.add(tp);
+                else
+                    withheld++;
+            }
+            result.put(assignmentEntry.getKey(), partitions.size() == memberAssignment.partitions().size() ?
+                    memberAssignment : new Assignment(partitions, memberAssignment.userData()));
+        }
+        if (withheld > 0)
+            log.debug("Withholding {} partitions of group {} until their current owners have revoked them",
+                    withheld, groupId);
+        return result;
+    }
+
     @Override
     protected void onJoinPrepare(int generation, String memberId) {
-        // commit offsets prior to rebalance if auto-commit enabled
-        maybeAutoCommitOffsetsSync(rebalanceTimeoutMs);
+        Set<TopicPartition> revoked;
+        if (cooperative && generation != OffsetCommitRequest.DEFAULT_GENERATION_ID) {
+            // keep consuming through the rebalance, only the partitions of topics we are no longer subscribed
+            // to are revoked now; the partitions the new assignment moves away are revoked once it is known
+            revoked = new HashSet();
+            for (TopicPartition tp : subscriptions.assignedPartitions()) {
+                if (!subscriptions.subscription().contains(tp.topic()))
+                    revoked.add(tp);
+            }
+        } else {
+            // with the eager protocol, or if our membership was lost and the partitions may be assigned to
+            // others already, revoke all partitions
+            revoked = new HashSet(subscriptions.assignedPartitions());
+        }
+
+        // the queued offsets are committed with the current generation, before the partitions may be revoked
+        flushCoalescedCommits();
 
-        // execute the user's callback before rebalance
+        if (!revoked.isEmpty() || !cooperative) {
+            // commit offsets prior to rebalance if auto-commit enabled
+            maybeAutoCommitOffsetsSync(consumedOffsets(revoked), rebalanceTimeoutMs);
+
+            // execute the user's callback before rebalance
+            log.info("Revoking previously assigned partitions {} for group {}", revoked, groupId);
+            invokePartitionsRevoked(revoked);
+
+            if (cooperative) {
+                Set<TopicPartition> retained = new HashSet(subscriptions.assignedPartitions());
+                retained.removeAll(revoked);
+                subscriptions.retainFromSubscribed(retained);
+            }
+        }
+
+        isLeader = false;
+        subscriptions.resetGroupSubscription();
+    }
+
+    private void invokePartitionsRevoked(Set<TopicPartition> revoked) {
         ConsumerRebalanceListener listener = subscriptions.listener();
-        log.info("Revoking previously assigned partitions {} for group {}", subscriptions.assignedPartitions(), groupId);
         try {
-            Set<TopicPartition> revoked = new HashSet(subscriptions.assignedPartitions());
             listener.onPartitionsRevoked(revoked);
         } catch (WakeupException e) {
             throw e;
@@ -390,9 +544,12 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
             log.error("User provided listener {} for group {} failed on partition revocation",
                     new Object[]{listener.getClass().getName(), groupId}, e);
         }
+    }
 
-        isLeader = false;
-        subscriptions.resetGroupSubscription();
+    private Map<TopicPartition, OffsetAndMetadata> consumedOffsets(Set<TopicPartition> partitions) {
+        Map<TopicPartition, OffsetAndMetadata> consumed = subscriptions.allConsumed();
+        consumed.keySet().retainAll(partitions);
+        return consumed;
     }
 
     @Override
@@ -457,6 +614,7 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
         long now = time.milliseconds();
         long endTimeMs = now + timeoutMs;
         try {
+            flushCoalescedCommits();
             maybeAutoCommitOffsetsSync(timeoutMs);
             now = time.milliseconds();
             if (pendingAsyncCommits.get() > 0 && endTimeMs > now) {
@@ -481,7 +639,9 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
     public void commitOffsetsAsync(final Map<TopicPartition, OffsetAndMetadata> offsets, final OffsetCommitCallback callback) {
         invokeCompletedOffsetCommitCallbacks();
 
-        if (!coordinatorUnknown()) {
+        if (coalesceAsyncCommits) {
+            coalesceCommitOffsetsAsync(offsets, callback);
+        } else if (!coordinatorUnknown()) {
             doCommitOffsetsAsync(offsets, callback);
         } else {
             // we don't know the current coordinator, so try to find it and then send the commit
@@ -510,6 +670,140 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
         client.pollNoWakeup();
     }
 
+    /**
+     * Queue the offsets to be committed with the next coalesced commit. At most one coalesced commit is in flight,
+     * the offsets of the calls made meanwhile are merged (the latest offset of every partition wins) and sent in a
+     * single request once it completes. The callback of every call is invoked with its own offsets and the result
+     * of the request which committed them.
+     */
+    private void coalesceCommitOffsetsAsync(final Map<TopicPartition, OffsetAndMetadata> offsets, final OffsetCommitCallback callback) {
+        synchronized (coalescedOffsets) {
+            coalescedOffsets.putAll(offsets);
+            coalescedCommits.add(new CoalescedCommit(callback == null ? defaultOffsetCommitCallback : callback, offsets));
+        }
+        // a queued commit is pending until its callback is completed, so that close() waits for it
+        pendingAsyncCommits.incrementAndGet();
+
+        if (!coordinatorUnknown()) {
+            maybeSendCoalescedCommit(false);
+        } else {
+            pendingAsyncCommits.incrementAndGet();
+            lookupCoordinator().addListener(new RequestFutureListener<Void>() {
+                public void onSuccess(Void value) {
+                    pendingAsyncCommits.decrementAndGet();
+                    maybeSendCoalescedCommit(false);
+                }
+
+                public void onFailure(RuntimeException e) {
+                    pendingAsyncCommits.decrementAndGet();
+                    synchronized (coalescedOffsets) {
+                        if (coalescedCommitsInFlight > 0)
+                            return;
+                    }
+                    failCoalescedCommits(new RetriableCommitFailedException(e));
+                }
+            });
+        }
+    }
+
+    /**
+     * Send the queued offsets now, even if a coalesced commit is in flight, so that they are committed before a
+     * synchronous commit, a rebalance or close. The coordinator handles the requests of a connection in order, so the
+     * queued offsets still override the ones in flight. If the coordinator is unknown, the queued commits fail.
+     */
+    private void flushCoalescedCommits() {
+        if (!coalesceAsyncCommits)
+            return;
+        if (coordinatorUnknown())
+            failCoalescedCommits(new RetriableCommitFailedException("Offset commit failed since the coordinator is unknown"));
+        else
+            maybeSendCoalescedCommit(true);
+    }
+
+    /**
+     * Drop the queued offsets of the partitions which are not assigned anymore. The commits whose partitions were all
+     * dropped fail, the others complete with the result of the request committing their remaining offsets.
+     */
+    private void retainCoalescedOffsets(Collection<TopicPartition> assigned) {
+        if (!coalesceAsyncCommits)
+            return;
+        List<CoalescedCommit> dropped = new ArrayList();
+        synchronized (coalescedOffsets) {
+            coalescedOffsets.keySet().retainAll(assigned);
+            Iterator<CoalescedCommit> iter = coalescedCommits.iterator();
+            while (iter.hasNext()) {
+                CoalescedCommit commit = iter.next();
+                if (!commit.offsets.isEmpty() && Collections.disjoint(commit.offsets.keySet(), assigned)) {
+                    iter.remove();
+                    dropped.add(commit);
+                }
+            }
+        }
+        if (!dropped.isEmpty()) {
+            log.debug("Dropping {} queued offset commits of group {} for partitions which are no longer assigned",
+                    dropped.size(), groupId);
+            completeCoalescedCommits(dropped, new CommitFailedException());
+        }
+    }
+
+    private void failCoalescedCommits(Exception exception) {
+        List<CoalescedCommit> failed;
+        synchronized (coalescedOffsets) {
+            failed = new ArrayList(coalescedCommits);
+            coalescedCommits.clear();
+            coalescedOffsets.clear();
+        }
+        completeCoalescedCommits(failed, exception);
+    }
+
+    /**
+     * Send the queued offsets if no coalesced commit is in flight, or in any case if flush is true.
+     */
+    private void maybeSendCoalescedCommit(boolean flush) {
+        final Map<TopicPartition, OffsetAndMetadata> offsets;
+        final List<CoalescedCommit> commits;
+        synchronized (coalescedOffsets) {
+            if ((coalescedCommitsInFlight > 0 && !flush) || (coalescedCommits.isEmpty() && coalescedOffsets.isEmpty()))
+                return;
+            offsets = new HashMap(coalescedOffsets);
+            commits = new ArrayList(coalescedCommits);
+            coalescedOffsets.clear();
+            coalescedCommits.clear();
+            coalescedCommitsInFlight++;
+        }
+        sensors.commitsCoalesced.record(commits.size() - 1);
+
+        this.subscriptions.needRefreshCommits();
+        RequestFuture<Void> future = sendOffsetCommitRequest(offsets);
+        future.addListener(new RequestFutureListener<Void>() {
+            public void onSuccess(Void value) {
+                if (interceptors != null)
+                    interceptors.onCommit(offsets);
+
+                onComplete(null);
+            }
+
+            public void onFailure(RuntimeException e) {
+                onComplete(e instanceof RetriableException ? new RetriableCommitFailedException(e) : e);
+            }
+
+            private void onComplete(Exception exception) {
+                completeCoalescedCommits(commits, exception);
+                synchronized (coalescedOffsets) {
+                    coalescedCommitsInFlight--;
+                }
+                // send the offsets which were committed meanwhile
+                maybeSendCoalescedCommit(false);
+            }
+        });
+    }
+
+    private void completeCoalescedCommits(List<CoalescedCommit> commits, Exception exception) {
+        for (CoalescedCommit commit : commits)
+            completedOffsetCommits.add(new OffsetCommitCompletion(commit.callback, commit.offsets, exception));
+        pendingAsyncCommits.addAndGet(-commits.size());
+    }
+
     private void doCommitOffsetsAsync(final Map<TopicPartition, OffsetAndMetadata> offsets, final OffsetCommitCallback callback) {
         this.subscriptions.needRefreshCommits();
         RequestFuture<Void> future = sendOffsetCommitRequest(offsets);
@@ -545,6 +839,8 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
      */
     public boolean commitOffsetsSync(Map<TopicPartition, OffsetAndMetadata> offsets, long timeoutMs) {
         invokeCompletedOffsetCommitCallbacks();
+        // the queued offsets are older, they must not be committed after these ones
+        flushCoalescedCommits();
 
         if (offsets.isEmpty())
             return true;
@@ -617,8 +913,11 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
     }
 
     private void maybeAutoCommitOffsetsSync(long timeoutMs) {
+        maybeAutoCommitOffsetsSync(subscriptions.allConsumed(), timeoutMs);
+    }
+
+    private void maybeAutoCommitOffsetsSync(Map<TopicPartition, OffsetAndMetadata> allConsumedOffsets, long timeoutMs) {
         if (autoCommitEnabled) {
-            Map<TopicPartition, OffsetAndMetadata> allConsumedOffsets = subscriptions.allConsumed();
             try {
                 log.debug("Sending synchronous auto-commit of offsets {} for group {}", allConsumedOffsets, groupId);
                 if (!commitOffsetsSync(allConsumedOffsets, timeoutMs))
@@ -857,6 +1156,7 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
     private class ConsumerCoordinatorMetrics {
         private final String metricGrpName;
         private final Sensor commitLatency;
+        private final Sensor commitsCoalesced;
 
         private ConsumerCoordinatorMetrics(Metrics metrics, String metricGrpPrefix) {
             this.metricGrpName = metricGrpPrefix + "-coordinator-metrics";
@@ -872,6 +1172,11 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
                 this.metricGrpName,
                 "The number of commit calls per second"), new Rate(new Count()));
 
+            this.commitsCoalesced = metrics.sensor("commits-coalesced");
+            this.commitsCoalesced.add(metrics.metricName("commit-coalesced-rate",
+                this.metricGrpName,
+                "The number of asynchronous commits per second merged into the request of another commit"), new Rate());
+
             Measurable numParts =
                 new Measurable() {
                     public double measure(MetricConfig config, long now) {
@@ -908,6 +1213,16 @@ public final class ConsumerCoordinator extends AbstractCoordinator {
         }
     }
 
+    private static class CoalescedCommit {
+        private final OffsetCommitCallback callback;
+        private final Map<TopicPartition, OffsetAndMetadata> offsets;
+
+        private CoalescedCommit(OffsetCommitCallback callback, Map<TopicPartition, OffsetAndMetadata> offsets) {
+            this.callback = callback;
+            this.offsets = offsets;
+        }
+    }
+
     private static class OffsetCommitCompletion {
         private final OffsetCommitCallback callback;
         private final Map<TopicPartition, OffsetAndMetadata> offsets;
@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Higher level consumer access to the network layer with basic support for request futures. This class
@@ -40,8 +41,10 @@ public class ConsumerNetworkClient implements Closeable {
     private static final Logger log = LoggerFactory.getLogger(ConsumerNetworkClient.class);
     private static final long MAX_POLL_TIMEOUT_MS = 5000L;
 
-    // the mutable state of this class is protected by the object's monitor (excluding the wakeup
-    // flag and the request completion queue below).
+    // the mutable state of this class is protected by this lock (excluding the wakeup flag and the
+    // request completion queue below). It is an explicit lock so that the shared heartbeat thread
+    // can skip the work which needs it instead of waiting for another thread's poll.
+    private final ReentrantLock lock = new ReentrantLock();
     private final KafkaClient client;
     private final Map<Node, List<ClientRequest>> unsent = new HashMap();
     private final Metadata metadata;
@@ -51,13 +54,17 @@ public class ConsumerNetworkClient implements Closeable {
     private int wakeupDisabledCount = 0;
 
     // when requests complete, they are transferred to this queue prior to invocation. The purpose
-    // is to avoid invoking them while holding this object's monitor which can open the door for deadlocks.
+    // is to avoid invoking them while holding the client lock which can open the door for deadlocks.
     private final ConcurrentLinkedQueue<RequestFutureCompletionHandler> pendingCompletion = new ConcurrentLinkedQueue();
 
-    // this flag allows the client to be safely woken up without waiting on the lock above. It is
-    // atomic to avoid the need to acquire the lock above in order to enable it concurrently.
+    // this flag allows the client to be safely woken up without waiting on the client lock. It is
+    // atomic to avoid the need to acquire the client lock in order to enable it concurrently.
     private final AtomicBoolean wakeup = new AtomicBoolean(false);
 
+    // new requests are queued here without taking the lock above, so that sending a request never waits for
+    // another thread's poll. They are moved to the unsent map by the next thread holding the lock.
+    private final ConcurrentLinkedQueue<QueuedRequest> queued = new ConcurrentLinkedQueue();
+
     public ConsumerNetworkClient(KafkaClient client,
                                  Metadata metadata,
                                  Time time,
@@ -95,19 +102,26 @@ public class ConsumerNetworkClient implements Closeable {
     }
 
     private void put(Node node, ClientRequest request) {
-        synchronized (this) {
-            List<ClientRequest> nodeUnsent = unsent.get(node);
+        queued.add(new QueuedRequest(node, request));
+    }
+
+    private void moveQueuedRequests() {
+        for (QueuedRequest queuedRequest = queued.poll(); queuedRequest != null; queuedRequest = queued.poll()) {
+            List<ClientRequest> nodeUnsent = unsent.get(queuedRequest.node);
             if (nodeUnsent == null) {
                 nodeUnsent = new ArrayList();
-                unsent.put(node, nodeUnsent);
+                unsent.put(queuedRequest.node, nodeUnsent);
             }
-            nodeUnsent.add(request);
+            nodeUnsent.add(queuedRequest.request);
         }
     }
 
     public Node leastLoadedNode() {
-        synchronized (this) {
+        lock.lock();
+        try {
             return client.leastLoadedNode(time.milliseconds());
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -204,7 +218,15 @@ public class ConsumerNetworkClient implements Closeable {
         // there may be handlers which need to be invoked if we woke up the previous call to poll
         firePendingCompletedRequests();
 
-        synchronized (this) {
+        doPoll(timeout, now, pollCondition);
+
+        // called without the lock to avoid deadlock potential if handlers need to acquire locks
+        firePendingCompletedRequests();
+    }
+
+    private void doPoll(long timeout, long now, PollCondition pollCondition) {
+        lock.lock();
+        try {
             // send all the requests we can send now
             trySend(now);
 
@@ -239,10 +261,9 @@ public class ConsumerNetworkClient implements Closeable {
 
             // fail requests that couldn't be sent if they have expired
             failExpiredRequests(now);
+        } finally {
+            lock.unlock();
         }
-
-        // called without the lock to avoid deadlock potential if handlers need to acquire locks
-        firePendingCompletedRequests();
     }
 
     /**
@@ -258,6 +279,32 @@ public class ConsumerNetworkClient implements Closeable {
         }
     }
 
+    /**
+     * Poll for network IO and return immediately like {@link #pollNoWakeup()}, unless another thread holds
+     * the client lock. That thread does the IO then, and this returns false without waiting for it.
+     * @return true if the poll was done
+     */
+    public boolean tryPollNoWakeup() {
+        firePendingCompletedRequests();
+
+        if (!lock.tryLock())
+            return false;
+        try {
+            disableWakeups();
+            try {
+                doPoll(0, time.milliseconds(), null);
+            } finally {
+                enableWakeups();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // called without the lock to avoid deadlock potential if handlers need to acquire locks
+        firePendingCompletedRequests();
+        return true;
+    }
+
     /**
      * Block until all pending requests from the given node have finished.
      * @param node The node to await requests from
@@ -283,10 +330,14 @@ public class ConsumerNetworkClient implements Closeable {
      * @return The number of pending requests
      */
     public int pendingRequestCount(Node node) {
-        synchronized (this) {
+        lock.lock();
+        try {
+            moveQueuedRequests();
             List<ClientRequest> pending = unsent.get(node);
             int unsentCount = pending == null ? 0 : pending.size();
             return unsentCount + client.inFlightRequestCount(node.idString());
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -296,11 +347,15 @@ public class ConsumerNetworkClient implements Closeable {
      * @return The total count of pending requests
      */
     public int pendingRequestCount() {
-        synchronized (this) {
+        lock.lock();
+        try {
+            moveQueuedRequests();
             int total = 0;
             for (List<ClientRequest> requests: unsent.values())
                 total += requests.size();
             return total + client.inFlightRequestCount();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -363,34 +418,70 @@ public class ConsumerNetworkClient implements Closeable {
     }
 
     public void failUnsentRequests(Node node, RuntimeException e) {
-        // clear unsent requests to node and fail their corresponding futures
-        synchronized (this) {
-            List<ClientRequest> unsentRequests = unsent.remove(node);
-            if (unsentRequests != null) {
-                for (ClientRequest unsentRequest : unsentRequests) {
-                    RequestFutureCompletionHandler handler = (RequestFutureCompletionHandler) unsentRequest.callback();
-                    handler.onFailure(e);
-                }
-            }
+        lock.lock();
+        try {
+            failUnsent(node, e);
+        } finally {
+            lock.unlock();
         }
 
         // called without the lock to avoid deadlock potential
         firePendingCompletedRequests();
     }
 
+    /**
+     * Fail the unsent requests to the given node like {@link #failUnsentRequests(Node, RuntimeException)}, unless
+     * another thread holds the client lock. This returns false without waiting for it then.
+     * @return true if the requests were failed
+     */
+    public boolean tryFailUnsentRequests(Node node, RuntimeException e) {
+        if (!lock.tryLock())
+            return false;
+        try {
+            failUnsent(node, e);
+        } finally {
+            lock.unlock();
+        }
+
+        // called without the lock to avoid deadlock potential
+        firePendingCompletedRequests();
+        return true;
+    }
+
+    private void failUnsent(Node node, RuntimeException e) {
+        // clear unsent requests to node and fail their corresponding futures
+        moveQueuedRequests();
+        List<ClientRequest> unsentRequests = unsent.remove(node);
+        if (unsentRequests != null) {
+            for (ClientRequest unsentRequest : unsentRequests) {
+                RequestFutureCompletionHandler handler = (RequestFutureCompletionHandler) unsentRequest.callback();
+                handler.onFailure(e);
+            }
+        }
+    }
+
     private boolean trySend(long now) {
-        // send any requests that can be sent now
+        // send any requests that can be sent now. Control requests (heartbeats, commits, ...) go first so
+        // that they do not queue behind fetches on the same connection
         boolean requestsSent = false;
+        moveQueuedRequests();
         for (Map.Entry<Node, List<ClientRequest>> requestEntry: unsent.entrySet()) {
             Node node = requestEntry.getKey();
-            Iterator<ClientRequest> iterator = requestEntry.getValue().iterator();
-            while (iterator.hasNext()) {
-                ClientRequest request = iterator.next();
-                if (client.ready(node, now)) {
-                    client.send(request, now);
-                    iterator.remove();
-                    requestsSent = true;
-                }
+            requestsSent |= trySend(node, requestEntry.getValue(), true, now);
+            requestsSent |= trySend(node, requestEntry.getValue(), false, now);
+        }
+        return requestsSent;
+    }
+
+    private boolean trySend(Node node, List<ClientRequest> requests, boolean control, long now) {
+        boolean requestsSent = false;
+        Iterator<ClientRequest> iterator = requests.iterator();
+        while (iterator.hasNext()) {
+            ClientRequest request = iterator.next();
+            if (request.isControlRequest() == control && client.ready(node, request.apiKey(), now)) {
+                client.send(request, now);
+                iterator.remove();
+                requestsSent = true;
             }
         }
         return requestsSent;
@@ -411,13 +502,17 @@ public class ConsumerNetworkClient implements Closeable {
     }
 
     public void disableWakeups() {
-        synchronized (this) {
+        lock.lock();
+        try {
             wakeupDisabledCount++;
+        } finally {
+            lock.unlock();
         }
     }
 
     public void enableWakeups() {
-        synchronized (this) {
+        lock.lock();
+        try {
             if (wakeupDisabledCount <= 0)
                 throw new IllegalStateException("Cannot enable wakeups since they were never disabled");
 
@@ -427,12 +522,17 @@ public class ConsumerNetworkClient implements Closeable {
             // could be cleared by poll(0) while wakeups were disabled
             if (wakeupDisabledCount == 0 && wakeup.get())
                 this.client.wakeup();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void close() throws IOException {
-        synchronized (this) {
+        lock.lock();
+        try {
             client.close();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -442,8 +542,11 @@ public class ConsumerNetworkClient implements Closeable {
      * @param node Node to connect to if possible
      */
     public boolean connectionFailed(Node node) {
-        synchronized (this) {
+        lock.lock();
+        try {
             return client.connectionFailed(node);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -454,8 +557,11 @@ public class ConsumerNetworkClient implements Closeable {
      * @param node The node to connect to
      */
     public void tryConnect(Node node) {
-        synchronized (this) {
+        lock.lock();
+        try {
             client.ready(node, time.milliseconds());
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -512,4 +618,14 @@ public class ConsumerNetworkClient implements Closeable {
         boolean shouldBlock();
     }
 
+    private static final class QueuedRequest {
+        private final Node node;
+        private final ClientRequest request;
+
+        private QueuedRequest(Node node, ClientRequest request) {
+            this.node = node;
+            this.request = request;
+        }
+    }
+
 }
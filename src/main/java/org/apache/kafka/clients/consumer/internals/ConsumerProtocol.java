@@ -39,6 +39,15 @@ import java.util.*;
  *     Partitions    => [int32]
  * </pre>
  *
+ * Version 1 of the subscription appends the partitions the member keeps owning during a cooperative rebalance:
+ *
+ * <pre>
+ * Subscription => Version Topics UserData OwnedPartitions
+ *   OwnedPartitions => [Topic Partitions]
+ * </pre>
+ *
+ * Members only send version 1 when they own partitions, so groups using the eager protocol keep sending version 0.
+ *
  * The current implementation assumes that future versions will not break compatibility. When
  * it encounters a newer version, it parses it using the current format. This basically means
  * that new versions cannot remove or reorder any of the existing fields.
@@ -53,12 +62,16 @@ public class ConsumerProtocol {
     public static final String PARTITIONS_KEY_NAME = "partitions";
     public static final String TOPIC_PARTITIONS_KEY_NAME = "topic_partitions";
     public static final String USER_DATA_KEY_NAME = "user_data";
+    public static final String OWNED_PARTITIONS_KEY_NAME = "owned_partitions";
 
     public static final short CONSUMER_PROTOCOL_V0 = 0;
+    public static final short CONSUMER_PROTOCOL_V1 = 1;
     public static final Schema CONSUMER_PROTOCOL_HEADER_SCHEMA = new Schema(
             new Field(VERSION_KEY_NAME, Type.INT16));
     private static final Struct CONSUMER_PROTOCOL_HEADER_V0 = new Struct(CONSUMER_PROTOCOL_HEADER_SCHEMA)
             .set(VERSION_KEY_NAME, CONSUMER_PROTOCOL_V0);
+    private static final Struct CONSUMER_PROTOCOL_HEADER_V1 = new Struct(CONSUMER_PROTOCOL_HEADER_SCHEMA)
+            .set(VERSION_KEY_NAME, CONSUMER_PROTOCOL_V1);
 
     public static final Schema SUBSCRIPTION_V0 = new Schema(
             new Field(TOPICS_KEY_NAME, new ArrayOf(Type.STRING)),
@@ -70,13 +83,23 @@ public class ConsumerProtocol {
             new Field(TOPIC_PARTITIONS_KEY_NAME, new ArrayOf(TOPIC_ASSIGNMENT_V0)),
             new Field(USER_DATA_KEY_NAME, Type.NULLABLE_BYTES));
 
+    public static final Schema SUBSCRIPTION_V1 = new Schema(
+            new Field(TOPICS_KEY_NAME, new ArrayOf(Type.STRING)),
+            new Field(USER_DATA_KEY_NAME, Type.NULLABLE_BYTES),
+            new Field(OWNED_PARTITIONS_KEY_NAME, new ArrayOf(TOPIC_ASSIGNMENT_V0)));
+
     public static ByteBuffer serializeSubscription(PartitionAssignor.Subscription subscription) {
-        Struct struct = new Struct(SUBSCRIPTION_V0);
+        boolean withOwnedPartitions = !subscription.ownedPartitions().isEmpty();
+        Schema schema = withOwnedPartitions ? SUBSCRIPTION_V1 : SUBSCRIPTION_V0;
+        Struct header = withOwnedPartitions ? CONSUMER_PROTOCOL_HEADER_V1 : CONSUMER_PROTOCOL_HEADER_V0;
+        Struct struct = new Struct(schema);
         struct.set(USER_DATA_KEY_NAME, subscription.userData());
         struct.set(TOPICS_KEY_NAME, subscription.topics().toArray());
-        ByteBuffer buffer = ByteBuffer.allocate(CONSUMER_PROTOCOL_HEADER_V0.sizeOf() + SUBSCRIPTION_V0.sizeOf(struct));
-        CONSUMER_PROTOCOL_HEADER_V0.writeTo(buffer);
-        SUBSCRIPTION_V0.write(buffer, struct);
+        if (withOwnedPartitions)
+            struct.set(OWNED_PARTITIONS_KEY_NAME, topicPartitionsArray(subscription.ownedPartitions()));
+        ByteBuffer buffer = ByteBuffer.allocate(header.sizeOf() + schema.sizeOf(struct));
+        header.writeTo(buffer);
+        schema.write(buffer, struct);
         buffer.flip();
         return buffer;
     }
@@ -85,12 +108,14 @@ public class ConsumerProtocol {
         Struct header = CONSUMER_PROTOCOL_HEADER_SCHEMA.read(buffer);
         Short version = header.getShort(VERSION_KEY_NAME);
         checkVersionCompatibility(version);
-        Struct struct = SUBSCRIPTION_V0.read(buffer);
+        Struct struct = version >= CONSUMER_PROTOCOL_V1 ? SUBSCRIPTION_V1.read(buffer) : SUBSCRIPTION_V0.read(buffer);
         ByteBuffer userData = struct.getBytes(USER_DATA_KEY_NAME);
         List<String> topics = new ArrayList();
         for (Object topicObj : struct.getArray(TOPICS_KEY_NAME))
             topics.add((String) topicObj);
-        return new PartitionAssignor.Subscription(topics, userData);
+        List<TopicPartition> ownedPartitions = version >= CONSUMER_PROTOCOL_V1 ?
+                topicPartitions(struct.getArray(OWNED_PARTITIONS_KEY_NAME)) : Collections.<TopicPartition>emptyList();
+        return new PartitionAssignor.Subscription(topics, userData, ownedPartitions);
     }
 
     public static PartitionAssignor.Assignment deserializeAssignment(ByteBuffer buffer) {
@@ -99,29 +124,14 @@ public class ConsumerProtocol {
         checkVersionCompatibility(version);
         Struct struct = ASSIGNMENT_V0.read(buffer);
         ByteBuffer userData = struct.getBytes(USER_DATA_KEY_NAME);
-        List<TopicPartition> partitions = new ArrayList();
-        for (Object structObj : struct.getArray(TOPIC_PARTITIONS_KEY_NAME)) {
-            Struct assignment = (Struct) structObj;
-            String topic = assignment.getString(TOPIC_KEY_NAME);
-            for (Object partitionObj : assignment.getArray(PARTITIONS_KEY_NAME)) {
-                Integer partition = (Integer) partitionObj;
-                partitions.add(new TopicPartition(topic, partition));
-            }
-        }
+        List<TopicPartition> partitions = topicPartitions(struct.getArray(TOPIC_PARTITIONS_KEY_NAME));
         return new PartitionAssignor.Assignment(partitions, userData);
     }
 
     public static ByteBuffer serializeAssignment(PartitionAssignor.Assignment assignment) {
         Struct struct = new Struct(ASSIGNMENT_V0);
         struct.set(USER_DATA_KEY_NAME, assignment.userData());
-        List<Struct> topicAssignments = new ArrayList();
-        for (Map.Entry<String, List<Integer>> topicEntry : asMap(assignment.partitions()).entrySet()) {
-            Struct topicAssignment = new Struct(TOPIC_ASSIGNMENT_V0);
-            topicAssignment.set(TOPIC_KEY_NAME, topicEntry.getKey());
-            topicAssignment.set(PARTITIONS_KEY_NAME, topicEntry.getValue().toArray());
-            topicAssignments.add(topicAssignment);
-        }
-        struct.set(TOPIC_PARTITIONS_KEY_NAME, topicAssignments.toArray());
+        struct.set(TOPIC_PARTITIONS_KEY_NAME, topicPartitionsArray(assignment.partitions()));
         ByteBuffer buffer = ByteBuffer.allocate(CONSUMER_PROTOCOL_HEADER_V0.sizeOf() + ASSIGNMENT_V0.sizeOf(struct));
         CONSUMER_PROTOCOL_HEADER_V0.writeTo(buffer);
         ASSIGNMENT_V0.write(buffer, struct);
@@ -134,7 +144,31 @@ public class ConsumerProtocol {
         if (version < CONSUMER_PROTOCOL_V0)
             throw new SchemaException("Unsupported subscription version: " + version);
 
-        // otherwise, assume versions can be parsed as V0
+        // otherwise, assume versions can be parsed as V0 (or V1 for subscriptions)
+    }
+
+    private static Object[] topicPartitionsArray(Collection<TopicPartition> partitions) {
+        List<Struct> topicAssignments = new ArrayList();
+        for (Map.Entry<String, List<Integer>> topicEntry : asMap(partitions).entrySet()) {
+            Struct topicAssignment = new Struct(TOPIC_ASSIGNMENT_V0);
+            topicAssignment.set(TOPIC_KEY_NAME, topicEntry.getKey());
+            topicAssignment.set(PARTITIONS_KEY_NAME, topicEntry.getValue().toArray());
+            topicAssignments.add(topicAssignment);
+        }
+        return topicAssignments.toArray();
+    }
+
+    private static List<TopicPartition> topicPartitions(Object[] topicAssignments) {
+        List<TopicPartition> partitions = new ArrayList();
+        for (Object structObj : topicAssignments) {
+            Struct assignment = (Struct) structObj;
+            String topic = assignment.getString(TOPIC_KEY_NAME);
+            for (Object partitionObj : assignment.getArray(PARTITIONS_KEY_NAME)) {
+                Integer partition = (Integer) partitionObj;
+                partitions.add(new TopicPartition(topic, partition));
+            }
+        }
+        return partitions;
     }
 
 
@@ -23,14 +23,18 @@ import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.metrics.Sensor;
 import org.apache.kafka.common.metrics.stats.*;
 import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.InvalidRecordException;
 import org.apache.kafka.common.record.LogEntry;
+import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordCursor;
+import org.apache.kafka.common.record.Records;
 import org.apache.kafka.common.record.TimestampType;
 import org.apache.kafka.common.requests.*;
 import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.utils.ArrayDeque;
 import org.apache.kafka.common.utils.Time;
-import org.apache.kafka.common.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,15 +56,27 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
     private final int maxBytes;
     private final int maxWaitMs;
     private final int fetchSize;
+    private final int fetchPipelineDepth;
+    private final long maxBufferedBytes;
+    private final int pausedPartitionBufferBytes;
     private final long retryBackoffMs;
     private final int maxPollRecords;
     private final boolean checkCrcs;
+    // reused to parse all the fetch responses, which keeps its decompression buffer
+    private final RecordCursor recordCursor = new RecordCursor(true, Integer.MAX_VALUE);
+    // reused to slice the fetch responses into batches
+    private final RecordCursor batchCursor = new RecordCursor(false, Integer.MAX_VALUE);
     private final Metadata metadata;
     private final FetchManagerMetrics sensors;
     private final SubscriptionState subscriptions;
     private final ConcurrentLinkedQueue<CompletedFetch> completedFetches;
+    private final Set<TopicPartition> inFlightPartitions;
     private final Deserializer<K> keyDeserializer;
     private final Deserializer<V> valueDeserializer;
+    private final Set<TopicPartition> fetchableExclude = new HashSet();
+    private final List<TopicPartition> fetchablePartitions = new ArrayList();
+    // the fetched data of paused partitions kept until they are resumed, in fetch order
+    private final Map<TopicPartition, PausedFetches<K, V>> pausedFetches = new LinkedHashMap();
 
     private PartitionRecords<K, V> nextInLineRecords = null;
 
@@ -69,6 +85,9 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
                    int maxBytes,
                    int maxWaitMs,
                    int fetchSize,
+                   int fetchPipelineDepth,
+                   long maxBufferedBytes,
+                   int pausedPartitionBufferBytes,
                    int maxPollRecords,
                    boolean checkCrcs,
                    Deserializer<K> keyDeserializer,
@@ -87,11 +106,15 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
         this.maxBytes = maxBytes;
         this.maxWaitMs = maxWaitMs;
         this.fetchSize = fetchSize;
+        this.fetchPipelineDepth = fetchPipelineDepth;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.pausedPartitionBufferBytes = pausedPartitionBufferBytes;
         this.maxPollRecords = maxPollRecords;
         this.checkCrcs = checkCrcs;
         this.keyDeserializer = keyDeserializer;
         this.valueDeserializer = valueDeserializer;
         this.completedFetches = new ConcurrentLinkedQueue();
+        this.inFlightPartitions = Collections.synchronizedSet(new HashSet<TopicPartition>());
         this.sensors = new FetchManagerMetrics(metrics, metricGrpPrefix);
         this.retryBackoffMs = retryBackoffMs;
 
@@ -134,9 +157,19 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
         return fetchedPartitions.equals(requestedPartitions);
     }
 
+    private boolean pipeliningEnabled() {
+        return fetchPipelineDepth > 1;
+    }
+
+    private boolean pausedBufferingEnabled() {
+        return pausedPartitionBufferBytes > 0;
+    }
+
     /**
      * Set-up a fetch request for any node that we have assigned partitions for which doesn't already have
-     * an in-flight fetch or pending fetch data.
+     * an in-flight fetch or pending fetch data. If fetch pipelining is enabled, a node may have up to
+     * <code>fetch.pipeline.depth</code> fetches in flight and partitions with pending fetch data are fetched
+     * again from the offset following that data.
      * @return number of fetches sent
      */
     public int sendFetches() {
@@ -146,35 +179,22 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
             final Node fetchTarget = fetchEntry.getKey();
 
             log.debug("Sending fetch for partitions {} to broker {}", request.fetchData().keySet(), fetchTarget);
+            if (pipeliningEnabled())
+                inFlightPartitions.addAll(request.fetchData().keySet());
             client.send(fetchTarget, request)
                     .addListener(new RequestFutureListener<ClientResponse>() {
                         public void onSuccess(ClientResponse resp) {
-                            FetchResponse response = (FetchResponse) resp.responseBody();
-                            if (!matchesRequestedPartitions(request, response)) {
-                                // obviously we expect the broker to always send us valid responses, so this check
-                                // is mainly for test cases where mock fetch responses must be manually crafted.
-                                log.warn("Ignoring fetch response containing partitions {} since it does not match " +
-                                        "the requested partitions {}", response.responseData().keySet(),
-                                        request.fetchData().keySet());
-                                return;
-                            }
-
-                            Set<TopicPartition> partitions = new HashSet(response.responseData().keySet());
-                            FetchResponseMetricAggregator metricAggregator = new FetchResponseMetricAggregator(sensors, partitions);
-
-                            for (Map.Entry<TopicPartition, FetchResponse.PartitionData> entry : response.responseData().entrySet()) {
-                                TopicPartition partition = entry.getKey();
-                                long fetchOffset = request.fetchData().get(partition).offset;
-                                FetchResponse.PartitionData fetchData = entry.getValue();
-                                completedFetches.add(new CompletedFetch(partition, fetchOffset, fetchData, metricAggregator,
-                                        request.version()));
+                            try {
+                                handleFetchResponse(request, resp);
+                            } finally {
+                                // the completed fetches must be visible before the partitions leave the
+                                // in-flight set, otherwise they could be fetched again from a stale position
+                                inFlightPartitions.removeAll(request.fetchData().keySet());
                             }
-
-                            sensors.fetchLatency.record(resp.requestLatencyMs());
-                            sensors.fetchThrottleTimeSensor.record(response.getThrottleTime());
                         }
 
                         public void onFailure(RuntimeException e) {
+                            inFlightPartitions.removeAll(request.fetchData().keySet());
                             log.debug("Fetch request to {} for partitions {} failed",
                                     new Object[]{fetchTarget, request.fetchData().keySet()}, e);
                         }
@@ -183,6 +203,53 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
         return fetchRequestMap.size();
     }
 
+    private void handleFetchResponse(FetchRequest.Builder request, ClientResponse resp) {
+        FetchResponse response = (FetchResponse) resp.responseBody();
+        if (!matchesRequestedPartitions(request, response)) {
+            // obviously we expect the broker to always send us valid responses, so this check
+            // is mainly for test cases where mock fetch responses must be manually crafted.
+            log.warn("Ignoring fetch response containing partitions {} since it does not match " +
+                    "the requested partitions {}", response.responseData().keySet(),
+                    request.fetchData().keySet());
+            return;
+        }
+
+        Set<TopicPartition> partitions = new HashSet(response.responseData().keySet());
+        FetchResponseMetricAggregator metricAggregator = new FetchResponseMetricAggregator(sensors, partitions);
+
+        for (Map.Entry<TopicPartition, FetchResponse.PartitionData> entry : response.responseData().entrySet()) {
+            TopicPartition partition = entry.getKey();
+            long fetchOffset = request.fetchData().get(partition).offset;
+            FetchResponse.PartitionData fetchData = entry.getValue();
+            long nextFetchOffset = pipeliningEnabled() || pausedBufferingEnabled() ?
+                    nextFetchOffset(fetchOffset, fetchData) : -1L;
+            completedFetches.add(new CompletedFetch(partition, fetchOffset, nextFetchOffset, fetchData,
+                    metricAggregator, request.version()));
+        }
+
+        sensors.fetchLatency.record(resp.requestLatencyMs());
+        sensors.fetchThrottleTimeSensor.record(response.getThrottleTime());
+    }
+
+    /**
+     * Compute the offset following the data of a fetch response without decompressing it. The offset of a shallow
+     * entry is the offset of its last inner record, so the last complete shallow entry is sufficient.
+     * @return the next offset to fetch, or -1 if it cannot be known before the response is parsed
+     */
+    private static long nextFetchOffset(long fetchOffset, FetchResponse.PartitionData fetchData) {
+        if (fetchData.errorCode != Errors.NONE.code())
+            return -1L;
+
+        long lastOffset = -1L;
+        for (LogEntry entry : fetchData.records.shallowEntries())
+            lastOffset = entry.offset();
+
+        if (lastOffset >= 0)
+            return Math.max(fetchOffset, lastOffset + 1);
+        // a non-empty response without a complete entry must go through the record-too-large handling
+        return fetchData.records.sizeInBytes() > 0 ? -1L : fetchOffset;
+    }
+
     /**
      * Lookup and set offsets for any partitions which are awaiting an explicit reset.
      * @param partitions the partitions to reset
@@ -432,71 +499,248 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
         int recordsRemaining = maxPollRecords;
 
         while (recordsRemaining > 0) {
+            PartitionRecords<K, V> partitionRecords = nextInLineRecords(false);
+            if (partitionRecords == null)
+                break;
+
+            TopicPartition partition = partitionRecords.partition;
+            List<ConsumerRecord<K, V>> records = drainRecords(partitionRecords, recordsRemaining);
+            if (!records.isEmpty()) {
+                List<ConsumerRecord<K, V>> currentRecords = drained.get(partition);
+                if (currentRecords == null) {
+                    drained.put(partition, records);
+                } else {
+                    // this case shouldn't usually happen because we only send one fetch at a time per partition,
+                    // but it might conceivably happen in some rare cases (such as partition leader changes).
+                    // we have to copy to a new list because the old one may be immutable
+                    List<ConsumerRecord<K, V>> newRecords = new ArrayList(records.size() + currentRecords.size());
+                    newRecords.addAll(currentRecords);
+                    newRecords.addAll(records);
+                    drained.put(partition, newRecords);
+                }
+                recordsRemaining -= records.size();
+            }
+        }
+
+        return drained;
+    }
+
+    /**
+     * Return the fetched records as batches which are not decompressed nor deserialized, empty the record buffer and
+     * update the consumed position. At least one batch is returned for a partition with fetched records, even if it
+     * has more records than <code>max.poll.records</code>.
+     *
+     * NOTE: returning empty batches guarantees the consumed position are NOT updated.
+     *
+     * @return The fetched batches per partition
+     * @throws OffsetOutOfRangeException If there is OffsetOutOfRange error in fetchResponse and
+     *         the defaultResetPolicy is NONE
+     */
+    public Map<TopicPartition, List<ConsumerBatch>> fetchedBatches() {
+        Map<TopicPartition, List<ConsumerBatch>> drained = new HashMap();
+        int recordsRemaining = maxPollRecords;
+
+        while (recordsRemaining > 0) {
+            PartitionRecords<K, V> partitionRecords = nextInLineRecords(true);
+            if (partitionRecords == null)
+                break;
+
+            TopicPartition partition = partitionRecords.partition;
+            long fetchOffset = partitionRecords.fetchOffset;
+            List<ConsumerBatch> batches = drainBatches(partitionRecords, recordsRemaining);
+            if (!batches.isEmpty()) {
+                List<ConsumerBatch> currentBatches = drained.get(partition);
+                if (currentBatches == null) {
+                    drained.put(partition, batches);
+                } else {
+                    List<ConsumerBatch> newBatches = new ArrayList(batches.size() + currentBatches.size());
+                    newBatches.addAll(currentBatches);
+                    newBatches.addAll(batches);
+                    drained.put(partition, newBatches);
+                }
+                recordsRemaining -= offsetSpan(batches, fetchOffset);
+            }
+        }
+
+        return drained;
+    }
+
+    /**
+     * Move to the next fetched data which can be returned, parsing the completed fetches into records or batches.
+     * @param batches true to parse the fetches into batches, false to parse them into records
+     * @return The next data in line, or null if there is none
+     */
+    private PartitionRecords<K, V> nextInLineRecords(boolean batches) {
+        while (true) {
             if (nextInLineRecords == null || nextInLineRecords.isDrained()) {
+                // the data kept for resumed partitions was fetched first, so it is returned first
+                PartitionRecords<K, V> resumedRecords = nextResumedRecords(batches);
+                if (resumedRecords != null) {
+                    nextInLineRecords = resumedRecords;
+                    continue;
+                }
+
                 CompletedFetch completedFetch = completedFetches.poll();
                 if (completedFetch == null)
-                    break;
+                    return null;
 
-                nextInLineRecords = parseCompletedFetch(completedFetch);
+                if (isPausedWithBuffering(completedFetch.partition))
+                    pausedFetches(completedFetch.partition).add(completedFetch);
+                else
+                    nextInLineRecords = parseCompletedFetch(completedFetch, batches);
+            } else if (isPausedWithBuffering(nextInLineRecords.partition)) {
+                pausedFetches(nextInLineRecords.partition).records = nextInLineRecords;
+                nextInLineRecords = null;
+            } else if (nextInLineRecords.isBatches() != batches) {
+                // parsed by the other kind of poll, the remaining records are fetched again from the position
+                nextInLineRecords.drain();
             } else {
-                TopicPartition partition = nextInLineRecords.partition;
-                List<ConsumerRecord<K, V>> records = drainRecords(nextInLineRecords, recordsRemaining);
-                if (!records.isEmpty()) {
-                    List<ConsumerRecord<K, V>> currentRecords = drained.get(partition);
-                    if (currentRecords == null) {
-                        drained.put(partition, records);
-                    } else {
-                        // this case shouldn't usually happen because we only send one fetch at a time per partition,
-                        // but it might conceivably happen in some rare cases (such as partition leader changes).
-                        // we have to copy to a new list because the old one may be immutable
-                        List<ConsumerRecord<K, V>> newRecords = new ArrayList(records.size() + currentRecords.size());
-                        newRecords.addAll(currentRecords);
-                        newRecords.addAll(records);
-                        drained.put(partition, newRecords);
-                    }
-                    recordsRemaining -= records.size();
-                }
+                return nextInLineRecords;
             }
         }
-
-        return drained;
     }
 
     private List<ConsumerRecord<K, V>> drainRecords(PartitionRecords<K, V> partitionRecords, int maxRecords) {
+        if (isNextInLine(partitionRecords)) {
+            List<ConsumerRecord<K, V>> partRecords = partitionRecords.drainRecords(maxRecords);
+            if (!partRecords.isEmpty())
+                updatePosition(partitionRecords.partition, partRecords.get(partRecords.size() - 1).offset() + 1, partRecords.size());
+            recordPartitionLag(partitionRecords.partition);
+            return partRecords;
+        }
+
+        partitionRecords.drain();
+        return Collections.emptyList();
+    }
+
+    private List<ConsumerBatch> drainBatches(PartitionRecords<K, V> partitionRecords, int maxRecords) {
+        if (isNextInLine(partitionRecords)) {
+            List<ConsumerBatch> batches = partitionRecords.drainBatches(maxRecords);
+            if (!batches.isEmpty()) {
+                long position = subscriptions.position(partitionRecords.partition);
+                updatePosition(partitionRecords.partition, batches.get(batches.size() - 1).lastOffset() + 1,
+                        offsetSpan(batches, position));
+            }
+            recordPartitionLag(partitionRecords.partition);
+            return batches;
+        }
+
+        partitionRecords.drain();
+        return Collections.emptyList();
+    }
+
+    /**
+     * Check that the parsed data can be returned: the partition is still assigned and fetchable and the data starts at
+     * the consumed position.
+     */
+    private boolean isNextInLine(PartitionRecords<K, V> partitionRecords) {
         if (!subscriptions.isAssigned(partitionRecords.partition)) {
             // this can happen when a rebalance happened before fetched records are returned to the consumer's poll call
             log.debug("Not returning fetched records for partition {} since it is no longer assigned", partitionRecords.partition);
-        } else {
-            // note that the consumed position should always be available as long as the partition is still assigned
-            long position = subscriptions.position(partitionRecords.partition);
-            if (!subscriptions.isFetchable(partitionRecords.partition)) {
-                // this can happen when a partition is paused before fetched records are returned to the consumer's poll call
-                log.debug("Not returning fetched records for assigned partition {} since it is no longer fetchable", partitionRecords.partition);
-            } else if (partitionRecords.fetchOffset == position) {
-                List<ConsumerRecord<K, V>> partRecords = partitionRecords.drainRecords(maxRecords);
-                if (!partRecords.isEmpty()) {
-                    long nextOffset = partRecords.get(partRecords.size() - 1).offset() + 1;
-                    log.trace("Returning fetched records at offset {} for assigned partition {} and update " +
-                            "position to {}", new Object[]{position, partitionRecords.partition, nextOffset});
-
-                    subscriptions.position(partitionRecords.partition, nextOffset);
-                }
+            return false;
+        }
+        // note that the consumed position should always be available as long as the partition is still assigned
+        long position = subscriptions.position(partitionRecords.partition);
+        if (!subscriptions.isFetchable(partitionRecords.partition)) {
+            // this can happen when a partition is paused before fetched records are returned to the consumer's poll call
+            log.debug("Not returning fetched records for assigned partition {} since it is no longer fetchable", partitionRecords.partition);
+            return false;
+        }
+        if (partitionRecords.fetchOffset != position) {
+            // these records aren't next in line based on the last consumed position, ignore them
+            // they must be from an obsolete request
+            log.debug("Ignoring fetched records for {} at offset {} since the current position is {}",
+                    new Object[]{partitionRecords.partition, partitionRecords.fetchOffset, position});
+            return false;
+        }
+        return true;
+    }
+
+    private void updatePosition(TopicPartition partition, long nextOffset, int records) {
+        log.trace("Returning fetched records at offset {} for assigned partition {} and update " +
+                "position to {}", new Object[]{subscriptions.position(partition), partition, nextOffset});
+        subscriptions.position(partition, nextOffset);
+        subscriptions.consumed(partition, records);
+    }
 
-                Long partitionLag = subscriptions.partitionLag(partitionRecords.partition);
-                if (partitionLag != null)
-                    this.sensors.recordPartitionLag(partitionRecords.partition, partitionLag);
+    private void recordPartitionLag(TopicPartition partition) {
+        Long partitionLag = subscriptions.partitionLag(partition);
+        if (partitionLag != null)
+            this.sensors.recordPartitionLag(partition, partitionLag);
+    }
 
-                return partRecords;
-            } else {
-                // these records aren't next in line based on the last consumed position, ignore them
-                // they must be from an obsolete request
-                log.debug("Ignoring fetched records for {} at offset {} since the current position is {}",
-                        new Object[]{partitionRecords.partition, partitionRecords.fetchOffset, position});
+    private boolean isPausedWithBuffering(TopicPartition tp) {
+        return pausedBufferingEnabled() && subscriptions.isPaused(tp);
+    }
+
+    private PausedFetches<K, V> pausedFetches(TopicPartition tp) {
+        PausedFetches<K, V> fetches = pausedFetches.get(tp);
+        if (fetches == null) {
+            fetches = new PausedFetches<K, V>();
+            pausedFetches.put(tp, fetches);
+        }
+        return fetches;
+    }
+
+    /**
+     * Take the next data kept for a partition which has been resumed since it was fetched. The data of partitions
+     * which are no longer assigned is dropped.
+     * @param batches true to parse the fetches into batches, false to parse them into records
+     * @return The parsed records, or null if there are none
+     */
+    private PartitionRecords<K, V> nextResumedRecords(boolean batches) {
+        if (pausedFetches.isEmpty())
+            return null;
+        Iterator<Map.Entry<TopicPartition, PausedFetches<K, V>>> iter = pausedFetches.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<TopicPartition, PausedFetches<K, V>> entry = iter.next();
+            TopicPartition tp = entry.getKey();
+            if (!subscriptions.isAssigned(tp)) {
+                iter.remove();
+                continue;
             }
+            if (!subscriptions.isFetchable(tp))
+                continue;
+            PausedFetches<K, V> fetches = entry.getValue();
+            PartitionRecords<K, V> records = fetches.records;
+            fetches.records = null;
+            while (records == null && !fetches.completedFetches.isEmpty())
+                records = parseCompletedFetch(fetches.completedFetches.pollFirst(), batches);
+            if (fetches.isEmpty())
+                iter.remove();
+            if (records != null)
+                return records;
         }
+        return null;
+    }
 
-        partitionRecords.drain();
-        return Collections.emptyList();
+    /**
+     * Find the paused partitions which can still be fetched: those whose kept data is below
+     * <code>fetch.buffer.partition.max.bytes</code>, from the offset following that data. Kept data which does not
+     * start at the current position any more (i.e. the partition was seeked) is dropped.
+     * @param exclude the partitions which have data or fetches pending
+     * @return the offsets to fetch from for the paused partitions which can be fetched
+     */
+    private Map<TopicPartition, Long> pausedFetchOffsets(Set<TopicPartition> exclude) {
+        if (!pausedBufferingEnabled())
+            return Collections.emptyMap();
+
+        Map<TopicPartition, Long> fetchOffsets = new HashMap();
+        for (TopicPartition tp : subscriptions.pausedPartitions()) {
+            if (exclude.contains(tp) || !subscriptions.hasValidPosition(tp))
+                continue;
+            long position = subscriptions.position(tp);
+            PausedFetches<K, V> fetches = pausedFetches.get(tp);
+            if (fetches != null && fetches.fetchOffset() != position) {
+                pausedFetches.remove(tp);
+                fetches = null;
+            }
+            if (fetches == null)
+                fetchOffsets.put(tp, position);
+            else if (fetches.sizeInBytes() < pausedPartitionBufferBytes && fetches.nextFetchOffset() >= 0)
+                fetchOffsets.put(tp, fetches.nextFetchOffset());
+        }
+        return fetchOffsets;
     }
 
     /**
@@ -653,40 +897,101 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
             future.complete(timestampOffsetMap);
     }
 
-    private List<TopicPartition> fetchablePartitions() {
-        Set<TopicPartition> exclude = new HashSet();
-        List<TopicPartition> fetchable = subscriptions.fetchablePartitions();
+    private List<TopicPartition> fetchablePartitions(Map<TopicPartition, Long> prefetchOffsets) {
+        // the exclusion set and the result are reused between fetches, the result is only valid until the next call
+        Set<TopicPartition> exclude = fetchableExclude;
+        List<TopicPartition> fetchable = fetchablePartitions;
+        exclude.clear();
+        fetchable.clear();
         if (nextInLineRecords != null && !nextInLineRecords.isDrained()) {
             exclude.add(nextInLineRecords.partition);
         }
         for (CompletedFetch completedFetch : completedFetches) {
             exclude.add(completedFetch.partition);
         }
-        fetchable.removeAll(exclude);
+        exclude.removeAll(prefetchOffsets.keySet());
+        if (pipeliningEnabled()) {
+            synchronized (inFlightPartitions) {
+                exclude.addAll(inFlightPartitions);
+            }
+        }
+        subscriptions.fetchablePartitions(exclude, fetchable);
+        // resumed partitions are fetched again once the data kept while they were paused has been returned
+        if (!pausedFetches.isEmpty())
+            fetchable.removeAll(pausedFetches.keySet());
         return fetchable;
     }
 
+    /**
+     * Find the partitions with pending fetch data which can be fetched again ahead of the user draining that data.
+     * A partition qualifies if the offset following its pending data is known and its pending data still starts at
+     * the current position (i.e. it was not invalidated by a seek). Nothing is prefetched once the pending data
+     * exceeds the buffered-bytes budget.
+     * @return the offsets to fetch from for the partitions which can be prefetched
+     */
+    private Map<TopicPartition, Long> prefetchOffsets() {
+        if (!pipeliningEnabled())
+            return Collections.emptyMap();
+
+        long bufferedBytes = 0;
+        Map<TopicPartition, Long> pendingOffsets = new HashMap();
+        Map<TopicPartition, Long> nextOffsets = new HashMap();
+        if (nextInLineRecords != null && !nextInLineRecords.isDrained()) {
+            bufferedBytes += nextInLineRecords.sizeInBytes;
+            pendingOffsets.put(nextInLineRecords.partition, nextInLineRecords.fetchOffset);
+            nextOffsets.put(nextInLineRecords.partition, nextInLineRecords.nextFetchOffset);
+        }
+        for (CompletedFetch completedFetch : completedFetches) {
+            bufferedBytes += completedFetch.partitionData.records.sizeInBytes();
+            if (!pendingOffsets.containsKey(completedFetch.partition))
+                pendingOffsets.put(completedFetch.partition, completedFetch.fetchedOffset);
+            nextOffsets.put(completedFetch.partition, completedFetch.nextFetchOffset);
+        }
+
+        if (nextOffsets.isEmpty() || bufferedBytes >= maxBufferedBytes)
+            return Collections.emptyMap();
+
+        Map<TopicPartition, Long> prefetchOffsets = new HashMap();
+        for (Map.Entry<TopicPartition, Long> entry : nextOffsets.entrySet()) {
+            TopicPartition tp = entry.getKey();
+            long nextOffset = entry.getValue();
+            if (nextOffset < 0 || !subscriptions.isFetchable(tp))
+                continue;
+            Long position = subscriptions.position(tp);
+            if (position.equals(pendingOffsets.get(tp)))
+                prefetchOffsets.put(tp, nextOffset);
+        }
+        return prefetchOffsets;
+    }
+
     /**
      * Create fetch requests for all nodes for which we have assigned partitions
-     * that have no existing requests in flight.
+     * that have fewer than <code>fetch.pipeline.depth</code> requests in flight.
      */
     private Map<Node, FetchRequest.Builder> createFetchRequests() {
         // create the fetch info
         Cluster cluster = metadata.fetch();
         Map<Node, LinkedHashMap<TopicPartition, FetchRequest.PartitionData>> fetchable = new LinkedHashMap();
-        for (TopicPartition partition : fetchablePartitions()) {
+        Map<TopicPartition, Long> prefetchOffsets = prefetchOffsets();
+        List<TopicPartition> partitions = fetchablePartitions(prefetchOffsets);
+        Map<TopicPartition, Long> pausedFetchOffsets = pausedFetchOffsets(fetchableExclude);
+        partitions.addAll(pausedFetchOffsets.keySet());
+        for (TopicPartition partition : partitions) {
             Node node = cluster.leaderFor(partition);
             if (node == null) {
                 metadata.requestUpdate();
-            } else if (this.client.pendingRequestCount(node) == 0) {
-                // if there is a leader and no in-flight requests, issue a new fetch
+            } else if (this.client.pendingRequestCount(node) < this.fetchPipelineDepth) {
+                // if there is a leader and the pipeline to it is not full, issue a new fetch
                 LinkedHashMap<TopicPartition, FetchRequest.PartitionData> fetch = fetchable.get(node);
                 if (fetch == null) {
                     fetch = new LinkedHashMap();
                     fetchable.put(node, fetch);
                 }
 
-                long position = this.subscriptions.position(partition);
+                Long prefetchOffset = prefetchOffsets.get(partition);
+                if (prefetchOffset == null)
+                    prefetchOffset = pausedFetchOffsets.get(partition);
+                long position = prefetchOffset != null ? prefetchOffset : this.subscriptions.position(partition);
                 fetch.put(partition, new FetchRequest.PartitionData(position, this.fetchSize));
                 log.trace("Added fetch request for partition {} at offset {} to node {}",
                         new Object[]{partition, position, node});
@@ -708,8 +1013,9 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
 
     /**
      * The callback for fetch completion
+     * @param batches true to parse the records into batches, false to parse them into records
      */
-    private PartitionRecords<K, V> parseCompletedFetch(CompletedFetch completedFetch) {
+    private PartitionRecords<K, V> parseCompletedFetch(CompletedFetch completedFetch, boolean batches) {
         TopicPartition tp = completedFetch.partition;
         FetchResponse.PartitionData partition = completedFetch.partitionData;
         long fetchOffset = completedFetch.fetchedOffset;
@@ -733,23 +1039,39 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
                     return null;
                 }
 
-                List<ConsumerRecord<K, V>> parsed = new ArrayList();
                 boolean skippedRecords = false;
-                for (LogEntry logEntry : partition.records.deepEntries()) {
-                    // Skip the messages earlier than current position.
-                    if (logEntry.offset() >= position) {
-                        parsed.add(parseRecord(tp, logEntry));
-                        bytes += logEntry.sizeInBytes();
-                    } else
-                        skippedRecords = true;
-                }
+                if (batches) {
+                    List<ConsumerBatch> parsed = new ArrayList();
+                    skippedRecords = parseBatches(tp, (MemoryRecords) partition.records, position, parsed);
+                    for (ConsumerBatch batch : parsed)
+                        bytes += batch.sizeInBytes();
+                    recordsCount += offsetSpan(parsed, position);
+
+                    log.trace("Adding fetched batches for partition {} with offset {} to buffered record list", tp, position);
+                    parsedRecords = PartitionRecords.ofBatches(fetchOffset, completedFetch.nextFetchOffset,
+                            partition.records.sizeInBytes(), tp, parsed);
+                } else {
+                    List<ConsumerRecord<K, V>> parsed = new ArrayList();
+                    // fetch responses are always read into memory records, the cursor avoids allocating an entry per record
+                    recordCursor.reset((MemoryRecords) partition.records);
+                    while (recordCursor.next()) {
+                        // Skip the messages earlier than current position.
+                        if (recordCursor.offset() >= position) {
+                            parsed.add(parseRecord(tp, recordCursor));
+                            bytes += recordCursor.sizeInBytes();
+                        } else
+                            skippedRecords = true;
+                    }
+                    recordCursor.reset(MemoryRecords.EMPTY);
 
-                recordsCount = parsed.size();
+                    recordsCount = parsed.size();
 
-                log.trace("Adding fetched record for partition {} with offset {} to buffered record list", tp, position);
-                parsedRecords = new PartitionRecords(fetchOffset, tp, parsed);
+                    log.trace("Adding fetched record for partition {} with offset {} to buffered record list", tp, position);
+                    parsedRecords = new PartitionRecords(fetchOffset, completedFetch.nextFetchOffset,
+                            partition.records.sizeInBytes(), tp, parsed);
+                }
 
-                if (parsed.isEmpty() && !skippedRecords && (partition.records.sizeInBytes() > 0)) {
+                if (recordsCount == 0 && !skippedRecords && (partition.records.sizeInBytes() > 0)) {
                     if (completedFetch.responseVersion < 3) {
                         // Implement the pre KIP-74 behavior of throwing a RecordTooLargeException.
                         Map<TopicPartition, Long> recordTooLargePartitions = Collections.singletonMap(tp, fetchOffset);
@@ -769,7 +1091,7 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
 
                 if (partition.highWatermark >= 0) {
                     log.trace("Received {} records in fetch response for partition {} with offset {}",
-                            new Object[]{parsed.size(), tp, position});
+                            new Object[]{recordsCount, tp, position});
                     subscriptions.updateHighWatermark(tp, partition.highWatermark);
                 }
             } else if (error == Errors.NOT_LEADER_FOR_PARTITION) {
@@ -811,30 +1133,162 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
     }
 
     /**
-     * Parse the record entry, deserializing the key / value fields if necessary
+     * Slice the fetched records into batches without decompressing or copying them. Every compressed wrapper is a
+     * batch, and the consecutive uncompressed records of the same format are grouped into batches of at most
+     * <code>max.poll.records</code> records.
+     * @return true if records before the position were skipped
+     */
+    private boolean parseBatches(TopicPartition tp, MemoryRecords records, long position, List<ConsumerBatch> batches) {
+        ByteBuffer buffer = records.buffer();
+        boolean skippedRecords = false;
+        // the offset following the previous entry, -1 before the first entry
+        long nextOffset = -1L;
+        // the run of uncompressed records which is not a batch yet
+        int runStart = -1;
+        int runEnd = -1;
+        int runRecords = 0;
+        long runBaseOffset = -1L;
+        long runMaxTimestamp = Record.NO_TIMESTAMP;
+        byte runMagic = Record.CURRENT_MAGIC_VALUE;
+        TimestampType runTimestampType = null;
+
+        RecordCursor cursor = batchCursor;
+        cursor.reset(records);
+        while (cursor.next()) {
+            // the offset of a compressed wrapper is the offset of its last record
+            long offset = cursor.offset();
+            if (offset < position) {
+                skippedRecords = true;
+                nextOffset = offset + 1;
+                continue;
+            }
+            if (this.checkCrcs) {
+                try {
+                    cursor.ensureValid();
+                } catch (InvalidRecordException e) {
+                    throw new KafkaException("Record for partition " + tp + " at offset " + offset
+                            + " is invalid, cause: " + e.getMessage());
+                }
+            }
+
+            int start = cursor.position() - Records.LOG_OVERHEAD;
+            int end = start + cursor.sizeInBytes();
+            CompressionType compressionType = cursor.compressionType();
+            TimestampType timestampType = cursor.timestampType();
+            if (runStart >= 0 && (compressionType != CompressionType.NONE || cursor.magic() != runMagic
+                    || timestampType != runTimestampType || runRecords == maxPollRecords)) {
+                batches.add(new ConsumerBatch(tp.topic(), tp.partition(), runBaseOffset, nextOffset - 1, runRecords,
+                        runMaxTimestamp, runTimestampType, CompressionType.NONE, slice(buffer, runStart, runEnd)));
+                runStart = -1;
+            }
+
+            if (compressionType == CompressionType.NONE) {
+                if (runStart < 0) {
+                    runStart = start;
+                    runRecords = 0;
+                    runBaseOffset = offset;
+                    runMaxTimestamp = Record.NO_TIMESTAMP;
+                    runMagic = cursor.magic();
+                    runTimestampType = timestampType;
+                }
+                runEnd = end;
+                runRecords++;
+                runMaxTimestamp = Math.max(runMaxTimestamp, cursor.timestamp());
+            } else if (nextOffset >= position) {
+                // the wrapper follows the previous entry, so it has no record before the position; it is not
+                // decompressed, its first offset and record count are read if they are asked for
+                batches.add(new ConsumerBatch(tp.topic(), tp.partition(), offset, cursor.timestamp(), timestampType,
+                        compressionType, slice(buffer, start, end)));
+            } else {
+                batches.add(parseWrapper(tp, slice(buffer, start, end), position, offset, cursor.timestamp(),
+                        timestampType, compressionType));
+            }
+            nextOffset = offset + 1;
+        }
+        cursor.reset(MemoryRecords.EMPTY);
+
+        if (runStart >= 0)
+            batches.add(new ConsumerBatch(tp.topic(), tp.partition(), runBaseOffset, nextOffset - 1, runRecords,
+                    runMaxTimestamp, runTimestampType, CompressionType.NONE, slice(buffer, runStart, runEnd)));
+        return skippedRecords;
+    }
+
+    /**
+     * Make a batch of a compressed wrapper whose first offset is not known, which is the case of the first wrapper of
+     * a fetch. The wrapper is decompressed to find its first offset, and if it starts before the position it is
+     * compressed again without the records before the position.
+     */
+    private ConsumerBatch parseWrapper(TopicPartition tp, MemoryRecords wrapper, long position, long lastOffset,
+                                       long timestamp, TimestampType timestampType, CompressionType compressionType) {
+        long baseOffset = lastOffset;
+        int recordCount = 0;
+        boolean skippedRecords = false;
+        recordCursor.reset(wrapper);
+        while (recordCursor.next()) {
+            if (recordCursor.offset() < position)
+                skippedRecords = true;
+            else if (recordCount++ == 0)
+                baseOffset = recordCursor.offset();
+        }
+        recordCursor.reset(MemoryRecords.EMPTY);
+        if (!skippedRecords)
+            return new ConsumerBatch(tp.topic(), tp.partition(), baseOffset, lastOffset, recordCount, timestamp,
+                    timestampType, compressionType, wrapper);
+
+        log.trace("Removing the records before offset {} from the compressed batch of partition {} ending at offset {}",
+                new Object[]{position, tp, lastOffset});
+        List<LogEntry> retained = new ArrayList(recordCount);
+        for (LogEntry entry : wrapper.deepEntries()) {
+            if (entry.offset() >= position)
+                retained.add(entry);
+        }
+        TimestampType rebuiltTimestampType = timestampType == TimestampType.LOG_APPEND_TIME ?
+                TimestampType.LOG_APPEND_TIME : TimestampType.CREATE_TIME;
+        MemoryRecords rebuilt = MemoryRecords.builderWithEntries(rebuiltTimestampType, compressionType, timestamp,
+                retained).build();
+        long maxTimestamp = rebuilt.shallowEntries().iterator().next().record().timestamp();
+        return new ConsumerBatch(tp.topic(), tp.partition(), baseOffset, lastOffset, recordCount, maxTimestamp,
+                timestampType, compressionType, rebuilt);
+    }
+
+    /**
+     * The number of offsets from the given offset to the end of the given consecutive batches. It bounds the number of
+     * records of the batches, which it equals unless the log was compacted, without decompressing them.
      */
-    private ConsumerRecord<K, V> parseRecord(TopicPartition partition, LogEntry logEntry) {
-        Record record = logEntry.record();
+    private static int offsetSpan(List<ConsumerBatch> batches, long fromOffset) {
+        if (batches.isEmpty())
+            return 0;
+        return (int) (batches.get(batches.size() - 1).lastOffset() + 1 - fromOffset);
+    }
+
+    private static MemoryRecords slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(start);
+        slice.limit(end);
+        return MemoryRecords.readableRecords(slice.slice());
+    }
 
+    /**
+     * Parse the record entry, deserializing the key / value fields if necessary
+     */
+    private ConsumerRecord<K, V> parseRecord(TopicPartition partition, RecordCursor record) {
         if (this.checkCrcs) {
             try {
                 record.ensureValid();
             } catch (InvalidRecordException e) {
-                throw new KafkaException("Record for partition " + partition + " at offset " + logEntry.offset()
+                throw new KafkaException("Record for partition " + partition + " at offset " + record.offset()
                         + " is invalid, cause: " + e.getMessage());
             }
         }
 
         try {
-            long offset = logEntry.offset();
+            long offset = record.offset();
             long timestamp = record.timestamp();
             TimestampType timestampType = record.timestampType();
-            ByteBuffer keyBytes = record.key();
-            byte[] keyByteArray = keyBytes == null ? null : Utils.toArray(keyBytes);
-            K key = keyBytes == null ? null : this.keyDeserializer.deserialize(partition.topic(), keyByteArray);
-            ByteBuffer valueBytes = record.value();
-            byte[] valueByteArray = valueBytes == null ? null : Utils.toArray(valueBytes);
-            V value = valueBytes == null ? null : this.valueDeserializer.deserialize(partition.topic(), valueByteArray);
+            byte[] keyByteArray = record.keyBytes();
+            K key = keyByteArray == null ? null : this.keyDeserializer.deserialize(partition.topic(), keyByteArray);
+            byte[] valueByteArray = record.valueBytes();
+            V value = valueByteArray == null ? null : this.valueDeserializer.deserialize(partition.topic(), valueByteArray);
 
             return new ConsumerRecord(partition.topic(), partition.partition(), offset,
                                         timestamp, timestampType, record.checksum(),
@@ -843,32 +1297,53 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
                                         key, value);
         } catch (RuntimeException e) {
             throw new SerializationException("Error deserializing key/value for partition " + partition +
-                    " at offset " + logEntry.offset(), e);
+                    " at offset " + record.offset(), e);
         }
     }
 
     public void onAssignment(Set<TopicPartition> assignment) {
+        pausedFetches.keySet().retainAll(assignment);
         sensors.updatePartitionLagSensors(assignment);
     }
 
     private static class PartitionRecords<K, V> {
         private long fetchOffset;
+        private final long nextFetchOffset;
+        private final int sizeInBytes;
         private TopicPartition partition;
         private List<ConsumerRecord<K, V>> records;
+        // set instead of the records when the fetch was parsed into batches
+        private List<ConsumerBatch> batches;
         private int position = 0;
 
-        private PartitionRecords(long fetchOffset, TopicPartition partition, List<ConsumerRecord<K, V>> records) {
+        private PartitionRecords(long fetchOffset, long nextFetchOffset, int sizeInBytes, TopicPartition partition,
+                                 List<ConsumerRecord<K, V>> records) {
             this.fetchOffset = fetchOffset;
+            this.nextFetchOffset = nextFetchOffset;
+            this.sizeInBytes = sizeInBytes;
             this.partition = partition;
             this.records = records;
         }
 
+        private static <K, V> PartitionRecords<K, V> ofBatches(long fetchOffset, long nextFetchOffset, int sizeInBytes,
+                                                               TopicPartition partition, List<ConsumerBatch> batches) {
+            PartitionRecords<K, V> partitionRecords = new PartitionRecords<K, V>(fetchOffset, nextFetchOffset,
+                    sizeInBytes, partition, null);
+            partitionRecords.batches = batches;
+            return partitionRecords;
+        }
+
         private boolean isDrained() {
-            return records == null;
+            return records == null && batches == null;
+        }
+
+        private boolean isBatches() {
+            return batches != null;
         }
 
         private void drain() {
             this.records = null;
+            this.batches = null;
         }
 
         private List<ConsumerRecord<K, V>> drainRecords(int n) {
@@ -888,22 +1363,80 @@ public class Fetcher<K, V> implements SubscriptionState.Listener {
 
             return res;
         }
+
+        private List<ConsumerBatch> drainBatches(int maxRecords) {
+            if (isDrained() || position >= batches.size()) {
+                drain();
+                return Collections.emptyList();
+            }
+
+            // the first batch is returned even if it has more records than the maximum, so that the consumer progresses;
+            // the records are counted by their offsets so that compressed batches are not decompressed
+            int limit = position + 1;
+            while (limit < batches.size() && batches.get(limit).lastOffset() + 1 - fetchOffset <= maxRecords)
+                limit++;
+            List<ConsumerBatch> res = Collections.unmodifiableList(batches.subList(position, limit));
+
+            position = limit;
+            if (position < batches.size())
+                fetchOffset = batches.get(position - 1).lastOffset() + 1;
+
+            return res;
+        }
+    }
+
+    /**
+     * The data fetched for a paused partition: the records it was returning when it was paused, if any, followed by the
+     * fetches completed since.
+     */
+    private static class PausedFetches<K, V> {
+        private PartitionRecords<K, V> records;
+        private final ArrayDeque<CompletedFetch> completedFetches = new ArrayDeque<CompletedFetch>();
+        private long completedFetchesBytes = 0;
+
+        private void add(CompletedFetch completedFetch) {
+            completedFetches.addLast(completedFetch);
+            completedFetchesBytes += completedFetch.partitionData.records.sizeInBytes();
+        }
+
+        private boolean isEmpty() {
+            return records == null && completedFetches.isEmpty();
+        }
+
+        private long fetchOffset() {
+            if (records != null)
+                return records.fetchOffset;
+            return completedFetches.isEmpty() ? -1L : completedFetches.peekFirst().fetchedOffset;
+        }
+
+        private long nextFetchOffset() {
+            if (!completedFetches.isEmpty())
+                return completedFetches.peekLast().nextFetchOffset;
+            return records == null ? -1L : records.nextFetchOffset;
+        }
+
+        private long sizeInBytes() {
+            return (records == null ? 0 : records.sizeInBytes) + completedFetchesBytes;
+        }
     }
 
     private static class CompletedFetch {
         private final TopicPartition partition;
         private final long fetchedOffset;
+        private final long nextFetchOffset; // -1 if unknown or pipelining is disabled
         private final FetchResponse.PartitionData partitionData;
         private final FetchResponseMetricAggregator metricAggregator;
         private final short responseVersion;
 
         private CompletedFetch(TopicPartition partition,
                                long fetchedOffset,
+                               long nextFetchOffset,
                                FetchResponse.PartitionData partitionData,
                                FetchResponseMetricAggregator metricAggregator,
                                short responseVersion) {
             this.partition = partition;
             this.fetchedOffset = fetchedOffset;
+            this.nextFetchOffset = nextFetchOffset;
             this.partitionData = partitionData;
             this.metricAggregator = metricAggregator;
             this.responseVersion = responseVersion;
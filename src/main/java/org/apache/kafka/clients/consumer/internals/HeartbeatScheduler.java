@@ -0,0 +1,223 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer.internals;
+
+import org.apache.kafka.common.utils.KafkaThread;
+import org.apache.kafka.common.utils.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread which runs the heartbeat loops of all the consumers in the JVM that enable
+ * <code>heartbeat.thread.shared</code>, instead of one heartbeat thread per consumer.
+ * <p>
+ * Tasks are kept in a hashed timer wheel: every bucket covers one tick and a task due further out than one turn of the
+ * wheel waits in its bucket for the remaining number of turns. The thread sleeps until the earliest deadline of the
+ * tasks, or until a task is scheduled before it. Scheduling is lock free and may be done from any thread, tasks are
+ * moved into the wheel and run by the scheduler thread only, so a task must never block.
+ */
+public final class HeartbeatScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(HeartbeatScheduler.class);
+
+    private static final long TICK_MS = 5;
+    private static final int WHEEL_SIZE = 512;
+
+    private static HeartbeatScheduler instance = null;
+    private static int references = 0;
+
+    /**
+     * A task run by the scheduler thread.
+     */
+    public interface Task {
+        /**
+         * @param now current time in milliseconds
+         * @return the time at which the task should run next, or a negative value if it should not run again until
+         *         it is scheduled again
+         */
+        long run(long now);
+    }
+
+    private final Time time;
+    private final List<List<Entry>> wheel;
+    private final ConcurrentLinkedQueue<Entry> scheduled = new ConcurrentLinkedQueue();
+    private final KafkaThread thread;
+    private final Object wakeup = new Object();
+    private volatile boolean closed = false;
+    // the time the scheduler thread sleeps until, a task scheduled earlier wakes it up
+    private volatile long nextWakeupMs = 0;
+    private long currentTick;
+
+    /**
+     * Get the scheduler shared by the consumers of this JVM, starting it if needed. Every call must be matched by a
+     * call to {@link #release()}.
+     */
+    public static synchronized HeartbeatScheduler acquire(Time time) {
+        if (instance == null)
+            instance = new HeartbeatScheduler(time);
+        references++;
+        return instance;
+    }
+
+    /**
+     * Release the shared scheduler, the thread stops once the last consumer using it released it.
+     */
+    public static synchronized void release() {
+        if (references > 0 && --references == 0) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    private HeartbeatScheduler(Time time) {
+        this.time = time;
+        this.wheel = new ArrayList(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            this.wheel.add(new ArrayList<Entry>());
+        this.currentTick = time.milliseconds() / TICK_MS;
+        this.thread = new KafkaThread("kafka-coordinator-heartbeat-scheduler", new Runnable() {
+            public void run() {
+                HeartbeatScheduler.this.run();
+            }
+        }, true);
+        this.thread.start();
+    }
+
+    /**
+     * Run the task at the given time, replacing any earlier schedule of the same task.
+     */
+    public void schedule(Task task, long atMs) {
+        scheduled.add(new Entry(task, atMs));
+        if (atMs < nextWakeupMs) {
+            synchronized (wakeup) {
+                wakeup.notify();
+            }
+        }
+    }
+
+    /**
+     * Stop running the task.
+     */
+    public void cancel(Task task) {
+        scheduled.add(new Entry(task, -1));
+    }
+
+    private void close() {
+        closed = true;
+        synchronized (wakeup) {
+            wakeup.notify();
+        }
+    }
+
+    private void run() {
+        // the latest entry of every task, older entries still in the wheel are skipped
+        Map<Task, Entry> current = new IdentityHashMap();
+        List<Entry> due = new ArrayList();
+        log.debug("Heartbeat scheduler started");
+        while (!closed) {
+            for (Entry entry = scheduled.poll(); entry != null; entry = scheduled.poll()) {
+                if (entry.deadlineMs < 0) {
+                    current.remove(entry.task);
+                } else {
+                    current.put(entry.task, entry);
+                    add(entry);
+                }
+            }
+
+            long now = time.milliseconds();
+            long nowTick = now / TICK_MS;
+            // after a long sleep every bucket is visited once, the entries carry their own deadline
+            currentTick = Math.max(currentTick, nowTick - WHEEL_SIZE + 1);
+            for (; currentTick <= nowTick; currentTick++) {
+                Iterator<Entry> iter = wheel.get((int) (currentTick % WHEEL_SIZE)).iterator();
+                while (iter.hasNext()) {
+                    Entry entry = iter.next();
+                    if (current.get(entry.task) != entry) {
+                        iter.remove();
+                    } else if (entry.deadlineMs / TICK_MS <= nowTick) {
+                        iter.remove();
+                        due.add(entry);
+                    }
+                }
+            }
+
+            // the wheel has moved past the current tick, so tasks due again right away run on the next one
+            for (Entry entry : due) {
+                long next = runTask(entry.task, now);
+                if (next < 0) {
+                    current.remove(entry.task);
+                } else {
+                    Entry nextEntry = new Entry(entry.task, next);
+                    current.put(entry.task, nextEntry);
+                    add(nextEntry);
+                }
+            }
+            due.clear();
+
+            long earliestMs = Long.MAX_VALUE;
+            for (Entry entry : current.values())
+                earliestMs = Math.min(earliestMs, entry.deadlineMs);
+            // a task due already runs on the next tick
+            earliestMs = Math.max(earliestMs, currentTick * TICK_MS);
+
+            synchronized (wakeup) {
+                nextWakeupMs = earliestMs;
+                if (!closed && scheduled.isEmpty()) {
+                    try {
+                        if (earliestMs == Long.MAX_VALUE)
+                            wakeup.wait();
+                        else
+                            wakeup.wait(Math.max(1, earliestMs - time.milliseconds()));
+                    } catch (InterruptedException e) {
+                        log.warn("Heartbeat scheduler was interrupted, ignoring", e);
+                    }
+                }
+                nextWakeupMs = 0;
+            }
+        }
+        log.debug("Heartbeat scheduler stopped");
+    }
+
+    private void add(Entry entry) {
+        // a task which is due already runs on the next tick
+        long tick = Math.max(entry.deadlineMs / TICK_MS, currentTick);
+        wheel.get((int) (tick % WHEEL_SIZE)).add(entry);
+    }
+
+    private long runTask(Task task, long now) {
+        try {
+            return task.run(now);
+        } catch (Exception e) {
+            log.error("Uncaught error in heartbeat task {}: ", task, e);
+            return -1;
+        }
+    }
+
+    private static final class Entry {
+        final Task task;
+        final long deadlineMs;
+
+        Entry(Task task, long deadlineMs) {
+            this.task = task;
+            this.deadlineMs = deadlineMs;
+        }
+    }
+
+}
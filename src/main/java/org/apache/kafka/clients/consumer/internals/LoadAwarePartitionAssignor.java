@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer.internals;
+
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An assignor which balances the group by the load of the partitions rather than by their number. Before the
+ * subscription of the local member is built with {@link #subscription(Set)}, the assignor is told the load of the
+ * partitions currently assigned to the member, so that it can pass them on to the leader in the user data.
+ */
+public interface LoadAwarePartitionAssignor extends PartitionAssignor {
+
+    /**
+     * Called with the load of the partitions assigned to the local member before its subscription is built.
+     * @param loads The load of every assigned partition in records per second: the rate at which records were
+     *              consumed from it since it was assigned plus the rate needed to catch up on its current lag
+     */
+    void onPartitionLoads(Map<TopicPartition, Long> loads);
+
+}
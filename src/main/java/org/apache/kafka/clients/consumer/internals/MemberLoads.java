@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer.internals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The load assigned to every member of a group during an assignment, where the load is a partition count or a sum of
+ * partition weights. Members are identified by their position in the member list. Members with the same subscription
+ * form a group that is ordered by load, so the least loaded subscriber of a topic is found by looking at the head of
+ * the groups subscribed to it rather than at every member, which keeps assignments near linear for large groups with
+ * differing subscriptions.
+ */
+public class MemberLoads {
+    private final long[] load;
+    private final int[] memberGroup;
+    private final List<TreeSet<Integer>> groups = new ArrayList();
+    private final Map<String, List<TreeSet<Integer>>> groupsPerTopic = new HashMap();
+
+    /**
+     * @param memberTopics The topics every member is subscribed to, each member starts with no load
+     */
+    public MemberLoads(List<Set<String>> memberTopics) {
+        this.load = new long[memberTopics.size()];
+        this.memberGroup = new int[memberTopics.size()];
+        Comparator<Integer> byLoad = new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareLoads(a, b);
+            }
+        };
+        Map<Set<String>, Integer> groupIndex = new HashMap();
+        for (int i = 0; i < memberTopics.size(); i++) {
+            Set<String> topics = memberTopics.get(i);
+            Integer group = groupIndex.get(topics);
+            if (group == null) {
+                group = groups.size();
+                groupIndex.put(topics, group);
+                TreeSet<Integer> members = new TreeSet(byLoad);
+                groups.add(members);
+                for (String topic : topics)
+                    AbstractPartitionAssignor.put(groupsPerTopic, topic, members);
+            }
+            memberGroup[i] = group;
+            groups.get(group).add(i);
+        }
+    }
+
+    /**
+     * @return The number of distinct subscriptions
+     */
+    public int numGroups() {
+        return groups.size();
+    }
+
+    public long load(int member) {
+        return load[member];
+    }
+
+    public void add(int member, long delta) {
+        TreeSet<Integer> group = groups.get(memberGroup[member]);
+        group.remove(member);
+        load[member] += delta;
+        group.add(member);
+    }
+
+    /**
+     * @return The least loaded member subscribed to the topic, ties are broken by position
+     */
+    public int leastLoaded(String topic) {
+        int best = -1;
+        for (TreeSet<Integer> group : groupsPerTopic.get(topic)) {
+            int candidate = group.first();
+            if (best < 0 || compareLoads(candidate, best) < 0)
+                best = candidate;
+        }
+        return best;
+    }
+
+    public List<Integer> mostLoadedFirst() {
+        List<Integer> members = new ArrayList(load.length);
+        for (int i = 0; i < load.length; i++)
+            members.add(i);
+        Collections.sort(members, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (load[a] != load[b])
+                    return load[a] > load[b] ? -1 : 1;
+                return a - b;
+            }
+        });
+        return members;
+    }
+
+    private int compareLoads(int a, int b) {
+        if (load[a] != load[b])
+            return load[a] < load[b] ? -1 : 1;
+        return a - b;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.consumer.internals;
+
+/**
+ * Tracks the records of a partition which are being processed, possibly out of order, and computes the offset up to
+ * which all of them are done (the watermark), which is the offset that can safely be committed.
+ * <p>
+ * Records must be added in offset order. They are kept in a circular buffer in that order, each with a completion
+ * flag, and the watermark moves forward over the completed records at the head of the buffer. Offsets do not need to
+ * be contiguous (e.g. with compacted topics). This class is thread safe.
+ */
+public final class OffsetTracker {
+
+    private long[] offsets;
+    private boolean[] completed;
+    private int head = 0;
+    private int size = 0;
+    // the sequence number of the record at the head, every added record gets the next sequence number
+    private long headSequence = 0;
+    private long watermark;
+
+    /**
+     * @param watermark The offset to commit while no record has completed (usually the position of the partition)
+     */
+    public OffsetTracker(long watermark, int initialCapacity) {
+        this.offsets = new long[Math.max(1, initialCapacity)];
+        this.completed = new boolean[offsets.length];
+        this.watermark = watermark;
+    }
+
+    /**
+     * Add the next record of the partition.
+     * @return The sequence number to pass to {@link #complete(long)} once the record has been processed
+     */
+    public synchronized long add(long offset) {
+        if (size == offsets.length)
+            grow();
+        int index = (head + size) % offsets.length;
+        offsets[index] = offset;
+        completed[index] = false;
+        size++;
+        return headSequence + size - 1;
+    }
+
+    /**
+     * Mark the record with the given sequence number done and move the watermark over the records completed in order.
+     */
+    public synchronized void complete(long sequence) {
+        long position = sequence - headSequence;
+        if (position < 0 || position >= size)
+            throw new IllegalArgumentException("Unknown record sequence " + sequence);
+        completed[(int) ((head + position) % offsets.length)] = true;
+        while (size > 0 && completed[head]) {
+            watermark = offsets[head] + 1;
+            head = (head + 1) % offsets.length;
+            size--;
+            headSequence++;
+        }
+    }
+
+    /**
+     * @return The offset following the last record of the completed prefix, which can be committed
+     */
+    public synchronized long watermark() {
+        return watermark;
+    }
+
+    /**
+     * @return The number of records added but not yet covered by the watermark
+     */
+    public synchronized int pending() {
+        return size;
+    }
+
+    private void grow() {
+        long[] newOffsets = new long[offsets.length * 2];
+        boolean[] newCompleted = new boolean[newOffsets.length];
+        for (int i = 0; i < size; i++) {
+            newOffsets[i] = offsets[(head + i) % offsets.length];
+            newCompleted[i] = completed[(head + i) % offsets.length];
+        }
+        this.offsets = newOffsets;
+        this.completed = newCompleted;
+        this.head = 0;
+    }
+
+}
@@ -17,6 +17,7 @@ import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.consumer.OffsetResetStrategy;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.internals.PartitionStates;
+import org.apache.kafka.common.utils.Time;
 
 import java.util.*;
 import java.util.regex.Pattern;
@@ -45,6 +46,9 @@ public class SubscriptionState {
     private static final String SUBSCRIPTION_EXCEPTION_MESSAGE =
             "Subscription to topics, partitions and pattern are mutually exclusive";
 
+    // the time within which the lag of a partition should be consumed, used to express the lag as a load
+    private static final long LAG_CATCH_UP_MS = 60 * 1000L;
+
     private enum SubscriptionType {
         NONE, AUTO_TOPICS, AUTO_PATTERN, USER_ASSIGNED
     }
@@ -76,7 +80,15 @@ public class SubscriptionState {
     /* Listeners provide a hook for internal state cleanup (e.g. metrics) on assignment changes */
     private List<Listener> listeners = new ArrayList();
 
+    /* used to measure the load of the partitions since they were assigned */
+    private final Time time;
+
     public SubscriptionState(OffsetResetStrategy defaultResetStrategy) {
+        this(defaultResetStrategy, Time.SYSTEM);
+    }
+
+    public SubscriptionState(OffsetResetStrategy defaultResetStrategy, Time time) {
+        this.time = time;
         this.defaultResetStrategy = defaultResetStrategy;
         this.subscription = Collections.emptySet();
         this.assignment = new PartitionStates();
@@ -158,7 +170,7 @@ public class SubscriptionState {
             for (TopicPartition partition : partitions) {
                 TopicPartitionState state = assignment.stateValue(partition);
                 if (state == null)
-                    state = new TopicPartitionState();
+                    state = new TopicPartitionState(time.milliseconds());
                 partitionToState.put(partition, state);
             }
             this.assignment.set(partitionToState);
@@ -193,6 +205,30 @@ public class SubscriptionState {
         this.needsFetchCommittedOffsets = true;
     }
 
+    /**
+     * Change the assignment to the specified partitions returned from the coordinator like
+     * {@link #assignFromSubscribed(Collection)}, but keep the state (position, committed offset, pause) of
+     * the partitions which stay assigned. This is used by the cooperative rebalance protocol, where the
+     * consumer keeps fetching the partitions that do not change owner.
+     */
+    public void retainFromSubscribed(Collection<TopicPartition> assignments) {
+        Map<TopicPartition, TopicPartitionState> assignedPartitionStates = new HashMap(assignments.size());
+        boolean added = false;
+        for (TopicPartition tp : assignments) {
+            TopicPartitionState state = assignment.stateValue(tp);
+            if (state == null) {
+                state = new TopicPartitionState(time.milliseconds());
+                added = true;
+            }
+            assignedPartitionStates.put(tp, state);
+        }
+        boolean refreshNeeded = this.needsFetchCommittedOffsets;
+        // validates the assignment and notifies the listeners, then the retained states are put back
+        assignFromSubscribed(assignments);
+        this.assignment.set(assignedPartitionStates);
+        this.needsFetchCommittedOffsets = refreshNeeded || added;
+    }
+
     public void subscribe(Pattern pattern, ConsumerRebalanceListener listener) {
         if (listener == null)
             throw new IllegalArgumentException("RebalanceListener cannot be null");
@@ -229,9 +265,9 @@ public class SubscriptionState {
 
     public Set<TopicPartition> pausedPartitions() {
         HashSet<TopicPartition> paused = new HashSet();
-        for (PartitionStates.PartitionState<TopicPartitionState> state : assignment.partitionStates()) {
-            if (state.value().paused) {
-                paused.add(state.topicPartition());
+        for (int slot = assignment.first(); slot >= 0; slot = assignment.next(slot)) {
+            if (assignment.stateAt(slot).paused) {
+                paused.add(assignment.partitionAt(slot));
             }
         }
         return paused;
@@ -288,13 +324,22 @@ public class SubscriptionState {
 
     public List<TopicPartition> fetchablePartitions() {
         List<TopicPartition> fetchable = new ArrayList(assignment.size());
-        for (PartitionStates.PartitionState<TopicPartitionState> state : assignment.partitionStates()) {
-            if (state.value().isFetchable())
-                fetchable.add(state.topicPartition());
-        }
+        fetchablePartitions(Collections.<TopicPartition>emptySet(), fetchable);
         return fetchable;
     }
 
+    /**
+     * Add the fetchable partitions which are not excluded to the given list, in fetch order. This allows the caller to
+     * reuse the list between fetches.
+     */
+    public void fetchablePartitions(Set<TopicPartition> exclude, List<TopicPartition> fetchable) {
+        for (int slot = assignment.first(); slot >= 0; slot = assignment.next(slot)) {
+            TopicPartition tp = assignment.partitionAt(slot);
+            if (assignment.stateAt(slot).isFetchable() && !exclude.contains(tp))
+                fetchable.add(tp);
+        }
+    }
+
     public boolean partitionsAutoAssigned() {
         return this.subscriptionType == SubscriptionType.AUTO_TOPICS || this.subscriptionType == SubscriptionType.AUTO_PATTERN;
     }
@@ -316,11 +361,39 @@ public class SubscriptionState {
         assignedState(tp).highWatermark = highWatermark;
     }
 
+    /**
+     * Record that the given number of records of the partition were returned by poll. Seeks are not consumption.
+     */
+    public void consumed(TopicPartition tp, long records) {
+        assignedState(tp).consumed += records;
+    }
+
+    /**
+     * The load of every assigned partition in records per second. This is the rate at which records were consumed
+     * since the partition was assigned (over at least a second), plus the rate needed to consume its current lag (if
+     * known) within a minute. The lag is not averaged over the time since the assignment, so a
+     * partition which fell behind weighs as much after an hour as right after it was assigned.
+     */
+    public Map<TopicPartition, Long> partitionLoads() {
+        long now = time.milliseconds();
+        Map<TopicPartition, Long> loads = new HashMap();
+        for (int slot = assignment.first(); slot >= 0; slot = assignment.next(slot)) {
+            TopicPartitionState partitionState = assignment.stateAt(slot);
+            long elapsedMs = Math.max(1000, now - partitionState.assignedMs);
+            long load = partitionState.consumed * 1000 / elapsedMs;
+            if (partitionState.highWatermark != null && partitionState.position != null)
+                load += Math.max(0, partitionState.highWatermark - partitionState.position) * 1000 / LAG_CATCH_UP_MS;
+            loads.put(assignment.partitionAt(slot), load);
+        }
+        return loads;
+    }
+
     public Map<TopicPartition, OffsetAndMetadata> allConsumed() {
         Map<TopicPartition, OffsetAndMetadata> allConsumed = new HashMap();
-        for (PartitionStates.PartitionState<TopicPartitionState> state : assignment.partitionStates()) {
-            if (state.value().hasValidPosition())
-                allConsumed.put(state.topicPartition(), new OffsetAndMetadata(state.value().position));
+        for (int slot = assignment.first(); slot >= 0; slot = assignment.next(slot)) {
+            TopicPartitionState state = assignment.stateAt(slot);
+            if (state.hasValidPosition())
+                allConsumed.put(assignment.partitionAt(slot), new OffsetAndMetadata(state.position));
         }
         return allConsumed;
     }
@@ -353,14 +426,17 @@ public class SubscriptionState {
     }
 
     public boolean hasAllFetchPositions() {
-        return hasAllFetchPositions(this.assignedPartitions());
+        for (int slot = assignment.first(); slot >= 0; slot = assignment.next(slot))
+            if (!assignment.stateAt(slot).hasValidPosition())
+                return false;
+        return true;
     }
 
     public Set<TopicPartition> missingFetchPositions() {
         Set<TopicPartition> missing = new HashSet();
-        for (PartitionStates.PartitionState<TopicPartitionState> state : assignment.partitionStates()) {
-            if (!state.value().hasValidPosition())
-                missing.add(state.topicPartition());
+        for (int slot = assignment.first(); slot >= 0; slot = assignment.next(slot)) {
+            if (!assignment.stateAt(slot).hasValidPosition())
+                missing.add(assignment.partitionAt(slot));
         }
         return missing;
     }
@@ -370,15 +446,18 @@ public class SubscriptionState {
     }
 
     public boolean isPaused(TopicPartition tp) {
-        return isAssigned(tp) && assignedState(tp).paused;
+        TopicPartitionState state = assignment.stateValue(tp);
+        return state != null && state.paused;
     }
 
     public boolean isFetchable(TopicPartition tp) {
-        return isAssigned(tp) && assignedState(tp).isFetchable();
+        TopicPartitionState state = assignment.stateValue(tp);
+        return state != null && state.isFetchable();
     }
 
     public boolean hasValidPosition(TopicPartition tp) {
-        return isAssigned(tp) && assignedState(tp).hasValidPosition();
+        TopicPartitionState state = assignment.stateValue(tp);
+        return state != null && state.hasValidPosition();
     }
 
     public void pause(TopicPartition tp) {
@@ -406,10 +485,11 @@ public class SubscriptionState {
             listener.onAssignment(assignment);
     }
 
-    private static Map<TopicPartition, TopicPartitionState> partitionToStateMap(Collection<TopicPartition> assignments) {
+    private Map<TopicPartition, TopicPartitionState> partitionToStateMap(Collection<TopicPartition> assignments) {
+        long now = time.milliseconds();
         Map<TopicPartition, TopicPartitionState> map = new HashMap(assignments.size());
         for (TopicPartition tp : assignments)
-            map.put(tp, new TopicPartitionState());
+            map.put(tp, new TopicPartitionState(now));
         return map;
     }
 
@@ -419,8 +499,11 @@ public class SubscriptionState {
         private OffsetAndMetadata committed;  // last committed position
         private boolean paused;  // whether this partition has been paused by the user
         private OffsetResetStrategy resetStrategy;  // the strategy to use if the offset needs resetting
+        private long consumed; // the number of records returned by poll since the partition was assigned
+        private final long assignedMs; // when the partition was assigned
 
-        public TopicPartitionState() {
+        public TopicPartitionState(long assignedMs) {
+            this.assignedMs = assignedMs;
             this.paused = false;
             this.position = null;
             this.highWatermark = null;
@@ -13,9 +13,13 @@
 package org.apache.kafka.clients.producer;
 
 import org.apache.kafka.clients.ClientUtils;
+import org.apache.kafka.clients.KafkaClient;
 import org.apache.kafka.clients.Metadata;
 import org.apache.kafka.clients.NetworkClient;
+import org.apache.kafka.clients.consumer.ConsumerBatch;
+import org.apache.kafka.clients.producer.internals.CallbackExecutor;
 import org.apache.kafka.clients.producer.internals.ProducerInterceptors;
+import org.apache.kafka.clients.producer.internals.ProducerSpool;
 import org.apache.kafka.clients.producer.internals.RecordAccumulator;
 import org.apache.kafka.clients.producer.internals.Sender;
 import org.apache.kafka.common.*;
@@ -24,8 +28,10 @@ import org.apache.kafka.common.errors.*;
 import org.apache.kafka.common.internals.ClusterResourceListeners;
 import org.apache.kafka.common.metrics.*;
 import org.apache.kafka.common.network.ChannelBuilder;
+import org.apache.kafka.common.network.NetworkReceive;
 import org.apache.kafka.common.network.Selector;
 import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.LogEntry;
 import org.apache.kafka.common.record.Record;
 import org.apache.kafka.common.record.Records;
 import org.apache.kafka.common.serialization.Serializer;
@@ -35,6 +41,8 @@ import org.apache.kafka.common.utils.Time;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
@@ -125,7 +133,9 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
     private final RecordAccumulator accumulator;
     private final Sender sender;
     private final Metrics metrics;
-    private final Thread ioThread;
+    private final List<Thread> ioThreads;
+    private final CallbackExecutor callbackExecutor;
+    private final ProducerSpool spool;
     private final CompressionType compressionType;
     private final Sensor errors;
     private final Time time;
@@ -274,32 +284,70 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
                 this.requestTimeoutMs = config.getInt(ProducerConfig.REQUEST_TIMEOUT_MS_CONFIG);
             }
 
+            int callbackThreads = config.getInt(ProducerConfig.CALLBACK_THREADS_CONFIG);
+            if (callbackThreads > 0)
+                this.callbackExecutor = new CallbackExecutor(callbackThreads,
+                        config.getInt(ProducerConfig.CALLBACK_QUEUE_SIZE_CONFIG),
+                        "kafka-producer-callback-thread" + (clientId.length() > 0 ? " | " + clientId : ""),
+                        metrics,
+                        time);
+            else
+                this.callbackExecutor = null;
+            String spoolDir = config.getString(ProducerConfig.SPOOL_DIR_CONFIG);
+            if (spoolDir.length() > 0) {
+                try {
+                    this.spool = new ProducerSpool(new File(spoolDir),
+                            config.getInt(ProducerConfig.SPOOL_SEGMENT_BYTES_CONFIG),
+                            config.getLong(ProducerConfig.SPOOL_MAX_BYTES_CONFIG));
+                } catch (IOException e) {
+                    throw new KafkaException("Failed to open the producer spool " + spoolDir, e);
+                }
+            } else {
+                this.spool = null;
+            }
             this.accumulator = new RecordAccumulator(config.getInt(ProducerConfig.BATCH_SIZE_CONFIG),
                     this.totalMemorySize,
                     this.compressionType,
                     config.getLong(ProducerConfig.LINGER_MS_CONFIG),
                     retryBackoffMs,
+                    this.callbackExecutor,
+                    this.spool,
                     metrics,
                     time);
 
             List<InetSocketAddress> addresses = ClientUtils.parseAndValidateAddresses(config.getList(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG));
             this.metadata.update(Cluster.bootstrap(addresses), time.milliseconds());
             ChannelBuilder channelBuilder = ClientUtils.createChannelBuilder(config.values());
-            NetworkClient client = new NetworkClient(
-                    new Selector(config.getLong(ProducerConfig.CONNECTIONS_MAX_IDLE_MS_CONFIG), this.metrics, time, "producer", channelBuilder),
-                    this.metadata,
-                    clientId,
-                    config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION),
-                    config.getLong(ProducerConfig.RECONNECT_BACKOFF_MS_CONFIG),
-                    config.getInt(ProducerConfig.SEND_BUFFER_CONFIG),
-                    config.getInt(ProducerConfig.RECEIVE_BUFFER_CONFIG),
-                    this.requestTimeoutMs,
-                    time,
-                    true);
-            this.sender = new Sender(client,
+            int senderThreads = config.getInt(ProducerConfig.SENDER_THREADS_CONFIG);
+            List<KafkaClient> clients = new ArrayList(senderThreads);
+            for (int i = 0; i < senderThreads; i++) {
+                // the first shard keeps the untagged selector metrics of a single threaded producer
+                Map<String, String> selectorTags = new LinkedHashMap();
+                if (i > 0)
+                    selectorTags.put("sender-thread", String.valueOf(i));
+                // the first shard sends the metadata requests, the others only read the metadata it maintains
+                NetworkClient client = new NetworkClient(
+                        new Selector(NetworkReceive.UNLIMITED, config.getLong(ProducerConfig.CONNECTIONS_MAX_IDLE_MS_CONFIG),
+                                this.metrics, time, "producer", selectorTags, true, channelBuilder),
+                        this.metadata,
+                        i == 0 ? null : clients.get(0),
+                        clientId,
+                        config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION),
+                        config.getInt(ProducerConfig.MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_CONFIG),
+                        config.getLong(ProducerConfig.MAX_IN_FLIGHT_BYTES_PER_CONNECTION_CONFIG),
+                        config.getLong(ProducerConfig.RECONNECT_BACKOFF_MS_CONFIG),
+                        config.getInt(ProducerConfig.SEND_BUFFER_CONFIG),
+                        config.getInt(ProducerConfig.RECEIVE_BUFFER_CONFIG),
+                        this.requestTimeoutMs,
+                        time,
+                        true);
+                clients.add(client);
+            }
+            this.sender = new Sender(clients,
                     this.metadata,
                     this.accumulator,
                     config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION) == 1,
+                    config.getInt(ProducerConfig.CONNECTIONS_PER_BROKER_CONFIG),
                     config.getInt(ProducerConfig.MAX_REQUEST_SIZE_CONFIG),
                     (short) parseAcks(config.getString(ProducerConfig.ACKS_CONFIG)),
                     config.getInt(ProducerConfig.RETRIES_CONFIG),
@@ -307,8 +355,13 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
                     Time.SYSTEM,
                     this.requestTimeoutMs);
             String ioThreadName = "kafka-producer-network-thread" + (clientId.length() > 0 ? " | " + clientId : "");
-            this.ioThread = new KafkaThread(ioThreadName, this.sender, true);
-            this.ioThread.start();
+            this.ioThreads = new ArrayList(senderThreads);
+            for (int i = 0; i < senderThreads; i++) {
+                String name = senderThreads > 1 ? ioThreadName + "-" + i : ioThreadName;
+                this.ioThreads.add(new KafkaThread(name, this.sender.shard(i), true));
+            }
+            for (Thread ioThread : this.ioThreads)
+                ioThread.start();
 
             this.errors = this.metrics.sensor("errors");
 
@@ -325,6 +378,14 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         }
     }
 
+    private static boolean anyAlive(List<Thread> threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive())
+                return true;
+        }
+        return false;
+    }
+
     private static int parseAcks(String acksString) {
         try {
             return acksString.trim().equalsIgnoreCase("all") ? -1 : Integer.parseInt(acksString.trim());
@@ -420,6 +481,97 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         return doSend(interceptedRecord, callback);
     }
 
+    /**
+     * Asynchronously send records which are already in the wire format to a partition, for instance a slice of a
+     * segment file archived from another cluster. The records are neither deserialized nor rebuilt: they are queued
+     * after the records already sent to the partition and sent as they are in a produce request of their own, and
+     * records in a file, such as a slice of {@link org.apache.kafka.common.record.FileRecords}, are written from the
+     * file to the socket with {@link java.nio.channels.FileChannel#transferTo(long, long,
+     * java.nio.channels.WritableByteChannel)}. The broker assigns new offsets to the records. Interceptors are not
+     * invoked.
+     * <p>
+     * The records are owned by the caller and must not be modified or closed until the send is complete. Their size
+     * must not exceed <code>max.request.size</code>, they do not count against <code>buffer.memory</code> and they
+     * are not written to the spool. The future and the callback return the offset of the first record.
+     *
+     * @param partition The partition to send the records to
+     * @param records The records, which must be complete entries
+     * @param callback A user-supplied callback to execute when the records have been acknowledged by the server (null
+     *        indicates no callback)
+     *
+     * @throws InterruptException If the thread is interrupted while blocked on metadata
+     * @throws TimeoutException If the time taken for fetching metadata has surpassed <code>max.block.ms</code>.
+     * @throws KafkaException If a Kafka related error occurs that does not belong to the public API exceptions.
+     */
+    public Future<RecordMetadata> sendRecords(TopicPartition partition, Records records, Callback callback) {
+        return doSendRecords(partition, records, -1, callback);
+    }
+
+    /**
+     * Asynchronously send a batch returned by {@link org.apache.kafka.clients.consumer.KafkaConsumer#pollBatches(long)}
+     * to a partition, typically of another cluster, as {@link #sendRecords(TopicPartition, Records, Callback)} does:
+     * a compressed batch is sent as it is, without being decompressed and compressed again. The broker assigns new
+     * offsets to the records, and validates their format and timestamps as it does for any produce request.
+     *
+     * @param partition The partition to send the batch to
+     * @param batch The batch
+     * @param callback A user-supplied callback to execute when the batch has been acknowledged by the server (null
+     *        indicates no callback)
+     *
+     * @throws InterruptException If the thread is interrupted while blocked on metadata
+     * @throws TimeoutException If the time taken for fetching metadata has surpassed <code>max.block.ms</code>.
+     * @throws KafkaException If a Kafka related error occurs that does not belong to the public API exceptions.
+     */
+    public Future<RecordMetadata> sendBatch(TopicPartition partition, ConsumerBatch batch, Callback callback) {
+        // the records of a compressed batch are not counted, which would decompress them
+        int recordCount = batch.compressionType() == CompressionType.NONE ? batch.recordCount() : -1;
+        return doSendRecords(partition, batch.records(), recordCount, callback);
+    }
+
+    /**
+     * Implementation of asynchronously send records which are already in the wire format.
+     * @param recordCount The number of records, or -1 to check the records and count their shallow entries
+     */
+    private Future<RecordMetadata> doSendRecords(TopicPartition partition, Records records, int recordCount,
+                                                 Callback callback) {
+        try {
+            ClusterAndWaitTime clusterAndWaitTime = waitOnMetadata(partition.topic(), partition.partition(), maxBlockTimeMs);
+            long remainingWaitMs = Math.max(0, maxBlockTimeMs - clusterAndWaitTime.waitedOnMetadataMs);
+            ensureValidRecordsSize(records.sizeInBytes());
+            if (recordCount < 0) {
+                // reading the shallow entries only reads their headers, it checks that the records end with a complete entry
+                int entries = 0;
+                int entriesSize = 0;
+                for (LogEntry entry : records.shallowEntries()) {
+                    entries++;
+                    entriesSize += entry.sizeInBytes();
+                }
+                if (entries == 0 || entriesSize != records.sizeInBytes())
+                    throw new IllegalArgumentException("The records sent to " + partition + " must be complete entries, " +
+                            records.sizeInBytes() + " bytes were given and " + entriesSize + " bytes are complete entries");
+                // the record count of the metrics counts compressed wrappers as one record
+                recordCount = entries;
+            }
+            log.trace("Sending {} bytes of pre-built records with callback {} to {}",
+                    new Object[]{records.sizeInBytes(), callback, partition});
+            RecordAccumulator.RecordAppendResult result = accumulator.appendPrebuilt(partition, records, recordCount, callback, remainingWaitMs);
+            this.sender.wakeup();
+            return result.future;
+        } catch (ApiException e) {
+            log.debug("Exception occurred during records send:", e);
+            if (callback != null)
+                callback.onCompletion(null, e);
+            this.errors.record();
+            return new FutureFailure(e);
+        } catch (InterruptedException e) {
+            this.errors.record();
+            throw new InterruptException(e);
+        } catch (KafkaException e) {
+            this.errors.record();
+            throw e;
+        }
+    }
+
     /**
      * Implementation of asynchronously send a record to a topic.
      */
@@ -549,6 +701,17 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         return new ClusterAndWaitTime(cluster, elapsed);
     }
 
+    /**
+     * Validate that pre-built records fit in a request, they do not use the buffer memory
+     */
+    private void ensureValidRecordsSize(int size) {
+        if (size > this.maxRequestSize)
+            throw new RecordTooLargeException("The records are " + size +
+                                              " bytes which is larger than the maximum request size you have configured with the " +
+                                              ProducerConfig.MAX_REQUEST_SIZE_CONFIG +
+                                              " configuration.");
+    }
+
     /**
      * Validate that the record size isn't too large
      */
@@ -665,7 +828,8 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         log.info("Closing the Kafka producer with timeoutMillis = {} ms.", timeUnit.toMillis(timeout));
         // this will keep track of the first encountered exception
         AtomicReference<Throwable> firstException = new AtomicReference<Throwable>();
-        boolean invokedFromCallback = Thread.currentThread() == this.ioThread;
+        boolean invokedFromCallback = (this.ioThreads != null && this.ioThreads.contains(Thread.currentThread()))
+                || (this.callbackExecutor != null && this.callbackExecutor.inCallbackThread());
         if (timeout > 0) {
             if (invokedFromCallback) {
                 log.warn("Overriding close timeout {} ms to 0 ms in order to prevent useless blocking due to self-join. " +
@@ -674,9 +838,11 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
                 // Try to close gracefully.
                 if (this.sender != null)
                     this.sender.initiateClose();
-                if (this.ioThread != null) {
+                if (this.ioThreads != null) {
                     try {
-                        this.ioThread.join(timeUnit.toMillis(timeout));
+                        long deadline = time.milliseconds() + timeUnit.toMillis(timeout);
+                        for (Thread ioThread : this.ioThreads)
+                            ioThread.join(Math.max(1, deadline - time.milliseconds()));
                     } catch (InterruptedException t) {
                         firstException.compareAndSet(null, t);
                         log.error("Interrupted while joining ioThread", t);
@@ -685,20 +851,40 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
             }
         }
 
-        if (this.sender != null && this.ioThread != null && this.ioThread.isAlive()) {
+        if (this.sender != null && this.ioThreads != null && anyAlive(this.ioThreads)) {
             log.info("Proceeding to force close the producer since pending requests could not be completed " +
                 "within timeout {} ms.", timeout);
             this.sender.forceClose();
             // Only join the sender thread when not calling from callback.
             if (!invokedFromCallback) {
                 try {
-                    this.ioThread.join();
+                    for (Thread ioThread : this.ioThreads)
+                        ioThread.join();
                 } catch (InterruptedException e) {
                     firstException.compareAndSet(null, e);
                 }
             }
         }
 
+        // the sender threads are done, let the callback threads run the completions they still have queued
+        if (this.callbackExecutor != null) {
+            try {
+                this.callbackExecutor.close(invokedFromCallback ? 0 : timeUnit.toMillis(timeout));
+            } catch (InterruptedException e) {
+                firstException.compareAndSet(null, e);
+            }
+        }
+
+        if (this.accumulator != null) {
+            try {
+                this.accumulator.closeSpool();
+            } catch (InterruptedException e) {
+                firstException.compareAndSet(null, e);
+            }
+        }
+
+        // the sender threads wrote the batches they could not send to the spool
+        ClientUtils.closeQuietly(spool, "producer spool", firstException);
         ClientUtils.closeQuietly(interceptors, "producer interceptors", firstException);
         ClientUtils.closeQuietly(metrics, "producer metrics", firstException);
         ClientUtils.closeQuietly(keySerializer, "producer keySerializer", firstException);
@@ -16,11 +16,14 @@
  */
 package org.apache.kafka.clients.producer;
 
+import org.apache.kafka.clients.consumer.ConsumerBatch;
 import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
 import org.apache.kafka.clients.producer.internals.FutureRecordMetadata;
 import org.apache.kafka.clients.producer.internals.ProduceRequestResult;
 import org.apache.kafka.common.*;
+import org.apache.kafka.common.record.LogEntry;
 import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.Records;
 import org.apache.kafka.common.serialization.Serializer;
 
 import java.util.*;
@@ -39,6 +42,7 @@ public class MockProducer<K, V> implements Producer<K, V> {
     private final Cluster cluster;
     private final Partitioner partitioner;
     private final List<ProducerRecord<K, V>> sent;
+    private final List<Records> sentRecords;
     private final org.apache.kafka.common.utils.Deque<Completion> completions;
     private boolean autoComplete;
     private Map<TopicPartition, Long> offsets;
@@ -65,6 +69,7 @@ public class MockProducer<K, V> implements Producer<K, V> {
         this.valueSerializer = valueSerializer;
         this.offsets = new HashMap<TopicPartition, Long>();
         this.sent = new ArrayList<ProducerRecord<K, V>>();
+        this.sentRecords = new ArrayList<Records>();
         this.completions = new org.apache.kafka.common.utils.ArrayDeque<Completion>();
     }
 
@@ -119,6 +124,40 @@ public class MockProducer<K, V> implements Producer<K, V> {
         return future;
     }
 
+    /**
+     * Adds the records to the list of sent pre-built records. The offset of the first record is returned.
+     *
+     * @see #recordsHistory()
+     */
+    public synchronized Future<RecordMetadata> sendRecords(TopicPartition partition, Records records, Callback callback) {
+        ProduceRequestResult result = new ProduceRequestResult(partition);
+        FutureRecordMetadata future = new FutureRecordMetadata(result, 0, Record.NO_TIMESTAMP, 0, 0, 0);
+        long offset = -1L;
+        for (LogEntry entry : records.deepEntries()) {
+            long next = nextOffset(partition);
+            if (offset < 0)
+                offset = next;
+        }
+        Completion completion = new Completion(offset,
+                                               new RecordMetadata(partition, 0, offset, Record.NO_TIMESTAMP, 0, 0, 0),
+                                               result, callback);
+        this.sentRecords.add(records);
+        if (autoComplete)
+            completion.complete(null);
+        else
+            this.completions.addLast(completion);
+        return future;
+    }
+
+    /**
+     * Adds the records of the batch to the list of sent pre-built records.
+     *
+     * @see #recordsHistory()
+     */
+    public synchronized Future<RecordMetadata> sendBatch(TopicPartition partition, ConsumerBatch batch, Callback callback) {
+        return sendRecords(partition, batch.records(), callback);
+    }
+
     /**
      * Get the next offset for this topic/partition
      */
@@ -160,11 +199,19 @@ public class MockProducer<K, V> implements Producer<K, V> {
         return new ArrayList<ProducerRecord<K, V>>(this.sent);
     }
 
+    /**
+     * Get the list of pre-built records sent since the last call to {@link #clear()}
+     */
+    public synchronized List<Records> recordsHistory() {
+        return new ArrayList<Records>(this.sentRecords);
+    }
+
     /**
      * Clear the stored history of sent records
      */
     public synchronized void clear() {
         this.sent.clear();
+        this.sentRecords.clear();
         this.completions.clear();
     }
 
@@ -185,6 +185,60 @@ public class ProducerConfig extends AbstractConfig {
                                                                             + " Note that if this setting is set to be greater than 1 and there are failed sends, there is a risk of"
                                                                             + " message re-ordering due to retries (i.e., if retries are enabled).";
 
+    /** <code>connections.per.broker</code> */
+    public static final String CONNECTIONS_PER_BROKER_CONFIG = "connections.per.broker";
+    private static final String CONNECTIONS_PER_BROKER_DOC = "The number of connections the producer opens to each broker for sending produce requests."
+                                                             + " Drained batches are spread over the connections of a broker, which helps to saturate fast links"
+                                                             + " where a single connection is limited by its in-flight window or by SSL. A partition never has more"
+                                                             + " than one batch drained per send iteration, and ordering across connections is only guaranteed when"
+                                                             + " <code>" + MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION + "</code> is set to 1.";
+
+    /** <code>sender.threads</code> */
+    public static final String SENDER_THREADS_CONFIG = "sender.threads";
+    private static final String SENDER_THREADS_DOC = "The number of I/O threads the producer uses to send produce requests. The brokers are sharded over"
+                                                     + " the threads, each of which has its own network client and drains the record accumulator only for"
+                                                     + " the brokers it owns. Unless <code>callback.threads</code> is set, completion callbacks run on the thread of the broker the batch was sent to.";
+
+    /** <code>callback.threads</code> */
+    public static final String CALLBACK_THREADS_CONFIG = "callback.threads";
+    private static final String CALLBACK_THREADS_DOC = "The number of threads used to invoke the send callbacks. With the default of 0 callbacks are invoked by the"
+                                                       + " I/O thread, so slow callbacks delay the sending of all partitions. Otherwise every partition is mapped to"
+                                                       + " one callback thread, which keeps the callbacks of a partition in order.";
+
+    /** <code>callback.queue.size</code> */
+    public static final String CALLBACK_QUEUE_SIZE_CONFIG = "callback.queue.size";
+    private static final String CALLBACK_QUEUE_SIZE_DOC = "The maximum number of completed batches waiting for each callback thread. When it is reached,"
+                                                          + " <code>send()</code> blocks before starting a new batch for a partition of that thread, for up to"
+                                                          + " <code>" + MAX_BLOCK_MS_CONFIG + "</code>. The I/O thread never blocks on the queue. Only used when"
+                                                          + " <code>" + CALLBACK_THREADS_CONFIG + "</code> is positive.";
+
+    /** <code>spool.dir</code> */
+    public static final String SPOOL_DIR_CONFIG = "spool.dir";
+    private static final String SPOOL_DIR_DOC = "A directory where the producer writes the batches it cannot keep in <code>" + BUFFER_MEMORY_CONFIG + "</code>,"
+                                                + " instead of blocking <code>send()</code> until the brokers catch up, for instance while they are unreachable."
+                                                + " The spool is written and read by a background thread. The batches are sent"
+                                                + " in order once the brokers are back and the batches left in the directory when the producer stops are sent"
+                                                + " by the next producer using it, so records may be sent twice. Batches in the spool are not expired while they wait,"
+                                                + " the ones still in memory are expired after <code>request.timeout.ms</code> as usual. When the producer is closed"
+                                                + " forcefully, the sends kept in the spool fail with a <code>SpooledRecordsException</code>."
+                                                + " The directory can only be used by one producer at a time. Disabled when empty.";
+
+    /** <code>spool.max.bytes</code> */
+    public static final String SPOOL_MAX_BYTES_CONFIG = "spool.max.bytes";
+    private static final String SPOOL_MAX_BYTES_DOC = "The maximum number of bytes of the batches in <code>" + SPOOL_DIR_CONFIG + "</code>. When it is reached,"
+                                                      + " <code>send()</code> blocks as it does without a spool.";
+
+    /** <code>spool.segment.bytes</code> */
+    public static final String SPOOL_SEGMENT_BYTES_CONFIG = "spool.segment.bytes";
+    private static final String SPOOL_SEGMENT_BYTES_DOC = "The size of the files the batches of a partition are written to in <code>" + SPOOL_DIR_CONFIG + "</code>."
+                                                          + " A file is deleted once all of its batches have been acknowledged.";
+
+    /** <code>max.in.flight.control.requests.per.connection</code> */
+    public static final String MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_CONFIG = CommonClientConfigs.MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_CONFIG;
+
+    /** <code>max.in.flight.bytes.per.connection</code> */
+    public static final String MAX_IN_FLIGHT_BYTES_PER_CONNECTION_CONFIG = CommonClientConfigs.MAX_IN_FLIGHT_BYTES_PER_CONNECTION_CONFIG;
+
     /** <code>retries</code> */
     public static final String RETRIES_CONFIG = "retries";
     private static final String RETRIES_DOC = "Setting a value greater than zero will cause the client to resend any record whose send fails with a potentially transient error."
@@ -279,6 +333,55 @@ public class ProducerConfig extends AbstractConfig {
                                         atLeast(1),
                                         Importance.LOW,
                                         MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION_DOC)
+                                .define(CONNECTIONS_PER_BROKER_CONFIG,
+                                        Type.INT,
+                                        1,
+                                        atLeast(1),
+                                        Importance.LOW,
+                                        CONNECTIONS_PER_BROKER_DOC)
+                                .define(SENDER_THREADS_CONFIG,
+                                        Type.INT,
+                                        1,
+                                        atLeast(1),
+                                        Importance.LOW,
+                                        SENDER_THREADS_DOC)
+                                .define(CALLBACK_THREADS_CONFIG,
+                                        Type.INT,
+                                        0,
+                                        atLeast(0),
+                                        Importance.LOW,
+                                        CALLBACK_THREADS_DOC)
+                                .define(CALLBACK_QUEUE_SIZE_CONFIG,
+                                        Type.INT,
+                                        1000,
+                                        atLeast(1),
+                                        Importance.LOW,
+                                        CALLBACK_QUEUE_SIZE_DOC)
+                                .define(SPOOL_DIR_CONFIG, Type.STRING, "", Importance.LOW, SPOOL_DIR_DOC)
+                                .define(SPOOL_MAX_BYTES_CONFIG,
+                                        Type.LONG,
+                                        1024 * 1024 * 1024L,
+                                        atLeast(0L),
+                                        Importance.LOW,
+                                        SPOOL_MAX_BYTES_DOC)
+                                .define(SPOOL_SEGMENT_BYTES_CONFIG,
+                                        Type.INT,
+                                        64 * 1024 * 1024,
+                                        atLeast(1),
+                                        Importance.LOW,
+                                        SPOOL_SEGMENT_BYTES_DOC)
+                                .define(MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_CONFIG,
+                                        Type.INT,
+                                        5,
+                                        atLeast(1),
+                                        Importance.LOW,
+                                        CommonClientConfigs.MAX_IN_FLIGHT_CONTROL_REQUESTS_PER_CONNECTION_DOC)
+                                .define(MAX_IN_FLIGHT_BYTES_PER_CONNECTION_CONFIG,
+                                        Type.LONG,
+                                        -1L,
+                                        atLeast(-1L),
+                                        Importance.LOW,
+                                        CommonClientConfigs.MAX_IN_FLIGHT_BYTES_PER_CONNECTION_DOC)
                                 .define(KEY_SERIALIZER_CLASS_CONFIG,
                                         Type.CLASS,
                                         Importance.HIGH,
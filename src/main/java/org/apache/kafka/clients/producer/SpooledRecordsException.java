@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer;
+
+import org.apache.kafka.common.KafkaException;
+
+/**
+ * This exception completes the sends whose records were not sent when the producer was closed forcefully, but are
+ * kept in its <code>spool.dir</code>. They were not delivered yet and are sent by the next producer which uses the
+ * same spool directory.
+ */
+public class SpooledRecordsException extends KafkaException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SpooledRecordsException(String message) {
+        super(message);
+    }
+
+}
@@ -182,6 +182,29 @@ public final class BufferPool {
         }
     }
 
+    /**
+     * Allocate a buffer of the given size without blocking, if the pool has the memory for it right now. This is meant
+     * for buffers which must grow while records are written to them and cannot wait for memory.
+     *
+     * @param size The buffer size to allocate in bytes
+     * @return The buffer, or null if there is not enough unallocated or pooled memory
+     */
+    public ByteBuffer allocateNow(int size) {
+        this.lock.lock();
+        try {
+            if (size == poolableSize && !this.free.isEmpty())
+                return this.free.pollFirst();
+            int freeListSize = this.free.size() * this.poolableSize;
+            if (this.availableMemory + freeListSize < size)
+                return null;
+            freeUp(size);
+            this.availableMemory -= size;
+        } finally {
+            lock.unlock();
+        }
+        return ByteBuffer.allocate(size);
+    }
+
     /**
      * Attempt to ensure we have at least the requested number of bytes of memory for allocation by deallocating pooled
      * buffers (if needed)
@@ -0,0 +1,267 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.utils.KafkaThread;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the completion of record batches (the user callbacks and the completion of the produce futures) on dedicated
+ * threads instead of the sender thread, so that slow callbacks do not hold up the network I/O.
+ * <p>
+ * Every partition is mapped to a single callback thread, so the callbacks of a partition are still invoked in the
+ * order its batches complete. Each thread accepts a bounded number of pending completions: once it has that many,
+ * {@link #awaitCapacity(TopicPartition, long)} blocks the appends which create new batches for its partitions until
+ * it catches up. The sender thread itself never waits for a callback, since a callback may wait in send() for memory
+ * only the sender thread can free, so a queue holds at most its capacity plus the batches that were already
+ * accumulated when it filled up.
+ */
+public final class CallbackExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(CallbackExecutor.class);
+
+    private final List<Worker> workers;
+    private final int queueSize;
+    private final Time time;
+    private final Sensor queueTimeSensor;
+    private volatile boolean closed;
+
+    public CallbackExecutor(int threads, int queueSize, String threadNamePrefix, Metrics metrics, Time time) {
+        if (threads < 1)
+            throw new IllegalArgumentException("The number of callback threads must be positive: " + threads);
+        if (queueSize < 1)
+            throw new IllegalArgumentException("The callback queue size must be positive: " + queueSize);
+        this.queueSize = queueSize;
+        this.time = time;
+        this.workers = new ArrayList(threads);
+        for (int i = 0; i < threads; i++)
+            this.workers.add(new Worker(threadNamePrefix + "-" + i));
+
+        String metricGrpName = "producer-metrics";
+        this.queueTimeSensor = metrics.sensor("callback-queue-time");
+        MetricName m = metrics.metricName("callback-queue-time-avg", metricGrpName, "The average time in ms completed batches waited for a callback thread.");
+        this.queueTimeSensor.add(m, new Avg());
+        m = metrics.metricName("callback-queue-time-max", metricGrpName, "The maximum time in ms completed batches waited for a callback thread.");
+        this.queueTimeSensor.add(m, new Max());
+        m = metrics.metricName("callback-queue-size", metricGrpName, "The number of completed batches waiting for a callback thread.");
+        metrics.addMetric(m, new Measurable() {
+            public double measure(MetricConfig config, long now) {
+                int size = 0;
+                for (Worker worker : workers)
+                    size += worker.queue.size();
+                return size;
+            }
+        });
+
+        for (Worker worker : this.workers)
+            worker.start();
+    }
+
+    /**
+     * Run the completion of a batch of the given partition on the callback thread of the partition. This never blocks,
+     * even if the queue of the thread is full. Once the executor is closed the completion is run by the calling thread.
+     */
+    public void execute(TopicPartition tp, Runnable completion) {
+        if (closed || !worker(tp).submit(new Task(completion, time.milliseconds())))
+            completion.run();
+    }
+
+    /**
+     * Wait until the callback thread of the given partition has fewer pending completions than the queue size. This
+     * returns immediately when called from a callback, which must not wait for the callback threads.
+     * @param maxWaitMs The maximum time in milliseconds to wait
+     * @return The time in milliseconds spent waiting
+     * @throws TimeoutException if the queue is still full after the given time
+     */
+    public long awaitCapacity(TopicPartition tp, long maxWaitMs) throws InterruptedException {
+        Worker worker = worker(tp);
+        if (worker.pending.get() < queueSize || inCallbackThread())
+            return 0;
+        long start = time.milliseconds();
+        synchronized (worker.lock) {
+            long remaining = maxWaitMs;
+            while (!closed && worker.pending.get() >= queueSize) {
+                if (remaining <= 0)
+                    throw new TimeoutException("Failed to queue the completion of a batch within the configured max blocking time "
+                            + maxWaitMs + " ms, the callbacks of " + tp + " are too slow.");
+                worker.lock.wait(remaining);
+                remaining = maxWaitMs - (time.milliseconds() - start);
+            }
+        }
+        return time.milliseconds() - start;
+    }
+
+    /**
+     * Run the completion of a batch of the given partition on the calling thread if no completion is pending on the
+     * callback thread of the partition, otherwise queue it behind the pending ones so that the batches of a partition
+     * still complete in order.
+     */
+    public void executeOrRun(TopicPartition tp, Runnable completion) {
+        if (closed || worker(tp).pending.get() == 0)
+            completion.run();
+        else
+            execute(tp, completion);
+    }
+
+    private Worker worker(TopicPartition tp) {
+        return this.workers.get(Utils.toPositive(tp.hashCode()) % this.workers.size());
+    }
+
+    /**
+     * Wait until all the completions submitted before this call have run.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        if (inCallbackThread())
+            throw new IllegalStateException("Cannot wait for callback completion from a callback.");
+        final CountDownLatch latch = new CountDownLatch(this.workers.size());
+        Runnable marker = new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        };
+        for (Worker worker : this.workers) {
+            if (closed || !worker.isAlive() || !worker.submit(new Task(marker, time.milliseconds())))
+                latch.countDown();
+        }
+        latch.await();
+    }
+
+    /**
+     * @return true if the current thread is one of the callback threads
+     */
+    public boolean inCallbackThread() {
+        return this.workers.contains(Thread.currentThread());
+    }
+
+    /**
+     * Stop accepting completions once the queued ones have run and wait up to the given time for the threads to
+     * finish. Threads that are still busy keep running in the background until their queue is empty. Completions
+     * submitted after this call are run by the submitting thread.
+     */
+    public void close(long timeoutMs) throws InterruptedException {
+        this.closed = true;
+        long deadline = time.milliseconds() + timeoutMs;
+        // a callback closing the producer must not wait for its own thread, which stops once its queue drained
+        boolean inCallbackThread = inCallbackThread();
+        for (Worker worker : this.workers)
+            worker.shutdown();
+        if (inCallbackThread)
+            return;
+        for (Worker worker : this.workers) {
+            long remaining = deadline - time.milliseconds();
+            if (remaining <= 0)
+                break;
+            worker.join(remaining);
+        }
+    }
+
+    private final class Worker extends KafkaThread {
+        // bounded by the queue size through awaitCapacity(), so that the sender thread never blocks on it
+        private final BlockingQueue<Task> queue;
+        // the completions queued or running on this thread
+        private final AtomicInteger pending;
+        // guards the shutdown of the queue, and is notified when the pending completions drop below the queue size
+        private final Object lock;
+        private boolean shutdown;
+
+        Worker(String name) {
+            super(name, true);
+            this.queue = new LinkedBlockingQueue<Task>();
+            this.pending = new AtomicInteger(0);
+            this.lock = new Object();
+        }
+
+        /**
+         * @return false if the thread is shut down and the task was not queued
+         */
+        boolean submit(Task task) {
+            synchronized (lock) {
+                if (shutdown)
+                    return false;
+                pending.incrementAndGet();
+                queue.add(task);
+                return true;
+            }
+        }
+
+        void shutdown() {
+            synchronized (lock) {
+                shutdown = true;
+                queue.add(Task.SHUTDOWN);
+                // release the appends waiting for this thread
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Task task = queue.take();
+                    if (task == Task.SHUTDOWN)
+                        break;
+                    complete(task);
+                }
+            } catch (InterruptedException e) {
+                log.warn("Callback thread {} was interrupted with {} completions left", getName(), queue.size());
+            }
+        }
+
+        private void complete(Task task) {
+            queueTimeSensor.record(time.milliseconds() - task.enqueuedMs);
+            try {
+                task.completion.run();
+            } catch (Exception e) {
+                log.error("Uncaught error while completing record batch: ", e);
+            } finally {
+                if (pending.decrementAndGet() == queueSize - 1) {
+                    synchronized (lock) {
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Task {
+        static final Task SHUTDOWN = new Task(null, -1L);
+
+        final Runnable completion;
+        final long enqueuedMs;
+
+        Task(Runnable completion, long enqueuedMs) {
+            this.completion = completion;
+            this.enqueuedMs = enqueuedMs;
+        }
+    }
+
+}
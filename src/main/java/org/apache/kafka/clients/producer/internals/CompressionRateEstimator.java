@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Estimates the compression rate (compressed size / uncompressed size) of the batches of every topic from the rates
+ * of the batches already built for it, since data of different topics usually compresses very differently.
+ * <p>
+ * The estimate goes up quickly when a batch compresses worse than expected, because an underestimate makes batches
+ * larger than intended, possibly larger than the maximum message size of the broker, and it goes down slowly when
+ * batches compress better. The estimate is at most 1.0, i.e. no compression, and only the estimates of the most
+ * recently used topics are kept, the other topics start from the initial estimate again. This class is thread safe.
+ */
+public final class CompressionRateEstimator {
+
+    private static final float DETERIORATE_STEP = 0.05f;
+    private static final float IMPROVE_STEP = 0.005f;
+    private static final float MAX_RATE = 1.0f;
+    private static final int DEFAULT_MAX_TOPICS = 1000;
+
+    private final float initialRate;
+    private final Map<String, Float> rates;
+
+    /**
+     * @param initialRate The estimate for topics without any batch yet
+     */
+    public CompressionRateEstimator(float initialRate) {
+        this(initialRate, DEFAULT_MAX_TOPICS);
+    }
+
+    /**
+     * @param initialRate The estimate for topics without any batch yet
+     * @param maxTopics The number of topics to keep an estimate for, the least recently used one is evicted first
+     */
+    public CompressionRateEstimator(float initialRate, final int maxTopics) {
+        this.initialRate = Math.min(MAX_RATE, initialRate);
+        this.rates = new LinkedHashMap<String, Float>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+                return size() > maxTopics;
+            }
+        };
+    }
+
+    /**
+     * @return The estimated compression rate of the next batch of the topic
+     */
+    public synchronized float estimation(String topic) {
+        Float rate = rates.get(topic);
+        return rate == null ? initialRate : rate;
+    }
+
+    /**
+     * Update the estimate of the topic with the rate observed on one of its batches.
+     * @return The new estimate
+     */
+    public synchronized float update(String topic, float observedRate) {
+        float current = estimation(topic);
+        float updated;
+        if (observedRate > current)
+            updated = Math.max(current + DETERIORATE_STEP, observedRate);
+        else
+            updated = Math.max(current - IMPROVE_STEP, observedRate);
+        updated = Math.min(MAX_RATE, updated);
+        rates.put(topic, updated);
+        return updated;
+    }
+
+    /**
+     * Replace the estimate of the topic, e.g. after a batch turned out to be too large.
+     */
+    public synchronized void set(String topic, float rate) {
+        rates.put(topic, Math.min(MAX_RATE, rate));
+    }
+
+}
@@ -30,6 +30,8 @@ public final class FutureRecordMetadata implements Future<RecordMetadata> {
     private final long checksum;
     private final int serializedKeySize;
     private final int serializedValueSize;
+    // set when the batch of the record was split, the record is then sent and completed with another batch
+    private volatile FutureRecordMetadata nextRecordMetadata = null;
 
     public FutureRecordMetadata(ProduceRequestResult result, long relativeOffset, long createTimestamp,
                                 long checksum, int serializedKeySize, int serializedValueSize) {
@@ -51,16 +53,33 @@ public final class FutureRecordMetadata implements Future<RecordMetadata> {
 
     public RecordMetadata get() throws InterruptedException, ExecutionException {
         this.result.await();
+        if (nextRecordMetadata != null)
+            return nextRecordMetadata.get();
         return valueOrError();
     }
 
     public RecordMetadata get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long timeoutMs = TimeUnit.MILLISECONDS.convert(timeout, unit);
+        long deadline = System.currentTimeMillis() + timeoutMs;
         boolean occurred = this.result.await(timeout, unit);
         if (!occurred)
-            throw new TimeoutException("Timeout after waiting for " + TimeUnit.MILLISECONDS.convert(timeout, unit) + " ms.");
+            throw new TimeoutException("Timeout after waiting for " + timeoutMs + " ms.");
+        if (nextRecordMetadata != null)
+            return nextRecordMetadata.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
         return valueOrError();
     }
 
+    /**
+     * Complete this future with the given one, which belongs to the batch the record was moved to when its batch was
+     * split. This must be called before the result of the original batch is completed.
+     */
+    void chain(FutureRecordMetadata futureRecordMetadata) {
+        if (nextRecordMetadata == null)
+            nextRecordMetadata = futureRecordMetadata;
+        else
+            nextRecordMetadata.chain(futureRecordMetadata);
+    }
+
     RecordMetadata valueOrError() throws ExecutionException {
         if (this.result.error() != null)
             throw new ExecutionException(this.result.error());
@@ -78,6 +97,8 @@ public final class FutureRecordMetadata implements Future<RecordMetadata> {
     }
 
     public boolean isDone() {
+        if (nextRecordMetadata != null)
+            return nextRecordMetadata.isDone();
         return this.result.completed();
     }
 
@@ -0,0 +1,336 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.CorruptRecordException;
+import org.apache.kafka.common.record.FileLogInputStream.FileChannelLogEntry;
+import org.apache.kafka.common.record.FileRecords;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A directory on local disk where the producer writes the batches it cannot keep in memory, so that sends do not block
+ * while the brokers are unreachable and the batches survive a restart of the producer.
+ * <p>
+ * Every partition has its own sub-directory <code>topic-partition</code> with a sequence of segments, each of which is
+ * a {@link FileRecords} holding the batches of the partition in the order they were written. A segment is deleted once
+ * all of its batches have been acknowledged. When a spool is opened, the batches left in it are recovered so that they
+ * can be sent again; batches acknowledged before the producer stopped may be sent twice if their segment still had
+ * unacknowledged batches. The directory is locked, so only one producer can use it at a time. This class is thread
+ * safe.
+ */
+public final class ProducerSpool implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ProducerSpool.class);
+
+    private static final String LOCK_FILE = ".lock";
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final Map<TopicPartition, PartitionSpool> partitions = new HashMap();
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private long sizeInBytes = 0;
+
+    /**
+     * @param dir The directory of the spool, created if it does not exist
+     * @param segmentBytes The size at which the segment of a partition is closed and a new one is started
+     * @param maxBytes The maximum number of bytes of all the batches in the spool
+     */
+    public ProducerSpool(File dir, int segmentBytes, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create the producer spool directory " + dir);
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.lockChannel = new RandomAccessFile(new File(dir, LOCK_FILE), "rw").getChannel();
+        FileLock fileLock;
+        try {
+            fileLock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            Utils.closeQuietly(lockChannel, "producer spool lock");
+            throw new IOException("The producer spool directory " + dir + " is used by another producer");
+        }
+        this.lock = fileLock;
+    }
+
+    /**
+     * Whether a batch of the given size can be written without exceeding the maximum size of the spool
+     */
+    public synchronized boolean hasRoomFor(int size) {
+        return sizeInBytes + size <= maxBytes;
+    }
+
+    public synchronized long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Write a batch of the partition at the end of its current segment.
+     * @return The entry to read the batch back and to release it once it is acknowledged
+     */
+    public synchronized Entry append(TopicPartition tp, MemoryRecords records, int recordCount) throws IOException {
+        PartitionSpool partition = partition(tp);
+        Segment segment = partition.active;
+        if (segment != null && segment.records.sizeInBytes() + records.sizeInBytes() > segmentBytes) {
+            // the full segment is flushed once, it is deleted when its last batch is released
+            segment.records.flush();
+            segment = null;
+        }
+        if (segment == null) {
+            segment = partition.newSegment();
+            partition.active = segment;
+        }
+        int position = segment.records.sizeInBytes();
+        int size = segment.records.append(records);
+        segment.outstanding++;
+        sizeInBytes += size;
+        return new Entry(segment, position, size, recordCount);
+    }
+
+    /**
+     * Read a batch back into a new buffer.
+     */
+    public MemoryRecords read(Entry entry) throws IOException {
+        // reads do not move the position of the channel, so they do not interfere with appends
+        ByteBuffer buffer = ByteBuffer.allocate(entry.size);
+        entry.segment.records.readInto(buffer, entry.position);
+        return MemoryRecords.readableRecords(buffer);
+    }
+
+    /**
+     * Release a batch which does not need to be kept anymore, deleting its segment if it was the last one.
+     */
+    public synchronized void release(Entry entry) {
+        Segment segment = entry.segment;
+        segment.outstanding--;
+        sizeInBytes -= entry.size;
+        if (segment.outstanding == 0) {
+            // an empty active segment is deleted too, otherwise its released batches would be replayed after a restart
+            PartitionSpool partition = partitions.get(segment.tp);
+            partition.segments.remove(segment);
+            if (partition.active == segment)
+                partition.active = null;
+            if (!segment.records.delete())
+                log.warn("Failed to delete producer spool segment {}", segment.records.file());
+        }
+    }
+
+    /**
+     * Open the segments left in the spool by a previous producer and return their batches, in the order they were
+     * written for every partition. This must be called before any batch is appended. An incomplete batch at the end of
+     * a segment, left by a producer which did not stop cleanly, is truncated.
+     */
+    public synchronized Map<TopicPartition, List<Entry>> recover() throws IOException {
+        Map<TopicPartition, List<Entry>> recovered = new HashMap();
+        File[] partitionDirs = dir.listFiles();
+        if (partitionDirs == null)
+            return recovered;
+        for (File partitionDir : partitionDirs) {
+            TopicPartition tp = parseTopicPartition(partitionDir);
+            if (tp == null)
+                continue;
+            File[] files = partitionDir.listFiles();
+            if (files == null)
+                continue;
+            // segment names are zero padded sequence numbers, so the name order is the write order
+            Arrays.sort(files);
+            PartitionSpool partition = partition(tp);
+            List<Entry> entries = new ArrayList();
+            for (File file : files) {
+                if (!file.getName().endsWith(SEGMENT_SUFFIX))
+                    continue;
+                long sequence = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+                partition.nextSequence = Math.max(partition.nextSequence, sequence + 1);
+                Segment segment = new Segment(tp, FileRecords.open(file, true));
+                int before = entries.size();
+                recoverSegment(segment, entries);
+                if (entries.size() > before)
+                    partition.segments.add(segment);
+                else if (!segment.records.delete())
+                    log.warn("Failed to delete producer spool segment {}", file);
+            }
+            if (!entries.isEmpty()) {
+                log.info("Recovered {} spooled batches of partition {}", entries.size(), tp);
+                recovered.put(tp, entries);
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Find the batches of the segment. The producer numbers the records of every batch from 0, and a compressed
+     * batch is a single wrapper, so a batch starts with every compressed entry and with every uncompressed entry whose
+     * offset does not follow the previous one.
+     */
+    private void recoverSegment(Segment segment, List<Entry> entries) throws IOException {
+        int batchPosition = -1;
+        int batchRecords = 0;
+        long lastOffset = -1;
+        int validBytes = 0;
+        try {
+            for (FileChannelLogEntry entry : segment.records.shallowEntries()) {
+                entry.record().ensureValid();
+                boolean compressed = entry.isCompressed();
+                if (batchPosition >= 0 && (compressed || entry.offset() <= lastOffset)) {
+                    addRecovered(segment, entries, batchPosition, entry.position() - batchPosition, batchRecords);
+                    batchPosition = -1;
+                }
+                if (batchPosition < 0) {
+                    batchPosition = entry.position();
+                    batchRecords = 0;
+                }
+                batchRecords += compressed ? (int) entry.offset() + 1 : 1;
+                // a compressed batch is complete by itself
+                lastOffset = compressed ? Long.MAX_VALUE : entry.offset();
+                validBytes = entry.position() + entry.sizeInBytes();
+            }
+        } catch (CorruptRecordException e) {
+            log.warn("Truncating producer spool segment {} at position {} after reading a corrupt entry",
+                    segment.records.file(), validBytes, e);
+        }
+        if (batchPosition >= 0)
+            addRecovered(segment, entries, batchPosition, validBytes - batchPosition, batchRecords);
+        if (validBytes < segment.records.sizeInBytes())
+            segment.records.truncateTo(validBytes);
+    }
+
+    private void addRecovered(Segment segment, List<Entry> entries, int position, int size, int recordCount) {
+        segment.outstanding++;
+        sizeInBytes += size;
+        entries.add(new Entry(segment, position, size, recordCount));
+    }
+
+    private static TopicPartition parseTopicPartition(File partitionDir) {
+        if (!partitionDir.isDirectory())
+            return null;
+        String name = partitionDir.getName();
+        int separator = name.lastIndexOf('-');
+        if (separator <= 0)
+            return null;
+        try {
+            return new TopicPartition(name.substring(0, separator), Integer.parseInt(name.substring(separator + 1)));
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring unexpected directory {} in the producer spool", partitionDir);
+            return null;
+        }
+    }
+
+    private PartitionSpool partition(TopicPartition tp) {
+        PartitionSpool partition = partitions.get(tp);
+        if (partition == null) {
+            partition = new PartitionSpool(tp, new File(dir, tp.topic() + "-" + tp.partition()));
+            partitions.put(tp, partition);
+        }
+        return partition;
+    }
+
+    /**
+     * Flush and close the segments, the batches which were not released are recovered by the next producer.
+     */
+    public synchronized void close() throws IOException {
+        IOException exception = null;
+        for (PartitionSpool partition : partitions.values()) {
+            for (Segment segment : partition.segments) {
+                try {
+                    segment.records.close();
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+        }
+        partitions.clear();
+        lock.release();
+        lockChannel.close();
+        if (exception != null)
+            throw exception;
+    }
+
+    /**
+     * A batch written to the spool.
+     */
+    public static final class Entry {
+        private final Segment segment;
+        private final int position;
+        public final int size;
+        public final int recordCount;
+
+        private Entry(Segment segment, int position, int size, int recordCount) {
+            this.segment = segment;
+            this.position = position;
+            this.size = size;
+            this.recordCount = recordCount;
+        }
+
+        public TopicPartition topicPartition() {
+            return segment.tp;
+        }
+    }
+
+    private static final class Segment {
+        final TopicPartition tp;
+        final FileRecords records;
+        // the number of batches of the segment which were not released yet
+        int outstanding = 0;
+
+        Segment(TopicPartition tp, FileRecords records) {
+            this.tp = tp;
+            this.records = records;
+        }
+    }
+
+    private static final class PartitionSpool {
+        final TopicPartition tp;
+        final File dir;
+        final List<Segment> segments = new ArrayList();
+        Segment active;
+        long nextSequence = 0;
+
+        PartitionSpool(TopicPartition tp, File dir) {
+            this.tp = tp;
+            this.dir = dir;
+        }
+
+        Segment newSegment() throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Could not create the producer spool directory " + dir);
+            File file = new File(dir, String.format("%020d%s", nextSequence++, SEGMENT_SUFFIX));
+            Segment segment = new Segment(tp, FileRecords.open(file, true));
+            segments.add(segment);
+            return segment;
+        }
+    }
+
+}
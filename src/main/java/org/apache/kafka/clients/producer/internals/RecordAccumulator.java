@@ -13,6 +13,7 @@
 package org.apache.kafka.clients.producer.internals;
 
 import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.SpooledRecordsException;
 import org.apache.kafka.common.*;
 import org.apache.kafka.common.metrics.Measurable;
 import org.apache.kafka.common.metrics.MetricConfig;
@@ -21,11 +22,13 @@ import org.apache.kafka.common.metrics.Sensor;
 import org.apache.kafka.common.metrics.stats.Rate;
 import org.apache.kafka.common.record.*;
 import org.apache.kafka.common.utils.CopyOnWriteMap;
+import org.apache.kafka.common.utils.KafkaThread;
 import org.apache.kafka.common.utils.Time;
 import org.apache.kafka.common.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
@@ -36,7 +39,9 @@ import java.util.concurrent.atomic.AtomicInteger;
  * instances to be sent to the server.
  * <p>
  * The accumulator uses a bounded amount of memory and append calls will block when that memory is exhausted, unless
- * this behavior is explicitly disabled.
+ * this behavior is explicitly disabled. With a {@link ProducerSpool}, closed batches are written to disk to make room
+ * instead, and read back before they are drained. The spool is written and read by a thread of its own, so neither
+ * the appending threads nor the sender threads wait for the disk.
  */
 public final class RecordAccumulator {
 
@@ -50,12 +55,20 @@ public final class RecordAccumulator {
     private final long lingerMs;
     private final long retryBackoffMs;
     private final BufferPool free;
+    // the buffers the batches grew into while the pool was out of memory, which must not be returned to the pool
+    private final Map<ByteBuffer, Boolean> unpooledBuffers;
     private final Time time;
     private final ConcurrentMap<TopicPartition, org.apache.kafka.common.utils.Deque<RecordBatch>> batches;
     private final IncompleteRecordBatches incomplete;
-    // The following variables are only accessed by the sender thread, so we don't need to protect them.
+    private final CallbackExecutor callbackExecutor;
+    private final CompressionRateEstimator compressionRates;
+    private final ProducerSpool spool;
+    private final SpoolIoThread spoolIo;
+    private final ByteBufferOutputStream.BufferSupplier bufferSupplier;
+    // The following variables are accessed by the sender threads only; with several sender threads each of them drains
+    // a disjoint set of nodes, so the muted set is synchronized and the drain index is only a starvation hint.
     private final Set<TopicPartition> muted;
-    private int drainIndex;
+    private volatile int drainIndex;
 
     /**
      * Create a new record accumulator
@@ -78,21 +91,111 @@ public final class RecordAccumulator {
                              long retryBackoffMs,
                              Metrics metrics,
                              Time time) {
+        this(batchSize, totalSize, compression, lingerMs, retryBackoffMs, null, metrics, time);
+    }
+
+    /**
+     * Create a new record accumulator whose batches run their callbacks on the given executor
+     *
+     * @param callbackExecutor The executor completing the batches, or null to complete them on the sender thread
+     */
+    public RecordAccumulator(int batchSize,
+                             long totalSize,
+                             CompressionType compression,
+                             long lingerMs,
+                             long retryBackoffMs,
+                             CallbackExecutor callbackExecutor,
+                             Metrics metrics,
+                             Time time) {
+        this(batchSize, totalSize, compression, lingerMs, retryBackoffMs, callbackExecutor, null, metrics, time);
+    }
+
+    /**
+     * Create a new record accumulator which spills its batches to the given spool when it runs out of memory. The
+     * batches left in the spool by a previous producer are recovered and sent first. The thread doing the I/O of the
+     * spool is stopped by {@link #closeSpool()}.
+     *
+     * @param spool The spool, or null to block appends when the memory is exhausted
+     */
+    public RecordAccumulator(int batchSize,
+                             long totalSize,
+                             CompressionType compression,
+                             long lingerMs,
+                             long retryBackoffMs,
+                             CallbackExecutor callbackExecutor,
+                             ProducerSpool spool,
+                             Metrics metrics,
+                             Time time) {
+        this.callbackExecutor = callbackExecutor;
+        this.spool = spool;
         this.drainIndex = 0;
         this.closed = false;
         this.flushesInProgress = new AtomicInteger(0);
         this.appendsInProgress = new AtomicInteger(0);
         this.batchSize = batchSize;
         this.compression = compression;
+        this.compressionRates = new CompressionRateEstimator(compression.rate);
         this.lingerMs = lingerMs;
         this.retryBackoffMs = retryBackoffMs;
         this.batches = new CopyOnWriteMap();
         String metricGrpName = "producer-metrics";
         this.free = new BufferPool(totalSize, batchSize, metrics, time, metricGrpName);
+        // batches which outgrow their buffer, e.g. when the records compress worse than estimated, take the additional
+        // buffers from the pool too, so that they count against the memory of the pool. A batch cannot wait for memory
+        // in the middle of a record, so if the pool is out of memory the buffer is allocated outside of it, as it would
+        // be without a pool, and dropped instead of being returned to the pool
+        this.unpooledBuffers = new IdentityHashMap();
+        this.bufferSupplier = new ByteBufferOutputStream.BufferSupplier() {
+            public ByteBuffer get(int minCapacity) {
+                int size = Math.max(minCapacity, RecordAccumulator.this.batchSize);
+                ByteBuffer buffer = free.allocateNow(size);
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocate(size);
+                    synchronized (unpooledBuffers) {
+                        unpooledBuffers.put(buffer, Boolean.TRUE);
+                    }
+                }
+                return buffer;
+            }
+
+            public void release(ByteBuffer buffer) {
+                boolean pooled;
+                synchronized (unpooledBuffers) {
+                    pooled = unpooledBuffers.remove(buffer) == null;
+                }
+                if (pooled)
+                    free.deallocate(buffer);
+            }
+        };
         this.incomplete = new IncompleteRecordBatches();
-        this.muted = new HashSet();
+        this.muted = Collections.synchronizedSet(new HashSet<TopicPartition>());
         this.time = time;
         registerMetrics(metrics, metricGrpName);
+        if (spool != null) {
+            recoverSpool();
+            this.spoolIo = new SpoolIoThread();
+            this.spoolIo.start();
+        } else {
+            this.spoolIo = null;
+        }
+    }
+
+    private void recoverSpool() {
+        Map<TopicPartition, List<ProducerSpool.Entry>> recovered;
+        try {
+            recovered = spool.recover();
+        } catch (IOException e) {
+            throw new KafkaException("Failed to recover the batches of the producer spool", e);
+        }
+        long now = time.milliseconds();
+        for (Map.Entry<TopicPartition, List<ProducerSpool.Entry>> entry : recovered.entrySet()) {
+            org.apache.kafka.common.utils.Deque<RecordBatch> dq = getOrCreateDeque(entry.getKey());
+            for (ProducerSpool.Entry spoolEntry : entry.getValue()) {
+                RecordBatch batch = RecordBatch.recovered(spool, spoolEntry, now, callbackExecutor);
+                dq.addLast(batch);
+                incomplete.add(batch);
+            }
+        }
     }
 
     private void registerMetrics(Metrics metrics, String metricGrpName) {
@@ -136,7 +239,8 @@ public final class RecordAccumulator {
      * @param key The key for the record
      * @param value The value for the record
      * @param callback The user-supplied callback to execute when the request is complete
-     * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
+     * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available and, when the
+     *                       batches are completed by a {@link CallbackExecutor}, for room in its queue
      */
     public RecordAppendResult append(TopicPartition tp,
                                      long timestamp,
@@ -162,6 +266,12 @@ public final class RecordAccumulator {
             int size = Math.max(this.batchSize, Records.LOG_OVERHEAD + Record.recordSize(key, value));
             log.trace("Allocating a new {} byte message buffer for topic {} partition {}",
                     new Object[]{size, tp.topic(), tp.partition()});
+            // the spool thread makes room while we wait for the memory
+            if (spool != null && free.availableMemory() < size)
+                spoolIo.requestSpill(size);
+            // every batch is completed on the callback thread of its partition, so wait for room in its queue first
+            if (callbackExecutor != null)
+                maxTimeToBlock -= callbackExecutor.awaitCapacity(tp, maxTimeToBlock);
             ByteBuffer buffer = free.allocate(size, maxTimeToBlock);
             synchronized (dq) {
                 // Need to check if producer is closed again after grabbing the dequeue lock.
@@ -175,7 +285,10 @@ public final class RecordAccumulator {
                     return appendResult;
                 }
                 MemoryRecordsBuilder recordsBuilder = MemoryRecords.builder(buffer, compression, TimestampType.CREATE_TIME, this.batchSize);
-                RecordBatch batch = new RecordBatch(tp, recordsBuilder, time.milliseconds());
+                recordsBuilder.setBufferSupplier(bufferSupplier);
+                if (compression != CompressionType.NONE)
+                    recordsBuilder.setEstimatedCompressionRate(compressionRates.estimation(tp.topic()));
+                RecordBatch batch = new RecordBatch(tp, recordsBuilder, time.milliseconds(), callbackExecutor);
                 FutureRecordMetadata future = Utils.notNull(batch.tryAppend(timestamp, key, value, callback, time.milliseconds()));
 
                 dq.addLast(batch);
@@ -187,6 +300,151 @@ public final class RecordAccumulator {
         }
     }
 
+    /**
+     * Add records which are already in the wire format to the queue of the partition, as a batch of their own which
+     * is sent as it is. The records do not use the buffer pool, they are owned by the caller and must not be modified
+     * until the batch is completed.
+     *
+     * @param tp The topic/partition to which the records are sent
+     * @param records The records, whose offsets are assigned by the broker
+     * @param recordCount The number of records, used for the metrics
+     * @param callback The user-supplied callback to execute when the request is complete
+     * @param maxTimeToBlock The maximum time in milliseconds to block for the callback queue of the partition
+     */
+    public RecordAppendResult appendPrebuilt(TopicPartition tp, Records records, int recordCount, Callback callback,
+                                             long maxTimeToBlock) throws InterruptedException {
+        appendsInProgress.incrementAndGet();
+        try {
+            if (callbackExecutor != null)
+                callbackExecutor.awaitCapacity(tp, maxTimeToBlock);
+            org.apache.kafka.common.utils.Deque<RecordBatch> dq = getOrCreateDeque(tp);
+            synchronized (dq) {
+                if (closed)
+                    throw new IllegalStateException("Cannot send after the producer is closed.");
+                // the open batch of the partition goes first, and nothing is appended to it after the pre-built batch
+                RecordBatch last = dq.peekLast();
+                if (last != null)
+                    last.close();
+                RecordBatch batch = RecordBatch.prebuilt(tp, records, recordCount, callback, time.milliseconds(), callbackExecutor);
+                dq.addLast(batch);
+                incomplete.add(batch);
+                return new RecordAppendResult(batch.prebuiltFuture(), true, true);
+            }
+        } finally {
+            appendsInProgress.decrementAndGet();
+        }
+    }
+
+    /**
+     * Write closed batches to the spool, in the order of their partitions, until the given number of bytes of the
+     * buffer pool is available and no append waits for memory, or there is nothing left to spill. Batches which are
+     * still open, the next batch of a partition with a batch in flight and the pre-built batches, which are not
+     * allocated from the pool, are kept in memory. This is only called by the spool thread.
+     * <p>
+     * The spool is written without holding the lock of the queue, the batch being written is only marked so that it
+     * is not drained or expired meanwhile.
+     */
+    private void spill(int size) {
+        for (Map.Entry<TopicPartition, org.apache.kafka.common.utils.Deque<RecordBatch>> entry : this.batches.entrySet()) {
+            TopicPartition tp = entry.getKey();
+            org.apache.kafka.common.utils.Deque<RecordBatch> dq = entry.getValue();
+            while (free.availableMemory() < size || free.queued() > 0) {
+                RecordBatch batch;
+                MemoryRecords records;
+                synchronized (dq) {
+                    batch = nextToSpill(tp, dq);
+                    if (batch == null)
+                        break;
+                    if (!spool.hasRoomFor(batch.sizeInBytes())) {
+                        log.debug("The producer spool is full, appends block until memory is available");
+                        return;
+                    }
+                    records = batch.startSpill();
+                }
+                ProducerSpool.Entry spoolEntry;
+                try {
+                    spoolEntry = spool.append(tp, records, batch.recordCount);
+                } catch (IOException e) {
+                    synchronized (dq) {
+                        batch.spillFailed();
+                    }
+                    log.warn("Failed to spill a batch of {} to the producer spool, appends block until memory is available",
+                            tp, e);
+                    return;
+                }
+                ByteBuffer buffer;
+                synchronized (dq) {
+                    if (batch.isDone()) {
+                        // the batch was aborted meanwhile and its buffer deallocated, its records must not be resent
+                        batch.spillFailed();
+                        spool.release(spoolEntry);
+                        continue;
+                    }
+                    buffer = batch.buffer();
+                    batch.spilled(spool, spoolEntry);
+                }
+                bufferSupplier.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Read the spilled batches at the head of their queue back from the spool, so that they can be drained. The spool
+     * is read without holding the lock of the queue, a batch which cannot be read is failed rather than blocking its
+     * partition. This is only called by the spool thread.
+     */
+    private void loadSpilledHeads() {
+        for (Map.Entry<TopicPartition, org.apache.kafka.common.utils.Deque<RecordBatch>> entry : this.batches.entrySet()) {
+            TopicPartition tp = entry.getKey();
+            org.apache.kafka.common.utils.Deque<RecordBatch> dq = entry.getValue();
+            RecordBatch batch;
+            synchronized (dq) {
+                batch = dq.peekFirst();
+                if (batch == null || !batch.isSpilled() || batch.isLoaded())
+                    continue;
+            }
+            MemoryRecords records;
+            try {
+                records = batch.readSpilled();
+            } catch (IOException e) {
+                boolean failed;
+                synchronized (dq) {
+                    // the batch may have been aborted meanwhile, then its records are gone anyway
+                    failed = !batch.isDone() && dq.peekFirst() == batch;
+                    if (failed)
+                        dq.pollFirst();
+                }
+                if (failed) {
+                    log.error("Failed to read a batch of {} from the producer spool", tp, e);
+                    batch.done(-1L, Record.NO_TIMESTAMP, new KafkaException("Failed to read the records of " + tp +
+                            " from the producer spool", e));
+                    deallocate(batch);
+                }
+                continue;
+            }
+            synchronized (dq) {
+                if (!batch.isDone())
+                    batch.loaded(records);
+            }
+        }
+    }
+
+    /**
+     * The first batch of the queue which can be spilled, or null if there is none. The first batch of a partition with
+     * a batch in flight is sent next, so it is kept in memory.
+     */
+    private RecordBatch nextToSpill(TopicPartition tp, org.apache.kafka.common.utils.Deque<RecordBatch> dq) {
+        RecordBatch first = dq.peekFirst();
+        for (RecordBatch batch : dq) {
+            if (batch == first && muted.contains(tp))
+                continue;
+            if (batch.isSpilled() || batch.isSpilling() || batch.isPrebuilt() || batch.isWritable())
+                continue;
+            return batch;
+        }
+        return null;
+    }
+
     /**
      * If `RecordBatch.tryAppend` fails (i.e. the record batch is full), close its memory records to release temporary
      * resources (like compression streams buffers).
@@ -224,6 +482,9 @@ public final class RecordAccumulator {
                     Iterator<RecordBatch> batchIterator = dq.iterator();
                     while (batchIterator.hasNext()) {
                         RecordBatch batch = batchIterator.next();
+                        // spilled batches wait in the spool for the brokers to come back instead of being dropped
+                        if (batch.isSpilled() || batch.isSpilling())
+                            continue;
                         boolean isFull = batch != lastBatch || batch.isFull();
                         // Check if the batch has expired. Expired batches are closed by maybeExpire, but callbacks
                         // are invoked after completing the iterations, since sends invoked from callbacks
@@ -266,6 +527,29 @@ public final class RecordAccumulator {
         }
     }
 
+    /**
+     * Split a batch which the broker rejected as too large and put the resulting batches at the front of the queue of
+     * its partition, in the order of the records. The caller still has to deallocate the big batch.
+     *
+     * @return The number of batches the big batch was split into
+     */
+    public int splitAndReenqueue(RecordBatch bigBatch) {
+        // the estimate of the topic let this batch grow too large, restart from no compression so that the next
+        // batches of the topic are not too large either
+        compressionRates.set(bigBatch.topicPartition.topic(), 1.0f);
+        List<RecordBatch> splitBatches = bigBatch.split(this.batchSize, bufferSupplier);
+        org.apache.kafka.common.utils.Deque<RecordBatch> deque = getOrCreateDeque(bigBatch.topicPartition);
+        for (int i = splitBatches.size() - 1; i >= 0; i--) {
+            RecordBatch batch = splitBatches.get(i);
+            incomplete.add(batch);
+            batch.close();
+            synchronized (deque) {
+                deque.addFirst(batch);
+            }
+        }
+        return splitBatches.size();
+    }
+
     /**
      * Get a list of nodes whose partitions are ready to be sent, and the earliest time at which any non-sendable
      * partition will be ready; Also return the flag for whether there are any unknown leaders for the accumulated
@@ -313,7 +597,12 @@ public final class RecordAccumulator {
                         boolean full = deque.size() > 1 || batch.isFull();
                         boolean expired = waitedTimeMs >= timeToWaitMs;
                         boolean sendable = full || expired || exhausted || closed || flushInProgress();
-                        if (sendable && !backingOff) {
+                        // a spilled batch is sendable once the spool thread has read it back
+                        boolean loading = batch.isSpilled() && !batch.isLoaded();
+                        if (loading) {
+                            spoolIo.requestLoad();
+                            nextReadyCheckDelayMs = Math.min(retryBackoffMs, nextReadyCheckDelayMs);
+                        } else if (sendable && !backingOff) {
                             readyNodes.add(leader);
                         } else {
                             // Note that this results in a conservative estimate since an un-sendable partition may have
@@ -366,9 +655,10 @@ public final class RecordAccumulator {
             List<PartitionInfo> parts = cluster.partitionsForNode(node.id());
             List<RecordBatch> ready = new ArrayList();
             /* to make starvation less likely this loop doesn't start at 0 */
-            int start = drainIndex = drainIndex % parts.size();
+            int start = drainIndex % parts.size();
+            int index = start;
             do {
-                PartitionInfo part = parts.get(drainIndex);
+                PartitionInfo part = parts.get(index);
                 TopicPartition tp = new TopicPartition(part.topic(), part.partition());
                 // Only proceed if the partition has no in-flight batches.
                 if (!muted.contains(tp)) {
@@ -378,8 +668,12 @@ public final class RecordAccumulator {
                             RecordBatch first = deque.peekFirst();
                             if (first != null) {
                                 boolean backoff = first.attempts > 0 && first.lastAttemptMs + retryBackoffMs > now;
-                                // Only drain the batch if it is not during backoff period.
-                                if (!backoff) {
+                                boolean loading = first.isSpilled() && !first.isLoaded();
+                                if (loading)
+                                    spoolIo.requestLoad();
+                                // Only drain the batch if it is not during backoff period or being written to or read
+                                // from the spool.
+                                if (!backoff && !first.isSpilling() && !loading) {
                                     if (size + first.sizeInBytes() > maxSize && !ready.isEmpty()) {
                                         // there is a rare case that a single batch size is larger than the request size due
                                         // to compression; in this case we will still eventually send this batch in a single
@@ -388,17 +682,26 @@ public final class RecordAccumulator {
                                     } else {
                                         RecordBatch batch = deque.pollFirst();
                                         batch.close();
+                                        // feed the rate of the batches built by the producer back into the estimate
+                                        // of the topic, retries and split batches say nothing new about it
+                                        if (batch.attempts == 0 && !batch.isSplitBatch() && !batch.isSpilled() && batch.isCompressed())
+                                            compressionRates.update(tp.topic(), (float) batch.compressionRate());
                                         size += batch.sizeInBytes();
                                         ready.add(batch);
                                         batch.drainedMs = now;
+                                        // read the next batch of the partition back while this one is sent
+                                        RecordBatch next = deque.peekFirst();
+                                        if (next != null && next.isSpilled() && !next.isLoaded())
+                                            spoolIo.requestLoad();
                                     }
                                 }
                             }
                         }
                     }
                 }
-                this.drainIndex = (this.drainIndex + 1) % parts.size();
-            } while (start != drainIndex);
+                index = (index + 1) % parts.size();
+            } while (start != index);
+            this.drainIndex = index;
             batches.put(node.id(), ready);
         }
         return batches;
@@ -428,7 +731,12 @@ public final class RecordAccumulator {
      */
     public void deallocate(RecordBatch batch) {
         incomplete.remove(batch);
-        free.deallocate(batch.buffer(), batch.initialCapacity());
+        // the buffer of a spilled batch was returned to the pool when it was spilled, and pre-built batches do not use
+        // the pool
+        if (batch.isSpilled())
+            batch.releaseSpool();
+        else if (!batch.isPrebuilt())
+            bufferSupplier.release(batch.buffer());
     }
     
     /**
@@ -466,6 +774,9 @@ public final class RecordAccumulator {
         try {
             for (RecordBatch batch : this.incomplete.all())
                 batch.produceFuture.await();
+            // batches are deallocated before their callbacks ran on the executor
+            if (callbackExecutor != null)
+                callbackExecutor.awaitCompletion();
         } finally {
             this.flushesInProgress.decrementAndGet();
         }
@@ -494,6 +805,8 @@ public final class RecordAccumulator {
      * Go through incomplete batches and abort them.
      */
     private void abortBatches() {
+        if (spool != null)
+            spillUnsent();
         for (RecordBatch batch : incomplete.all()) {
             org.apache.kafka.common.utils.Deque<RecordBatch> dq = getDeque(batch.topicPartition);
             // Close the batch before aborting
@@ -501,8 +814,44 @@ public final class RecordAccumulator {
                 batch.close();
                 dq.remove(batch);
             }
-            batch.done(-1L, Record.NO_TIMESTAMP, new IllegalStateException("Producer is closed forcefully."));
-            deallocate(batch);
+            if (batch.isSpilled()) {
+                // the records are sent again by the next producer using the spool, the batch is not deallocated
+                // since its buffer is not needed anymore and its records must stay in the spool
+                batch.done(-1L, Record.NO_TIMESTAMP, new SpooledRecordsException("Producer is closed forcefully, the " +
+                        "records were not sent and are kept in the producer spool."));
+                incomplete.remove(batch);
+            } else {
+                batch.done(-1L, Record.NO_TIMESTAMP, new IllegalStateException("Producer is closed forcefully."));
+                deallocate(batch);
+            }
+        }
+    }
+
+    /**
+     * Write the unsent batches which are not in the spool yet to it, in the order of every partition, so that the next
+     * producer using the spool sends them. Batches being sent are not written since the network layer may still read
+     * their buffers.
+     */
+    private void spillUnsent() {
+        for (Map.Entry<TopicPartition, org.apache.kafka.common.utils.Deque<RecordBatch>> entry : this.batches.entrySet()) {
+            org.apache.kafka.common.utils.Deque<RecordBatch> dq = entry.getValue();
+            synchronized (dq) {
+                for (RecordBatch batch : dq) {
+                    batch.close();
+                    if (batch.isSpilled() || batch.isSpilling() || batch.isPrebuilt())
+                        continue;
+                    if (!spool.hasRoomFor(batch.sizeInBytes())) {
+                        log.warn("The producer spool is full, the unsent batches of {} are dropped", entry.getKey());
+                        break;
+                    }
+                    try {
+                        batch.spill(spool);
+                    } catch (IOException e) {
+                        log.warn("Failed to write the unsent batches of {} to the producer spool", entry.getKey(), e);
+                        break;
+                    }
+                }
+            }
         }
     }
 
@@ -521,6 +870,89 @@ public final class RecordAccumulator {
         this.closed = true;
     }
 
+    /**
+     * Stop the thread doing the I/O of the spool, once the sender threads are done with the accumulator.
+     */
+    public void closeSpool() throws InterruptedException {
+        if (spoolIo != null) {
+            spoolIo.shutdown();
+            // a callback of a batch which failed to be read back may close the producer from the spool thread
+            if (Thread.currentThread() != spoolIo)
+                spoolIo.join();
+        }
+    }
+
+    /**
+     * Writes batches to the spool when appends need memory, and reads the spilled batches at the head of their queue
+     * back before they are drained. The records read back are kept on the heap until their batch is completed, at
+     * most one batch per partition outside of the batches being sent.
+     */
+    private final class SpoolIoThread extends KafkaThread {
+        private final Object lock = new Object();
+        // the largest number of bytes an append asked for since the last spill
+        private int spillBytes = 0;
+        private boolean loadRequested = false;
+        private boolean shutdown = false;
+
+        SpoolIoThread() {
+            super("kafka-producer-spool-thread", true);
+        }
+
+        void requestSpill(int size) {
+            synchronized (lock) {
+                spillBytes = Math.max(spillBytes, size);
+                lock.notify();
+            }
+        }
+
+        void requestLoad() {
+            synchronized (lock) {
+                if (!loadRequested) {
+                    loadRequested = true;
+                    lock.notify();
+                }
+            }
+        }
+
+        void shutdown() {
+            synchronized (lock) {
+                shutdown = true;
+                lock.notify();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int size;
+                boolean load;
+                synchronized (lock) {
+                    try {
+                        while (!shutdown && spillBytes == 0 && !loadRequested)
+                            lock.wait();
+                    } catch (InterruptedException e) {
+                        log.warn("The producer spool thread was interrupted", e);
+                        return;
+                    }
+                    if (shutdown)
+                        return;
+                    size = spillBytes;
+                    load = loadRequested;
+                    spillBytes = 0;
+                    loadRequested = false;
+                }
+                try {
+                    if (size > 0)
+                        spill(size);
+                    if (load)
+                        loadSpilledHeads();
+                } catch (RuntimeException e) {
+                    log.error("Uncaught error in the producer spool thread: ", e);
+                }
+            }
+        }
+    }
+
     /*
      * Metadata about a record just appended to the record accumulator
      */
@@ -13,17 +13,27 @@
 package org.apache.kafka.clients.producer.internals;
 
 import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.RecordBatchTooLargeException;
 import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.record.ByteBufferOutputStream;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.LogEntry;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.MemoryRecordsBuilder;
 import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.Records;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -40,8 +50,20 @@ public final class RecordBatch {
     final TopicPartition topicPartition;
     final ProduceRequestResult produceFuture;
 
+    // the records with a callback
     private final List<Thunk> thunks = new ArrayList();
-    private final MemoryRecordsBuilder recordsBuilder;
+    // the futures of all the records in order, which are chained on a split, null if the batch cannot be split since
+    // its records are not compressed
+    private final List<FutureRecordMetadata> futures;
+    // null once the batch is spilled to the spool, its buffer is then returned to the pool, and for pre-built batches
+    private MemoryRecordsBuilder recordsBuilder;
+    // the records of a batch built outside of the producer, which are sent as they are
+    private Records prebuiltRecords;
+    private final CallbackExecutor callbackExecutor;
+    // whether the batch was created by splitting a batch which was too large
+    private final boolean isSplitBatch;
+    // the future of a pre-built batch, which is its only record
+    private FutureRecordMetadata prebuiltFuture;
 
     volatile int attempts;
     int recordCount;
@@ -52,15 +74,82 @@ public final class RecordBatch {
     private String expiryErrorMessage;
     private AtomicBoolean completed;
     private boolean retry;
+    private boolean hasCallbacks;
+    private ProducerSpool spool;
+    private ProducerSpool.Entry spoolEntry;
+    // the records of a spilled batch, read back from the spool when the batch is drained
+    private MemoryRecords spilledRecords;
+    private double spilledCompressionRate = 1.0;
+    // whether the records are being written to the spool, the batch is then neither drained nor expired
+    private boolean spilling;
 
     public RecordBatch(TopicPartition tp, MemoryRecordsBuilder recordsBuilder, long now) {
+        this(tp, recordsBuilder, now, null);
+    }
+
+    /**
+     * @param callbackExecutor The executor to complete the batch on, or null to complete it on the calling thread
+     */
+    public RecordBatch(TopicPartition tp, MemoryRecordsBuilder recordsBuilder, long now, CallbackExecutor callbackExecutor) {
+        this(tp, recordsBuilder, now, callbackExecutor, false);
+    }
+
+    private RecordBatch(TopicPartition tp, MemoryRecordsBuilder recordsBuilder, long now, CallbackExecutor callbackExecutor,
+                        boolean isSplitBatch) {
         this.createdMs = now;
+        this.isSplitBatch = isSplitBatch;
+        this.callbackExecutor = callbackExecutor;
         this.lastAttemptMs = now;
         this.recordsBuilder = recordsBuilder;
         this.topicPartition = tp;
         this.lastAppendTime = createdMs;
         this.produceFuture = new ProduceRequestResult(topicPartition);
         this.completed = new AtomicBoolean();
+        if (recordsBuilder != null && recordsBuilder.compressionType() != CompressionType.NONE)
+            this.futures = new ArrayList();
+        else
+            this.futures = null;
+    }
+
+    /**
+     * Create a batch for records recovered from the spool, which was written by a previous producer. Nobody waits for
+     * the records of such a batch, so it has no callbacks and no futures.
+     */
+    static RecordBatch recovered(ProducerSpool spool, ProducerSpool.Entry entry, long now, CallbackExecutor callbackExecutor) {
+        RecordBatch batch = new RecordBatch(entry.topicPartition(), null, now, callbackExecutor, false);
+        batch.spool = spool;
+        batch.spoolEntry = entry;
+        batch.recordCount = entry.recordCount;
+        return batch;
+    }
+
+    /**
+     * Create a batch for records which are already in the wire format, e.g. a slice of a segment file. The records are
+     * sent as they are, with the offsets assigned by the broker, so the future of the batch returns the base offset
+     * of the records and a relative offset of 0.
+     *
+     * @param recordCount The number of records of the batch, used for the metrics
+     */
+    static RecordBatch prebuilt(TopicPartition tp, Records records, int recordCount, Callback callback, long now,
+                                CallbackExecutor callbackExecutor) {
+        RecordBatch batch = new RecordBatch(tp, null, now, callbackExecutor, false);
+        batch.prebuiltRecords = records;
+        batch.recordCount = recordCount;
+        FutureRecordMetadata future = new FutureRecordMetadata(batch.produceFuture, 0, Record.NO_TIMESTAMP,
+                                                               -1L, -1, -1);
+        batch.prebuiltFuture = future;
+        if (callback != null) {
+            batch.thunks.add(new Thunk(callback, future));
+            batch.hasCallbacks = true;
+        }
+        return batch;
+    }
+
+    /**
+     * The future of a pre-built batch
+     */
+    FutureRecordMetadata prebuiltFuture() {
+        return prebuiltFuture;
     }
 
     /**
@@ -69,7 +158,7 @@ public final class RecordBatch {
      * @return The RecordSend corresponding to this record or null if there isn't sufficient room.
      */
     public FutureRecordMetadata tryAppend(long timestamp, byte[] key, byte[] value, Callback callback, long now) {
-        if (!recordsBuilder.hasRoomFor(key, value)) {
+        if (recordsBuilder == null || !recordsBuilder.hasRoomFor(key, value)) {
             return null;
         } else {
             long checksum = this.recordsBuilder.append(timestamp, key, value);
@@ -79,13 +168,99 @@ public final class RecordBatch {
                                                                    timestamp, checksum,
                                                                    key == null ? -1 : key.length,
                                                                    value == null ? -1 : value.length);
-            if (callback != null)
+            if (futures != null)
+                futures.add(future);
+            if (callback != null) {
                 thunks.add(new Thunk(callback, future));
+                hasCallbacks = true;
+            }
             this.recordCount++;
             return future;
         }
     }
 
+    /**
+     * Append a record of a batch which is being split, the future of the record in that batch is chained to the
+     * future of the record in this batch. The previous future is null for the records of a batch recovered from the
+     * spool, the callback is null for the records without one.
+     */
+    private boolean tryAppendForSplit(long timestamp, byte[] key, byte[] value, FutureRecordMetadata previous,
+                                      Callback callback) {
+        if (!recordsBuilder.hasRoomFor(key, value))
+            return false;
+        long checksum = this.recordsBuilder.append(timestamp, key, value);
+        this.maxRecordSize = Math.max(this.maxRecordSize, Record.recordSize(key, value));
+        FutureRecordMetadata future = new FutureRecordMetadata(this.produceFuture, this.recordCount,
+                                                               timestamp, checksum,
+                                                               key == null ? -1 : key.length,
+                                                               value == null ? -1 : value.length);
+        if (previous != null)
+            previous.chain(future);
+        if (futures != null)
+            futures.add(future);
+        if (callback != null) {
+            thunks.add(new Thunk(callback, future));
+            hasCallbacks = true;
+        }
+        this.recordCount++;
+        return true;
+    }
+
+    /**
+     * Split this batch, which was rejected by the broker as too large, into batches of at most the given size
+     * (estimated as if the records did not compress). The futures of the records are chained to the futures of the
+     * new batches and this batch is completed with a {@link RecordBatchTooLargeException} which is not reported to
+     * the callbacks, since they now belong to the new batches.
+     *
+     * @param buffers The source of the buffers of the new batches, which release them when they are deallocated
+     * @return The new batches, in the order of the records
+     */
+    public List<RecordBatch> split(int splitBatchSize, ByteBufferOutputStream.BufferSupplier buffers) {
+        List<RecordBatch> batches = new ArrayList();
+        MemoryRecords memoryRecords = memoryRecords();
+        Record wrapper = memoryRecords.shallowEntries().iterator().next().record();
+        // the futures and the thunks are in the order of the records, there are no futures for a recovered batch
+        Iterator<FutureRecordMetadata> futureIter = futures == null ? null : futures.iterator();
+        Iterator<Thunk> thunkIter = thunks.iterator();
+        Thunk thunk = thunkIter.hasNext() ? thunkIter.next() : null;
+        RecordBatch batch = null;
+        for (LogEntry entry : memoryRecords.deepEntries()) {
+            Record record = entry.record();
+            FutureRecordMetadata previous = futureIter != null && futureIter.hasNext() ? futureIter.next() : null;
+            Callback callback = null;
+            if (thunk != null && thunk.future == previous) {
+                callback = thunk.callback;
+                thunk = thunkIter.hasNext() ? thunkIter.next() : null;
+            }
+            byte[] key = record.hasKey() ? Utils.toArray(record.key()) : null;
+            byte[] value = record.hasNullValue() ? null : Utils.toArray(record.value());
+            if (batch == null || !batch.tryAppendForSplit(record.timestamp(), key, value, previous, callback)) {
+                if (batch != null)
+                    batches.add(batch);
+                batch = createSplitBatch(splitBatchSize, wrapper, key, value, buffers);
+                batch.tryAppendForSplit(record.timestamp(), key, value, previous, callback);
+            }
+        }
+        if (batch != null)
+            batches.add(batch);
+
+        produceFuture.set(-1L, Record.NO_TIMESTAMP, new RecordBatchTooLargeException());
+        produceFuture.done();
+        completed.set(true);
+        return batches;
+    }
+
+    private RecordBatch createSplitBatch(int splitBatchSize, Record wrapper, byte[] key, byte[] value,
+                                         ByteBufferOutputStream.BufferSupplier buffers) {
+        int size = Math.max(splitBatchSize, Records.LOG_OVERHEAD + Record.recordSize(key, value));
+        MemoryRecordsBuilder builder = MemoryRecords.builder(buffers.get(size), wrapper.magic(),
+                wrapper.compressionType(), TimestampType.CREATE_TIME, 0L);
+        builder.setBufferSupplier(buffers);
+        // size the batch as if the records did not compress, the estimate was too optimistic for this one
+        builder.setEstimatedCompressionRate(1.0f);
+        return new RecordBatch(topicPartition, builder, createdMs, callbackExecutor, true);
+    }
+
     /**
      * Complete the request.
      * 
@@ -93,7 +268,7 @@ public final class RecordBatch {
      * @param logAppendTime The log append time or -1 if CreateTime is being used
      * @param exception The exception that occurred (or null if the request was successful)
      */
-    public void done(long baseOffset, long logAppendTime, RuntimeException exception) {
+    public void done(long baseOffset, long logAppendTime, final RuntimeException exception) {
         log.trace("Produced messages to topic-partition {} with base offset offset {} and error: {}.",
                 new Object[]{topicPartition, baseOffset, exception});
 
@@ -103,7 +278,25 @@ public final class RecordBatch {
         // Set the future before invoking the callbacks as we rely on its state for the `onCompletion` call
         produceFuture.set(baseOffset, logAppendTime, exception);
 
-        // execute callbacks
+        // execute callbacks, the produce future is completed by the same thread once they have been invoked;
+        // batches without callbacks have nothing to offload and are completed right away, unless earlier batches
+        // of the partition are still waiting for the callback thread
+        if (callbackExecutor == null) {
+            completeCallbacks(exception);
+        } else {
+            Runnable completion = new Runnable() {
+                public void run() {
+                    completeCallbacks(exception);
+                }
+            };
+            if (hasCallbacks)
+                callbackExecutor.execute(topicPartition, completion);
+            else
+                callbackExecutor.executeOrRun(topicPartition, completion);
+        }
+    }
+
+    private void completeCallbacks(RuntimeException exception) {
         for (Thunk thunk : thunks) {
             try {
                 if (exception == null) {
@@ -188,36 +381,168 @@ public final class RecordBatch {
         this.retry = true;
     }
 
-    public MemoryRecords records() {
+    /**
+     * Write the records of this closed batch to the spool. The buffer of the batch is not used anymore once this
+     * returns, the caller returns it to the buffer pool.
+     */
+    void spill(ProducerSpool spool) throws IOException {
+        MemoryRecords records = recordsBuilder.build();
+        this.spoolEntry = spool.append(topicPartition, records, recordCount);
+        this.spool = spool;
+        this.spilledCompressionRate = recordsBuilder.compressionRate();
+        this.recordsBuilder = null;
+    }
+
+    /**
+     * Start writing the records of this closed batch to the spool. The batch stays in its queue but is neither drained
+     * nor expired until {@link #spilled(ProducerSpool, ProducerSpool.Entry)} or {@link #spillFailed()} is called.
+     *
+     * @return The records to write to the spool
+     */
+    MemoryRecords startSpill() {
+        this.spilling = true;
         return recordsBuilder.build();
     }
 
+    /**
+     * Complete the spill started by {@link #startSpill()}. The buffer of the batch is not used anymore once this
+     * returns, the caller returns it to the buffer pool.
+     */
+    void spilled(ProducerSpool spool, ProducerSpool.Entry entry) {
+        this.spoolEntry = entry;
+        this.spool = spool;
+        this.spilledCompressionRate = recordsBuilder.compressionRate();
+        this.recordsBuilder = null;
+        this.spilling = false;
+    }
+
+    void spillFailed() {
+        this.spilling = false;
+    }
+
+    public boolean isSpilled() {
+        return spoolEntry != null;
+    }
+
+    public boolean isSpilling() {
+        return spilling;
+    }
+
+    public boolean isDone() {
+        return completed.get();
+    }
+
+    public boolean isPrebuilt() {
+        return prebuiltRecords != null;
+    }
+
+    /**
+     * Read the records of a spilled batch back from the spool, this is done before the batch is sent.
+     */
+    void loadSpilled() throws IOException {
+        if (spilledRecords == null)
+            spilledRecords = spool.read(spoolEntry);
+    }
+
+    /**
+     * Read the records of this spilled batch from the spool without keeping them, so that the caller can read them
+     * without holding the lock of the queue and hand them over with {@link #loaded(MemoryRecords)}.
+     */
+    MemoryRecords readSpilled() throws IOException {
+        return spool.read(spoolEntry);
+    }
+
+    /**
+     * Keep the records of this spilled batch read by {@link #readSpilled()}, the batch can then be drained.
+     */
+    void loaded(MemoryRecords records) {
+        if (spilledRecords == null)
+            spilledRecords = records;
+    }
+
+    /**
+     * Whether the records of this spilled batch are in memory
+     */
+    public boolean isLoaded() {
+        return spilledRecords != null;
+    }
+
+    /**
+     * Release the records of a spilled batch from the spool, once the batch is completed.
+     */
+    void releaseSpool() {
+        spool.release(spoolEntry);
+        spilledRecords = null;
+    }
+
+    /**
+     * The records to send
+     */
+    public Records records() {
+        if (prebuiltRecords != null)
+            return prebuiltRecords;
+        return memoryRecords();
+    }
+
+    private MemoryRecords memoryRecords() {
+        if (recordsBuilder != null)
+            return recordsBuilder.build();
+        try {
+            loadSpilled();
+        } catch (IOException e) {
+            throw new KafkaException("Failed to read the records of " + topicPartition + " from the producer spool", e);
+        }
+        return spilledRecords;
+    }
+
     public int sizeInBytes() {
-        return recordsBuilder.sizeInBytes();
+        if (prebuiltRecords != null)
+            return prebuiltRecords.sizeInBytes();
+        return recordsBuilder == null ? spoolEntry.size : recordsBuilder.sizeInBytes();
     }
 
     public double compressionRate() {
-        return recordsBuilder.compressionRate();
+        return recordsBuilder == null ? spilledCompressionRate : recordsBuilder.compressionRate();
     }
 
     public boolean isFull() {
-        return recordsBuilder.isFull();
+        return recordsBuilder == null || recordsBuilder.isFull();
     }
 
-    public void close() {
-        recordsBuilder.close();
+    /**
+     * Whether the records of the batch are compressed by the producer, which is never the case for pre-built batches
+     * since they are not rebuilt
+     */
+    public boolean isCompressed() {
+        if (prebuiltRecords != null)
+            return false;
+        if (recordsBuilder == null)
+            return memoryRecords().shallowEntries().iterator().next().record().compressionType() != CompressionType.NONE;
+        return recordsBuilder.compressionType() != CompressionType.NONE;
     }
 
-    public ByteBuffer buffer() {
-        return recordsBuilder.buffer();
+    public boolean isSplitBatch() {
+        return isSplitBatch;
+    }
+
+    /**
+     * Use the given compression rate to estimate the size of the batch while records are appended.
+     */
+    public void setEstimatedCompressionRate(float estimatedCompressionRate) {
+        recordsBuilder.setEstimatedCompressionRate(estimatedCompressionRate);
+    }
+
+    public void close() {
+        if (recordsBuilder != null)
+            recordsBuilder.close();
     }
 
-    public int initialCapacity() {
-        return recordsBuilder.initialCapacity();
+    public ByteBuffer buffer() {
+        return recordsBuilder == null ? null : recordsBuilder.buffer();
     }
 
     public boolean isWritable() {
-        return !recordsBuilder.isClosed();
+        return recordsBuilder != null && !recordsBuilder.isClosed();
     }
 
 }
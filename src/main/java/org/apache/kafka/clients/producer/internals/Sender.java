@@ -27,10 +27,11 @@ import org.apache.kafka.common.metrics.MetricConfig;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.metrics.Sensor;
 import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Count;
 import org.apache.kafka.common.metrics.stats.Max;
 import org.apache.kafka.common.metrics.stats.Rate;
 import org.apache.kafka.common.protocol.Errors;
-import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.Records;
 import org.apache.kafka.common.requests.ProduceRequest;
 import org.apache.kafka.common.requests.ProduceResponse;
 import org.apache.kafka.common.utils.Time;
@@ -39,17 +40,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The background thread that handles the sending of produce requests to the Kafka cluster. This thread makes metadata
  * requests to renew its view of the cluster and then sends produce requests to the appropriate nodes.
+ * <p>
+ * A sender can be given several network clients, in which case the brokers are sharded over them and every shard is
+ * run by its own thread (see {@link #shard(int)}). All shards drain the same {@link RecordAccumulator}, each one only
+ * for the nodes it owns, so request building, socket I/O and completion callbacks are spread over several cores.
+ * The first shard always runs and does the work which covers the whole producer: its client is the only one sending
+ * metadata requests (the others wake it up when they need an update) and it expires the batches of all partitions.
+ * Its poll timeout is bounded by the metadata refresh like the one of a single threaded sender, so expiry is checked
+ * as often.
  */
 public class Sender implements Runnable {
 
     private static final Logger log = LoggerFactory.getLogger(Sender.class);
 
-    /* the state of each nodes connection */
-    private final KafkaClient client;
+    /* the state of each nodes connection, one client per shard */
+    private final List<KafkaClient> clients;
+
+    /* the number of shards whose thread has not yet completed its shutdown */
+    private final AtomicInteger runningShards;
 
     /* the record accumulator that batches records */
     private final RecordAccumulator accumulator;
@@ -60,6 +73,9 @@ public class Sender implements Runnable {
     /* the flag indicating whether the producer should guarantee the message order on the broker or not. */
     private final boolean guaranteeMessageOrder;
 
+    /* the number of connections to each broker that produce requests are spread over */
+    private final int connectionsPerBroker;
+
     /* the maximum request size to attempt to send to the server */
     private final int maxRequestSize;
 
@@ -88,16 +104,34 @@ public class Sender implements Runnable {
                   Metadata metadata,
                   RecordAccumulator accumulator,
                   boolean guaranteeMessageOrder,
+                  int connectionsPerBroker,
+                  int maxRequestSize,
+                  short acks,
+                  int retries,
+                  Metrics metrics,
+                  Time time,
+                  int requestTimeout) {
+        this(Collections.singletonList(client), metadata, accumulator, guaranteeMessageOrder, connectionsPerBroker,
+             maxRequestSize, acks, retries, metrics, time, requestTimeout);
+    }
+
+    public Sender(List<KafkaClient> clients,
+                  Metadata metadata,
+                  RecordAccumulator accumulator,
+                  boolean guaranteeMessageOrder,
+                  int connectionsPerBroker,
                   int maxRequestSize,
                   short acks,
                   int retries,
                   Metrics metrics,
                   Time time,
                   int requestTimeout) {
-        this.client = client;
+        this.clients = new ArrayList(clients);
+        this.runningShards = new AtomicInteger(clients.size());
         this.accumulator = accumulator;
         this.metadata = metadata;
         this.guaranteeMessageOrder = guaranteeMessageOrder;
+        this.connectionsPerBroker = connectionsPerBroker;
         this.maxRequestSize = maxRequestSize;
         this.running = true;
         this.acks = acks;
@@ -108,15 +142,38 @@ public class Sender implements Runnable {
     }
 
     /**
-     * The main run loop for the sender thread
+     * The main run loop for the sender thread, this runs the first shard only
      */
     public void run() {
-        log.debug("Starting Kafka producer I/O thread.");
+        runShard(0);
+    }
+
+    /**
+     * The run loop of the given shard, to be run by a dedicated thread
+     */
+    public Runnable shard(final int shard) {
+        return new Runnable() {
+            public void run() {
+                runShard(shard);
+            }
+        };
+    }
+
+    /**
+     * The number of shards, one for each network client given to this sender
+     */
+    public int shardCount() {
+        return this.clients.size();
+    }
+
+    private void runShard(int shard) {
+        KafkaClient client = this.clients.get(shard);
+        log.debug("Starting Kafka producer I/O thread for shard {}.", shard);
 
         // main loop, runs until close is called
         while (running) {
             try {
-                run(time.milliseconds());
+                run(shard, time.milliseconds());
             } catch (Exception e) {
                 log.error("Uncaught error in kafka producer I/O thread: ", e);
             }
@@ -127,23 +184,25 @@ public class Sender implements Runnable {
         // okay we stopped accepting requests but there may still be
         // requests in the accumulator or waiting for acknowledgment,
         // wait until these are completed.
-        while (!forceClose && (this.accumulator.hasUnsent() || this.client.inFlightRequestCount() > 0)) {
+        while (!forceClose && (this.accumulator.hasUnsent() || client.inFlightRequestCount() > 0)) {
             try {
-                run(time.milliseconds());
+                run(shard, time.milliseconds());
             } catch (Exception e) {
                 log.error("Uncaught error in kafka producer I/O thread: ", e);
             }
         }
-        if (forceClose) {
-            // We need to fail all the incomplete batches and wake up the threads waiting on
-            // the futures.
-            this.accumulator.abortIncompleteBatches();
-        }
         try {
-            this.client.close();
+            client.close();
         } catch (Exception e) {
             log.error("Failed to close network client", e);
         }
+        // the other shards may be waiting in poll for data this shard has now sent out, let them check again
+        wakeup();
+        if (runningShards.decrementAndGet() == 0 && forceClose) {
+            // We need to fail all the incomplete batches and wake up the threads waiting on
+            // the futures. This is left to the last shard so that no response can complete a batch concurrently.
+            this.accumulator.abortIncompleteBatches();
+        }
 
         log.debug("Shutdown of Kafka producer I/O thread has completed.");
     }
@@ -155,6 +214,18 @@ public class Sender implements Runnable {
      *            The current POSIX time in milliseconds
      */
     void run(long now) {
+        run(0, now);
+    }
+
+    /**
+     * Run a single iteration of sending for the given shard
+     *
+     * @param shard The shard to send for, only the nodes owned by this shard are drained
+     * @param now
+     *            The current POSIX time in milliseconds
+     */
+    void run(int shard, long now) {
+        KafkaClient client = this.clients.get(shard);
         Cluster cluster = metadata.fetch();
         // get the list of partitions with data ready to send
         RecordAccumulator.ReadyCheckResult result = this.accumulator.ready(cluster, now);
@@ -166,38 +237,43 @@ public class Sender implements Runnable {
             // and request metadata update, since there are messages to send to the topic.
             for (String topic : result.unknownLeaderTopics)
                 this.metadata.add(topic);
-            this.metadata.requestUpdate();
+            requestMetadataUpdate();
         }
 
         // remove any nodes we aren't ready to send to
+        Map<Node, List<Integer>> readyConnections = new HashMap();
         Iterator<Node> iter = result.readyNodes.iterator();
         long notReadyTimeout = Long.MAX_VALUE;
         while (iter.hasNext()) {
             Node node = iter.next();
-            if (!this.client.ready(node, now)) {
+            if (shardOf(node) != shard) {
                 iter.remove();
-                notReadyTimeout = Math.min(notReadyTimeout, this.client.connectionDelay(node, now));
+                continue;
+            }
+            List<Integer> connections = new ArrayList(connectionsPerBroker);
+            for (int connection = 0; connection < connectionsPerBroker; connection++) {
+                if (client.ready(node, connection, now))
+                    connections.add(connection);
+                else
+                    notReadyTimeout = Math.min(notReadyTimeout, client.connectionDelay(node, connection, now));
             }
+            if (connections.isEmpty())
+                iter.remove();
+            else
+                readyConnections.put(node, connections);
         }
 
         // create produce requests
-        Map<Integer, List<RecordBatch>> batches = this.accumulator.drain(cluster,
-                                                                         result.readyNodes,
-                                                                         this.maxRequestSize,
-                                                                         now);
-        if (guaranteeMessageOrder) {
-            // Mute all the partitions drained
-            for (List<RecordBatch> batchList : batches.values()) {
-                for (RecordBatch batch : batchList)
-                    this.accumulator.mutePartition(batch.topicPartition);
-            }
+        Map<String, List<RecordBatch>> batches = drain(cluster, readyConnections, now);
+
+        // expiration covers the whole accumulator, so it is left to the first shard
+        if (shard == 0) {
+            List<RecordBatch> expiredBatches = this.accumulator.abortExpiredBatches(this.requestTimeout, now);
+            // update sensors
+            for (RecordBatch expiredBatch : expiredBatches)
+                this.sensors.recordErrors(expiredBatch.topicPartition.topic(), expiredBatch.recordCount);
         }
 
-        List<RecordBatch> expiredBatches = this.accumulator.abortExpiredBatches(this.requestTimeout, now);
-        // update sensors
-        for (RecordBatch expiredBatch : expiredBatches)
-            this.sensors.recordErrors(expiredBatch.topicPartition.topic(), expiredBatch.recordCount);
-
         sensors.updateProduceRequestMetrics(batches);
 
         // If we have any nodes that are ready to send + have sendable data, poll with 0 timeout so this can immediately
@@ -209,13 +285,80 @@ public class Sender implements Runnable {
             log.trace("Nodes with data ready to send: {}", result.readyNodes);
             pollTimeout = 0;
         }
-        sendProduceRequests(batches, now);
+        sendProduceRequests(client, batches, now);
 
         // if some partitions are already ready to be sent, the select time would be 0;
         // otherwise if some partition already has some data accumulated but not ready yet,
         // the select time will be the time difference between now and its linger expiry time;
         // otherwise the select time will be the time difference between now and the metadata expiry time;
-        this.client.poll(pollTimeout, now);
+        client.poll(pollTimeout, now);
+    }
+
+    /**
+     * Request a metadata update and wake up the first shard, which sends the metadata requests
+     */
+    private void requestMetadataUpdate() {
+        this.metadata.requestUpdate();
+        if (this.clients.size() > 1)
+            this.clients.get(0).wakeup();
+    }
+
+    /**
+     * The shard owning the given node
+     */
+    private int shardOf(Node node) {
+        return Utils.toPositive(node.id()) % this.clients.size();
+    }
+
+    /**
+     * Drain the accumulator into one request per ready connection. Each round drains at most one request for every
+     * node that has a ready connection left, so the batches of a node are spread over its connections. Drained
+     * partitions are muted between rounds so that a partition never has two batches drained in the same iteration.
+     *
+     * @return The batches to send keyed by connection id
+     */
+    private Map<String, List<RecordBatch>> drain(Cluster cluster, Map<Node, List<Integer>> readyConnections, long now) {
+        Map<String, List<RecordBatch>> batches = new HashMap();
+        List<TopicPartition> drainedPartitions = new ArrayList();
+        for (int round = 0; round < connectionsPerBroker; round++) {
+            Map<Integer, Node> nodes = new HashMap();
+            for (Map.Entry<Node, List<Integer>> entry : readyConnections.entrySet()) {
+                if (entry.getValue().size() > round)
+                    nodes.put(entry.getKey().id(), entry.getKey());
+            }
+
+            Map<Integer, List<RecordBatch>> drained = this.accumulator.drain(cluster,
+                                                                             new HashSet(nodes.values()),
+                                                                             this.maxRequestSize,
+                                                                             now);
+            boolean drainedAny = false;
+            for (Map.Entry<Integer, List<RecordBatch>> entry : drained.entrySet()) {
+                List<RecordBatch> batchList = entry.getValue();
+                // the first round keeps its (possibly empty) entries, which is what the single connection case did
+                if (batchList.isEmpty() && round > 0)
+                    continue;
+                drainedAny |= !batchList.isEmpty();
+                Node node = nodes.get(entry.getKey());
+                int connection = readyConnections.get(node).get(round);
+                batches.put(NetworkClient.connectionId(node, connection), batchList);
+                if (guaranteeMessageOrder || connectionsPerBroker > 1) {
+                    // Mute all the partitions drained
+                    for (RecordBatch batch : batchList) {
+                        this.accumulator.mutePartition(batch.topicPartition);
+                        drainedPartitions.add(batch.topicPartition);
+                    }
+                }
+            }
+            if (!drainedAny)
+                break;
+        }
+
+        // without ordering guarantees the partitions were only muted for the rounds above
+        if (!guaranteeMessageOrder) {
+            for (TopicPartition tp : drainedPartitions)
+                this.accumulator.unmutePartition(tp);
+        }
+        return batches;
     }
 
     /**
@@ -284,7 +427,15 @@ public class Sender implements Runnable {
     private void completeBatch(RecordBatch batch, ProduceResponse.PartitionResponse response, long correlationId,
                                long now) {
         Errors error = response.error;
-        if (error != Errors.NONE && canRetry(batch, error)) {
+        if (error == Errors.MESSAGE_TOO_LARGE && batch.recordCount > 1 && batch.isCompressed()) {
+            // the compressed batch is larger than the broker accepts because the compression was overestimated,
+            // split it and send the records again instead of failing all of them
+            int numSplitBatches = this.accumulator.splitAndReenqueue(batch);
+            log.warn("Got error produce response with correlation id {} on topic-partition {}, split the batch of {} records into {} batches. Error: {}",
+                    new Object[]{correlationId, batch.topicPartition, batch.recordCount, numSplitBatches, error});
+            this.accumulator.deallocate(batch);
+            this.sensors.batchSplitSensor.record();
+        } else if (error != Errors.NONE && canRetry(batch, error)) {
             // retry
             log.warn("Got error produce response with correlation id {} on topic-partition {}, retrying ({} attempts left). Error: {}",
                     new Object[]{correlationId,
@@ -309,7 +460,7 @@ public class Sender implements Runnable {
             if (error.exception() instanceof UnknownTopicOrPartitionException)
                 log.warn("Received unknown topic or partition error in produce request on partition {}. The " +
                         "topic/partition may not exist or the user may not have Describe access to it", batch.topicPartition);
-            metadata.requestUpdate();
+            requestMetadataUpdate();
         }
 
         // Unmute the completed partition.
@@ -327,16 +478,16 @@ public class Sender implements Runnable {
     /**
      * Transfer the record batches into a list of produce requests on a per-node basis
      */
-    private void sendProduceRequests(Map<Integer, List<RecordBatch>> collated, long now) {
-        for (Map.Entry<Integer, List<RecordBatch>> entry : collated.entrySet())
-            sendProduceRequest(now, entry.getKey(), acks, requestTimeout, entry.getValue());
+    private void sendProduceRequests(KafkaClient client, Map<String, List<RecordBatch>> collated, long now) {
+        for (Map.Entry<String, List<RecordBatch>> entry : collated.entrySet())
+            sendProduceRequest(client, now, entry.getKey(), acks, requestTimeout, entry.getValue());
     }
 
     /**
      * Create a produce request from the given record batches
      */
-    private void sendProduceRequest(long now, int destination, short acks, int timeout, List<RecordBatch> batches) {
-        Map<TopicPartition, MemoryRecords> produceRecordsByPartition = new HashMap(batches.size());
+    private void sendProduceRequest(KafkaClient client, long now, String nodeId, short acks, int timeout, List<RecordBatch> batches) {
+        Map<TopicPartition, Records> produceRecordsByPartition = new HashMap(batches.size());
         final Map<TopicPartition, RecordBatch> recordsByPartition = new HashMap(batches.size());
         for (RecordBatch batch : batches) {
             TopicPartition tp = batch.topicPartition;
@@ -352,17 +503,17 @@ public class Sender implements Runnable {
             }
         };
 
-        String nodeId = Integer.toString(destination);
         ClientRequest clientRequest = client.newClientRequest(nodeId, requestBuilder, now, acks != 0, callback);
         client.send(clientRequest, now);
         log.trace("Sent produce request to {}: {}", nodeId, requestBuilder);
     }
 
     /**
-     * Wake up the selector associated with this send thread
+     * Wake up the selectors associated with the send threads
      */
     public void wakeup() {
-        this.client.wakeup();
+        for (KafkaClient client : this.clients)
+            client.wakeup();
     }
 
     /**
@@ -380,6 +531,7 @@ public class Sender implements Runnable {
         public final Sensor compressionRateSensor;
         public final Sensor maxRecordSizeSensor;
         public final Sensor produceThrottleTimeSensor;
+        public final Sensor batchSplitSensor;
 
         public SenderMetrics(Metrics metrics) {
             this.metrics = metrics;
@@ -427,6 +579,10 @@ public class Sender implements Runnable {
             m = metrics.metricName("record-error-rate", metricGrpName, "The average per-second number of record sends that resulted in errors");
             this.errorSensor.add(m, new Rate());
 
+            this.batchSplitSensor = metrics.sensor("batch-split");
+            m = metrics.metricName("batch-split-rate", metricGrpName, "The average per-second number of record batches that were split because they were too large");
+            this.batchSplitSensor.add(m, new Rate(new Count()));
+
             this.maxRecordSizeSensor = metrics.sensor("record-size-max");
             m = metrics.metricName("record-size-max", metricGrpName, "The maximum record size");
             this.maxRecordSizeSensor.add(m, new Max());
@@ -436,7 +592,10 @@ public class Sender implements Runnable {
             m = metrics.metricName("requests-in-flight", metricGrpName, "The current number of in-flight requests awaiting a response.");
             this.metrics.addMetric(m, new Measurable() {
                 public double measure(MetricConfig config, long now) {
-                    return client.inFlightRequestCount();
+                    int inFlight = 0;
+                    for (KafkaClient client : clients)
+                        inFlight += client.inFlightRequestCount();
+                    return inFlight;
                 }
             });
             m = metrics.metricName("metadata-age", metricGrpName, "The age in seconds of the current producer metadata being used.");
@@ -447,7 +606,7 @@ public class Sender implements Runnable {
             });
         }
 
-        private void maybeRegisterTopicMetrics(String topic) {
+        private synchronized void maybeRegisterTopicMetrics(String topic) {
             // if one sensor of the metrics has been registered for the topic,
             // then all other sensors should have been registered; and vice versa
             String topicRecordsCountName = "topic." + topic + ".records-per-batch";
@@ -482,7 +641,7 @@ public class Sender implements Runnable {
             }
         }
 
-        public void updateProduceRequestMetrics(Map<Integer, List<RecordBatch>> batches) {
+        public void updateProduceRequestMetrics(Map<String, List<RecordBatch>> batches) {
             long now = time.milliseconds();
             for (List<RecordBatch> nodeBatch : batches.values()) {
                 int records = 0;
@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.kafka.clients.consumer.LoadAwareAssignor;
+import org.apache.kafka.clients.consumer.RangeAssignor;
+import org.apache.kafka.clients.consumer.RoundRobinAssignor;
+import org.apache.kafka.clients.consumer.StickyAssignor;
+import org.apache.kafka.clients.consumer.internals.ConsumerProtocol;
+import org.apache.kafka.clients.consumer.internals.PartitionAssignor;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * Measures how long partition assignors take to compute the assignment of a large group and how many partitions
+ * change owner when a member joins or leaves. Every member has its own assignor instance and the subscriptions go
+ * through the {@link ConsumerProtocol} encoding, as they would in a real group.
+ */
+public class AssignorPerformance {
+
+    private static final int WARMUP_ITERATIONS = 3;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("USAGE: java " + AssignorPerformance.class.getName() +
+                               " num_members num_topics partitions_per_topic topics_per_member [assignor_class]*");
+            System.exit(1);
+        }
+
+        /* parse args */
+        int numMembers = Integer.parseInt(args[0]);
+        int numTopics = Integer.parseInt(args[1]);
+        int partitionsPerTopic = Integer.parseInt(args[2]);
+        int topicsPerMember = Math.min(Integer.parseInt(args[3]), numTopics);
+        List<Class<?>> assignors = new ArrayList<Class<?>>();
+        for (int i = 4; i < args.length; i++)
+            assignors.add(Class.forName(args[i]));
+        if (assignors.isEmpty()) {
+            assignors.add(RangeAssignor.class);
+            assignors.add(RoundRobinAssignor.class);
+            assignors.add(StickyAssignor.class);
+            assignors.add(LoadAwareAssignor.class);
+        }
+
+        List<String> topics = new ArrayList<String>(numTopics);
+        List<PartitionInfo> partitions = new ArrayList<PartitionInfo>(numTopics * partitionsPerTopic);
+        Node node = new Node(0, "localhost", 9092);
+        Node[] replicas = new Node[] {node};
+        for (int t = 0; t < numTopics; t++) {
+            String topic = "topic-" + t;
+            topics.add(topic);
+            for (int p = 0; p < partitionsPerTopic; p++)
+                partitions.add(new PartitionInfo(topic, p, node, replicas, replicas));
+        }
+        Cluster cluster = new Cluster("perf", Collections.singletonList(node), partitions,
+                                      Collections.<String>emptySet(), Collections.<String>emptySet());
+
+        System.out.println(String.format("%d members, %d topics, %d partitions, %d topics per member",
+                                         numMembers, numTopics, numTopics * partitionsPerTopic, topicsPerMember));
+        for (Class<?> assignorClass : assignors) {
+            Group group = new Group(assignorClass, topics, topicsPerMember);
+            for (int i = 0; i < numMembers; i++)
+                group.join("member-" + i);
+            // the first rebalances warm up the JIT, only the last one is timed as the initial assignment
+            for (int i = 0; i < WARMUP_ITERATIONS; i++)
+                group.assign(cluster);
+            group.rebalance(cluster, "initial assignment");
+            group.join("member-" + numMembers);
+            group.rebalance(cluster, "member joined");
+            group.leave("member-0");
+            group.rebalance(cluster, "member left");
+            group.rebalance(cluster, "no change");
+        }
+    }
+
+    private static class Group {
+        private final Class<?> assignorClass;
+        private final List<String> topics;
+        private final int topicsPerMember;
+        private final Map<String, PartitionAssignor> members = new HashMap<String, PartitionAssignor>();
+        private final Map<String, Set<String>> subscriptions = new HashMap<String, Set<String>>();
+        private final Map<TopicPartition, String> owners = new HashMap<TopicPartition, String>();
+        private long elapsedNs;
+
+        public Group(Class<?> assignorClass, List<String> topics, int topicsPerMember) {
+            this.assignorClass = assignorClass;
+            this.topics = topics;
+            this.topicsPerMember = topicsPerMember;
+        }
+
+        public void join(String memberId) {
+            // members subscribe to a sliding window over the topics, so subscriptions differ unless all topics are used
+            Set<String> subscription = new HashSet<String>();
+            int first = members.size() * topicsPerMember;
+            for (int i = 0; i < topicsPerMember; i++)
+                subscription.add(topics.get((first + i) % topics.size()));
+            members.put(memberId, (PartitionAssignor) Utils.newInstance(assignorClass));
+            subscriptions.put(memberId, subscription);
+        }
+
+        public void leave(String memberId) {
+            members.remove(memberId);
+            subscriptions.remove(memberId);
+        }
+
+        public Map<String, PartitionAssignor.Assignment> assign(Cluster cluster) {
+            Map<String, PartitionAssignor.Subscription> subscriptions = new HashMap<String, PartitionAssignor.Subscription>();
+            for (Map.Entry<String, PartitionAssignor> member : members.entrySet()) {
+                PartitionAssignor.Subscription subscription = member.getValue().subscription(this.subscriptions.get(member.getKey()));
+                subscriptions.put(member.getKey(),
+                                  ConsumerProtocol.deserializeSubscription(ConsumerProtocol.serializeSubscription(subscription)));
+            }
+
+            PartitionAssignor leader = members.get(Utils.sorted(members.keySet()).get(0));
+            long start = System.nanoTime();
+            Map<String, PartitionAssignor.Assignment> assignments = leader.assign(cluster, subscriptions);
+            this.elapsedNs = System.nanoTime() - start;
+            return assignments;
+        }
+
+        public void rebalance(Cluster cluster, String scenario) {
+            Map<String, PartitionAssignor.Assignment> assignments = assign(cluster);
+
+            int moved = 0;
+            int min = Integer.MAX_VALUE;
+            int max = 0;
+            Map<TopicPartition, String> newOwners = new HashMap<TopicPartition, String>();
+            for (Map.Entry<String, PartitionAssignor.Assignment> entry : assignments.entrySet()) {
+                List<TopicPartition> assigned = entry.getValue().partitions();
+                min = Math.min(min, assigned.size());
+                max = Math.max(max, assigned.size());
+                for (TopicPartition tp : assigned) {
+                    String previous = owners.get(tp);
+                    if (previous != null && !previous.equals(entry.getKey()))
+                        moved++;
+                    newOwners.put(tp, entry.getKey());
+                }
+                members.get(entry.getKey()).onAssignment(entry.getValue());
+            }
+            owners.clear();
+            owners.putAll(newOwners);
+
+            System.out.println(String.format("%s, %s: %.2f ms, %d partitions moved, %d to %d partitions per member",
+                                             members.values().iterator().next().name(), scenario, elapsedNs / 1000000.0, moved, min, max));
+        }
+    }
+
+}
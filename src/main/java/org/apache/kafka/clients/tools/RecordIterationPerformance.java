@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.tools;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.LogEntry;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordCursor;
+import org.apache.kafka.common.record.TimestampType;
+
+/**
+ * Compares the deep iteration of {@link MemoryRecords} through {@link MemoryRecords#deepEntries()} with a
+ * {@link RecordCursor}, reading the fields the consumer reads for every record. The records are split in batches as
+ * they would be in a fetch response.
+ */
+public class RecordIterationPerformance {
+
+    private static final int WARMUP_ITERATIONS = 20;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("USAGE: java " + RecordIterationPerformance.class.getName() +
+                               " num_records records_per_batch record_size compression_type [iterations]");
+            System.exit(1);
+        }
+
+        /* parse args */
+        int numRecords = Integer.parseInt(args[0]);
+        int recordsPerBatch = Integer.parseInt(args[1]);
+        int recordSize = Integer.parseInt(args[2]);
+        CompressionType compressionType = CompressionType.forName(args[3]);
+        int iterations = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+
+        MemoryRecords records = createRecords(numRecords, recordsPerBatch, recordSize, compressionType);
+        System.out.println(String.format("%d records in batches of %d, %d bytes per record, %s, %d bytes",
+                                         numRecords, recordsPerBatch, recordSize, compressionType.name,
+                                         records.sizeInBytes()));
+
+        RecordCursor cursor = new RecordCursor(true, Integer.MAX_VALUE);
+        long checksum = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            checksum += iterateEntries(records);
+            checksum += iterateCursor(cursor, records);
+        }
+
+        long entriesNs = 0;
+        long cursorNs = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            checksum += iterateEntries(records);
+            long middle = System.nanoTime();
+            checksum += iterateCursor(cursor, records);
+            long end = System.nanoTime();
+            entriesNs += middle - start;
+            cursorNs += end - middle;
+        }
+
+        long total = (long) numRecords * iterations;
+        System.out.println(String.format("deep entries: %.1f ns/record", entriesNs / (double) total));
+        System.out.println(String.format("cursor:       %.1f ns/record", cursorNs / (double) total));
+        // print the checksum so that the iterations cannot be optimized away
+        System.out.println("checksum: " + checksum);
+    }
+
+    private static long iterateEntries(MemoryRecords records) {
+        long sum = 0;
+        for (LogEntry entry : records.deepEntries()) {
+            Record record = entry.record();
+            record.ensureValid();
+            sum += entry.offset() + record.timestamp() + record.keySize() + record.valueSize();
+            ByteBuffer value = record.value();
+            if (value != null)
+                sum += value.get(value.position());
+        }
+        return sum;
+    }
+
+    private static long iterateCursor(RecordCursor cursor, MemoryRecords records) {
+        long sum = 0;
+        cursor.reset(records);
+        while (cursor.next()) {
+            cursor.ensureValid();
+            sum += cursor.offset() + cursor.timestamp() + cursor.keySize() + cursor.valueSize();
+            if (cursor.valueSize() >= 0)
+                sum += cursor.buffer().get(cursor.valuePosition());
+        }
+        return sum;
+    }
+
+    private static MemoryRecords createRecords(int numRecords, int recordsPerBatch, int recordSize,
+                                               CompressionType compressionType) {
+        Random random = new Random(0);
+        byte[] key = new byte[8];
+        byte[] value = new byte[recordSize];
+        List<ByteBuffer> batches = new ArrayList<ByteBuffer>();
+        int totalSize = 0;
+        for (int offset = 0; offset < numRecords; offset += recordsPerBatch) {
+            int count = Math.min(recordsPerBatch, numRecords - offset);
+            ByteBuffer buffer = ByteBuffer.allocate(count * (recordSize + key.length + 64) + 1024);
+            MemoryRecordsBuilder builder = MemoryRecords.builder(buffer, compressionType, TimestampType.CREATE_TIME,
+                                                                 offset);
+            for (int i = 0; i < count; i++) {
+                // half random bytes so that compressed batches do not collapse to nothing
+                random.nextBytes(key);
+                for (int j = 0; j < value.length; j++)
+                    value[j] = j % 2 == 0 ? (byte) random.nextInt() : (byte) 'x';
+                builder.append(System.currentTimeMillis(), key, value);
+            }
+            ByteBuffer batch = builder.build().buffer();
+            batches.add(batch);
+            totalSize += batch.remaining();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(totalSize);
+        for (ByteBuffer batch : batches)
+            buffer.put(batch);
+        buffer.flip();
+        return MemoryRecords.readableRecords(buffer);
+    }
+
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.tools;
+
+import java.io.File;
+import java.util.Random;
+
+import org.apache.kafka.common.record.FileLogInputStream.FileChannelLogEntry;
+import org.apache.kafka.common.record.FileRecords;
+import org.apache.kafka.common.record.FileRecords.LogEntryPosition;
+import org.apache.kafka.common.record.FileRecordsIndex;
+
+/**
+ * Compares seeking to random offsets of a segment file with {@link FileRecords#searchForOffsetWithSize(long, int)}
+ * and with a {@link FileRecordsIndex} over the mapped file.
+ */
+public class SegmentSeekPerformance {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("USAGE: java " + SegmentSeekPerformance.class.getName() +
+                               " segment_file num_seeks [index_interval_bytes]");
+            System.exit(1);
+        }
+
+        /* parse args */
+        File file = new File(args[0]);
+        int numSeeks = Integer.parseInt(args[1]);
+        int indexIntervalBytes = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+
+        FileRecords records = FileRecords.open(file, false);
+        try {
+            long start = System.nanoTime();
+            FileRecordsIndex index = FileRecordsIndex.build(records, indexIntervalBytes);
+            long buildNs = System.nanoTime() - start;
+            LogEntryPosition first = index.searchForOffsetWithSize(Long.MIN_VALUE);
+            if (first == null) {
+                System.err.println("The segment " + file + " has no records");
+                System.exit(1);
+            }
+            long firstOffset = first.offset;
+            long lastOffset = lastOffset(records);
+            System.out.println(String.format("%d bytes, offsets %d to %d, %d index entries built in %.1f ms",
+                                             records.sizeInBytes(), firstOffset, lastOffset, index.entries(),
+                                             buildNs / 1e6));
+
+            Random random = new Random(0);
+            long[] targets = new long[numSeeks];
+            for (int i = 0; i < numSeeks; i++)
+                targets[i] = firstOffset + (long) (random.nextDouble() * (lastOffset - firstOffset + 1));
+
+            long checksum = 0;
+            start = System.nanoTime();
+            for (long target : targets)
+                checksum += records.searchForOffsetWithSize(target, 0).position;
+            long scanNs = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (long target : targets)
+                checksum -= index.searchForOffsetWithSize(target).position;
+            long indexNs = System.nanoTime() - start;
+
+            System.out.println(String.format("file scan: %.1f us/seek", scanNs / 1e3 / numSeeks));
+            System.out.println(String.format("index:     %.1f us/seek", indexNs / 1e3 / numSeeks));
+            // the positions found both ways must be the same
+            System.out.println("checksum: " + checksum);
+        } finally {
+            records.close();
+        }
+    }
+
+    private static long lastOffset(FileRecords records) {
+        long lastOffset = -1;
+        for (FileChannelLogEntry entry : records.shallowEntries())
+            lastOffset = entry.offset();
+        return lastOffset;
+    }
+
+}
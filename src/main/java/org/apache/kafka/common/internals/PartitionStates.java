@@ -34,48 +34,81 @@ import java.util.*;
  */
 public class PartitionStates<S> {
 
-    private final LinkedHashMap<TopicPartition, S> map = new LinkedHashMap();
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // the partitions are kept in slots of parallel arrays and linked in order through the next/prev slot indexes, so
+    // moving a partition to the end and iterating over the partitions does not allocate anything; removed slots are
+    // chained through next and reused
+    private final Map<TopicPartition, Integer> slots = new HashMap();
+    private TopicPartition[] partitions = new TopicPartition[INITIAL_CAPACITY];
+    private Object[] states = new Object[INITIAL_CAPACITY];
+    private int[] next = new int[INITIAL_CAPACITY];
+    private int[] prev = new int[INITIAL_CAPACITY];
+    private int head = NONE;
+    private int tail = NONE;
+    private int free = NONE;
+    private int used = 0;
 
     public PartitionStates() {}
 
     public void moveToEnd(TopicPartition topicPartition) {
-        S state = map.remove(topicPartition);
-        if (state != null)
-            map.put(topicPartition, state);
+        Integer slot = slots.get(topicPartition);
+        if (slot != null && slot != tail) {
+            unlink(slot);
+            linkLast(slot);
+        }
     }
 
     public void updateAndMoveToEnd(TopicPartition topicPartition, S state) {
-        map.remove(topicPartition);
-        map.put(topicPartition, state);
+        Integer slot = slots.get(topicPartition);
+        if (slot == null) {
+            add(topicPartition, state);
+        } else {
+            states[slot] = state;
+            moveToEnd(topicPartition);
+        }
     }
 
     public void remove(TopicPartition topicPartition) {
-        map.remove(topicPartition);
+        Integer slot = slots.remove(topicPartition);
+        if (slot != null) {
+            unlink(slot);
+            partitions[slot] = null;
+            states[slot] = null;
+            next[slot] = free;
+            free = slot;
+        }
     }
 
     /**
      * Returns the partitions in random order.
      */
     public Set<TopicPartition> partitionSet() {
-        return new HashSet(map.keySet());
+        return new HashSet(slots.keySet());
     }
 
     public void clear() {
-        map.clear();
+        slots.clear();
+        Arrays.fill(partitions, 0, used, null);
+        Arrays.fill(states, 0, used, null);
+        head = NONE;
+        tail = NONE;
+        free = NONE;
+        used = 0;
     }
 
     public boolean contains(TopicPartition topicPartition) {
-        return map.containsKey(topicPartition);
+        return slots.containsKey(topicPartition);
     }
 
     /**
      * Returns the partition states in order.
      */
     public List<PartitionState<S>> partitionStates() {
-        List<PartitionState<S>> result = new ArrayList();
-        for (Map.Entry<TopicPartition, S> entry : map.entrySet()) {
-            result.add(new PartitionState(entry.getKey(), entry.getValue()));
-        }
+        List<PartitionState<S>> result = new ArrayList(slots.size());
+        for (int slot = first(); slot != NONE; slot = next(slot))
+            result.add(new PartitionState(partitions[slot], states[slot]));
         return result;
     }
 
@@ -83,15 +116,50 @@ public class PartitionStates<S> {
      * Returns the partition state values in order.
      */
     public List<S> partitionStateValues() {
-        return new ArrayList(map.values());
+        List<S> result = new ArrayList(slots.size());
+        for (int slot = first(); slot != NONE; slot = next(slot))
+            result.add(stateAt(slot));
+        return result;
     }
 
     public S stateValue(TopicPartition topicPartition) {
-        return map.get(topicPartition);
+        Integer slot = slots.get(topicPartition);
+        return slot == null ? null : stateAt(slot);
     }
 
     public int size() {
-        return map.size();
+        return slots.size();
+    }
+
+    /**
+     * The slot of the first partition, to iterate over the partitions in order without allocating:
+     * <pre>
+     *     for (int slot = states.first(); slot >= 0; slot = states.next(slot))
+     *         process(states.partitionAt(slot), states.stateAt(slot));
+     * </pre>
+     * The partitions must not be changed during such an iteration. In particular, moving the current partition with
+     * {@link #moveToEnd(TopicPartition)} makes its slot the last one, so the iteration ends without visiting the
+     * partitions which followed it.
+     * @return The slot of the first partition, or a negative value if there are none
+     */
+    public int first() {
+        return head;
+    }
+
+    /**
+     * @return The slot of the partition following the one in the given slot, or a negative value if it is the last
+     */
+    public int next(int slot) {
+        return next[slot];
+    }
+
+    public TopicPartition partitionAt(int slot) {
+        return partitions[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public S stateAt(int slot) {
+        return (S) states[slot];
     }
 
     /**
@@ -101,7 +169,7 @@ public class PartitionStates<S> {
      * map): a0, a1, b1, b0, c0, c1.
      */
     public void set(Map<TopicPartition, S> partitionToState) {
-        map.clear();
+        clear();
         update(partitionToState);
     }
 
@@ -118,11 +186,64 @@ public class PartitionStates<S> {
         for (Map.Entry<String, List<TopicPartition>> entry : topicToPartitions.entrySet()) {
             for (TopicPartition tp : entry.getValue()) {
                 S state = partitionToState.get(tp);
-                map.put(tp, state);
+                updateAndMoveToEnd(tp, state);
             }
         }
     }
 
+    private void add(TopicPartition topicPartition, S state) {
+        int slot;
+        if (free != NONE) {
+            slot = free;
+            free = next[slot];
+        } else {
+            if (used == partitions.length)
+                grow();
+            slot = used++;
+        }
+        partitions[slot] = topicPartition;
+        states[slot] = state;
+        slots.put(topicPartition, slot);
+        linkLast(slot);
+    }
+
+    private void linkLast(int slot) {
+        prev[slot] = tail;
+        next[slot] = NONE;
+        if (tail == NONE)
+            head = slot;
+        else
+            next[tail] = slot;
+        tail = slot;
+    }
+
+    private void unlink(int slot) {
+        if (prev[slot] == NONE)
+            head = next[slot];
+        else
+            next[prev[slot]] = next[slot];
+        if (next[slot] == NONE)
+            tail = prev[slot];
+        else
+            prev[next[slot]] = prev[slot];
+    }
+
+    private void grow() {
+        int capacity = partitions.length * 2;
+        TopicPartition[] newPartitions = new TopicPartition[capacity];
+        Object[] newStates = new Object[capacity];
+        int[] newNext = new int[capacity];
+        int[] newPrev = new int[capacity];
+        System.arraycopy(partitions, 0, newPartitions, 0, used);
+        System.arraycopy(states, 0, newStates, 0, used);
+        System.arraycopy(next, 0, newNext, 0, used);
+        System.arraycopy(prev, 0, newPrev, 0, used);
+        partitions = newPartitions;
+        states = newStates;
+        next = newNext;
+        prev = newPrev;
+    }
+
     public static class PartitionState<S> {
         private final TopicPartition topicPartition;
         private final S value;
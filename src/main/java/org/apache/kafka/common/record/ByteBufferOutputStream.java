@@ -19,9 +19,16 @@ package org.apache.kafka.common.record;
 import java.io.DataOutputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * A byte buffer backed output outputStream
+ * A byte buffer backed output outputStream.
+ * <p>
+ * When the buffer is full, the stream grows by allocating a larger buffer and copying the buffer into it, unless a
+ * {@link BufferSupplier} is set: the stream then writes to additional buffers taken from the supplier, which are
+ * copied into a single buffer only once, when {@link #buffer()} is called, and released to the supplier. A stream can
+ * be {@link #reset(ByteBuffer) reset} to write to another buffer, so that it is reused across record sets.
  */
 public class ByteBufferOutputStream extends DataOutputStream {
 
@@ -31,38 +38,149 @@ public class ByteBufferOutputStream extends DataOutputStream {
         super(new UnderlyingOutputStream(buffer));
     }
 
+    /**
+     * The buffer written to. If the stream writes to several buffers, they are first copied into a single buffer.
+     */
     public ByteBuffer buffer() {
-        return ((UnderlyingOutputStream) out).buffer;
+        return underlying().buffer();
+    }
+
+    /**
+     * The position in {@link #buffer()} the next byte is written to, without copying the buffers of the stream
+     */
+    public int position() {
+        return underlying().position();
+    }
+
+    /**
+     * Take the buffers the stream grows into from the given supplier, or allocate them if it is null.
+     */
+    public void setBufferSupplier(BufferSupplier supplier) {
+        underlying().supplier = supplier;
+    }
+
+    /**
+     * Write to the given buffer from its position, as a new stream would. The buffers taken from the supplier which
+     * were not copied yet are released and the supplier is unset.
+     */
+    public void reset(ByteBuffer buffer) {
+        underlying().reset(buffer);
+        this.written = 0;
+    }
+
+    private UnderlyingOutputStream underlying() {
+        return (UnderlyingOutputStream) out;
+    }
+
+    /**
+     * The source of the buffers a stream grows into, e.g. a pool of buffers with a memory limit.
+     */
+    public interface BufferSupplier {
+
+        /**
+         * Get a buffer with at least the given capacity. This must not block.
+         */
+        ByteBuffer get(int minCapacity);
+
+        /**
+         * Give back a buffer which was taken from this supplier, or the initial buffer of a stream which was replaced
+         * by a buffer of this supplier.
+         */
+        void release(ByteBuffer buffer);
     }
 
     public static class UnderlyingOutputStream extends OutputStream {
         private ByteBuffer buffer;
+        private BufferSupplier supplier;
+        // the buffers taken from the supplier after the buffer, in the order they are written to
+        private final List<ByteBuffer> chunks = new ArrayList();
+        // the buffer being written to, which is the buffer or the last chunk
+        private ByteBuffer current;
 
         public UnderlyingOutputStream(ByteBuffer buffer) {
             this.buffer = buffer;
+            this.current = buffer;
         }
 
         public void write(int b) {
-            if (buffer.remaining() < 1)
-                expandBuffer(buffer.capacity() + 1);
-            buffer.put((byte) b);
+            if (current.remaining() < 1)
+                grow(1);
+            current.put((byte) b);
         }
 
         public void write(byte[] bytes, int off, int len) {
-            if (buffer.remaining() < len)
-                expandBuffer(buffer.capacity() + len);
-            buffer.put(bytes, off, len);
+            if (current.remaining() < len) {
+                if (supplier == null) {
+                    expandBuffer(buffer.capacity() + len);
+                } else {
+                    // fill the current buffer and write the rest to a new one
+                    int written = current.remaining();
+                    current.put(bytes, off, written);
+                    off += written;
+                    len -= written;
+                    grow(len);
+                }
+            }
+            current.put(bytes, off, len);
         }
 
         public ByteBuffer buffer() {
+            if (!chunks.isEmpty())
+                consolidate();
             return buffer;
         }
 
+        private int position() {
+            int position = buffer.position();
+            for (ByteBuffer chunk : chunks)
+                position += chunk.position();
+            return position;
+        }
+
+        private void reset(ByteBuffer buffer) {
+            for (ByteBuffer chunk : chunks)
+                supplier.release(chunk);
+            chunks.clear();
+            this.buffer = buffer;
+            this.current = buffer;
+            this.supplier = null;
+        }
+
+        private void grow(int size) {
+            if (supplier == null) {
+                expandBuffer(buffer.capacity() + size);
+            } else {
+                current = supplier.get(size);
+                chunks.add(current);
+            }
+        }
+
+        /**
+         * Copy the buffer and the chunks into a single buffer of the supplier, and release them.
+         */
+        private void consolidate() {
+            ByteBuffer consolidated = supplier.get(position());
+            ByteBuffer written = buffer.duplicate();
+            written.flip();
+            consolidated.put(written);
+            supplier.release(buffer);
+            for (ByteBuffer chunk : chunks) {
+                written = chunk.duplicate();
+                written.flip();
+                consolidated.put(written);
+                supplier.release(chunk);
+            }
+            chunks.clear();
+            buffer = consolidated;
+            current = consolidated;
+        }
+
         private void expandBuffer(int size) {
             int expandSize = Math.max((int) (buffer.capacity() * REALLOCATION_FACTOR), size);
             ByteBuffer temp = ByteBuffer.allocate(expandSize);
             temp.put(buffer.array(), buffer.arrayOffset(), buffer.position());
             buffer = temp;
+            current = temp;
         }
     }
 
@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of reusable compression contexts, such as a {@link java.util.zip.Deflater} or the working buffers of
+ * a codec, shared by the threads compressing and decompressing batches. A context is acquired when a batch is wrapped
+ * for compression or decompression and released when its stream is closed, so a producer or consumer only creates
+ * as many contexts as it uses concurrently. Contexts released while the pool already holds <code>maxIdle</code> idle
+ * ones are destroyed.
+ */
+public abstract class CodecContextPool<T> {
+
+    private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger idleCount = new AtomicInteger(0);
+    private final int maxIdle;
+
+    protected CodecContextPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Create a new context when none is idle.
+     */
+    protected abstract T create();
+
+    /**
+     * Reset a released context before it can be acquired again.
+     */
+    protected void reset(T context) {}
+
+    /**
+     * Free the resources of a context which is not kept by the pool.
+     */
+    protected void destroy(T context) {}
+
+    public T acquire() {
+        T context = idle.poll();
+        if (context == null)
+            return create();
+        idleCount.decrementAndGet();
+        return context;
+    }
+
+    public void release(T context) {
+        reset(context);
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(context);
+        } else {
+            idleCount.decrementAndGet();
+            destroy(context);
+        }
+    }
+
+    /**
+     * A pool of byte arrays of a fixed size.
+     */
+    public static class ByteArrays extends CodecContextPool<byte[]> {
+        private final int size;
+
+        public ByteArrays(int size, int maxIdle) {
+            super(maxIdle);
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Get an array of at least the given size, taken from the pool if its arrays are large enough.
+         */
+        public byte[] acquire(int minSize) {
+            return minSize <= size ? acquire() : new byte[minSize];
+        }
+
+        @Override
+        protected byte[] create() {
+            return new byte[size];
+        }
+
+        @Override
+        public void release(byte[] array) {
+            // arrays which were not allocated by the pool are left to the garbage collector
+            if (array.length == size)
+                super.release(array);
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The implementation of a compression type. Codecs are registered in {@link CompressionCodecs} by the id of their
+ * {@link CompressionType} and looked up whenever a batch is compressed or decompressed, so they must be thread safe.
+ * <p>
+ * Codecs should keep the expensive parts of a stream (native compressors, working buffers) in a
+ * {@link CodecContextPool} and return them to the pool when the stream is closed.
+ */
+public interface CompressionCodec {
+
+    /**
+     * The compression type this codec implements
+     */
+    CompressionType type();
+
+    /**
+     * Wrap the buffer of a batch in a stream compressing what is written to it. Closing the stream finishes the
+     * compressed data and closes the buffer.
+     * @param buffer The buffer to write the compressed data to
+     * @param messageVersion The magic value of the batch
+     * @param bufferSize The suggested size of the buffer of the stream
+     */
+    OutputStream wrapForOutput(ByteBufferOutputStream buffer, byte messageVersion, int bufferSize) throws IOException;
+
+    /**
+     * Wrap the compressed data of a batch in a stream returning the decompressed data.
+     * @param buffer The compressed data
+     * @param messageVersion The magic value of the batch
+     */
+    InputStream wrapForInput(ByteBufferInputStream buffer, byte messageVersion) throws IOException;
+
+}
@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+/**
+ * The registry of the {@link CompressionCodec} of every compression type. The gzip, snappy and lz4 codecs are
+ * registered by default and can be replaced, for example by implementations using native libraries.
+ */
+public final class CompressionCodecs {
+
+    private static volatile CompressionCodec[] codecs;
+
+    static {
+        int maxTypeId = -1;
+        for (CompressionType type : CompressionType.values())
+            maxTypeId = Math.max(maxTypeId, type.id);
+        codecs = new CompressionCodec[maxTypeId + 1];
+        register(new GzipCodec());
+        register(new SnappyCodec());
+        register(new Lz4Codec());
+    }
+
+    private CompressionCodecs() {}
+
+    /**
+     * Register the codec of a compression type, replacing the one registered before.
+     */
+    public static synchronized void register(CompressionCodec codec) {
+        if (codec.type() == CompressionType.NONE)
+            throw new IllegalArgumentException("No codec can be registered for compression type none");
+        CompressionCodec[] updated = codecs.clone();
+        updated[codec.type().id] = codec;
+        codecs = updated;
+    }
+
+    /**
+     * @return The codec of the given compression type
+     * @throws IllegalArgumentException if no codec is registered for the type
+     */
+    public static CompressionCodec forType(CompressionType type) {
+        CompressionCodec codec = codecs[type.id];
+        if (codec == null)
+            throw new IllegalArgumentException("Unknown compression type: " + type);
+        return codec;
+    }
+
+}
@@ -23,6 +23,7 @@ import org.apache.kafka.common.utils.Utils;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.GatheringByteChannel;
 import java.util.Iterator;
@@ -117,6 +118,18 @@ public class FileRecords extends AbstractRecords implements Closeable {
         return buffer;
     }
 
+    /**
+     * Map the records of this instance into memory, read only. Reading the mapped buffer does not copy the data
+     * into the heap and does not take a system call per read, which suits tools reading large files at random
+     * positions. The mapping is a snapshot of the size: records appended later are not visible through it, and it
+     * stays valid until the buffer is garbage collected, even if this instance is closed.
+     *
+     * @return The buffer, whose position 0 is the start of this instance
+     */
+    public MappedByteBuffer map() throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, sizeInBytes());
+    }
+
     /**
      * Return a slice of records from this instance, which is a view into this set starting from the given position
      * and with the given size limit.
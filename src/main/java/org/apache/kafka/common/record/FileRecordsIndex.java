@@ -0,0 +1,231 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import org.apache.kafka.common.record.FileRecords.LogEntryPosition;
+import org.apache.kafka.common.record.FileRecords.TimestampAndOffset;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.apache.kafka.common.record.Records.LOG_OVERHEAD;
+
+/**
+ * A sparse offset and timestamp index over records read through a memory mapping, for tools which seek in large
+ * segment files without the index files of the broker. {@link FileRecords#searchForOffsetWithSize(long, int)} and
+ * {@link FileRecords#searchForTimestamp(long, int)} read every shallow entry from the starting position with
+ * {@link java.nio.channels.FileChannel} reads; with an index a search is a binary search followed by a scan of at
+ * most the index interval, over the mapped buffer.
+ * <p>
+ * The index has an entry for the first shallow entry and then for the first shallow entry after every
+ * <code>indexIntervalBytes</code> bytes. Every index entry holds the offset and position of the shallow entry and the
+ * largest timestamp of the entries before it, which only grows, so that timestamps can be searched even when they are
+ * not in order. The records returned by the index are slices of the mapped buffer and are not copied. The index is
+ * built once and does not see records appended afterwards. This class is not thread safe.
+ */
+public final class FileRecordsIndex {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ByteBuffer buffer;
+    private final MemoryRecords records;
+    private final RecordCursor shallowCursor = new RecordCursor(false, Integer.MAX_VALUE);
+    private final RecordCursor deepCursor = new RecordCursor(true, Integer.MAX_VALUE);
+    private long[] offsets = new long[INITIAL_CAPACITY];
+    private int[] positions = new int[INITIAL_CAPACITY];
+    private long[] maxTimestampsBefore = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    private FileRecordsIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.records = MemoryRecords.readableRecords(buffer);
+    }
+
+    /**
+     * Map the records of the file and index them.
+     *
+     * @param records The records to index
+     * @param indexIntervalBytes The number of bytes between two index entries
+     */
+    public static FileRecordsIndex build(FileRecords records, int indexIntervalBytes) throws IOException {
+        return build(records.map(), indexIntervalBytes);
+    }
+
+    /**
+     * Index records which are already in memory, typically a mapped file. Positions are relative to the position of
+     * the buffer.
+     *
+     * @param buffer The records to index
+     * @param indexIntervalBytes The number of bytes between two index entries
+     */
+    public static FileRecordsIndex build(ByteBuffer buffer, int indexIntervalBytes) {
+        if (indexIntervalBytes <= 0)
+            throw new IllegalArgumentException("Invalid index interval: " + indexIntervalBytes);
+        FileRecordsIndex index = new FileRecordsIndex(buffer.slice());
+        index.build(indexIntervalBytes);
+        return index;
+    }
+
+    private void build(int indexIntervalBytes) {
+        RecordCursor cursor = shallowCursor;
+        cursor.reset(records);
+        long maxTimestamp = Long.MIN_VALUE;
+        int lastIndexedPosition = -indexIntervalBytes;
+        while (cursor.next()) {
+            int position = cursor.position() - LOG_OVERHEAD;
+            if (position - lastIndexedPosition >= indexIntervalBytes) {
+                append(cursor.offset(), position, maxTimestamp);
+                lastIndexedPosition = position;
+            }
+            maxTimestamp = Math.max(maxTimestamp, cursor.timestamp());
+        }
+    }
+
+    private void append(long offset, int position, long maxTimestampBefore) {
+        if (size == offsets.length) {
+            offsets = grow(offsets);
+            maxTimestampsBefore = grow(maxTimestampsBefore);
+            int[] grown = new int[positions.length * 2];
+            System.arraycopy(positions, 0, grown, 0, size);
+            positions = grown;
+        }
+        offsets[size] = offset;
+        positions[size] = position;
+        maxTimestampsBefore[size] = maxTimestampBefore;
+        size++;
+    }
+
+    private static long[] grow(long[] array) {
+        long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * The number of entries of the index
+     */
+    public int entries() {
+        return size;
+    }
+
+    /**
+     * All the indexed records
+     */
+    public MemoryRecords records() {
+        return records;
+    }
+
+    public int sizeInBytes() {
+        return records.sizeInBytes();
+    }
+
+    /**
+     * Search for the first shallow entry whose offset is greater than or equal to the target offset, as
+     * {@link FileRecords#searchForOffsetWithSize(long, int)} does from the start of the records.
+     *
+     * @return The offset, position and size of the entry, or null if there is no such entry
+     */
+    public LogEntryPosition searchForOffsetWithSize(long targetOffset) {
+        // the entries before the last index entry with a smaller offset all have smaller offsets
+        int slot = lastSlotBelow(offsets, targetOffset);
+        RecordCursor cursor = cursorFrom(slot < 0 ? 0 : positions[slot]);
+        while (cursor.next()) {
+            if (cursor.offset() >= targetOffset)
+                return new LogEntryPosition(cursor.offset(), cursor.position() - LOG_OVERHEAD, cursor.sizeInBytes());
+        }
+        return null;
+    }
+
+    /**
+     * Search for the first record whose timestamp is greater than or equal to the target timestamp, as
+     * {@link FileRecords#searchForTimestamp(long, int)} does from the start of the records.
+     *
+     * @return The timestamp and offset of the record, or null if there is no such record
+     */
+    public TimestampAndOffset searchForTimestamp(long targetTimestamp) {
+        // the entries before the last index entry whose preceding entries are all older than the target are older too
+        int slot = lastSlotBelow(maxTimestampsBefore, targetTimestamp);
+        RecordCursor cursor = cursorFrom(slot < 0 ? 0 : positions[slot]);
+        while (cursor.next()) {
+            if (cursor.timestamp() >= targetTimestamp) {
+                int position = cursor.position() - LOG_OVERHEAD;
+                deepCursor.reset(slice(position, cursor.sizeInBytes()));
+                while (deepCursor.next()) {
+                    long timestamp = deepCursor.timestamp();
+                    if (timestamp >= targetTimestamp)
+                        return new TimestampAndOffset(timestamp, deepCursor.offset());
+                }
+                throw new IllegalStateException(String.format("The message set (max timestamp = %s, max offset = %s" +
+                        " should contain target timestamp %s, but does not.", cursor.timestamp(), cursor.offset(),
+                        targetTimestamp));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The records from the shallow entry which contains the given offset to the end, without copying them.
+     *
+     * @return The records, empty if the offset is after the last entry
+     */
+    public MemoryRecords readFrom(long offset) {
+        LogEntryPosition entry = searchForOffsetWithSize(offset);
+        if (entry == null)
+            return MemoryRecords.EMPTY;
+        return slice(entry.position, records.sizeInBytes() - entry.position);
+    }
+
+    /**
+     * A view of the given bytes of the records, without copying them.
+     */
+    public MemoryRecords slice(int position, int size) {
+        if (position < 0 || size < 0 || position + size > buffer.limit())
+            throw new IllegalArgumentException("Invalid slice at position " + position + " with size " + size +
+                    " of records of size " + buffer.limit());
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position);
+        slice.limit(position + size);
+        return MemoryRecords.readableRecords(slice.slice());
+    }
+
+    /**
+     * The shallow cursor moved to the given position, its positions are positions in the indexed records
+     */
+    private RecordCursor cursorFrom(int position) {
+        ByteBuffer from = buffer.duplicate();
+        from.position(position);
+        shallowCursor.reset(MemoryRecords.readableRecords(from));
+        return shallowCursor;
+    }
+
+    /**
+     * The last slot of the sorted array whose value is smaller than the target, or -1 if there is none
+     */
+    private int lastSlotBelow(long[] values, long target) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < target)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+        return high;
+    }
+
+}
@@ -0,0 +1,283 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * The gzip codec. {@link java.util.zip.GZIPOutputStream} and {@link java.util.zip.GZIPInputStream} create and end a
+ * native deflater or inflater for every stream, so this codec writes and reads the gzip framing itself around raw
+ * deflate streams whose {@link Deflater} and {@link Inflater} are pooled. The format is the same as the JDK streams.
+ */
+final class GzipCodec implements CompressionCodec {
+
+    private static final int MAX_IDLE_CONTEXTS = 16;
+    private static final int INPUT_BUFFER_SIZE = 512;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final byte[] HEADER = {
+        (byte) GZIP_MAGIC,        // magic
+        (byte) (GZIP_MAGIC >> 8), // magic
+        Deflater.DEFLATED,        // compression method
+        0,                        // flags
+        0, 0, 0, 0,               // modification time
+        0,                        // extra flags
+        0                         // operating system
+    };
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int TRAILER_SIZE = 8;
+
+    private final CodecContextPool<Deflater> deflaters = new CodecContextPool<Deflater>(MAX_IDLE_CONTEXTS) {
+        @Override
+        protected Deflater create() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+
+        @Override
+        protected void reset(Deflater deflater) {
+            deflater.reset();
+        }
+
+        @Override
+        protected void destroy(Deflater deflater) {
+            deflater.end();
+        }
+    };
+
+    private final CodecContextPool<Inflater> inflaters = new CodecContextPool<Inflater>(MAX_IDLE_CONTEXTS) {
+        @Override
+        protected Inflater create() {
+            return new Inflater(true);
+        }
+
+        @Override
+        protected void reset(Inflater inflater) {
+            inflater.reset();
+        }
+
+        @Override
+        protected void destroy(Inflater inflater) {
+            inflater.end();
+        }
+    };
+
+    @Override
+    public CompressionType type() {
+        return CompressionType.GZIP;
+    }
+
+    @Override
+    public OutputStream wrapForOutput(ByteBufferOutputStream buffer, byte messageVersion, int bufferSize) throws IOException {
+        return new GzipOutputStream(buffer, deflaters, bufferSize);
+    }
+
+    @Override
+    public InputStream wrapForInput(ByteBufferInputStream buffer, byte messageVersion) throws IOException {
+        return new GzipInputStream(buffer, inflaters);
+    }
+
+    private static final class GzipOutputStream extends DeflaterOutputStream {
+        private final CodecContextPool<Deflater> pool;
+        private final CRC32 crc = new CRC32();
+        private boolean closed = false;
+
+        private GzipOutputStream(OutputStream out, CodecContextPool<Deflater> pool, int bufferSize) throws IOException {
+            super(out, pool.acquire(), bufferSize);
+            this.pool = pool;
+            out.write(HEADER);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!def.finished()) {
+                super.finish();
+                writeIntLE(out, (int) crc.getValue());
+                writeIntLE(out, (int) def.getBytesRead());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                finish();
+            } finally {
+                pool.release(def);
+                out.close();
+            }
+        }
+
+        private static void writeIntLE(OutputStream out, int value) throws IOException {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+    }
+
+    private static final class GzipInputStream extends InflaterInputStream {
+        private final CodecContextPool<Inflater> pool;
+        private final CRC32 crc = new CRC32();
+        private boolean eos = false;
+        private boolean closed = false;
+
+        private GzipInputStream(InputStream in, CodecContextPool<Inflater> pool) throws IOException {
+            super(in, pool.acquire(), INPUT_BUFFER_SIZE);
+            this.pool = pool;
+            try {
+                readHeader(in);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("Stream closed");
+            if (eos)
+                return -1;
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                if (readTrailer())
+                    eos = true;
+                else
+                    return read(b, off, len);
+            } else {
+                crc.update(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            pool.release(inf);
+            in.close();
+        }
+
+        /**
+         * @return The size of the header
+         */
+        private int readHeader(InputStream in) throws IOException {
+            if (readUShortLE(in) != GZIP_MAGIC)
+                throw new ZipException("Not in GZIP format");
+            if (readUByte(in) != Deflater.DEFLATED)
+                throw new ZipException("Unsupported compression method");
+            int flags = readUByte(in);
+            skipBytes(in, 6);
+            int size = HEADER.length;
+            if ((flags & FEXTRA) == FEXTRA) {
+                int extraSize = readUShortLE(in);
+                skipBytes(in, extraSize);
+                size += extraSize + 2;
+            }
+            if ((flags & FNAME) == FNAME)
+                size += skipString(in);
+            if ((flags & FCOMMENT) == FCOMMENT)
+                size += skipString(in);
+            if ((flags & FHCRC) == FHCRC) {
+                skipBytes(in, 2);
+                size += 2;
+            }
+            crc.reset();
+            return size;
+        }
+
+        /**
+         * Check the trailer of a member once the inflater is done with it and start the next member if there is one.
+         * @return true if this was the last member
+         */
+        private boolean readTrailer() throws IOException {
+            // the inflater may have been given bytes past the end of the deflate data, the trailer starts with them
+            InputStream in = this.in;
+            int remaining = inf.getRemaining();
+            if (remaining > 0)
+                in = new SequenceInputStream(new ByteArrayInputStream(buf, len - remaining, remaining), in);
+            if (readUIntLE(in) != crc.getValue() || readUIntLE(in) != (inf.getBytesWritten() & 0xffffffffL))
+                throw new ZipException("Corrupt GZIP trailer");
+
+            // the input is a buffer, so another member is looked for until its end, anything else which follows the
+            // last member is ignored like GZIPInputStream does
+            int consumed = TRAILER_SIZE;
+            try {
+                consumed += readHeader(in);
+            } catch (IOException e) {
+                return true;
+            }
+            inf.reset();
+            if (remaining > consumed)
+                inf.setInput(buf, len - remaining + consumed, remaining - consumed);
+            return false;
+        }
+
+        private static long readUIntLE(InputStream in) throws IOException {
+            long low = readUShortLE(in);
+            return ((long) readUShortLE(in) << 16) | low;
+        }
+
+        private static int readUShortLE(InputStream in) throws IOException {
+            int low = readUByte(in);
+            return (readUByte(in) << 8) | low;
+        }
+
+        private static int readUByte(InputStream in) throws IOException {
+            int b = in.read();
+            if (b == -1)
+                throw new EOFException();
+            return b;
+        }
+
+        private static void skipBytes(InputStream in, int n) throws IOException {
+            for (int i = 0; i < n; i++)
+                readUByte(in);
+        }
+
+        private static int skipString(InputStream in) throws IOException {
+            int size = 1;
+            while (readUByte(in) != 0)
+                size++;
+            return size;
+        }
+    }
+
+}
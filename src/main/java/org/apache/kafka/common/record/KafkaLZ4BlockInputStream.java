@@ -49,33 +49,49 @@ public final class KafkaLZ4BlockInputStream extends FilterInputStream {
     private final byte[] compressedBuffer;
     private final int maxBlockSize;
     private final boolean ignoreFlagDescriptorChecksum;
+    private final CodecContextPool.ByteArrays bufferPool;
     private FLG flg;
     private BD bd;
     private int bufferOffset;
     private int bufferSize;
     private boolean finished;
+    private boolean closed = false;
 
     /**
      * Create a new {@link InputStream} that will decompress data using the LZ4 algorithm.
      *
      * @param in The stream to decompress
      * @param ignoreFlagDescriptorChecksum for compatibility with old kafka clients, ignore incorrect HC byte
+     * @param bufferPool The pool to take the working buffers from and to return them to on close, may be null
      * @throws IOException
      */
-    public KafkaLZ4BlockInputStream(InputStream in, boolean ignoreFlagDescriptorChecksum) throws IOException {
+    public KafkaLZ4BlockInputStream(InputStream in, boolean ignoreFlagDescriptorChecksum,
+                                    CodecContextPool.ByteArrays bufferPool) throws IOException {
         super(in);
         decompressor = LZ4Factory.fastestInstance().safeDecompressor();
         checksum = XXHashFactory.fastestInstance().hash32();
         this.ignoreFlagDescriptorChecksum = ignoreFlagDescriptorChecksum;
         readHeader();
         maxBlockSize = bd.getBlockMaximumSize();
-        buffer = new byte[maxBlockSize];
-        compressedBuffer = new byte[maxBlockSize];
+        this.bufferPool = bufferPool;
+        buffer = bufferPool == null ? new byte[maxBlockSize] : bufferPool.acquire(maxBlockSize);
+        compressedBuffer = bufferPool == null ? new byte[maxBlockSize] : bufferPool.acquire(maxBlockSize);
         bufferOffset = 0;
         bufferSize = 0;
         finished = false;
     }
 
+    /**
+     * Create a new {@link InputStream} that will decompress data using the LZ4 algorithm.
+     *
+     * @param in The stream to decompress
+     * @param ignoreFlagDescriptorChecksum for compatibility with old kafka clients, ignore incorrect HC byte
+     * @throws IOException
+     */
+    public KafkaLZ4BlockInputStream(InputStream in, boolean ignoreFlagDescriptorChecksum) throws IOException {
+        this(in, ignoreFlagDescriptorChecksum, null);
+    }
+
     /**
      * Create a new {@link InputStream} that will decompress data using the LZ4 algorithm.
      *
@@ -240,6 +256,11 @@ public final class KafkaLZ4BlockInputStream extends FilterInputStream {
 
     @Override
     public void close() throws IOException {
+        if (bufferPool != null && !closed) {
+            bufferPool.release(buffer);
+            bufferPool.release(compressedBuffer);
+        }
+        closed = true;
         in.close();
     }
 
@@ -53,6 +53,7 @@ public final class KafkaLZ4BlockOutputStream extends FilterOutputStream {
     private final byte[] buffer;
     private final byte[] compressedBuffer;
     private final int maxBlockSize;
+    private final CodecContextPool.ByteArrays bufferPool;
     private int bufferOffset;
     private boolean finished;
 
@@ -66,9 +67,11 @@ public final class KafkaLZ4BlockOutputStream extends FilterOutputStream {
      *            every block of data
      * @param useBrokenFlagDescriptorChecksum Default: false. When true, writes an incorrect FrameDescriptor checksum
      *            compatible with older kafka clients.
+     * @param bufferPool The pool to take the working buffers from and to return them to on close, may be null
      * @throws IOException
      */
-    public KafkaLZ4BlockOutputStream(OutputStream out, int blockSize, boolean blockChecksum, boolean useBrokenFlagDescriptorChecksum) throws IOException {
+    public KafkaLZ4BlockOutputStream(OutputStream out, int blockSize, boolean blockChecksum, boolean useBrokenFlagDescriptorChecksum,
+                                     CodecContextPool.ByteArrays bufferPool) throws IOException {
         super(out);
         compressor = LZ4Factory.fastestInstance().fastCompressor();
         checksum = XXHashFactory.fastestInstance().hash32();
@@ -77,12 +80,30 @@ public final class KafkaLZ4BlockOutputStream extends FilterOutputStream {
         flg = new FLG(blockChecksum);
         bufferOffset = 0;
         maxBlockSize = bd.getBlockMaximumSize();
-        buffer = new byte[maxBlockSize];
-        compressedBuffer = new byte[compressor.maxCompressedLength(maxBlockSize)];
+        this.bufferPool = bufferPool;
+        int maxCompressedBlockSize = compressor.maxCompressedLength(maxBlockSize);
+        buffer = bufferPool == null ? new byte[maxBlockSize] : bufferPool.acquire(maxBlockSize);
+        compressedBuffer = bufferPool == null ? new byte[maxCompressedBlockSize] : bufferPool.acquire(maxCompressedBlockSize);
         finished = false;
         writeHeader();
     }
 
+    /**
+     * Create a new {@link OutputStream} that will compress data using the LZ4 algorithm.
+     *
+     * @param out The output stream to compress
+     * @param blockSize Default: 4. The block size used during compression. 4=64kb, 5=256kb, 6=1mb, 7=4mb. All other
+     *            values will generate an exception
+     * @param blockChecksum Default: false. When true, a XXHash32 checksum is computed and appended to the stream for
+     *            every block of data
+     * @param useBrokenFlagDescriptorChecksum Default: false. When true, writes an incorrect FrameDescriptor checksum
+     *            compatible with older kafka clients.
+     * @throws IOException
+     */
+    public KafkaLZ4BlockOutputStream(OutputStream out, int blockSize, boolean blockChecksum, boolean useBrokenFlagDescriptorChecksum) throws IOException {
+        this(out, blockSize, blockChecksum, useBrokenFlagDescriptorChecksum, null);
+    }
+
     /**
      * Create a new {@link OutputStream} that will compress data using the LZ4 algorithm.
      *
@@ -123,6 +144,10 @@ public final class KafkaLZ4BlockOutputStream extends FilterOutputStream {
         this(out, BLOCKSIZE_64KB, false, useBrokenHC);
     }
 
+    public KafkaLZ4BlockOutputStream(OutputStream out, boolean useBrokenHC, CodecContextPool.ByteArrays bufferPool) throws IOException {
+        this(out, BLOCKSIZE_64KB, false, useBrokenHC, bufferPool);
+    }
+
     /**
      * Check whether KafkaLZ4BlockInputStream is configured to write an
      * incorrect Frame Descriptor checksum, which is useful for
@@ -263,6 +288,10 @@ public final class KafkaLZ4BlockOutputStream extends FilterOutputStream {
             flush();
             finished = true;
         }
+        if (bufferPool != null && out != null) {
+            bufferPool.release(buffer);
+            bufferPool.release(compressedBuffer);
+        }
         if (out != null) {
             out.close();
             out = null;
@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.record.MemoizingConstructorSupplier.ConstructorSupplier;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+
+/**
+ * The lz4 codec. The block and compressed block buffers of the lz4 streams are pooled, they are large enough for the
+ * 64KB blocks written by the producer and for their compressed size.
+ */
+final class Lz4Codec implements CompressionCodec {
+
+    private static final int MAX_IDLE_BUFFERS = 32;
+    // the maximum compressed size of a 64KB block (LZ4_COMPRESSBOUND)
+    private static final int BUFFER_SIZE = 64 * 1024 + 64 * 1024 / 255 + 16;
+
+    // dynamically load the lz4 classes to avoid runtime dependency if we are not using compression
+    // caching constructors to avoid invoking of Class.forName method for each batch
+    private static final MemoizingConstructorSupplier OUTPUT_STREAM_SUPPLIER = new MemoizingConstructorSupplier(new ConstructorSupplier() {
+        public Constructor get() throws ClassNotFoundException, NoSuchMethodException {
+            return Class.forName("org.apache.kafka.common.record.KafkaLZ4BlockOutputStream")
+                .getConstructor(OutputStream.class, Boolean.TYPE, CodecContextPool.ByteArrays.class);
+        }
+    });
+
+    private static final MemoizingConstructorSupplier INPUT_STREAM_SUPPLIER = new MemoizingConstructorSupplier(new ConstructorSupplier() {
+        public Constructor get() throws ClassNotFoundException, NoSuchMethodException {
+            return Class.forName("org.apache.kafka.common.record.KafkaLZ4BlockInputStream")
+                .getConstructor(InputStream.class, Boolean.TYPE, CodecContextPool.ByteArrays.class);
+        }
+    });
+
+    private final CodecContextPool.ByteArrays buffers = new CodecContextPool.ByteArrays(BUFFER_SIZE, MAX_IDLE_BUFFERS);
+
+    @Override
+    public CompressionType type() {
+        return CompressionType.LZ4;
+    }
+
+    @Override
+    public OutputStream wrapForOutput(ByteBufferOutputStream buffer, byte messageVersion, int bufferSize) {
+        try {
+            return (OutputStream) OUTPUT_STREAM_SUPPLIER.get().newInstance(buffer,
+                    messageVersion == Record.MAGIC_VALUE_V0, buffers);
+        } catch (Exception e) {
+            throw new KafkaException(e);
+        }
+    }
+
+    @Override
+    public InputStream wrapForInput(ByteBufferInputStream buffer, byte messageVersion) {
+        try {
+            return (InputStream) INPUT_STREAM_SUPPLIER.get().newInstance(buffer,
+                    messageVersion == Record.MAGIC_VALUE_V0, buffers);
+        } catch (Exception e) {
+            throw new KafkaException(e);
+        }
+    }
+
+}
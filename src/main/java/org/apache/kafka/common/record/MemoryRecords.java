@@ -207,6 +207,14 @@ public class MemoryRecords extends AbstractRecords {
         };
     }
 
+    /**
+     * Get a cursor over the deep entries, which reads the records in place instead of creating a log entry per
+     * record. A cursor can be reused for other records with {@link RecordCursor#reset(MemoryRecords)}.
+     */
+    public RecordCursor cursor() {
+        return new RecordCursor(this, true);
+    }
+
     private Iterator<LogEntry> deepIterator(boolean ensureMatchingMagic, int maxMessageSize) {
         return new RecordsIterator(new ByteBufferLogInputStream(buffer.duplicate(), maxMessageSize), false,
                 ensureMatchingMagic, maxMessageSize);
@@ -19,10 +19,7 @@ package org.apache.kafka.common.record;
 import org.apache.kafka.common.KafkaException;
 
 import java.io.*;
-import java.lang.reflect.Constructor;
 import java.nio.ByteBuffer;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * This class is used to write new log data in memory, i.e. this is the write path for {@link MemoryRecords}.
@@ -34,6 +31,22 @@ public class MemoryRecordsBuilder {
     static private final float COMPRESSION_RATE_DAMPING_FACTOR = 0.9f;
     static private final float COMPRESSION_RATE_ESTIMATION_FACTOR = 1.05f;
     static private final int COMPRESSION_DEFAULT_BUFFER_SIZE = 1024;
+    static private final int MAX_IDLE_STREAMS = 64;
+    static private final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    // the buffer streams are reused across builders, a builder releases its stream when it is closed
+    private static final CodecContextPool<ByteBufferOutputStream> STREAMS =
+        new CodecContextPool<ByteBufferOutputStream>(MAX_IDLE_STREAMS) {
+            @Override
+            protected ByteBufferOutputStream create() {
+                return new ByteBufferOutputStream(EMPTY_BUFFER);
+            }
+
+            @Override
+            protected void reset(ByteBufferOutputStream stream) {
+                stream.reset(EMPTY_BUFFER);
+            }
+        };
 
     private static final float[] TYPE_TO_RATE;
 
@@ -47,40 +60,11 @@ public class MemoryRecordsBuilder {
         }
     }
 
-    // dynamically load the snappy and lz4 classes to avoid runtime dependency if we are not using compression
-    // caching constructors to avoid invoking of Class.forName method for each batch
-    private static MemoizingConstructorSupplier snappyOutputStreamSupplier = new MemoizingConstructorSupplier(new ConstructorSupplier() {
-        public Constructor get() throws ClassNotFoundException, NoSuchMethodException {
-            return Class.forName("org.xerial.snappy.SnappyOutputStream")
-                .getConstructor(OutputStream.class, Integer.TYPE);
-        }
-    });
-
-    private static MemoizingConstructorSupplier lz4OutputStreamSupplier = new MemoizingConstructorSupplier(new ConstructorSupplier() {
-        public Constructor get() throws ClassNotFoundException, NoSuchMethodException {
-            return Class.forName("org.apache.kafka.common.record.KafkaLZ4BlockOutputStream")
-                .getConstructor(OutputStream.class, Boolean.TYPE);
-        }
-    });
-
-    private static MemoizingConstructorSupplier snappyInputStreamSupplier = new MemoizingConstructorSupplier(new ConstructorSupplier() {
-        public Constructor get() throws ClassNotFoundException, NoSuchMethodException {
-            return Class.forName("org.xerial.snappy.SnappyInputStream")
-                .getConstructor(InputStream.class);
-        }
-    });
-
-    private static MemoizingConstructorSupplier lz4InputStreamSupplier = new MemoizingConstructorSupplier(new ConstructorSupplier() {
-        public Constructor get() throws ClassNotFoundException, NoSuchMethodException {
-            return Class.forName("org.apache.kafka.common.record.KafkaLZ4BlockInputStream")
-                .getConstructor(InputStream.class, Boolean.TYPE);
-        }
-    });
-
     private final TimestampType timestampType;
     private final CompressionType compressionType;
-    private final DataOutputStream appendStream;
-    private final ByteBufferOutputStream bufferStream;
+    // both are null once the builder is closed
+    private DataOutputStream appendStream;
+    private ByteBufferOutputStream bufferStream;
     private final byte magic;
     private final int initPos;
     private final long baseOffset;
@@ -91,11 +75,13 @@ public class MemoryRecordsBuilder {
     private long writtenUncompressed = 0;
     private long numRecords = 0;
     private float compressionRate = 1;
+    private float estimatedCompressionRate;
     private long maxTimestamp = Record.NO_TIMESTAMP;
     private long offsetOfMaxTimestamp = -1;
     private long lastOffset = -1;
 
     private MemoryRecords builtRecords;
+    private ByteBuffer builtBuffer;
 
     /**
      * Construct a new builder.
@@ -126,6 +112,7 @@ public class MemoryRecordsBuilder {
         this.initPos = buffer.position();
         this.writeLimit = writeLimit;
         this.initialCapacity = buffer.capacity();
+        this.estimatedCompressionRate = TYPE_TO_RATE[compressionType.id];
 
         if (compressionType != CompressionType.NONE) {
             // for compressed records, leave space for the header and the shallow message metadata
@@ -134,12 +121,13 @@ public class MemoryRecordsBuilder {
         }
 
         // create the stream
-        bufferStream = new ByteBufferOutputStream(buffer);
+        bufferStream = STREAMS.acquire();
+        bufferStream.reset(buffer);
         appendStream = wrapForOutput(bufferStream, compressionType, magic, COMPRESSION_DEFAULT_BUFFER_SIZE);
     }
 
     public ByteBuffer buffer() {
-        return bufferStream.buffer();
+        return builtBuffer != null ? builtBuffer : bufferStream.buffer();
     }
 
     public int initialCapacity() {
@@ -150,6 +138,34 @@ public class MemoryRecordsBuilder {
         return compressionRate;
     }
 
+    public CompressionType compressionType() {
+        return compressionType;
+    }
+
+    public byte magic() {
+        return magic;
+    }
+
+    /**
+     * Set the compression rate used to estimate the size of the records while they are appended, instead of the
+     * rate observed across all the builders of the compression type. This is meant for writers which know better,
+     * e.g. from the rates observed on earlier record sets of the same topic.
+     */
+    public void setEstimatedCompressionRate(float estimatedCompressionRate) {
+        this.estimatedCompressionRate = estimatedCompressionRate;
+    }
+
+    /**
+     * Take the buffers needed when the records do not fit in the buffer of this builder from the given supplier,
+     * instead of allocating a larger buffer and copying the records into it every time the buffer is full. The buffers
+     * are copied into a single buffer of the supplier when the builder is closed, and the buffer of the builder is
+     * released to the supplier, so {@link #buffer()} is then a buffer of the supplier. This must be set before any
+     * record is appended.
+     */
+    public void setBufferSupplier(ByteBufferOutputStream.BufferSupplier supplier) {
+        bufferStream.setBufferSupplier(supplier);
+    }
+
     /**
      * Close this builder and return the resulting buffer.
      * @return The built log buffer
@@ -183,17 +199,21 @@ public class MemoryRecordsBuilder {
             throw new KafkaException(e);
         }
 
+        builtBuffer = bufferStream.buffer();
         if (compressionType != CompressionType.NONE)
-            writerCompressedWrapperHeader();
+            writerCompressedWrapperHeader(builtBuffer);
 
-        ByteBuffer buffer = buffer().duplicate();
+        ByteBuffer buffer = builtBuffer.duplicate();
         buffer.flip();
         buffer.position(initPos);
         builtRecords = MemoryRecords.readableRecords(buffer.slice());
+
+        STREAMS.release(bufferStream);
+        bufferStream = null;
+        appendStream = null;
     }
 
-    private void writerCompressedWrapperHeader() {
-        ByteBuffer buffer = bufferStream.buffer();
+    private void writerCompressedWrapperHeader(ByteBuffer buffer) {
         int pos = buffer.position();
         buffer.position(initPos);
 
@@ -221,6 +241,7 @@ public class MemoryRecordsBuilder {
      * @return crc of the record
      */
     public long appendWithOffset(long offset, long timestamp, byte[] key, byte[] value) {
+        ensureOpenForAppend();
         try {
             if (lastOffset >= 0 && offset <= lastOffset)
                 throw new IllegalArgumentException(String.format("Illegal offset %s following previous offset %s (Offsets must increase monotonically).", offset, lastOffset));
@@ -272,6 +293,7 @@ public class MemoryRecordsBuilder {
         if (lastOffset >= 0 && offset <= lastOffset)
             throw new IllegalArgumentException(String.format("Illegal offset %s following previous offset %s (Offsets must increase monotonically).", offset, lastOffset));
 
+        ensureOpenForAppend();
         try {
             int size = record.convertedSize(magic);
             LogEntry.writeHeader(appendStream, toInnerOffset(offset), size);
@@ -289,6 +311,7 @@ public class MemoryRecordsBuilder {
      * @param record The record to add
      */
     public void appendUnchecked(long offset, Record record) {
+        ensureOpenForAppend();
         try {
             int size = record.sizeInBytes();
             LogEntry.writeHeader(appendStream, toInnerOffset(offset), size);
@@ -325,6 +348,12 @@ public class MemoryRecordsBuilder {
         appendWithOffset(lastOffset < 0 ? baseOffset : lastOffset + 1, record);
     }
 
+    private void ensureOpenForAppend() {
+        // the stream of a closed builder is used by other builders
+        if (isClosed())
+            throw new IllegalStateException("Tried to append a record, but MemoryRecordsBuilder is closed for record appends");
+    }
+
     private long toInnerOffset(long offset) {
         // use relative offsets for compressed messages with magic v1
         if (magic > 0 && compressionType != CompressionType.NONE)
@@ -344,15 +373,16 @@ public class MemoryRecordsBuilder {
     }
 
     /**
-     * Get an estimate of the number of bytes written (based on the estimation factor hard-coded in {@link CompressionType}.
+     * Get an estimate of the number of bytes written (based on the estimated compression rate, which starts from the
+     * estimation factor hard-coded in {@link CompressionType}).
      * @return The estimated number of bytes written
      */
     private int estimatedBytesWritten() {
         if (compressionType == CompressionType.NONE) {
-            return buffer().position();
+            return builtBuffer != null ? builtBuffer.position() : bufferStream.position();
         } else {
             // estimate the written bytes to the underlying byte buffer based on uncompressed written bytes
-            return (int) (writtenUncompressed * TYPE_TO_RATE[compressionType.id] * COMPRESSION_RATE_ESTIMATION_FACTOR);
+            return (int) (writtenUncompressed * estimatedCompressionRate * COMPRESSION_RATE_ESTIMATION_FACTOR);
         }
     }
 
@@ -389,92 +419,25 @@ public class MemoryRecordsBuilder {
     }
 
     private static DataOutputStream wrapForOutput(ByteBufferOutputStream buffer, CompressionType type, byte messageVersion, int bufferSize) {
+        if (type == CompressionType.NONE)
+            return buffer;
         try {
-            switch (type) {
-                case NONE:
-                    return buffer;
-                case GZIP:
-                    return new DataOutputStream(new GZIPOutputStream(buffer, bufferSize));
-                case SNAPPY:
-                    try {
-                        OutputStream stream = (OutputStream) snappyOutputStreamSupplier.get().newInstance(buffer, bufferSize);
-                        return new DataOutputStream(stream);
-                    } catch (Exception e) {
-                        throw new KafkaException(e);
-                    }
-                case LZ4:
-                    try {
-                        OutputStream stream = (OutputStream) lz4OutputStreamSupplier.get().newInstance(buffer,
-                                messageVersion == Record.MAGIC_VALUE_V0);
-                        return new DataOutputStream(stream);
-                    } catch (Exception e) {
-                        throw new KafkaException(e);
-                    }
-                default:
-                    throw new IllegalArgumentException("Unknown compression type: " + type);
-            }
+            return new DataOutputStream(CompressionCodecs.forType(type).wrapForOutput(buffer, messageVersion, bufferSize));
         } catch (IOException e) {
             throw new KafkaException(e);
         }
     }
 
     public static DataInputStream wrapForInput(ByteBufferInputStream buffer, CompressionType type, byte messageVersion) {
+        if (type == CompressionType.NONE)
+            return buffer;
         try {
-            switch (type) {
-                case NONE:
-                    return buffer;
-                case GZIP:
-                    return new DataInputStream(new GZIPInputStream(buffer));
-                case SNAPPY:
-                    try {
-                        InputStream stream = (InputStream) snappyInputStreamSupplier.get().newInstance(buffer);
-                        return new DataInputStream(stream);
-                    } catch (Exception e) {
-                        throw new KafkaException(e);
-                    }
-                case LZ4:
-                    try {
-                        InputStream stream = (InputStream) lz4InputStreamSupplier.get().newInstance(buffer,
-                                messageVersion == Record.MAGIC_VALUE_V0);
-                        return new DataInputStream(stream);
-                    } catch (Exception e) {
-                        throw new KafkaException(e);
-                    }
-                default:
-                    throw new IllegalArgumentException("Unknown compression type: " + type);
-            }
+            return new DataInputStream(CompressionCodecs.forType(type).wrapForInput(buffer, messageVersion));
         } catch (IOException e) {
             throw new KafkaException(e);
         }
     }
 
-    private interface ConstructorSupplier {
-        Constructor get() throws ClassNotFoundException, NoSuchMethodException;
-    }
-
-    // this code is based on Guava's @see{com.google.common.base.Suppliers.MemoizingSupplier}
-    private static class MemoizingConstructorSupplier {
-        final ConstructorSupplier delegate;
-        transient volatile boolean initialized;
-        transient Constructor value;
-
-        public MemoizingConstructorSupplier(ConstructorSupplier delegate) {
-            this.delegate = delegate;
-        }
-
-        public Constructor get() throws NoSuchMethodException, ClassNotFoundException {
-            if (!initialized) {
-                synchronized (this) {
-                    if (!initialized) {
-                        value = delegate.get();
-                        initialized = true;
-                    }
-                }
-            }
-            return value;
-        }
-    }
-
     public static class RecordsInfo {
         public final long maxTimestamp;
         public final long shallowOffsetOfMaxTimestamp;
@@ -17,12 +17,13 @@
 package org.apache.kafka.common.record;
 
 import org.apache.kafka.common.KafkaException;
-import org.apache.kafka.common.utils.Crc32;
+import org.apache.kafka.common.utils.Checksums;
 import org.apache.kafka.common.utils.Utils;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
 
 import static org.apache.kafka.common.utils.Utils.wrapNullable;
 
@@ -600,25 +601,25 @@ public final class Record {
      * Compute the checksum of the record from the attributes, key and value payloads
      */
     private static long computeChecksum(byte magic, byte attributes, long timestamp, ByteBuffer key, ByteBuffer value) {
-        Crc32 crc = new Crc32();
+        Checksum crc = Checksums.crc32();
         crc.update(magic);
         crc.update(attributes);
         if (magic > 0)
-            crc.updateLong(timestamp);
+            Checksums.updateLong(crc, timestamp);
         // update for the key
         if (key == null) {
-            crc.updateInt(-1);
+            Checksums.updateInt(crc, -1);
         } else {
             int size = key.remaining();
-            crc.updateInt(size);
+            Checksums.updateInt(crc, size);
             crc.update(key.array(), key.arrayOffset(), size);
         }
         // update for the value
         if (value == null) {
-            crc.updateInt(-1);
+            Checksums.updateInt(crc, -1);
         } else {
             int size = value.remaining();
-            crc.updateInt(size);
+            Checksums.updateInt(crc, size);
             crc.update(value.array(), value.arrayOffset(), size);
         }
         return crc.getValue();
@@ -0,0 +1,349 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.CorruptRecordException;
+import org.apache.kafka.common.utils.Utils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.apache.kafka.common.record.Records.LOG_OVERHEAD;
+
+/**
+ * A cursor over the records of a {@link MemoryRecords}, which exposes the fields of the current record without
+ * allocating a {@link LogEntry} and a {@link Record} per record as {@link MemoryRecords#deepEntries()} does.
+ * <p>
+ * The cursor is a single object which is moved from one record to the next with {@link #next()}. The key and value
+ * are exposed as a position and a size in {@link #buffer()}, which is the buffer of the records for uncompressed
+ * records and a decompression buffer owned by the cursor for the inner records of a compressed wrapper. That buffer
+ * is reused for the following wrappers, so positions are only valid until the next call to {@link #next()}.
+ * A cursor can be {@link #reset(MemoryRecords) reset} to iterate over other records, which keeps its buffer.
+ * <p>
+ * The semantics are those of the iterators: a deep cursor returns the inner records of compressed wrappers with
+ * absolute offsets and the timestamp of the wrapper where it applies, an incomplete entry at the end of the records
+ * is ignored. This class is not thread safe.
+ */
+public final class RecordCursor {
+
+    private static final int INITIAL_DECOMPRESSION_BUFFER_SIZE = 1024;
+
+    private final boolean deep;
+    private final int maxMessageSize;
+
+    // the shallow entries, positioned at the next entry
+    private ByteBuffer shallow;
+    // the decompressed inner entries of the current wrapper, or null when iterating shallow entries
+    private ByteBuffer inner;
+    private byte[] decompressionBuffer = new byte[INITIAL_DECOMPRESSION_BUFFER_SIZE];
+    private long absoluteBaseOffset;
+    private long wrapperTimestamp;
+    private TimestampType wrapperTimestampType;
+
+    // the current record
+    private ByteBuffer buffer;
+    private long offset;
+    private int position;
+    private int size;
+    private byte magic;
+
+    /**
+     * Create a cursor over no records, which must be {@link #reset(MemoryRecords) reset} before it is used.
+     * @param deep true to return the inner records of compressed wrappers, false to return the wrappers
+     * @param maxMessageSize the largest allowed size of a record
+     */
+    public RecordCursor(boolean deep, int maxMessageSize) {
+        this.deep = deep;
+        this.maxMessageSize = maxMessageSize;
+        reset(MemoryRecords.EMPTY);
+    }
+
+    public RecordCursor(MemoryRecords records, boolean deep) {
+        this(deep, Integer.MAX_VALUE);
+        reset(records);
+    }
+
+    /**
+     * Move the cursor before the first record of the given records.
+     */
+    public void reset(MemoryRecords records) {
+        this.shallow = records.buffer();
+        this.inner = null;
+        this.buffer = null;
+        this.wrapperTimestampType = null;
+    }
+
+    /**
+     * Move to the next record.
+     * @return false if there are no more records, in which case the cursor does not point to a record anymore
+     */
+    public boolean next() {
+        if (inner != null) {
+            if (inner.hasRemaining())
+                return nextInner();
+            inner = null;
+            wrapperTimestampType = null;
+        }
+
+        int remaining = shallow.remaining();
+        if (remaining < LOG_OVERHEAD)
+            return done();
+        int start = shallow.position();
+        int recordSize = shallow.getInt(start + Records.SIZE_OFFSET);
+        if (recordSize < Record.RECORD_OVERHEAD_V0)
+            throw new CorruptRecordException(String.format("Record size is less than the minimum record overhead (%d)", Record.RECORD_OVERHEAD_V0));
+        if (recordSize > maxMessageSize)
+            throw new CorruptRecordException(String.format("Record size exceeds the largest allowable message size (%d).", maxMessageSize));
+        if (remaining < recordSize + LOG_OVERHEAD)
+            return done();
+
+        shallow.position(start + LOG_OVERHEAD + recordSize);
+        setCurrent(shallow, shallow.getLong(start + Records.OFFSET_OFFSET), start + LOG_OVERHEAD, recordSize);
+        if (!deep || compressionType() == CompressionType.NONE)
+            return true;
+
+        openWrapper();
+        return nextInner();
+    }
+
+    private boolean done() {
+        buffer = null;
+        return false;
+    }
+
+    private void setCurrent(ByteBuffer buffer, long offset, int position, int size) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.position = position;
+        this.size = size;
+        this.magic = buffer.get(position + Record.MAGIC_OFFSET);
+    }
+
+    /**
+     * Decompress the payload of the current record, which is a compressed wrapper, into the decompression buffer.
+     */
+    private void openWrapper() {
+        byte wrapperMagic = magic;
+        long wrapperOffset = offset;
+        ByteBuffer value = valueSize() < 0 ? ByteBuffer.allocate(0) : slice(valuePosition(), valueSize());
+        DataInputStream stream = MemoryRecordsBuilder.wrapForInput(new ByteBufferInputStream(value),
+                compressionType(), wrapperMagic);
+        try {
+            inner = RecordsIterator.DeepRecordsIterator.decompress(stream, decompressionBuffer);
+        } catch (IOException e) {
+            throw new KafkaException(e);
+        } finally {
+            Utils.closeQuietly(stream, "record cursor stream");
+        }
+        decompressionBuffer = inner.array();
+
+        long lastOffset = RecordsIterator.DeepRecordsIterator.lastInnerOffset(inner, maxMessageSize);
+        if (wrapperMagic > Record.MAGIC_VALUE_V0) {
+            // the wrapper offset is the absolute offset of the last inner entry
+            absoluteBaseOffset = wrapperOffset - lastOffset;
+            wrapperTimestamp = timestamp();
+            wrapperTimestampType = timestampType();
+        } else {
+            // inner entries of magic v0 carry their absolute offsets
+            absoluteBaseOffset = 0;
+            wrapperTimestampType = null;
+        }
+    }
+
+    private boolean nextInner() {
+        int start = inner.position();
+        int recordSize = inner.getInt(start + Records.SIZE_OFFSET);
+        inner.position(start + LOG_OVERHEAD + recordSize);
+        setCurrent(inner, absoluteBaseOffset + inner.getLong(start + Records.OFFSET_OFFSET), start + LOG_OVERHEAD,
+                recordSize);
+        if (compressionType() != CompressionType.NONE)
+            throw new InvalidRecordException("Inner messages must not be compressed");
+        return true;
+    }
+
+    private ByteBuffer slice(int position, int size) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position);
+        slice = slice.slice();
+        slice.limit(size);
+        return slice;
+    }
+
+    /**
+     * The buffer which contains the current record, all the positions returned by the cursor are absolute positions
+     * in this buffer. It must not be modified.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * The position of the current record, which excludes the log overhead (offset and size), in {@link #buffer()}.
+     */
+    public int position() {
+        return position;
+    }
+
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * The size of the current record, excluding the log overhead (offset and record size).
+     */
+    public int recordSize() {
+        return size;
+    }
+
+    /**
+     * The size of the current entry, including the log overhead (offset and record size).
+     */
+    public int sizeInBytes() {
+        return size + LOG_OVERHEAD;
+    }
+
+    public byte magic() {
+        return magic;
+    }
+
+    public byte attributes() {
+        return buffer.get(position + Record.ATTRIBUTES_OFFSET);
+    }
+
+    public CompressionType compressionType() {
+        return CompressionType.forId(attributes() & Record.COMPRESSION_CODEC_MASK);
+    }
+
+    public long checksum() {
+        return Utils.readUnsignedInt(buffer, position + Record.CRC_OFFSET);
+    }
+
+    public long computeChecksum() {
+        return Utils.computeChecksum(buffer, position + Record.MAGIC_OFFSET, size - Record.MAGIC_OFFSET);
+    }
+
+    /**
+     * Returns true if the crc stored with the current record matches the crc computed off the record contents
+     */
+    public boolean isValid() {
+        return size >= Record.CRC_LENGTH && checksum() == computeChecksum();
+    }
+
+    /**
+     * Throw an InvalidRecordException if isValid is false for the current record
+     */
+    public void ensureValid() {
+        if (!isValid()) {
+            if (size < Record.CRC_LENGTH)
+                throw new InvalidRecordException("Record is corrupt (crc could not be retrieved as the record is too "
+                        + "small, size = " + size + ")");
+            else
+                throw new InvalidRecordException("Record is corrupt (stored crc = " + checksum()
+                        + ", computed crc = " + computeChecksum() + ")");
+        }
+    }
+
+    /**
+     * The timestamp of the current record, as {@link Record#timestamp()} would return it.
+     */
+    public long timestamp() {
+        if (magic == Record.MAGIC_VALUE_V0)
+            return Record.NO_TIMESTAMP;
+        if (wrapperTimestampType == TimestampType.LOG_APPEND_TIME)
+            return wrapperTimestamp;
+        return buffer.getLong(position + Record.TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * The timestamp type of the current record, as {@link Record#timestampType()} would return it.
+     */
+    public TimestampType timestampType() {
+        if (magic == Record.MAGIC_VALUE_V0)
+            return TimestampType.NO_TIMESTAMP_TYPE;
+        return wrapperTimestampType == null ? TimestampType.forAttributes(attributes()) : wrapperTimestampType;
+    }
+
+    private int keySizePosition() {
+        return position + (magic == Record.MAGIC_VALUE_V0 ? Record.KEY_SIZE_OFFSET_V0 : Record.KEY_SIZE_OFFSET_V1);
+    }
+
+    /**
+     * The size of the key of the current record, or -1 if the key is null.
+     */
+    public int keySize() {
+        return buffer.getInt(keySizePosition());
+    }
+
+    public int keyPosition() {
+        return keySizePosition() + Record.KEY_SIZE_LENGTH;
+    }
+
+    private int valueSizePosition() {
+        return keyPosition() + Math.max(0, keySize());
+    }
+
+    /**
+     * The size of the value of the current record, or -1 if the value is null.
+     */
+    public int valueSize() {
+        return buffer.getInt(valueSizePosition());
+    }
+
+    public int valuePosition() {
+        return valueSizePosition() + Record.VALUE_SIZE_LENGTH;
+    }
+
+    /**
+     * Copy the key of the current record.
+     * @return the key or null if the key is null
+     */
+    public byte[] keyBytes() {
+        int keySize = keySize();
+        return keySize < 0 ? null : Utils.toArray(buffer, keyPosition(), keySize);
+    }
+
+    /**
+     * Copy the value of the current record.
+     * @return the value or null if the value is null
+     */
+    public byte[] valueBytes() {
+        int valueSize = valueSize();
+        return valueSize < 0 ? null : Utils.toArray(buffer, valuePosition(), valueSize);
+    }
+
+    /**
+     * Create a {@link Record} for the current record, for code which needs one. The record shares the buffer of the
+     * cursor, so an inner record of a compressed wrapper must be copied if it is kept beyond the next call to
+     * {@link #next()}.
+     */
+    public Record record() {
+        ByteBuffer recordBuffer = slice(position, size);
+        if (wrapperTimestampType == null)
+            return new Record(recordBuffer);
+        return new Record(recordBuffer, wrapperTimestamp, wrapperTimestampType);
+    }
+
+    @Override
+    public String toString() {
+        if (buffer == null)
+            return "RecordCursor(no current record)";
+        return "RecordCursor(offset=" + offset + ", magic=" + magic + ", size=" + size + ")";
+    }
+
+}
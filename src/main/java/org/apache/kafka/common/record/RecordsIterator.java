@@ -137,52 +137,42 @@ public class RecordsIterator extends AbstractIterator<LogEntry> {
     }
 
     public static class DeepRecordsIterator extends AbstractIterator<LogEntry> {
+        private static final int ENTRY_HEADER_SIZE = 12;
+
+        // the inner entries of a magic v0 wrapper
         private final ArrayDeque<LogEntry> logEntries;
+        // the decompressed inner entries of a magic v1 wrapper, which are returned one at a time
+        private final ByteBuffer innerEntries;
         private final long absoluteBaseOffset;
         private final byte wrapperMagic;
+        private final boolean ensureMatchingMagic;
+        private final Record wrapperRecord;
 
         public DeepRecordsIterator(LogEntry wrapperEntry, boolean ensureMatchingMagic, int maxMessageSize) {
-            Record wrapperRecord = wrapperEntry.record();
+            this.wrapperRecord = wrapperEntry.record();
             this.wrapperMagic = wrapperRecord.magic();
+            this.ensureMatchingMagic = ensureMatchingMagic;
 
             CompressionType compressionType = wrapperRecord.compressionType();
             ByteBuffer buffer = wrapperRecord.value();
             DataInputStream stream = MemoryRecordsBuilder.wrapForInput(new ByteBufferInputStream(buffer), compressionType, wrapperRecord.magic());
-            LogInputStream logStream = new DataLogInputStream(stream, maxMessageSize);
-
-            long wrapperRecordOffset = wrapperEntry.offset();
-            long wrapperRecordTimestamp = wrapperRecord.timestamp();
-            this.logEntries = new ArrayDeque();
 
-            // If relative offset is used, we need to decompress the entire message first to compute
-            // the absolute offset. For simplicity and because it's a format that is on its way out, we
-            // do the same for message format version 0
             try {
-                while (true) {
-                    LogEntry logEntry = logStream.nextEntry();
-                    if (logEntry == null)
-                        break;
-
-                    Record record = logEntry.record();
-                    byte magic = record.magic();
-
-                    if (ensureMatchingMagic && magic != wrapperMagic)
-                        throw new InvalidRecordException("Compressed message magic does not match wrapper magic");
-
-                    if (magic > Record.MAGIC_VALUE_V0) {
-                        Record recordWithTimestamp = new Record(
-                                record.buffer(),
-                                wrapperRecordTimestamp,
-                                wrapperRecord.timestampType()
-                        );
-                        logEntry = LogEntry.create(logEntry.offset(), recordWithTimestamp);
-                    }
-                    logEntries.addLast(logEntry);
-                }
-                if (wrapperMagic > Record.MAGIC_VALUE_V0)
-                    this.absoluteBaseOffset = wrapperRecordOffset - logEntries.getLast().offset();
-                else
+                if (wrapperMagic > Record.MAGIC_VALUE_V0) {
+                    // the wrapper offset is the absolute offset of the last inner entry, so the relative offsets can
+                    // only be converted once the last one is known: the payload is decompressed in a single buffer
+                    // and its entries are only read when they are returned
+                    this.logEntries = null;
+                    this.innerEntries = decompress(stream, new byte[Math.max(1024, buffer.remaining() * 4)]);
+                    long lastOffset = lastInnerOffset(innerEntries, maxMessageSize);
+                    this.absoluteBaseOffset = wrapperEntry.offset() - lastOffset;
+                } else {
+                    // inner entries of magic v0 carry their absolute offsets, for simplicity and because it's a
+                    // format that is on its way out, they are all read up front
+                    this.innerEntries = null;
+                    this.logEntries = readEntries(new DataLogInputStream(stream, maxMessageSize));
                     this.absoluteBaseOffset = -1;
+                }
             } catch (IOException e) {
                 throw new KafkaException(e);
             } finally {
@@ -190,17 +180,88 @@ public class RecordsIterator extends AbstractIterator<LogEntry> {
             }
         }
 
+        private ArrayDeque<LogEntry> readEntries(LogInputStream<LogEntry> logStream) throws IOException {
+            ArrayDeque<LogEntry> entries = new ArrayDeque();
+            while (true) {
+                LogEntry logEntry = logStream.nextEntry();
+                if (logEntry == null)
+                    break;
+                entries.addLast(withWrapperTimestamp(logEntry.offset(), logEntry.record()));
+            }
+            return entries;
+        }
+
+        /**
+         * Read the stream to its end into the given array, which is replaced by a larger one if it is too small.
+         * @return a buffer over the decompressed bytes, whose backing array can be passed again to reuse it
+         */
+        static ByteBuffer decompress(DataInputStream stream, byte[] decompressed) throws IOException {
+            int size = 0;
+            while (true) {
+                if (size == decompressed.length) {
+                    byte[] grown = new byte[decompressed.length * 2];
+                    System.arraycopy(decompressed, 0, grown, 0, size);
+                    decompressed = grown;
+                }
+                int read = stream.read(decompressed, size, decompressed.length - size);
+                if (read < 0)
+                    break;
+                size += read;
+            }
+            return ByteBuffer.wrap(decompressed, 0, size);
+        }
+
+        /**
+         * Validate the sizes of the entries in the buffer, drop an incomplete entry at the end like
+         * {@link DataLogInputStream} does and return the offset of the last entry.
+         */
+        static long lastInnerOffset(ByteBuffer entries, int maxMessageSize) {
+            long lastOffset = -1;
+            int position = entries.position();
+            while (entries.limit() - position >= ENTRY_HEADER_SIZE) {
+                int size = entries.getInt(position + 8);
+                if (size < Record.RECORD_OVERHEAD_V0)
+                    throw new CorruptRecordException(String.format("Record size is less than the minimum record overhead (%d)", Record.RECORD_OVERHEAD_V0));
+                if (size > maxMessageSize)
+                    throw new CorruptRecordException(String.format("Record size exceeds the largest allowable message size (%d).", maxMessageSize));
+                if (entries.limit() - position - ENTRY_HEADER_SIZE < size)
+                    break;
+                lastOffset = entries.getLong(position);
+                position += ENTRY_HEADER_SIZE + size;
+            }
+            if (lastOffset < 0)
+                throw new InvalidRecordException("Found invalid compressed record set with no inner records");
+            entries.limit(position);
+            return lastOffset;
+        }
+
+        private LogEntry withWrapperTimestamp(long offset, Record record) {
+            byte magic = record.magic();
+            if (ensureMatchingMagic && magic != wrapperMagic)
+                throw new InvalidRecordException("Compressed message magic does not match wrapper magic");
+            if (magic > Record.MAGIC_VALUE_V0)
+                record = new Record(record.buffer(), wrapperRecord.timestamp(), wrapperRecord.timestampType());
+            return LogEntry.create(offset, record);
+        }
+
         @Override
         protected LogEntry makeNext() {
-            if (logEntries.isEmpty())
-                return allDone();
-
-            LogEntry entry = logEntries.remove();
+            LogEntry entry;
+            if (innerEntries != null) {
+                if (!innerEntries.hasRemaining())
+                    return allDone();
 
-            // Convert offset to absolute offset if needed.
-            if (absoluteBaseOffset >= 0) {
-                long absoluteOffset = absoluteBaseOffset + entry.offset();
-                entry = LogEntry.create(absoluteOffset, entry.record());
+                // convert the relative offset to the absolute offset
+                long offset = absoluteBaseOffset + innerEntries.getLong();
+                int size = innerEntries.getInt();
+                ByteBuffer recordBuffer = innerEntries.slice();
+                recordBuffer.limit(size);
+                innerEntries.position(innerEntries.position() + size);
+                entry = withWrapperTimestamp(offset, new Record(recordBuffer));
+            } else {
+                if (logEntries.isEmpty())
+                    return allDone();
+                entry = logEntries.remove();
             }
 
             if (entry.isCompressed())
@@ -15,11 +15,16 @@ package org.apache.kafka.common.requests;
 
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.UnsupportedVersionException;
+import org.apache.kafka.common.network.ByteBufferSend;
+import org.apache.kafka.common.network.MultiSend;
+import org.apache.kafka.common.network.Send;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.ProtoUtils;
 import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.protocol.types.Type;
 import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.Records;
 import org.apache.kafka.common.utils.CollectionUtils;
 import org.apache.kafka.common.utils.Utils;
 
@@ -45,9 +50,14 @@ public class ProduceRequest extends AbstractRequest {
     public static class Builder extends AbstractRequest.Builder<ProduceRequest> {
         private final short acks;
         private final int timeout;
-        private final Map<TopicPartition, MemoryRecords> partitionRecords;
-
-        public Builder(short acks, int timeout, Map<TopicPartition, MemoryRecords> partitionRecords) {
+        private final Map<TopicPartition, ? extends Records> partitionRecords;
+
+        /**
+         * @param partitionRecords The records of every partition, which are usually {@link MemoryRecords}. Records of
+         *        other types, such as {@link org.apache.kafka.common.record.FileRecords}, are written to the socket
+         *        directly when the request is sent, without being copied into the request buffer.
+         */
+        public Builder(short acks, int timeout, Map<TopicPartition, ? extends Records> partitionRecords) {
             super(ApiKeys.PRODUCE);
             this.acks = acks;
             this.timeout = timeout;
@@ -77,20 +87,25 @@ public class ProduceRequest extends AbstractRequest {
 
     private final short acks;
     private final int timeout;
-    private final Map<TopicPartition, MemoryRecords> partitionRecords;
+    private final Map<TopicPartition, ? extends Records> partitionRecords;
+    // whether some records are not in memory and must be written to the socket directly
+    private final boolean hasUnbufferedRecords;
 
-    private ProduceRequest(short version, short acks, int timeout, Map<TopicPartition, MemoryRecords> partitionRecords) {
+    private ProduceRequest(short version, short acks, int timeout, Map<TopicPartition, ? extends Records> partitionRecords) {
         super(new Struct(ProtoUtils.requestSchema(ApiKeys.PRODUCE.id, version)), version);
-        Map<String, Map<Integer, MemoryRecords>> recordsByTopic = CollectionUtils.groupDataByTopic(partitionRecords);
+        Map<String, Map<Integer, Records>> recordsByTopic = CollectionUtils.<Records>groupDataByTopic(partitionRecords);
         struct.set(ACKS_KEY_NAME, acks);
         struct.set(TIMEOUT_KEY_NAME, timeout);
         List<Struct> topicDatas = new ArrayList(recordsByTopic.size());
-        for (Map.Entry<String, Map<Integer, MemoryRecords>> entry : recordsByTopic.entrySet()) {
+        boolean hasUnbufferedRecords = false;
+        for (Map.Entry<String, Map<Integer, Records>> entry : recordsByTopic.entrySet()) {
             Struct topicData = struct.instance(TOPIC_DATA_KEY_NAME);
             topicData.set(TOPIC_KEY_NAME, entry.getKey());
             List<Struct> partitionArray = new ArrayList();
-            for (Map.Entry<Integer, MemoryRecords> partitionEntry : entry.getValue().entrySet()) {
-                MemoryRecords records = partitionEntry.getValue();
+            for (Map.Entry<Integer, Records> partitionEntry : entry.getValue().entrySet()) {
+                Records records = partitionEntry.getValue();
+                if (!(records instanceof MemoryRecords))
+                    hasUnbufferedRecords = true;
                 Struct part = topicData.instance(PARTITION_DATA_KEY_NAME)
                                        .set(PARTITION_KEY_NAME, partitionEntry.getKey())
                                        .set(RECORD_SET_KEY_NAME, records);
@@ -103,11 +118,12 @@ public class ProduceRequest extends AbstractRequest {
         this.acks = acks;
         this.timeout = timeout;
         this.partitionRecords = partitionRecords;
+        this.hasUnbufferedRecords = hasUnbufferedRecords;
     }
 
     public ProduceRequest(Struct struct, short version) {
         super(struct, version);
-        partitionRecords = new HashMap();
+        Map<TopicPartition, MemoryRecords> partitionRecords = new HashMap();
         for (Object topicDataObj : struct.getArray(TOPIC_DATA_KEY_NAME)) {
             Struct topicData = (Struct) topicDataObj;
             String topic = topicData.getString(TOPIC_KEY_NAME);
@@ -118,10 +134,65 @@ public class ProduceRequest extends AbstractRequest {
                 partitionRecords.put(new TopicPartition(topic, partition), records);
             }
         }
+        this.partitionRecords = partitionRecords;
+        this.hasUnbufferedRecords = false;
         acks = struct.getShort(ACKS_KEY_NAME);
         timeout = struct.getInt(TIMEOUT_KEY_NAME);
     }
 
+    /**
+     * Requests whose records are all in memory are serialized into a single buffer. Otherwise the fields of the
+     * request are serialized around the records, which are written to the socket by a {@link RecordsSend}, so that
+     * records in a file are sent with {@link java.nio.channels.FileChannel#transferTo(long, long,
+     * java.nio.channels.WritableByteChannel)} without being read into memory.
+     */
+    @Override
+    public Send toSend(String destination, RequestHeader header) {
+        if (!hasUnbufferedRecords)
+            return super.toSend(destination, header);
+
+        Object[] allTopicData = struct.getArray(TOPIC_DATA_KEY_NAME);
+        // write the total size, the request header and the fields before the topics
+        ByteBuffer buffer = ByteBuffer.allocate(4 + header.sizeOf() + 2 + 4 + 4);
+        buffer.putInt(header.sizeOf() + struct.sizeOf());
+        header.writeTo(buffer);
+        buffer.putShort(struct.getShort(ACKS_KEY_NAME));
+        buffer.putInt(struct.getInt(TIMEOUT_KEY_NAME));
+        buffer.putInt(allTopicData.length);
+        buffer.rewind();
+
+        List<Send> sends = new ArrayList();
+        sends.add(new ByteBufferSend(destination, buffer));
+        for (Object topicData : allTopicData)
+            addTopicData(destination, sends, (Struct) topicData);
+        return new MultiSend(destination, sends);
+    }
+
+    private void addTopicData(String destination, List<Send> sends, Struct topicData) {
+        String topic = topicData.getString(TOPIC_KEY_NAME);
+        Object[] allPartitionData = topicData.getArray(PARTITION_DATA_KEY_NAME);
+
+        // include the topic and the count for the number of partitions
+        ByteBuffer buffer = ByteBuffer.allocate(Type.STRING.sizeOf(topic) + 4);
+        Type.STRING.write(buffer, topic);
+        buffer.putInt(allPartitionData.length);
+        buffer.rewind();
+        sends.add(new ByteBufferSend(destination, buffer));
+
+        for (Object partitionData : allPartitionData) {
+            Struct partitionStruct = (Struct) partitionData;
+            Records records = partitionStruct.getRecords(RECORD_SET_KEY_NAME);
+
+            // include the partition and the size of the record set, then the record set itself
+            buffer = ByteBuffer.allocate(4 + 4);
+            buffer.putInt(partitionStruct.getInt(PARTITION_KEY_NAME));
+            buffer.putInt(records.sizeInBytes());
+            buffer.rewind();
+            sends.add(new ByteBufferSend(destination, buffer));
+            sends.add(new RecordsSend(destination, records));
+        }
+    }
+
     @Override
     public AbstractResponse getErrorResponse(Throwable e) {
         /* In case the producer doesn't actually want any response */
@@ -131,8 +202,8 @@ public class ProduceRequest extends AbstractRequest {
         Map<TopicPartition, ProduceResponse.PartitionResponse> responseMap = new HashMap();
         ProduceResponse.PartitionResponse partitionResponse = new ProduceResponse.PartitionResponse(Errors.forException(e));
 
-        for (Map.Entry<TopicPartition, MemoryRecords> entry : partitionRecords.entrySet())
-            responseMap.put(entry.getKey(), partitionResponse);
+        for (TopicPartition tp : partitionRecords.keySet())
+            responseMap.put(tp, partitionResponse);
 
         short versionId = version();
         switch (versionId) {
@@ -155,7 +226,7 @@ public class ProduceRequest extends AbstractRequest {
         return timeout;
     }
 
-    public Map<TopicPartition, MemoryRecords> partitionRecords() {
+    public Map<TopicPartition, ? extends Records> partitionRecords() {
         return partitionRecords;
     }
 
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.utils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Creates the CRC32 checksums of records with the fastest implementation available on the running JVM.
+ * <p>
+ * Starting with Java 8, the JIT compiles {@link java.util.zip.CRC32} to an intrinsic which uses the carry-less
+ * multiplication instructions of the CPU and is several times faster than {@link Crc32} on anything but tiny inputs.
+ * On older JVMs every call goes through JNI and the pure Java {@link Crc32} is faster. The implementation is chosen
+ * from the version of the JVM since a benchmark run when the class is loaded would mostly measure the interpreter.
+ * It can be forced with the <code>org.apache.kafka.common.utils.checksum</code> system property, set to
+ * <code>jdk</code> or <code>pure-java</code>.
+ */
+public final class Checksums {
+
+    public static final String IMPLEMENTATION_PROPERTY = "org.apache.kafka.common.utils.checksum";
+    public static final String JDK_IMPLEMENTATION = "jdk";
+    public static final String PURE_JAVA_IMPLEMENTATION = "pure-java";
+
+    // the chunk size used to checksum buffers whose content is not in an accessible array
+    private static final int DIRECT_BUFFER_CHUNK_SIZE = 4096;
+
+    private static final boolean USE_JDK_CRC32 = useJdkCrc32(System.getProperty(IMPLEMENTATION_PROPERTY),
+                                                             System.getProperty("java.specification.version"));
+
+    private Checksums() {
+    }
+
+    static boolean useJdkCrc32(String implementation, String javaVersion) {
+        if (JDK_IMPLEMENTATION.equals(implementation))
+            return true;
+        if (PURE_JAVA_IMPLEMENTATION.equals(implementation))
+            return false;
+        if (javaVersion == null)
+            return false;
+        // "1.5" to "1.8", then "9", "10" and so on, possibly followed by a suffix such as "-ea"
+        String version = javaVersion.startsWith("1.") ? javaVersion.substring(2) : javaVersion;
+        int end = 0;
+        while (end < version.length() && Character.isDigit(version.charAt(end)))
+            end++;
+        return end > 0 && Integer.parseInt(version.substring(0, end)) >= 8;
+    }
+
+    /**
+     * @return The name of the implementation in use, {@link #JDK_IMPLEMENTATION} or {@link #PURE_JAVA_IMPLEMENTATION}
+     */
+    public static String implementation() {
+        return USE_JDK_CRC32 ? JDK_IMPLEMENTATION : PURE_JAVA_IMPLEMENTATION;
+    }
+
+    /**
+     * Create a new CRC32 checksum
+     */
+    public static Checksum crc32() {
+        return USE_JDK_CRC32 ? new CRC32() : new Crc32();
+    }
+
+    /**
+     * Compute the CRC32 of the segment of the byte array given by the specified size and offset
+     */
+    public static long crc32(byte[] bytes, int offset, int size) {
+        Checksum crc = crc32();
+        crc.update(bytes, offset, size);
+        return crc.getValue();
+    }
+
+    /**
+     * Compute the CRC32 of the given number of bytes of the buffer, starting at the given absolute position. The
+     * position of the buffer is not changed.
+     */
+    public static long crc32(ByteBuffer buffer, int offset, int size) {
+        Checksum crc = crc32();
+        update(crc, buffer, offset, size);
+        return crc.getValue();
+    }
+
+    /**
+     * Update the checksum with the given number of bytes of the buffer, starting at the given absolute position. The
+     * position of the buffer is not changed.
+     */
+    public static void update(Checksum checksum, ByteBuffer buffer, int offset, int size) {
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + offset, size);
+        } else {
+            byte[] chunk = new byte[Math.min(size, DIRECT_BUFFER_CHUNK_SIZE)];
+            ByteBuffer source = buffer.duplicate();
+            source.position(offset);
+            while (size > 0) {
+                int length = Math.min(size, chunk.length);
+                source.get(chunk, 0, length);
+                checksum.update(chunk, 0, length);
+                size -= length;
+            }
+        }
+    }
+
+    /**
+     * Update the checksum with the bytes of an integer, most significant first
+     */
+    public static void updateInt(Checksum checksum, int input) {
+        checksum.update((byte) (input >> 24));
+        checksum.update((byte) (input >> 16));
+        checksum.update((byte) (input >> 8));
+        checksum.update((byte) input /* >> 0 */);
+    }
+
+    /**
+     * Update the checksum with the bytes of a long, most significant first
+     */
+    public static void updateLong(Checksum checksum, long input) {
+        updateInt(checksum, (int) (input >> 32));
+        updateInt(checksum, (int) input);
+    }
+
+}
@@ -26,9 +26,9 @@ public class CollectionUtils {
      * @param <T> Partition data type
      * @return partitioned data
      */
-    public static <T> Map<String, Map<Integer, T>> groupDataByTopic(Map<TopicPartition, T> data) {
+    public static <T> Map<String, Map<Integer, T>> groupDataByTopic(Map<TopicPartition, ? extends T> data) {
         Map<String, Map<Integer, T>> dataByTopic = new HashMap<String, Map<Integer, T>>();
-        for (Map.Entry<TopicPartition, T> entry: data.entrySet()) {
+        for (Map.Entry<TopicPartition, ? extends T> entry: data.entrySet()) {
             String topic = entry.getKey().topic();
             int partition = entry.getKey().partition();
             Map<Integer, T> topicData = dataByTopic.get(topic);
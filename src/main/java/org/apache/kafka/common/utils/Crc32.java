@@ -22,7 +22,8 @@ import java.util.zip.Checksum;
  * This is to avoid the JNI overhead for certain uses of Checksumming where many small pieces of data are checksummed in
  * succession.
  * 
- * The current version is ~10x to 1.8x as fast as Sun's native java.util.zip.CRC32 in Java 1.6
+ * The current version is ~10x to 1.8x as fast as Sun's native java.util.zip.CRC32 in Java 1.6, but newer JVMs
+ * compile java.util.zip.CRC32 to an intrinsic which is much faster, see {@link Checksums} which chooses between them.
  * 
  * @see java.util.zip.CRC32
  */
@@ -277,6 +277,7 @@ public class Utils {
             System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, dest, 0, size);
         } else {
             int pos = buffer.position();
+            buffer.position(offset);
             buffer.get(dest);
             buffer.position(pos);
         }
@@ -779,7 +780,7 @@ public class Utils {
      * @param size The number of bytes to include
      */
     public static long computeChecksum(ByteBuffer buffer, int start, int size) {
-        return Crc32.crc32(buffer.array(), buffer.arrayOffset() + start, size);
+        return Checksums.crc32(buffer, start, size);
     }
 
     /**